@@ -10,12 +10,14 @@ import javapns.feedback.AppleFeedbackServer;
 import javapns.feedback.AppleFeedbackServerBasicImpl;
 import javapns.feedback.FeedbackServiceManager;
 import javapns.notification.*;
+import javapns.notification.transmission.CampaignCheckpoint;
 import javapns.notification.transmission.NotificationThread;
 import javapns.notification.transmission.NotificationThreads;
 import javapns.notification.transmission.PushQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -30,8 +32,12 @@ import java.util.List;
  * See the library's documentation at <a href="http://code.google.com/p/javapns/">http://code.google.com/p/javapns/</a>
  * for more information.</p>
  *
+ * <p>Each method opens and closes its own connection.  Applications pushing notifications
+ * frequently should use a {@link PushClient} instead, which keeps its connections open.</p>
+ *
  * @author Sylvain Pedneault
  * @see NotificationThreads
+ * @see PushClient
  */
 public class Push {
 
@@ -212,15 +218,43 @@ public class Push {
       return sendPayload(payload, keystore, password, production, devices);
     }
 
+    return payload(payload, keystore, password, production, numberOfThreads, devices, null);
+  }
+
+  /**
+   * Push a preformatted payload to a list of devices using multiple simulatenous threads (and connections),
+   * recording progress in a checkpoint file so that an interrupted campaign can be resumed.
+   * Invoking this method again with the same arguments and checkpoint file skips the notifications already confirmed.
+   *
+   * @param payload         a simple or complex payload to push.
+   * @param keystore        a keystore containing your private key and the certificate signed by Apple ({@link java.io.File}, {@link java.io.InputStream}, byte[], {@link java.security.KeyStore} or {@link java.lang.String} for a file path)
+   * @param password        the keystore's password.
+   * @param production      true to use Apple's production servers, false to use the sandbox servers.
+   * @param numberOfThreads the number of parallel threads to use to push the notifications
+   * @param devices         a list or an array of tokens or devices: {@link java.lang.String String[]}, {@link java.util.List} {@link java.lang.String},  {@link javapns.devices.Device Device[]}, {@link java.util.List} {@link javapns.devices.Device},  {@link java.lang.String} or {@link javapns.devices.Device}
+   * @param checkpoint      a file recording the campaign's progress (null for none)
+   * @return a list of the notifications pushed by this invocation, each with details on transmission results and error (if any)
+   * @throws Exception thrown if any critical exception occurs
+   * @see CampaignCheckpoint
+   */
+  public static PushedNotifications payload(final Payload payload, final Object keystore, final String password, final boolean production, final int numberOfThreads, final Object devices, final File checkpoint) throws Exception {
     final AppleNotificationServer server = new AppleNotificationServerBasicImpl(keystore, password, production);
     final List<Device> deviceList = Devices.asDevices(devices);
-    final NotificationThreads threads = new NotificationThreads(server, payload, deviceList, numberOfThreads);
-    threads.start();
+    return push(new NotificationThreads(server, payload, deviceList, Math.max(numberOfThreads, 1)), checkpoint);
+  }
 
-    try {
-      threads.waitForAllThreads(true);
-    } catch (final InterruptedException e) {
-      logger.error(e.getMessage(), e);
+  private static PushedNotifications push(final NotificationThreads threads, final File checkpointFile) throws Exception {
+    try (final CampaignCheckpoint checkpoint = checkpointFile != null ? new CampaignCheckpoint(checkpointFile) : null) {
+      if (checkpoint != null) {
+        threads.setCheckpoint(checkpoint);
+      }
+      threads.start();
+
+      try {
+        threads.waitForAllThreads(true);
+      } catch (final InterruptedException e) {
+        logger.error(e.getMessage(), e);
+      }
     }
 
     final PushedNotifications notifications = threads.getPushedNotifications();
@@ -277,20 +311,28 @@ public class Push {
       return sendPayloads(keystore, password, production, payloadDevicePairs);
     }
 
+    return payloads(keystore, password, production, numberOfThreads, payloadDevicePairs, null);
+  }
+
+  /**
+   * Push a different preformatted payload for each device using multiple simulatenous threads (and connections),
+   * recording progress in a checkpoint file so that an interrupted campaign can be resumed.
+   * Invoking this method again with the same arguments and checkpoint file skips the notifications already confirmed.
+   *
+   * @param keystore           a keystore containing your private key and the certificate signed by Apple ({@link java.io.File}, {@link java.io.InputStream}, byte[], {@link java.security.KeyStore} or {@link java.lang.String} for a file path)
+   * @param password           the keystore's password.
+   * @param production         true to use Apple's production servers, false to use the sandbox servers.
+   * @param numberOfThreads    the number of parallel threads to use to push the notifications
+   * @param payloadDevicePairs a list or an array of PayloadPerDevice: {@link java.util.List} {@link javapns.notification.PayloadPerDevice},  {@link javapns.notification.PayloadPerDevice PayloadPerDevice[]} or {@link javapns.notification.PayloadPerDevice}
+   * @param checkpoint         a file recording the campaign's progress (null for none)
+   * @return a list of the notifications pushed by this invocation, each with details on transmission results and error (if any)
+   * @throws Exception thrown if any critical exception occurs
+   * @see CampaignCheckpoint
+   */
+  public static PushedNotifications payloads(final Object keystore, final String password, final boolean production, final int numberOfThreads, final Object payloadDevicePairs, final File checkpoint) throws Exception {
     final AppleNotificationServer server = new AppleNotificationServerBasicImpl(keystore, password, production);
     final List<PayloadPerDevice> payloadPerDevicePairs = Devices.asPayloadsPerDevices(payloadDevicePairs);
-    final NotificationThreads threads = new NotificationThreads(server, payloadPerDevicePairs, numberOfThreads);
-    threads.start();
-
-    try {
-      threads.waitForAllThreads(true);
-    } catch (final InterruptedException e) {
-      logger.error(e.getMessage(), e);
-    }
-
-    final PushedNotifications notifications = threads.getPushedNotifications();
-    threads.destroy();
-    return notifications;
+    return push(new NotificationThreads(server, payloadPerDevicePairs, Math.max(numberOfThreads, 1)), checkpoint);
   }
 
   /**
@@ -0,0 +1,415 @@
+package javapns;
+
+import javapns.communication.exceptions.CommunicationException;
+import javapns.communication.exceptions.KeystoreException;
+import javapns.devices.Device;
+import javapns.devices.Devices;
+import javapns.devices.exceptions.InvalidDeviceTokenFormatException;
+import javapns.devices.implementations.basic.BasicDevice;
+import javapns.feedback.AppleFeedbackServer;
+import javapns.feedback.AppleFeedbackServerBasicImpl;
+import javapns.feedback.FeedbackServiceManager;
+import javapns.notification.*;
+import javapns.notification.transmission.NotificationThread;
+import javapns.notification.transmission.NotificationThreads;
+import javapns.notification.transmission.PushQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * <p>A long-lived client for pushing notifications with a single set of credentials</p>
+ *
+ * <p>The static methods in {@link Push} open a new connection (and TLS handshake) for every call,
+ * and wait for Apple's error-responses before closing it.  A client is built once from a keystore,
+ * password and environment, and keeps its connections open between calls: pushing a notification
+ * then only costs writing it to an already established connection, which makes this class a good
+ * fit for applications pushing a few notifications at a time, such as web services.</p>
+ *
+ * <pre>
+ * PushClient client = new PushClient("keystore.p12", "password", true);
+ * client.alert("Hello", token);
+ * ...
+ * client.close();
+ * </pre>
+ *
+ * <p>Since calls do not wait for Apple's error-responses, the notifications they return are marked as
+ * transmitted, but errors reported by Apple are linked to them a little later (when their connection
+ * is next used).  Use {@link #flush()} to wait for all outstanding error-responses, for example before
+ * inspecting results in a batch job.  Closing the client flushes it too.</p>
+ *
+ * <p>Connections kept open between calls are subject to the connection pool's maximum idle time:
+ * a connection idle for longer is replaced before being used again, since firewalls and NAT devices
+ * often drop idle connections silently.  Connections closed by Apple are replaced as well.</p>
+ *
+ * <p>This class is thread-safe.  Concurrent calls each use their own connection.</p>
+ *
+ * @see Push
+ */
+public class PushClient implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(PushClient.class);
+
+  private final AppleNotificationServer server;
+  private final AppleFeedbackServer feedbackServer;
+  private final ConnectionPool connectionPool;
+
+  /* Managers holding an open connection, ready for the next call, most recently used first */
+  private final Deque<IdleManager> managers = new ArrayDeque<>();
+
+  private volatile boolean closed = false;
+
+  /**
+   * Create a client.  No connection is opened until the first notification is pushed.
+   *
+   * @param keystore   a keystore containing your private key and the certificate signed by Apple ({@link java.io.File}, {@link java.io.InputStream}, byte[], {@link java.security.KeyStore} or {@link java.lang.String} for a file path)
+   * @param password   the keystore's password.
+   * @param production true to use Apple's production servers, false to use the sandbox servers.
+   * @throws KeystoreException thrown if an error occurs when loading the keystore
+   */
+  public PushClient(final Object keystore, final String password, final boolean production) throws KeystoreException {
+    this.server = new AppleNotificationServerBasicImpl(keystore, password, production);
+    /* A stream can only be read once, so the feedback server gets the copy loaded by the notification server;
+       other references are shared as is, so that a reloadable keystore reaches both servers */
+    this.feedbackServer = new AppleFeedbackServerBasicImpl(keystore instanceof InputStream ? server.getKeystoreStream() : keystore, password, production);
+    this.connectionPool = new ConnectionPool();
+  }
+
+  /**
+   * Create a client using custom servers and a shared connection pool.
+   *
+   * @param server         the notification server to push to
+   * @param feedbackServer the feedback server to contact (null if not needed)
+   * @param connectionPool the pool holding this client's idle connections
+   */
+  public PushClient(final AppleNotificationServer server, final AppleFeedbackServer feedbackServer, final ConnectionPool connectionPool) {
+    this.server = server;
+    this.feedbackServer = feedbackServer;
+    this.connectionPool = connectionPool;
+  }
+
+  /**
+   * Push a simple alert to one or more devices.
+   *
+   * @param message the alert message to push.
+   * @param devices a list or an array of tokens or devices: {@link java.lang.String String[]}, {@link java.util.List} {@link java.lang.String},  {@link javapns.devices.Device Device[]}, {@link java.util.List} {@link javapns.devices.Device},  {@link java.lang.String} or {@link javapns.devices.Device}
+   * @return a list of pushed notifications, each with details on transmission results and error (if any)
+   * @throws KeystoreException      thrown if an error occurs when loading the keystore
+   * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
+   */
+  public PushedNotifications alert(final String message, final Object devices) throws CommunicationException, KeystoreException {
+    return payload(PushNotificationPayload.alert(message), devices);
+  }
+
+  /**
+   * Push a simple badge number to one or more devices.
+   *
+   * @param badge   the badge number to push.
+   * @param devices a list or an array of tokens or devices: {@link java.lang.String String[]}, {@link java.util.List} {@link java.lang.String},  {@link javapns.devices.Device Device[]}, {@link java.util.List} {@link javapns.devices.Device},  {@link java.lang.String} or {@link javapns.devices.Device}
+   * @return a list of pushed notifications, each with details on transmission results and error (if any)
+   * @throws KeystoreException      thrown if an error occurs when loading the keystore
+   * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
+   */
+  public PushedNotifications badge(final int badge, final Object devices) throws CommunicationException, KeystoreException {
+    return payload(PushNotificationPayload.badge(badge), devices);
+  }
+
+  /**
+   * Push a simple sound name to one or more devices.
+   *
+   * @param sound   the sound name (stored in the client app) to push.
+   * @param devices a list or an array of tokens or devices: {@link java.lang.String String[]}, {@link java.util.List} {@link java.lang.String},  {@link javapns.devices.Device Device[]}, {@link java.util.List} {@link javapns.devices.Device},  {@link java.lang.String} or {@link javapns.devices.Device}
+   * @return a list of pushed notifications, each with details on transmission results and error (if any)
+   * @throws KeystoreException      thrown if an error occurs when loading the keystore
+   * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
+   */
+  public PushedNotifications sound(final String sound, final Object devices) throws CommunicationException, KeystoreException {
+    return payload(PushNotificationPayload.sound(sound), devices);
+  }
+
+  /**
+   * Push a notification combining an alert, a badge and a sound.
+   *
+   * @param message the alert message to push (set to null to skip).
+   * @param badge   the badge number to push (set to -1 to skip).
+   * @param sound   the sound name to push (set to null to skip).
+   * @param devices a list or an array of tokens or devices: {@link java.lang.String String[]}, {@link java.util.List} {@link java.lang.String},  {@link javapns.devices.Device Device[]}, {@link java.util.List} {@link javapns.devices.Device},  {@link java.lang.String} or {@link javapns.devices.Device}
+   * @return a list of pushed notifications, each with details on transmission results and error (if any)
+   * @throws KeystoreException      thrown if an error occurs when loading the keystore
+   * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
+   */
+  public PushedNotifications combined(final String message, final int badge, final String sound, final Object devices) throws CommunicationException, KeystoreException {
+    return payload(PushNotificationPayload.combined(message, badge, sound), devices);
+  }
+
+  /**
+   * Push a content-available notification for Newsstand.
+   *
+   * @param devices a list or an array of tokens or devices: {@link java.lang.String String[]}, {@link java.util.List} {@link java.lang.String},  {@link javapns.devices.Device Device[]}, {@link java.util.List} {@link javapns.devices.Device},  {@link java.lang.String} or {@link javapns.devices.Device}
+   * @return a list of pushed notifications, each with details on transmission results and error (if any)
+   * @throws KeystoreException      thrown if an error occurs when loading the keystore
+   * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
+   */
+  public PushedNotifications contentAvailable(final Object devices) throws CommunicationException, KeystoreException {
+    return payload(NewsstandNotificationPayload.contentAvailable(), devices);
+  }
+
+  /**
+   * Push a special test notification with an alert message containing useful debugging information.
+   *
+   * @param devices a list or an array of tokens or devices: {@link java.lang.String String[]}, {@link java.util.List} {@link java.lang.String},  {@link javapns.devices.Device Device[]}, {@link java.util.List} {@link javapns.devices.Device},  {@link java.lang.String} or {@link javapns.devices.Device}
+   * @return a list of pushed notifications, each with details on transmission results and error (if any)
+   * @throws KeystoreException      thrown if an error occurs when loading the keystore
+   * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
+   */
+  public PushedNotifications test(final Object devices) throws CommunicationException, KeystoreException {
+    return payload(PushNotificationPayload.test(), devices);
+  }
+
+  /**
+   * Push a preformatted payload to a list of devices.
+   *
+   * @param payload a simple or complex payload to push.
+   * @param devices a list or an array of tokens or devices: {@link java.lang.String String[]}, {@link java.util.List} {@link java.lang.String},  {@link javapns.devices.Device Device[]}, {@link java.util.List} {@link javapns.devices.Device},  {@link java.lang.String} or {@link javapns.devices.Device}
+   * @return a list of pushed notifications, each with details on transmission results and error (if any)
+   * @throws KeystoreException      thrown if an error occurs when loading the keystore
+   * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
+   */
+  public PushedNotifications payload(final Payload payload, final Object devices) throws CommunicationException, KeystoreException {
+    final PushedNotifications notifications = new PushedNotifications();
+    if (payload == null) {
+      return notifications;
+    }
+    final List<Device> deviceList = Devices.asDevices(devices);
+    notifications.setMaxRetained(Math.max(deviceList.size(), 1));
+    final PushNotificationManager pushManager = borrowManager();
+    boolean healthy = false;
+    try {
+      for (final Device device : deviceList) {
+        try {
+          BasicDevice.validateTokenFormat(device.getToken());
+          notifications.add(pushManager.sendNotification(device, payload, false));
+        } catch (final InvalidDeviceTokenFormatException e) {
+          notifications.add(new PushedNotification(device, payload, e));
+        }
+      }
+      healthy = true;
+    } finally {
+      returnManager(pushManager, healthy);
+    }
+    return notifications;
+  }
+
+  /**
+   * Push a different preformatted payload for each device.
+   *
+   * @param payloadDevicePairs a list or an array of PayloadPerDevice: {@link java.util.List} {@link javapns.notification.PayloadPerDevice},  {@link javapns.notification.PayloadPerDevice PayloadPerDevice[]} or {@link javapns.notification.PayloadPerDevice}
+   * @return a list of pushed notifications, each with details on transmission results and error (if any)
+   * @throws KeystoreException      thrown if an error occurs when loading the keystore
+   * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
+   */
+  public PushedNotifications payloads(final Object payloadDevicePairs) throws CommunicationException, KeystoreException {
+    final PushedNotifications notifications = new PushedNotifications();
+    if (payloadDevicePairs == null) {
+      return notifications;
+    }
+    final List<PayloadPerDevice> pairs = Devices.asPayloadsPerDevices(payloadDevicePairs);
+    notifications.setMaxRetained(Math.max(pairs.size(), 1));
+    final PushNotificationManager pushManager = borrowManager();
+    boolean healthy = false;
+    try {
+      for (final PayloadPerDevice ppd : pairs) {
+        final Device device = ppd.getDevice();
+        final Payload payload = ppd.getPayload();
+        try {
+          notifications.add(pushManager.sendNotification(device, payload, false));
+        } catch (final Exception e) {
+          notifications.add(new PushedNotification(device, payload, e));
+        }
+      }
+      healthy = true;
+    } finally {
+      returnManager(pushManager, healthy);
+    }
+    return notifications;
+  }
+
+  /**
+   * Build an asynchronous queue for sending notifications later, sharing this client's credentials.
+   * The returned queue is not started, and must be stopped independently from this client.
+   *
+   * @param numberOfThreads the number of parallel threads to use to push the notifications
+   * @return a live queue to which you can add notifications to be sent asynchronously
+   * @see Push#queue(Object, String, boolean, int)
+   */
+  public PushQueue queue(final int numberOfThreads) {
+    if (numberOfThreads <= 1) {
+      final PushNotificationManager pushManager = new PushNotificationManager();
+      pushManager.setConnectionPool(connectionPool);
+      return new NotificationThread(pushManager, server);
+    }
+    final NotificationThreads threads = new NotificationThreads(server, numberOfThreads);
+    threads.setConnectionPool(connectionPool);
+    return threads;
+  }
+
+  /**
+   * Retrieve a list of devices that should be removed from future notification lists.
+   * See {@link Push#feedback(Object, String, boolean)} for important details about the Feedback Service.
+   *
+   * @return a list of devices that are inactive.
+   * @throws KeystoreException      thrown if an error occurs when loading the keystore
+   * @throws CommunicationException thrown if an unrecoverable error occurs while trying to communicate with Apple servers
+   * @throws IllegalStateException  thrown if no feedback server was provided to this client
+   */
+  public List<Device> feedback() throws CommunicationException, KeystoreException {
+    if (feedbackServer == null) {
+      throw new IllegalStateException("No feedback server was provided to this client");
+    }
+    return new ArrayList<>(new FeedbackServiceManager().getDevices(feedbackServer));
+  }
+
+  /**
+   * Wait for Apple's error-responses to all notifications pushed so far, and link them to their notifications.
+   * Connections stay open for future calls.
+   */
+  public void flush() {
+    for (final PushNotificationManager pushManager : takeAllManagers()) {
+      boolean healthy = false;
+      try {
+        pushManager.drainResponses();
+        healthy = true;
+      } catch (final Exception e) {
+        logger.error("Error while flushing connection: " + e.getMessage(), e);
+      } finally {
+        returnManager(pushManager, healthy);
+      }
+    }
+  }
+
+  /**
+   * Wait for Apple's error-responses to all notifications pushed so far, and close all connections.
+   */
+  public void close() {
+    synchronized (managers) {
+      closed = true;
+    }
+    for (final PushNotificationManager pushManager : takeAllManagers()) {
+      stopManager(pushManager);
+    }
+    connectionPool.close();
+  }
+
+  /**
+   * Determine if this client was closed.
+   *
+   * @return true if the client can no longer push notifications
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Get the notification server this client pushes to.
+   *
+   * @return a notification server
+   */
+  public AppleNotificationServer getServer() {
+    return server;
+  }
+
+  /**
+   * Get the feedback server this client contacts.
+   *
+   * @return a feedback server, or null if none was provided
+   */
+  public AppleFeedbackServer getFeedbackServer() {
+    return feedbackServer;
+  }
+
+  /**
+   * Get the pool holding this client's idle connections.
+   *
+   * @return a connection pool
+   */
+  public ConnectionPool getConnectionPool() {
+    return connectionPool;
+  }
+
+  private PushNotificationManager borrowManager() throws CommunicationException, KeystoreException {
+    if (closed) {
+      throw new IllegalStateException("Push client is closed");
+    }
+    final IdleManager idle;
+    synchronized (managers) {
+      idle = managers.pollFirst();
+    }
+    PushNotificationManager pushManager = idle != null ? idle.manager : null;
+    if (pushManager != null) {
+      try {
+        /* Link errors reported since this connection was last used, and reconnect if Apple closed it */
+        pushManager.pollResponses();
+        final long maxIdleTime = connectionPool.getMaxIdleTime();
+        if (maxIdleTime > 0 && System.currentTimeMillis() - idle.since > maxIdleTime) {
+          logger.debug("Replacing connection idle for more than " + maxIdleTime + " ms");
+          pushManager.restartConnection(server);
+        }
+        return pushManager;
+      } catch (final CommunicationException | KeystoreException e) {
+        logger.debug("Discarding connection that could not be reused: " + e.getMessage());
+        stopManager(pushManager);
+      }
+    }
+    pushManager = new PushNotificationManager();
+    pushManager.setConnectionPool(connectionPool);
+    pushManager.initializeConnection(server);
+    return pushManager;
+  }
+
+  private void returnManager(final PushNotificationManager pushManager, final boolean healthy) {
+    if (healthy) {
+      synchronized (managers) {
+        if (!closed) {
+          managers.addFirst(new IdleManager(pushManager));
+          return;
+        }
+      }
+    }
+    stopManager(pushManager);
+  }
+
+  private List<PushNotificationManager> takeAllManagers() {
+    synchronized (managers) {
+      final List<PushNotificationManager> all = new ArrayList<>(managers.size());
+      for (final IdleManager idle : managers) {
+        all.add(idle.manager);
+      }
+      managers.clear();
+      return all;
+    }
+  }
+
+  private static void stopManager(final PushNotificationManager pushManager) {
+    try {
+      pushManager.stopConnection();
+    } catch (final Exception e) {
+      logger.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * A manager waiting for the next call, and the time since which its connection is idle.
+   */
+  private static final class IdleManager {
+    private final PushNotificationManager manager;
+    private final long since = System.currentTimeMillis();
+
+    private IdleManager(final PushNotificationManager manager) {
+      this.manager = manager;
+    }
+  }
+}
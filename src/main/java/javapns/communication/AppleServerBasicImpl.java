@@ -4,42 +4,59 @@ import javapns.communication.exceptions.InvalidKeystoreReferenceException;
 import javapns.communication.exceptions.KeystoreException;
 
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Objects;
 
 /**
  * A basic and abstract implementation of the AppleServer interface
  * intended to facilitate rapid deployment.
+ * <p>
+ * Servers configured identically (same keystore reference, password and type) are equal,
+ * which allows connection pools to share connections between them.  The proxy is not part of
+ * a server's identity, since it can be changed at any time: pools key connections on it separately.
  *
  * @author Sylvain Pedneault
  */
 public abstract class AppleServerBasicImpl implements AppleServer {
   private final String password;
   private final String type;
-  private Object keystore;
+  private final Object keystore;
+  /* Computed once, since hashing a byte[] keystore costs a pass over the whole array */
+  private final int keystoreHash;
   private String proxyHost;
   private int proxyPort;
 
   /**
    * Constructs a AppleServerBasicImpl object.
    *
-   * @param keystore The keystore to use (can be a File, an InputStream, a String for a file path, or a byte[] array)
+   * @param keystore The keystore to use (can be a File, an InputStream, a String for a file path, a byte[] array, or a {@link ReloadableKeystore})
    * @param password The keystore's password
    * @param type     The keystore type (typically PKCS12)
    * @throws KeystoreException thrown if an error occurs when loading the keystore
    */
   protected AppleServerBasicImpl(final Object keystore, final String password, final String type) throws KeystoreException {
     KeystoreManager.validateKeystoreParameter(keystore);
-    this.keystore = keystore;
     this.password = password;
     this.type = type;
 
     /* Make sure that the keystore reference is reusable. */
-    this.keystore = KeystoreManager.ensureReusableKeystore(this, this.keystore);
+    this.keystore = KeystoreManager.ensureReusableKeystore(this, keystore);
+    this.keystoreHash = this.keystore instanceof byte[] ? Arrays.hashCode((byte[]) this.keystore) : Objects.hashCode(this.keystore);
   }
 
   public InputStream getKeystoreStream() throws InvalidKeystoreReferenceException {
     return KeystoreManager.streamKeystore(keystore);
   }
 
+  /**
+   * Get the keystore reference itself, so that the keystore it refers to can be cached by source.
+   *
+   * @return a File, a String for a file path, a byte[] array or a KeyStore
+   */
+  Object getKeystoreReference() {
+    return keystore;
+  }
+
   public String getKeystorePassword() {
     return password;
   }
@@ -60,4 +77,26 @@ public abstract class AppleServerBasicImpl implements AppleServer {
     this.proxyHost = proxyHost;
     this.proxyPort = proxyPort;
   }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    AppleServerBasicImpl that = (AppleServerBasicImpl) o;
+
+    if (keystoreHash != that.keystoreHash) return false;
+    if (!Objects.equals(password, that.password)) return false;
+    if (!Objects.equals(type, that.type)) return false;
+    return Objects.deepEquals(keystore, that.keystore);
+
+  }
+
+  @Override
+  public int hashCode() {
+    int result = keystoreHash;
+    result = 31 * result + Objects.hashCode(password);
+    result = 31 * result + Objects.hashCode(type);
+    return result;
+  }
 }
@@ -27,9 +27,6 @@ public abstract class ConnectionToAppleServer {
   /* JKS */
   public static final String KEYSTORE_TYPE_JKS = "JKS";
   private static final Logger logger = LoggerFactory.getLogger(ConnectionToAppleServer.class);
-  /* The algorithm used by KeyManagerFactory */
-  private static final String ALGORITHM = KeyManagerFactory.getDefaultAlgorithm();
-
   /* The protocol used to create the SSLSocket */
   private static final String PROTOCOL = "TLS";
 
@@ -38,6 +35,9 @@ public abstract class ConnectionToAppleServer {
   private KeyStore keyStore;
   private SSLSocketFactory socketFactory;
 
+  /* Generation of the reloadable keystore the socket factory was created from, if any */
+  private long keystoreGeneration;
+
   /**
    * Builds a connection to an Apple server.
    *
@@ -83,21 +83,15 @@ public abstract class ConnectionToAppleServer {
     logger.debug("Creating SSLSocketFactory");
     // Get a KeyManager and initialize it
     try {
-      final KeyStore keystore = getKeystore();
-      final KeyManagerFactory kmf = KeyManagerFactory.getInstance(ALGORITHM);
-      try {
-        final char[] password = KeystoreManager.getKeystorePasswordForSSL(server);
-        kmf.init(keystore, password);
-      } catch (Exception e) {
-        final KeystoreException wrappedKeystoreException = KeystoreManager.wrapKeystoreException(e);
-        throw wrappedKeystoreException;
-      }
+      final KeyManager[] keyManagers = KeystoreManager.getKeyManagers(server, getKeystore());
 
       // Get the SSLContext to help create SSLSocketFactory
       final SSLContext sslc = SSLContext.getInstance(PROTOCOL);
-      sslc.init(kmf.getKeyManagers(), trustManagers, null);
+      sslc.init(keyManagers, trustManagers, null);
 
       return sslc.getSocketFactory();
+    } catch (final KeystoreException e) {
+      throw e;
     } catch (final Exception e) {
       throw new KeystoreException("Keystore exception: " + e.getMessage(), e);
     }
@@ -117,13 +111,42 @@ public abstract class ConnectionToAppleServer {
     return createSSLSocketFactoryWithTrustManagers(new TrustManager[]{new ServerTrustingTrustManager()});
   }
 
-  private SSLSocketFactory getSSLSocketFactory() throws KeystoreException {
+  private synchronized SSLSocketFactory getSSLSocketFactory() throws KeystoreException {
+    final ReloadableKeystore reloadable = KeystoreManager.getReloadableKeystore(server);
+    if (reloadable != null) {
+      final ReloadableKeystore.Snapshot snapshot = reloadable.getSnapshot();
+      if (snapshot.getGeneration() != keystoreGeneration) {
+        /* The keystore was replaced: sockets created from now on use the new credentials */
+        keyStore = snapshot.getKeystore();
+        socketFactory = null;
+        keystoreGeneration = snapshot.getGeneration();
+      }
+    }
     if (socketFactory == null) {
       socketFactory = createSSLSocketFactory();
     }
     return socketFactory;
   }
 
+  /**
+   * Get the reloadable keystore used by this connection's server, if any.
+   *
+   * @return a reloadable keystore, or null if the server's keystore cannot be reloaded
+   */
+  public ReloadableKeystore getReloadableKeystore() {
+    return KeystoreManager.getReloadableKeystore(server);
+  }
+
+  /**
+   * Get the generation of the reloadable keystore used by the sockets most recently created.
+   *
+   * @return a generation number, or 0 if the server's keystore cannot be reloaded or no socket was created yet
+   * @see ReloadableKeystore#getGeneration()
+   */
+  public synchronized long getKeystoreGeneration() {
+    return keystoreGeneration;
+  }
+
   /**
    * Create a SSLSocket which will be used to send data to Apple
    *
@@ -5,22 +5,52 @@ import javapns.communication.exceptions.InvalidKeystorePasswordException;
 import javapns.communication.exceptions.InvalidKeystoreReferenceException;
 import javapns.communication.exceptions.KeystoreException;
 
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Class responsible for dealing with keystores.
+ * <p>
+ * Keystores referenced by a file, a file path or a byte[] array are parsed only once and shared by all servers
+ * using the same keystore, password and type, along with the key managers extracted from them.
+ * A file is parsed again once it is modified.  Different keystores are loaded concurrently.
+ * Only the most recently used keystores are kept, so that replaced certificates do not accumulate,
+ * and passwords are only retained as digests.
  *
  * @author Sylvain Pedneault
  */
 public class KeystoreManager {
   private static final String REVIEW_MESSAGE = " Please review the procedure for generating a keystore for JavaPNS.";
 
+  /* The algorithm used by KeyManagerFactory */
+  private static final String ALGORITHM = KeyManagerFactory.getDefaultAlgorithm();
+
+  /* Maximum number of keystores kept in the cache */
+  private static final int MAX_CACHED_KEYSTORES = 32;
+
+  /* Keystores already loaded, by source (a canonical file path or a content digest), least recently used first; each source keeps only its latest version */
+  private static final Map<Object, CachedKeystore> cache = Collections.synchronizedMap(new LinkedHashMap<Object, CachedKeystore>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<Object, CachedKeystore> eldest) {
+      return size() > MAX_CACHED_KEYSTORES;
+    }
+  });
+
   private KeystoreManager() {}
 
   /**
@@ -31,6 +61,9 @@ public class KeystoreManager {
    * @throws KeystoreException
    */
   static KeyStore loadKeystore(final AppleServer server) throws KeystoreException {
+    if (server instanceof AppleServerBasicImpl) {
+      return loadKeystore(server, ((AppleServerBasicImpl) server).getKeystoreReference());
+    }
     return loadKeystore(server, server.getKeystoreStream());
   }
 
@@ -55,25 +88,162 @@ public class KeystoreManager {
    * @return a loaded keystore
    * @throws KeystoreException
    */
-  private static synchronized KeyStore loadKeystore(final AppleServer server, final Object keystore, final boolean verifyKeystore) throws KeystoreException {
+  private static KeyStore loadKeystore(final AppleServer server, final Object keystore, final boolean verifyKeystore) throws KeystoreException {
     if (keystore instanceof KeyStore) {
       return (KeyStore) keystore;
     }
+    if (keystore instanceof ReloadableKeystore) {
+      return ((ReloadableKeystore) keystore).getSnapshot().getKeystore();
+    }
+    final CachedKeystore cached = getCachedKeystore(server, keystore);
+    if (cached != null) {
+      return cached.getKeystore(server, keystore);
+    }
+    return parseKeystore(server, keystore);
+  }
 
+  private static KeyStore parseKeystore(final AppleServer server, final Object keystore) throws KeystoreException {
+    return parseKeystore(keystore, server.getKeystoreType(), server.getKeystorePassword());
+  }
+
+  static KeyStore parseKeystore(final Object keystore, final String type, final String password) throws KeystoreException {
     try (final InputStream keystoreStream = streamKeystore(keystore)) {
       if (keystoreStream instanceof WrappedKeystore) {
         return ((WrappedKeystore) keystoreStream).getKeystore();
       }
 
-      final KeyStore keyStore = KeyStore.getInstance(server.getKeystoreType());
-      final char[] password = KeystoreManager.getKeystorePasswordForSSL(server);
-      keyStore.load(keystoreStream, password);
+      final KeyStore keyStore = KeyStore.getInstance(type);
+      keyStore.load(keystoreStream, password != null ? password.toCharArray() : new char[0]);
       return keyStore;
     } catch (final Exception e) {
       throw wrapKeystoreException(e);
     }
   }
 
+  /**
+   * Get the key managers for a keystore.  Key managers are extracted only once for keystores shared through the cache.
+   *
+   * @param server   the server the keystore is intended for
+   * @param keystore a keystore loaded for that server
+   * @return key managers for an SSL context
+   * @throws KeystoreException thrown if the key could not be extracted from the keystore
+   */
+  static KeyManager[] getKeyManagers(final AppleServer server, final KeyStore keystore) throws KeystoreException {
+    final ReloadableKeystore reloadable = getReloadableKeystore(server);
+    if (reloadable != null) {
+      final ReloadableKeystore.Snapshot snapshot = reloadable.getSnapshot();
+      if (snapshot.getKeystore() == keystore) {
+        return snapshot.getKeyManagers();
+      }
+    }
+    if (server instanceof AppleServerBasicImpl) {
+      final CachedKeystore cached = getCachedKeystore(server, ((AppleServerBasicImpl) server).getKeystoreReference());
+      if (cached != null && cached.keystore == keystore) {
+        return cached.getKeyManagers(server);
+      }
+    }
+    return createKeyManagers(server, keystore);
+  }
+
+  private static KeyManager[] createKeyManagers(final AppleServer server, final KeyStore keystore) throws KeystoreException {
+    return createKeyManagers(keystore, server.getKeystorePassword());
+  }
+
+  static KeyManager[] createKeyManagers(final KeyStore keystore, final String password) throws KeystoreException {
+    try {
+      final KeyManagerFactory kmf = KeyManagerFactory.getInstance(ALGORITHM);
+      kmf.init(keystore, password != null ? password.toCharArray() : new char[0]);
+      return kmf.getKeyManagers();
+    } catch (final Exception e) {
+      throw wrapKeystoreException(e);
+    }
+  }
+
+  /**
+   * Get the reloadable keystore a server uses, if any.
+   *
+   * @param server a server
+   * @return a reloadable keystore, or null if the server's keystore cannot be reloaded
+   */
+  static ReloadableKeystore getReloadableKeystore(final AppleServer server) {
+    if (server instanceof AppleServerBasicImpl) {
+      final Object reference = ((AppleServerBasicImpl) server).getKeystoreReference();
+      if (reference instanceof ReloadableKeystore) {
+        return (ReloadableKeystore) reference;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Forget all keystores loaded so far, so that they are parsed again when next needed.
+   */
+  public static void clearKeystoreCache() {
+    cache.clear();
+  }
+
+  /**
+   * Get the cache entry for a keystore reference, replacing it if its file was modified or if it was loaded with another password or type.
+   *
+   * @return a cache entry, or null if the reference cannot be cached (streams and keystores)
+   */
+  private static CachedKeystore getCachedKeystore(final AppleServer server, final Object keystore) throws KeystoreException {
+    final Object source;
+    final String version;
+    if (keystore instanceof File || keystore instanceof String) {
+      final File file = keystore instanceof File ? (File) keystore : new File((String) keystore);
+      try {
+        source = file.getCanonicalPath();
+      } catch (final IOException e) {
+        throw new InvalidKeystoreReferenceException("Invalid keystore reference: " + e.getMessage());
+      }
+      version = file.lastModified() + ":" + file.length();
+    } else if (keystore instanceof byte[]) {
+      final byte[] digest = digest((byte[]) keystore);
+      if (digest == null) {
+        return null;
+      }
+      source = ByteBuffer.wrap(digest);
+      version = "";
+    } else {
+      return null;
+    }
+    final String password = server.getKeystorePassword();
+    final byte[] passwordDigest = password != null ? digest(password.getBytes(StandardCharsets.UTF_8)) : new byte[0];
+    if (passwordDigest == null) {
+      return null;
+    }
+    /* Every hit compares the password digest, so that a keystore is never served to a password that did not unlock it */
+    final String key = version + ":" + server.getKeystoreType() + ":" + Base64.getEncoder().encodeToString(passwordDigest);
+    final CachedKeystore cached = cache.get(source);
+    if (cached != null && cached.key.equals(key)) {
+      return cached;
+    }
+    return cache.compute(source, (s, existing) -> existing != null && existing.key.equals(key) ? existing : new CachedKeystore(key));
+  }
+
+  /**
+   * Compute the SHA-256 digest of some bytes.
+   *
+   * @return a digest, or null if SHA-256 is not available
+   */
+  private static byte[] digest(final byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(bytes);
+    } catch (final NoSuchAlgorithmException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Get the number of keystores in the cache.
+   *
+   * @return a number of keystores
+   */
+  static int getCachedKeystores() {
+    return cache.size();
+  }
+
   /**
    * Make sure that the provided keystore will be reusable.
    *
@@ -162,15 +332,6 @@ public class KeystoreManager {
     }
   }
 
-  static char[] getKeystorePasswordForSSL(final AppleServer server) {
-    String password = server.getKeystorePassword();
-    if (password == null) {
-      password = "";
-    }
-
-    return password.toCharArray();
-  }
-
   static KeystoreException wrapKeystoreException(final Exception e) {
     if (e != null) {
       final String msg = e.toString();
@@ -204,6 +365,8 @@ public class KeystoreManager {
         return (InputStream) keystore;
       } else if (keystore instanceof KeyStore) {
         return new WrappedKeystore((KeyStore) keystore);
+      } else if (keystore instanceof ReloadableKeystore) {
+        return new WrappedKeystore(((ReloadableKeystore) keystore).getSnapshot().getKeystore());
       } else if (keystore instanceof File) {
         return new BufferedInputStream(new FileInputStream((File) keystore));
       } else if (keystore instanceof String) {
@@ -228,7 +391,7 @@ public class KeystoreManager {
     if (keystore == null) {
       throw new InvalidKeystoreReferenceException((Object) null);
     }
-    if (keystore instanceof KeyStore) {
+    if (keystore instanceof KeyStore || keystore instanceof ReloadableKeystore) {
       return;
     }
     if (keystore instanceof InputStream) {
@@ -252,6 +415,49 @@ public class KeystoreManager {
     throw new InvalidKeystoreReferenceException(keystore);
   }
 
+  /**
+   * A keystore shared by all servers using the same source, password and type, parsed by the first thread that needs it.
+   */
+  private static final class CachedKeystore {
+    /* The version of the source, the keystore type and a digest of the password */
+    private final String key;
+    private volatile KeyStore keystore;
+    private volatile KeyManager[] keyManagers;
+
+    private CachedKeystore(final String key) {
+      this.key = key;
+    }
+
+    private KeyStore getKeystore(final AppleServer server, final Object reference) throws KeystoreException {
+      KeyStore loaded = keystore;
+      if (loaded == null) {
+        synchronized (this) {
+          loaded = keystore;
+          if (loaded == null) {
+            /* A failure leaves the entry empty, so that the next attempt parses the keystore again */
+            loaded = parseKeystore(server, reference);
+            keystore = loaded;
+          }
+        }
+      }
+      return loaded;
+    }
+
+    private KeyManager[] getKeyManagers(final AppleServer server) throws KeystoreException {
+      KeyManager[] managers = keyManagers;
+      if (managers == null) {
+        synchronized (this) {
+          managers = keyManagers;
+          if (managers == null) {
+            managers = createKeyManagers(server, keystore);
+            keyManagers = managers;
+          }
+        }
+      }
+      return managers;
+    }
+  }
+
   private static void validateFileKeystore(File keystore) throws InvalidKeystoreReferenceException {
     final File file = keystore;
     if (!file.exists()) {
@@ -0,0 +1,226 @@
+package javapns.communication;
+
+import javapns.communication.exceptions.KeystoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManager;
+import java.io.File;
+import java.security.KeyStore;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>A keystore that can be replaced while notifications are being pushed</h1>
+ * <p>
+ * <p>Pass an instance wherever a keystore is expected (for example to {@link javapns.notification.AppleNotificationServerBasicImpl})
+ * to rotate certificates without restarting anything.  The keystore is replaced when {@link #reload()} or
+ * {@link #update(Object, String)} is invoked, or automatically when its file changes if {@link #watch(long)} was invoked.</p>
+ * <p>
+ * <p>Connections opened after a reload use the new credentials.  Connections already open keep working with the
+ * previous ones, and are replaced one by one at a random time within the {@link #setMigrationWindow(long) migration window}:
+ * each replacement is handshaked in the background before being swapped in, so rotating a certificate causes no pause in
+ * throughput and no burst of reconnections.  If a new keystore cannot be loaded, the previous one is kept.</p>
+ * <pre>
+ * ReloadableKeystore keystore = new ReloadableKeystore(new File("apns.p12"), "password");
+ * keystore.watch(10000);
+ * AppleNotificationServer server = new AppleNotificationServerBasicImpl(keystore, "password", true);
+ * </pre>
+ * <p>
+ * <p>The password given to this keystore is the one used to open it; the password given to servers is ignored.
+ * This class is thread-safe.</p>
+ */
+public class ReloadableKeystore implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(ReloadableKeystore.class);
+
+  /* Default time within which open connections migrate to new credentials, in milliseconds */
+  private static final long DEFAULT_MIGRATION_WINDOW = 60 * 1000;
+
+  private final String type;
+  private volatile File file;
+  private volatile Snapshot snapshot;
+  private volatile long migrationWindow = DEFAULT_MIGRATION_WINDOW;
+  private ScheduledExecutorService watcher;
+
+  /* Version of the file last loaded or attempted, so that a broken file is only reported once */
+  private long fileVersion;
+
+  /**
+   * Load a PKCS12 keystore from a file.
+   *
+   * @param file     a keystore file
+   * @param password the keystore's password
+   * @throws KeystoreException thrown if the keystore could not be loaded
+   */
+  public ReloadableKeystore(final File file, final String password) throws KeystoreException {
+    this(file, password, ConnectionToAppleServer.KEYSTORE_TYPE_PKCS12);
+  }
+
+  /**
+   * Load a keystore from a file.
+   *
+   * @param file     a keystore file
+   * @param password the keystore's password
+   * @param type     the keystore type (typically PKCS12)
+   * @throws KeystoreException thrown if the keystore could not be loaded
+   */
+  public ReloadableKeystore(final File file, final String password, final String type) throws KeystoreException {
+    this.type = type;
+    this.file = file;
+    this.fileVersion = versionOf(file);
+    this.snapshot = load(file, password, 1);
+  }
+
+  /**
+   * Load the keystore from its file again, for example after a new certificate was written to it.
+   *
+   * @throws KeystoreException thrown if the keystore could not be loaded, in which case the previous one is kept
+   */
+  public synchronized void reload() throws KeystoreException {
+    fileVersion = versionOf(file);
+    replace(load(file, snapshot.password, snapshot.generation + 1));
+  }
+
+  /**
+   * Replace the keystore with another one.
+   *
+   * @param keystore the new keystore (can be a File, an InputStream, a String for a file path, a byte[] array or a KeyStore)
+   * @param password the new keystore's password
+   * @throws KeystoreException thrown if the keystore could not be loaded, in which case the previous one is kept
+   */
+  public synchronized void update(final Object keystore, final String password) throws KeystoreException {
+    final Snapshot loaded = load(keystore, password, snapshot.generation + 1);
+    if (keystore instanceof File || keystore instanceof String) {
+      /* Further reloads and watching follow the new file */
+      file = keystore instanceof File ? (File) keystore : new File((String) keystore);
+      fileVersion = versionOf(file);
+    }
+    replace(loaded);
+  }
+
+  private void replace(final Snapshot loaded) {
+    snapshot = loaded;
+    logger.info("Keystore replaced (generation " + loaded.generation + "), open connections will migrate within " + migrationWindow + " ms");
+  }
+
+  /**
+   * Reload the keystore automatically whenever its file is modified.
+   *
+   * @param interval the time between two checks of the file, in milliseconds
+   */
+  public synchronized void watch(final long interval) {
+    if (watcher != null) {
+      throw new IllegalStateException("Keystore file already watched");
+    }
+    watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "JavaPNS keystore watcher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    watcher.scheduleWithFixedDelay(this::checkFile, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void checkFile() {
+    final long version = versionOf(file);
+    if (version == fileVersion) {
+      return;
+    }
+    try {
+      reload();
+    } catch (final KeystoreException e) {
+      /* The file may still be being written: it is tried again once it changes */
+      logger.error("Could not reload keystore from " + file + ", keeping the previous one: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Stop watching the keystore file.  The keystore remains usable.
+   */
+  public synchronized void close() {
+    if (watcher != null) {
+      watcher.shutdownNow();
+      watcher = null;
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Get the number of the current keystore, incremented each time the keystore is replaced.
+   *
+   * @return a generation number, starting at 1
+   */
+  public long getGeneration() {
+    return snapshot.generation;
+  }
+
+  /**
+   * Get the time at which the current keystore was loaded.
+   *
+   * @return a time in milliseconds
+   */
+  public long getLoadTime() {
+    return snapshot.loaded;
+  }
+
+  public long getMigrationWindow() {
+    return migrationWindow;
+  }
+
+  /**
+   * Set the time within which connections opened with previous credentials are replaced after a reload.
+   *
+   * @param migrationWindow a number of milliseconds (default is 1 minute, 0 to replace all connections right away)
+   */
+  public void setMigrationWindow(final long migrationWindow) {
+    this.migrationWindow = migrationWindow;
+  }
+
+  Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  private Snapshot load(final Object keystore, final String password, final long generation) throws KeystoreException {
+    final KeyStore loaded = KeystoreManager.parseKeystore(keystore, type, password);
+    return new Snapshot(loaded, password, generation);
+  }
+
+  private static long versionOf(final File file) {
+    return file.lastModified() * 31 + file.length();
+  }
+
+  /**
+   * A keystore along with its password, and the key managers extracted from it once.
+   */
+  static final class Snapshot {
+    private final KeyStore keystore;
+    private final String password;
+    private final long generation;
+    private final long loaded = System.currentTimeMillis();
+    private volatile KeyManager[] keyManagers;
+
+    private Snapshot(final KeyStore keystore, final String password, final long generation) {
+      this.keystore = keystore;
+      this.password = password;
+      this.generation = generation;
+    }
+
+    KeyStore getKeystore() {
+      return keystore;
+    }
+
+    long getGeneration() {
+      return generation;
+    }
+
+    synchronized KeyManager[] getKeyManagers() throws KeystoreException {
+      if (keyManagers == null) {
+        keyManagers = KeystoreManager.createKeyManagers(keystore, password);
+      }
+      return keyManagers;
+    }
+  }
+}
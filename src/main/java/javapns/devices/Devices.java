@@ -2,12 +2,15 @@ package javapns.devices;
 
 import javapns.devices.implementations.basic.BasicDevice;
 import javapns.notification.PayloadPerDevice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 public class Devices {
+  private static final Logger logger = LoggerFactory.getLogger(Devices.class);
 
   private Devices() {}
 
@@ -56,6 +59,25 @@ public class Devices {
     return list;
   }
 
+  /**
+   * Get a list of devices in which each token appears only once, keeping the first device holding each token.
+   * The result can be passed to {@link javapns.Push} or {@link javapns.notification.transmission.NotificationThreads}
+   * so that each device receives a notification only once.
+   *
+   * @param rawList a list or an array of tokens or devices, as accepted by {@link #asDevices(Object)}
+   * @return a list of devices without duplicate tokens
+   * @see TokenDeduplicator
+   */
+  public static List<Device> withoutDuplicates(final Object rawList) {
+    final List<Device> devices = asDevices(rawList);
+    final TokenDeduplicator deduplicator = new TokenDeduplicator(devices.size());
+    final List<Device> unique = deduplicator.removeDuplicates(devices);
+    if (deduplicator.getRemoved() > 0) {
+      logger.info("Removed " + deduplicator.getRemoved() + " duplicate device tokens");
+    }
+    return unique;
+  }
+
   public static List<PayloadPerDevice> asPayloadsPerDevices(final Object rawList) {
     final List<PayloadPerDevice> list = new ArrayList<>();
     if (rawList == null) {
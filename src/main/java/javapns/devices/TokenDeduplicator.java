@@ -0,0 +1,529 @@
+package javapns.devices;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * <h1>Removes duplicate device tokens before notifications are pushed</h1>
+ * <p>
+ * <p>Device lists often contain the same token several times, for example when a user registered the same device
+ * with several accounts.  This class removes duplicates in a single pass, keeping the first occurrence of each token
+ * and the order of the list.  Each token seen is remembered as a 128-bit fingerprint in a primitive hash set,
+ * about 32 bytes per token, so that even very large lists can be deduplicated without creating objects.</p>
+ * <pre>
+ * TokenDeduplicator deduplicator = new TokenDeduplicator();
+ * List&lt;Device&gt; unique = deduplicator.removeDuplicates(devices);
+ * logger.info(deduplicator.getRemoved() + " duplicates removed");
+ * </pre>
+ * <p>
+ * <p>Token files ({@link TokenFileLoader.Format}) holding more tokens than the memory limit are deduplicated with an external
+ * sort-merge instead: sorted runs of unique tokens are written to local disk, then merged into the output file.
+ * The output of an external deduplication is sorted by token rather than kept in the input order.</p>
+ * <p>
+ * <p>Hexadecimal tokens are compared regardless of case.  Instances accumulate the tokens they see, so the same deduplicator
+ * can be used across several lists; this class is not thread-safe.</p>
+ *
+ * @see Devices#withoutDuplicates(Object)
+ */
+public class TokenDeduplicator {
+  private static final Logger logger = LoggerFactory.getLogger(TokenDeduplicator.class);
+
+  private static final int TOKEN_BYTES = 32;
+
+  /* Longs per token */
+  private static final int KEY_LONGS = TOKEN_BYTES / 8;
+
+  private static final int MIN_CAPACITY = 1024;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+  /* Fingerprints, two longs per slot; a slot holding two zeros is empty */
+  private long[] fingerprints;
+  private int size;
+
+  private long memoryLimit = Runtime.getRuntime().maxMemory() / 256;
+  private File workDirectory;
+  private long removed;
+
+  /**
+   * Create a deduplicator.
+   */
+  public TokenDeduplicator() {
+    this(0);
+  }
+
+  /**
+   * Create a deduplicator sized for a number of unique tokens, so that it does not need to grow until that number is reached.
+   *
+   * @param expectedTokens the number of unique tokens expected
+   */
+  public TokenDeduplicator(final int expectedTokens) {
+    int capacity = MIN_CAPACITY;
+    while (capacity / 2 < expectedTokens && capacity < 1 << 29) {
+      capacity <<= 1;
+    }
+    this.fingerprints = new long[capacity * 2];
+  }
+
+  /**
+   * Remember a token, and determine if it was seen before.
+   *
+   * @param token a device token
+   * @return true if the token was not seen before, false if it is a duplicate
+   */
+  public boolean add(final String token) {
+    if (token == null) {
+      return true;
+    }
+    final long[] key = parse(token);
+    final boolean added = key != null ? insert(fingerprint(key, 0x9E3779B97F4A7C15L), fingerprint(key, 0xC2B2AE3D27D4EB4FL)) : insert(hash(token, 0x9E3779B97F4A7C15L), hash(token, 0xC2B2AE3D27D4EB4FL));
+    if (!added) {
+      removed++;
+    }
+    return added;
+  }
+
+  /**
+   * Remember a token, and determine if it was seen before.
+   *
+   * @param token a device token (32 bytes)
+   * @return true if the token was not seen before, false if it is a duplicate
+   */
+  public boolean add(final byte[] token) {
+    final long[] key = new long[KEY_LONGS];
+    for (int i = 0; i < TOKEN_BYTES; i++) {
+      key[i >> 3] = key[i >> 3] << 8 | (token[i] & 0xFF);
+    }
+    final boolean added = insert(fingerprint(key, 0x9E3779B97F4A7C15L), fingerprint(key, 0xC2B2AE3D27D4EB4FL));
+    if (!added) {
+      removed++;
+    }
+    return added;
+  }
+
+  /**
+   * Get a list holding the first occurrence of each device, in the original order.
+   *
+   * @param devices a list of devices
+   * @param <D>     the type of devices
+   * @return a new list without duplicate tokens
+   */
+  public <D extends Device> List<D> removeDuplicates(final List<D> devices) {
+    final List<D> unique = new ArrayList<>(devices.size());
+    for (final D device : devices) {
+      if (add(device.getToken())) {
+        unique.add(device);
+      }
+    }
+    return unique;
+  }
+
+  /**
+   * Copy a token file without its duplicate tokens.  Files holding more tokens than the memory limit
+   * are deduplicated with an external sort-merge, in which case the output is sorted by token,
+   * and the tokens of the file are not remembered by this deduplicator.
+   *
+   * @param input  a token file
+   * @param output the file to write unique tokens to, in the same format
+   * @param format the format of both files
+   * @return the number of unique tokens written
+   * @throws IOException thrown if a file could not be read or written
+   */
+  public long removeDuplicates(final File input, final File output, final TokenFileLoader.Format format) throws IOException {
+    final TokenFileLoader loader = new TokenFileLoader(input, format);
+    /* Tokens must be seen in order, by a single thread */
+    loader.setParallelism(1);
+    final long estimatedTokens = format == TokenFileLoader.Format.BINARY ? input.length() / TOKEN_BYTES : input.length() / (TOKEN_BYTES * 2 + 1);
+    final long written;
+    try {
+      if (estimatedTokens + size <= memoryLimit) {
+        try (final TokenOutput out = new TokenOutput(output, format)) {
+          loader.forEach(token -> {
+            if (add(token)) {
+              out.write(token);
+            }
+          });
+          written = out.written;
+        }
+      } else {
+        written = sortMerge(loader, output, format, estimatedTokens);
+      }
+    } catch (final UncheckedIOException e) {
+      throw e.getCause();
+    }
+    logger.debug("Wrote " + written + " unique tokens from " + input + " to " + output + ", " + removed + " duplicates removed so far");
+    return written;
+  }
+
+  /**
+   * Get the number of duplicates removed since this deduplicator was created.
+   *
+   * @return a number of tokens
+   */
+  public long getRemoved() {
+    return removed;
+  }
+
+  /**
+   * Get the number of unique tokens remembered in memory.
+   *
+   * @return a number of tokens
+   */
+  public int size() {
+    return size;
+  }
+
+  public long getMemoryLimit() {
+    return memoryLimit;
+  }
+
+  /**
+   * Set the number of tokens that files can hold to be deduplicated in memory.
+   * Larger files are sorted by chunks of that many tokens on local disk.
+   *
+   * @param memoryLimit a number of tokens (default is a number using about a quarter of the maximum heap)
+   */
+  public void setMemoryLimit(final long memoryLimit) {
+    if (memoryLimit < 1) {
+      throw new IllegalArgumentException("Memory limit must be at least 1 token");
+    }
+    this.memoryLimit = memoryLimit;
+  }
+
+  public File getWorkDirectory() {
+    return workDirectory;
+  }
+
+  /**
+   * Set the directory in which sorted runs are written during an external deduplication.
+   *
+   * @param workDirectory a directory (default is the directory of the output file)
+   */
+  public void setWorkDirectory(final File workDirectory) {
+    this.workDirectory = workDirectory;
+  }
+
+  /**
+   * Write sorted runs of unique tokens to disk, then merge them into the output, skipping tokens equal to the previous one.
+   */
+  private long sortMerge(final TokenFileLoader loader, final File output, final TokenFileLoader.Format format, final long estimatedTokens) throws IOException {
+    final File directory = workDirectory != null ? workDirectory : output.getAbsoluteFile().getParentFile();
+    final List<File> runs = new ArrayList<>();
+    final long[] chunk = new long[(int) Math.min(Math.min(memoryLimit, estimatedTokens + 1), Integer.MAX_VALUE / KEY_LONGS - 1) * KEY_LONGS];
+    final int[] count = new int[1];
+    final long[] read = new long[1];
+    try {
+      loader.forEach(token -> {
+        final int base = count[0] * KEY_LONGS;
+        for (int i = 0; i < TOKEN_BYTES; i++) {
+          chunk[base + (i >> 3)] = chunk[base + (i >> 3)] << 8 | (token[i] & 0xFF);
+        }
+        read[0]++;
+        if (++count[0] * KEY_LONGS == chunk.length) {
+          runs.add(writeRun(chunk, count[0], directory));
+          count[0] = 0;
+        }
+      });
+      if (count[0] > 0) {
+        runs.add(writeRun(chunk, count[0], directory));
+      }
+      final long written = merge(runs, output, format);
+      removed += read[0] - written;
+      logger.debug("Merged " + runs.size() + " sorted runs of " + read[0] + " tokens");
+      return written;
+    } finally {
+      for (final File run : runs) {
+        if (!run.delete()) {
+          logger.warn("Could not delete sorted run " + run);
+        }
+      }
+    }
+  }
+
+  private static File writeRun(final long[] chunk, final int tokens, final File directory) {
+    sort(chunk, 0, tokens - 1, new long[KEY_LONGS]);
+    try {
+      final File run = File.createTempFile("javapns-dedupe-", ".run", directory);
+      try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE))) {
+        for (int t = 0; t < tokens; t++) {
+          if (t > 0 && compare(chunk, t, chunk, t - 1) == 0) {
+            continue;
+          }
+          for (int i = 0; i < KEY_LONGS; i++) {
+            out.writeLong(chunk[t * KEY_LONGS + i]);
+          }
+        }
+      }
+      return run;
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static long merge(final List<File> runs, final File output, final TokenFileLoader.Format format) throws IOException {
+    final PriorityQueue<Run> queue = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> compare(a.key, 0, b.key, 0));
+    final byte[] token = new byte[TOKEN_BYTES];
+    final long[] previous = new long[KEY_LONGS];
+    boolean first = true;
+    try (final TokenOutput out = new TokenOutput(output, format)) {
+      for (final File file : runs) {
+        final Run run = new Run(file);
+        if (run.next()) {
+          queue.add(run);
+        } else {
+          run.close();
+        }
+      }
+      while (!queue.isEmpty()) {
+        final Run run = queue.poll();
+        if (first || compare(run.key, 0, previous, 0) != 0) {
+          System.arraycopy(run.key, 0, previous, 0, KEY_LONGS);
+          for (int i = 0; i < TOKEN_BYTES; i++) {
+            token[i] = (byte) (run.key[i >> 3] >>> (56 - (i & 7) * 8));
+          }
+          out.write(token);
+          first = false;
+        }
+        if (run.next()) {
+          queue.add(run);
+        } else {
+          run.close();
+        }
+      }
+      return out.written;
+    } finally {
+      for (final Run run : queue) {
+        run.close();
+      }
+    }
+  }
+
+  /**
+   * Compare two tokens stored as four longs each, as unsigned bytes.
+   */
+  private static int compare(final long[] a, final int indexA, final long[] b, final int indexB) {
+    for (int i = 0; i < KEY_LONGS; i++) {
+      final int result = Long.compareUnsigned(a[indexA * KEY_LONGS + i], b[indexB * KEY_LONGS + i]);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Sort tokens stored as four longs each, between two token indexes inclusively.
+   * Tokens equal to the pivot are grouped at each step, so that heavily duplicated runs sort in linear time.
+   */
+  private static void sort(final long[] keys, int low, int high, final long[] pivot) {
+    while (high - low > 16) {
+      System.arraycopy(keys, (low + (high - low) / 2) * KEY_LONGS, pivot, 0, KEY_LONGS);
+      int less = low;
+      int greater = high;
+      int i = low;
+      while (i <= greater) {
+        final int result = compare(keys, i, pivot, 0);
+        if (result < 0) {
+          swap(keys, less++, i++);
+        } else if (result > 0) {
+          swap(keys, i, greater--);
+        } else {
+          i++;
+        }
+      }
+      /* Recurse into the smaller side, so that the stack depth stays logarithmic */
+      if (less - low < high - greater) {
+        sort(keys, low, less - 1, pivot);
+        low = greater + 1;
+      } else {
+        sort(keys, greater + 1, high, pivot);
+        high = less - 1;
+      }
+    }
+    for (int i = low + 1; i <= high; i++) {
+      for (int j = i; j > low && compare(keys, j, keys, j - 1) < 0; j--) {
+        swap(keys, j, j - 1);
+      }
+    }
+  }
+
+  private static void swap(final long[] keys, final int a, final int b) {
+    for (int i = 0; i < KEY_LONGS; i++) {
+      final long value = keys[a * KEY_LONGS + i];
+      keys[a * KEY_LONGS + i] = keys[b * KEY_LONGS + i];
+      keys[b * KEY_LONGS + i] = value;
+    }
+  }
+
+  /**
+   * Insert a fingerprint in the set.
+   *
+   * @return true if the fingerprint was not in the set
+   */
+  private boolean insert(final long high, long low) {
+    if (high == 0 && low == 0) {
+      /* Keep the empty slot marker free */
+      low = 1;
+    }
+    if (size + 1 > fingerprints.length / 4) {
+      grow();
+    }
+    final int mask = fingerprints.length / 2 - 1;
+    int slot = (int) high & mask;
+    while (fingerprints[slot * 2] != 0 || fingerprints[slot * 2 + 1] != 0) {
+      if (fingerprints[slot * 2] == high && fingerprints[slot * 2 + 1] == low) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    fingerprints[slot * 2] = high;
+    fingerprints[slot * 2 + 1] = low;
+    size++;
+    return true;
+  }
+
+  private void grow() {
+    final long[] old = fingerprints;
+    fingerprints = new long[old.length * 2];
+    final int mask = fingerprints.length / 2 - 1;
+    for (int i = 0; i < old.length; i += 2) {
+      if (old[i] != 0 || old[i + 1] != 0) {
+        int slot = (int) old[i] & mask;
+        while (fingerprints[slot * 2] != 0 || fingerprints[slot * 2 + 1] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        fingerprints[slot * 2] = old[i];
+        fingerprints[slot * 2 + 1] = old[i + 1];
+      }
+    }
+  }
+
+  private static long fingerprint(final long[] key, final long seed) {
+    long hash = seed;
+    for (int i = 0; i < KEY_LONGS; i++) {
+      hash = mix(hash ^ key[i]);
+    }
+    return hash;
+  }
+
+  /**
+   * Hash a token that is not 64 hexadecimal characters, ignoring case.
+   */
+  private static long hash(final String token, final long seed) {
+    long hash = seed;
+    for (int i = 0; i < token.length(); i++) {
+      hash = (hash ^ Character.toLowerCase(token.charAt(i))) * 0x100000001B3L;
+    }
+    return mix(hash);
+  }
+
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * Decode a token of 64 hexadecimal characters.
+   *
+   * @return four longs, or null if the token is not 64 hexadecimal characters
+   */
+  private static long[] parse(final String token) {
+    if (token.length() != TOKEN_BYTES * 2) {
+      return null;
+    }
+    final long[] key = new long[KEY_LONGS];
+    for (int i = 0; i < TOKEN_BYTES * 2; i++) {
+      final int digit = Character.digit(token.charAt(i), 16);
+      if (digit < 0) {
+        return null;
+      }
+      key[i >> 4] = key[i >> 4] << 4 | digit;
+    }
+    return key;
+  }
+
+  /**
+   * A sorted run being merged.
+   */
+  private static final class Run implements Closeable {
+    private final DataInputStream in;
+    private final long[] key = new long[KEY_LONGS];
+
+    private Run(final File file) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+    }
+
+    private boolean next() throws IOException {
+      try {
+        for (int i = 0; i < KEY_LONGS; i++) {
+          key[i] = in.readLong();
+        }
+        return true;
+      } catch (final EOFException e) {
+        return false;
+      }
+    }
+
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes tokens in the format of a token file.
+   */
+  private static final class TokenOutput implements Closeable {
+    private final BufferedOutputStream out;
+    private final TokenFileLoader.Format format;
+    private final byte[] line = new byte[TOKEN_BYTES * 2 + 1];
+    private long written;
+
+    private TokenOutput(final File file, final TokenFileLoader.Format format) throws IOException {
+      this.out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+      this.format = format;
+      line[TOKEN_BYTES * 2] = '\n';
+    }
+
+    private void write(final byte[] token) {
+      try {
+        if (format == TokenFileLoader.Format.BINARY) {
+          out.write(token, 0, TOKEN_BYTES);
+        } else {
+          for (int i = 0; i < TOKEN_BYTES; i++) {
+            line[i * 2] = HEX[(token[i] >> 4) & 0x0F];
+            line[i * 2 + 1] = HEX[token[i] & 0x0F];
+          }
+          out.write(line);
+        }
+        written++;
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,408 @@
+package javapns.devices;
+
+import javapns.devices.implementations.basic.BasicDevice;
+import javapns.notification.Payload;
+import javapns.notification.transmission.PushQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * <h1>Loads device tokens from large files, as fast as they can be read from disk</h1>
+ * <p>
+ * <p>Instead of reading a file line by line into a list of strings and converting each string to a {@link Device},
+ * this loader maps the file in memory, splits it into as many ranges as there are processors, and decodes each range
+ * in its own thread straight into a {@link TokenRegistry}, a {@link Visitor} or a {@link PushQueue}.
+ * Tokens are decoded into reused buffers: loading a registry creates no object per token.</p>
+ * <p>
+ * <p>Two formats are supported:</p>
+ * <ul>
+ * <li>{@link Format#HEX}: one token per line, as 64 hexadecimal characters.  Whitespace and blank lines are ignored.</li>
+ * <li>{@link Format#BINARY}: tokens as packed 32-byte records, without separators.</li>
+ * </ul>
+ * <p>Lines that are not valid tokens, and an incomplete record at the end of a binary file, are skipped
+ * and counted in {@link #getInvalid()}.</p>
+ * <pre>
+ * TokenRegistry registry = new TokenRegistry(50000000);
+ * new TokenFileLoader(new File("tokens.txt"), TokenFileLoader.Format.HEX).load(registry);
+ * </pre>
+ */
+public class TokenFileLoader {
+  private static final Logger logger = LoggerFactory.getLogger(TokenFileLoader.class);
+
+  private static final int TOKEN_BYTES = 32;
+  private static final int TOKEN_DIGITS = TOKEN_BYTES * 2;
+
+  /* Longs per token */
+  private static final int KEY_LONGS = TOKEN_BYTES / 8;
+
+  /* Size of the file regions mapped at once */
+  private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /* Size of the slices copied from a mapped region before being scanned */
+  private static final int SLICE_SIZE = 64 * 1024;
+
+  /* Files are not split into ranges smaller than this */
+  private static final long MIN_RANGE_SIZE = 1024 * 1024;
+
+  private static final byte[] HEX_VALUES = new byte[256];
+
+  static {
+    Arrays.fill(HEX_VALUES, (byte) -1);
+    for (int i = 0; i < 10; i++) {
+      HEX_VALUES['0' + i] = (byte) i;
+    }
+    for (int i = 0; i < 6; i++) {
+      HEX_VALUES['a' + i] = (byte) (10 + i);
+      HEX_VALUES['A' + i] = (byte) (10 + i);
+    }
+  }
+
+  private final File file;
+  private final Format format;
+  private final AtomicLong invalid = new AtomicLong();
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Create a loader for a file.
+   *
+   * @param file   a token file
+   * @param format the format of the file
+   */
+  public TokenFileLoader(final File file, final Format format) {
+    this.file = file;
+    this.format = format;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public Format getFormat() {
+    return format;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Set the number of threads decoding the file.
+   *
+   * @param parallelism a number of threads (default is the number of available processors)
+   */
+  public void setParallelism(final int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1");
+    }
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Get the number of invalid entries skipped during the last load.
+   *
+   * @return a number of lines or records
+   */
+  public long getInvalid() {
+    return invalid.get();
+  }
+
+  /**
+   * Add every token of the file to a registry, registered now.
+   *
+   * @param registry the registry to fill
+   * @return the number of valid tokens read, including tokens already in the registry
+   * @throws IOException thrown if the file could not be read
+   */
+  public long load(final TokenRegistry registry) throws IOException {
+    final long now = System.currentTimeMillis();
+    return decode(() -> key -> registry.addKey(key, now));
+  }
+
+  /**
+   * Pass every token of the file to a visitor.  The visitor is invoked concurrently from several threads.
+   *
+   * @param visitor the visitor to invoke for each token
+   * @return the number of valid tokens read
+   * @throws IOException thrown if the file could not be read
+   */
+  public long forEach(final Visitor visitor) throws IOException {
+    return decode(() -> {
+      final byte[] token = new byte[TOKEN_BYTES];
+      return key -> {
+        for (int i = 0; i < KEY_LONGS; i++) {
+          for (int b = 0; b < 8; b++) {
+            token[i * 8 + b] = (byte) (key[i] >>> (56 - b * 8));
+          }
+        }
+        visitor.visit(token);
+      };
+    });
+  }
+
+  /**
+   * Queue a payload for every token of the file.
+   * Tokens are decoded in parallel, but added to the queue one at a time.
+   *
+   * @param queue   the queue to add messages to
+   * @param payload the payload to push to each device
+   * @return the number of messages queued
+   * @throws IOException thrown if the file could not be read
+   */
+  public long push(final PushQueue queue, final Payload payload) throws IOException {
+    return forEach(token -> {
+      final BasicDevice device = new BasicDevice();
+      device.setToken(TokenRegistry.toHex(token));
+      synchronized (queue) {
+        queue.add(payload, device);
+      }
+    });
+  }
+
+  private long decode(final Supplier<KeyHandler> handlers) throws IOException {
+    invalid.set(0);
+    final long started = System.currentTimeMillis();
+    try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      final long length = channel.size();
+      final int ranges = (int) Math.max(1, Math.min(parallelism, length / MIN_RANGE_SIZE));
+      final long[] bounds = new long[ranges + 1];
+      for (int i = 1; i < ranges; i++) {
+        bounds[i] = length / ranges * i;
+        if (format == Format.BINARY) {
+          bounds[i] -= bounds[i] % TOKEN_BYTES;
+        }
+      }
+      bounds[ranges] = length;
+
+      long tokens;
+      if (ranges == 1) {
+        tokens = decodeRange(channel, 0, length, handlers.get());
+      } else {
+        final ExecutorService executor = Executors.newFixedThreadPool(ranges - 1, runnable -> {
+          final Thread thread = new Thread(runnable, "JavaPNS token loader");
+          thread.setDaemon(true);
+          return thread;
+        });
+        try {
+          final List<Future<Long>> futures = new ArrayList<>();
+          for (int i = 1; i < ranges; i++) {
+            final long start = bounds[i];
+            final long end = bounds[i + 1];
+            futures.add(executor.submit(() -> decodeRange(channel, start, end, handlers.get())));
+          }
+          /* The calling thread decodes the first range itself */
+          tokens = decodeRange(channel, 0, bounds[1], handlers.get());
+          for (final Future<Long> future : futures) {
+            tokens += future.get();
+          }
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while loading tokens from " + file);
+        } catch (final ExecutionException e) {
+          final Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          }
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw new IOException("Could not load tokens from " + file, cause);
+        } finally {
+          executor.shutdownNow();
+        }
+      }
+
+      if (invalid.get() > 0) {
+        logger.warn("Skipped " + invalid.get() + " invalid tokens in " + file);
+      }
+      logger.debug("Loaded " + tokens + " tokens from " + file + " in " + (System.currentTimeMillis() - started) + " ms");
+      return tokens;
+    }
+  }
+
+  private long decodeRange(final FileChannel channel, final long start, final long end, final KeyHandler handler) throws IOException {
+    final Window window = new Window(channel);
+    return format == Format.BINARY ? decodeBinary(window, start, end, handler) : decodeHex(window, start, end, handler);
+  }
+
+  /**
+   * Decode the lines starting within a range.  A line crossing the end of the range belongs to this range,
+   * so a range not starting at the beginning of the file skips its first line unless it starts exactly on a line.
+   */
+  private long decodeHex(final Window window, final long start, final long end, final KeyHandler handler) throws IOException {
+    final long length = window.length;
+    final long[] key = new long[KEY_LONGS];
+    long tokens = 0;
+    long position = start;
+    if (start > 0 && window.get(start - 1) != '\n') {
+      while (position < length && window.get(position++) != '\n') {
+        // skip the rest of a line owned by the previous range
+      }
+    }
+    boolean lineStart = true;
+    boolean valid = true;
+    int digits = 0;
+    /* Bytes are copied from the mapped region in slices, which scans much faster than reading them one at a time */
+    final byte[] slice = new byte[SLICE_SIZE];
+    while (position < length && !(lineStart && position >= end)) {
+      final MappedByteBuffer buffer = window.buffer(position);
+      final int offset = window.offset(position);
+      final int count = Math.min(SLICE_SIZE, buffer.limit() - offset);
+      buffer.position(offset);
+      buffer.get(slice, 0, count);
+      int i = 0;
+      for (; i < count; i++) {
+        if (lineStart && position + i >= end) {
+          break;
+        }
+        final byte b = slice[i];
+        lineStart = false;
+        if (b == '\n') {
+          tokens += endLine(key, digits, valid, handler);
+          lineStart = true;
+          valid = true;
+          digits = 0;
+        } else if (b != ' ' && b != '\t' && b != '\r') {
+          final int digit = HEX_VALUES[b & 0xFF];
+          if (digit < 0 || digits == TOKEN_DIGITS) {
+            valid = false;
+          } else {
+            /* Sixteen digits fill a long, so each long is entirely overwritten by the next token */
+            key[digits >> 4] = key[digits >> 4] << 4 | digit;
+            digits++;
+          }
+        }
+      }
+      position += i;
+    }
+    if (!lineStart) {
+      /* Last line of the file, without a line feed */
+      tokens += endLine(key, digits, valid, handler);
+    }
+    return tokens;
+  }
+
+  private int endLine(final long[] key, final int digits, final boolean valid, final KeyHandler handler) {
+    if (valid && digits == TOKEN_DIGITS) {
+      handler.handle(key);
+      return 1;
+    }
+    if (!valid || digits > 0) {
+      invalid.incrementAndGet();
+    }
+    return 0;
+  }
+
+  private long decodeBinary(final Window window, final long start, final long end, final KeyHandler handler) throws IOException {
+    final long[] key = new long[KEY_LONGS];
+    long tokens = 0;
+    long position = start;
+    for (; position + TOKEN_BYTES <= end; position += TOKEN_BYTES) {
+      final int offset = window.map(position, TOKEN_BYTES);
+      for (int i = 0; i < KEY_LONGS; i++) {
+        key[i] = window.buffer.getLong(offset + i * 8);
+      }
+      handler.handle(key);
+      tokens++;
+    }
+    if (position < end) {
+      /* Incomplete record at the end of the file */
+      invalid.incrementAndGet();
+    }
+    return tokens;
+  }
+
+  /**
+   * The formats of token files.
+   */
+  public enum Format {
+    /**
+     * One token per line, as 64 hexadecimal characters
+     */
+    HEX,
+
+    /**
+     * Tokens as packed 32-byte records
+     */
+    BINARY
+  }
+
+  /**
+   * Receives the tokens read from a file.
+   */
+  public interface Visitor {
+    /**
+     * Invoked for each valid token, concurrently from several threads.
+     *
+     * @param token a buffer holding the token's 32 bytes, reused for the next token decoded by the same thread
+     */
+    void visit(byte[] token);
+  }
+
+  /**
+   * Receives each token as four longs, in a buffer reused for the next token.
+   */
+  private interface KeyHandler {
+    void handle(long[] key);
+  }
+
+  /**
+   * A region of the file mapped in memory, moved forward as a range is decoded.
+   */
+  private static final class Window {
+    private final FileChannel channel;
+    private final long length;
+    private MappedByteBuffer buffer;
+    private long start;
+    private int size;
+
+    private Window(final FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.length = channel.size();
+    }
+
+    private byte get(final long position) throws IOException {
+      final int offset = map(position, 1);
+      return buffer.get(offset);
+    }
+
+    /**
+     * Get a mapped region holding a position, so that callers can scan it without checking bounds for every byte.
+     */
+    private MappedByteBuffer buffer(final long position) throws IOException {
+      map(position, 1);
+      return buffer;
+    }
+
+    private int offset(final long position) {
+      return (int) (position - start);
+    }
+
+    /**
+     * Make sure some bytes are mapped, and return the offset of the first one within the buffer.
+     */
+    private int map(final long position, final int bytes) throws IOException {
+      if (buffer == null || position < start || position + bytes > start + size) {
+        start = position;
+        size = (int) Math.min(WINDOW_SIZE, length - position);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+      }
+      return (int) (position - start);
+    }
+  }
+}
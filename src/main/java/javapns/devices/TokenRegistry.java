@@ -0,0 +1,521 @@
+package javapns.devices;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * <h1>A compact in-memory registry of device tokens, for very large device bases</h1>
+ * <p>
+ * <p>Unlike {@link javapns.devices.implementations.basic.BasicDeviceFactory}, which keeps a {@link Device} object with
+ * string identifiers, string token and timestamp for each device, this registry stores each token as 32 binary bytes
+ * along with its registration time in seconds, in open-addressing hash tables made of primitive arrays.
+ * Each token costs 36 bytes of data, or 48 to 96 bytes of heap depending on how full the tables are,
+ * and the garbage collector has no objects to trace: a registry sized for 100 million tokens holds them in about 5 GB of heap.</p>
+ * <p>
+ * <p>The registry is split into independent segments.  Lookups do not lock: they read optimistically and only retry
+ * if a write modified the same segment meanwhile.  Writes lock a single segment, and bulk operations
+ * ({@link #addAll(Collection)}, {@link #removeAll(Collection)}) lock each segment only once for the whole batch.</p>
+ * <p>
+ * <p>Tokens are given as 64 hexadecimal characters (as in {@link Device#getToken()}) or 32 bytes.
+ * Large token files can be loaded with a {@link TokenFileLoader}.  This class is thread-safe.</p>
+ */
+public class TokenRegistry {
+  private static final int TOKEN_BYTES = 32;
+
+  /* Longs per token */
+  private static final int KEY_LONGS = TOKEN_BYTES / 8;
+
+  private static final int DEFAULT_SEGMENTS = 256;
+  private static final int MIN_SEGMENT_CAPACITY = 64;
+
+  /* Tables grow once this proportion of slots is used (including removed tokens) */
+  private static final float LOAD_FACTOR = 0.75f;
+
+  /* Slot states in the stamps array; any other value is the registration time of a token, in seconds */
+  private static final int EMPTY = 0;
+  private static final int REMOVED = -1;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final Segment[] segments;
+  private final int segmentShift;
+
+  /**
+   * Create an empty registry.
+   */
+  public TokenRegistry() {
+    this(0);
+  }
+
+  /**
+   * Create an empty registry sized for a number of tokens, so that it does not need to grow until that number is reached.
+   *
+   * @param expectedTokens the number of tokens expected
+   */
+  public TokenRegistry(final long expectedTokens) {
+    segments = new Segment[DEFAULT_SEGMENTS];
+    segmentShift = 64 - Integer.numberOfTrailingZeros(DEFAULT_SEGMENTS);
+    final long perSegment = expectedTokens / DEFAULT_SEGMENTS + 1;
+    int capacity = MIN_SEGMENT_CAPACITY;
+    while (capacity * LOAD_FACTOR < perSegment) {
+      capacity <<= 1;
+    }
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment(capacity);
+    }
+  }
+
+  /**
+   * Add a token, registered now.
+   *
+   * @param token a device token (64 hexadecimal characters)
+   * @return true if the token was not in the registry
+   */
+  public boolean add(final String token) {
+    final long[] key = parse(token);
+    return segmentFor(key).put(key, 0, stamp(System.currentTimeMillis()));
+  }
+
+  /**
+   * Add a token, or update its registration time if it is already in the registry.
+   *
+   * @param token     a device token (32 bytes)
+   * @param timestamp the time at which the device registered, in milliseconds
+   * @return true if the token was not in the registry
+   */
+  public boolean add(final byte[] token, final long timestamp) {
+    final long[] key = key(token);
+    return segmentFor(key).put(key, 0, stamp(timestamp));
+  }
+
+  /**
+   * Add a token already decoded into four longs, most significant byte first.
+   * The key array is not retained, so loaders can reuse it for the next token.
+   *
+   * @param key       the token's 32 bytes, as four longs
+   * @param timestamp the time at which the device registered, in milliseconds
+   * @return true if the token was not in the registry
+   */
+  boolean addKey(final long[] key, final long timestamp) {
+    return segmentFor(key).put(key, 0, stamp(timestamp));
+  }
+
+  /**
+   * Add many tokens, registered now.  Each segment is locked once for the whole batch.
+   *
+   * @param tokens device tokens (64 hexadecimal characters each)
+   * @return the number of tokens that were not in the registry
+   */
+  public int addAll(final Collection<String> tokens) {
+    final int now = stamp(System.currentTimeMillis());
+    final List<List<long[]>> batches = partition(tokens);
+    int added = 0;
+    for (int s = 0; s < segments.length; s++) {
+      if (!batches.get(s).isEmpty()) {
+        added += segments[s].putAll(batches.get(s), now);
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Determine if a token is in the registry.
+   *
+   * @param token a device token (64 hexadecimal characters)
+   * @return true if the token is in the registry
+   */
+  public boolean contains(final String token) {
+    return getTimestamp(token) >= 0;
+  }
+
+  /**
+   * Determine if a token is in the registry.
+   *
+   * @param token a device token (32 bytes)
+   * @return true if the token is in the registry
+   */
+  public boolean contains(final byte[] token) {
+    final long[] key = key(token);
+    return segmentFor(key).get(key, 0) != EMPTY;
+  }
+
+  /**
+   * Get the time at which a token was registered.
+   *
+   * @param token a device token (64 hexadecimal characters)
+   * @return a time in milliseconds (rounded to the second), or -1 if the token is not in the registry
+   */
+  public long getTimestamp(final String token) {
+    final long[] key = parse(token);
+    final int stamp = segmentFor(key).get(key, 0);
+    return stamp == EMPTY ? -1 : (stamp & 0xFFFFFFFFL) * 1000;
+  }
+
+  /**
+   * Remove a token.
+   *
+   * @param token a device token (64 hexadecimal characters)
+   * @return true if the token was in the registry
+   */
+  public boolean remove(final String token) {
+    final long[] key = parse(token);
+    return segmentFor(key).remove(key, 0);
+  }
+
+  /**
+   * Remove many tokens.  Each segment is locked once for the whole batch.
+   *
+   * @param tokens device tokens (64 hexadecimal characters each)
+   * @return the number of tokens that were in the registry
+   */
+  public int removeAll(final Collection<String> tokens) {
+    final List<List<long[]>> batches = partition(tokens);
+    int removed = 0;
+    for (int s = 0; s < segments.length; s++) {
+      if (!batches.get(s).isEmpty()) {
+        removed += segments[s].removeAll(batches.get(s));
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Get the number of tokens in the registry.
+   *
+   * @return a number of tokens
+   */
+  public long size() {
+    long size = 0;
+    for (final Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  /**
+   * Visit every token in the registry.  Each segment is copied before being visited, so the visitor
+   * may modify the registry; tokens added or removed meanwhile may or may not be visited.
+   *
+   * @param visitor the visitor to invoke for each token
+   */
+  public void forEach(final Visitor visitor) {
+    final byte[] token = new byte[TOKEN_BYTES];
+    for (final Segment segment : segments) {
+      final Table table = segment.snapshot();
+      for (int slot = 0; slot < table.stamps.length; slot++) {
+        final int stamp = table.stamps[slot];
+        if (stamp != EMPTY && stamp != REMOVED) {
+          for (int i = 0; i < KEY_LONGS; i++) {
+            final long value = table.keys[slot * KEY_LONGS + i];
+            for (int b = 0; b < 8; b++) {
+              token[i * 8 + b] = (byte) (value >>> (56 - b * 8));
+            }
+          }
+          visitor.visit(token, (stamp & 0xFFFFFFFFL) * 1000);
+        }
+      }
+    }
+  }
+
+  /**
+   * Convert token bytes to the hexadecimal form used by devices.
+   *
+   * @param token a device token (32 bytes)
+   * @return 64 lowercase hexadecimal characters
+   */
+  public static String toHex(final byte[] token) {
+    final char[] chars = new char[TOKEN_BYTES * 2];
+    for (int i = 0; i < TOKEN_BYTES; i++) {
+      chars[i * 2] = HEX[(token[i] >> 4) & 0x0F];
+      chars[i * 2 + 1] = HEX[token[i] & 0x0F];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Sort tokens by segment.
+   *
+   * @return a batch of keys for each segment, possibly empty
+   */
+  private List<List<long[]>> partition(final Collection<String> tokens) {
+    final List<List<long[]>> batches = new ArrayList<>(segments.length);
+    for (int s = 0; s < segments.length; s++) {
+      /* Empty lists allocate no storage until used */
+      batches.add(new ArrayList<>());
+    }
+    for (final String token : tokens) {
+      final long[] key = parse(token);
+      batches.get(segmentIndex(key)).add(key);
+    }
+    return batches;
+  }
+
+  private Segment segmentFor(final long[] key) {
+    return segments[segmentIndex(key)];
+  }
+
+  private int segmentIndex(final long[] key) {
+    return (int) (hash(key, 0) >>> segmentShift);
+  }
+
+  private static long hash(final long[] key, final int offset) {
+    long hash = key[offset] * 0x9E3779B97F4A7C15L;
+    hash ^= key[offset + 1] + (hash >>> 29);
+    hash *= 0xBF58476D1CE4E5B9L;
+    hash ^= key[offset + 2] + (hash >>> 31);
+    hash *= 0x94D049BB133111EBL;
+    hash ^= key[offset + 3] + (hash >>> 32);
+    hash *= 0x9E3779B97F4A7C15L;
+    return hash ^ (hash >>> 29);
+  }
+
+  private static int stamp(final long timestamp) {
+    final int seconds = (int) (timestamp / 1000);
+    /* Keep the slot states free */
+    return seconds == EMPTY || seconds == REMOVED ? 1 : seconds;
+  }
+
+  private static long[] parse(final String token) {
+    if (token == null || token.length() != TOKEN_BYTES * 2) {
+      throw new IllegalArgumentException("Device token must be 64 hexadecimal characters");
+    }
+    final long[] key = new long[KEY_LONGS];
+    for (int i = 0; i < TOKEN_BYTES * 2; i++) {
+      final int digit = Character.digit(token.charAt(i), 16);
+      if (digit < 0) {
+        throw new IllegalArgumentException("Device token must be 64 hexadecimal characters");
+      }
+      key[i >> 4] = key[i >> 4] << 4 | digit;
+    }
+    return key;
+  }
+
+  private static long[] key(final byte[] token) {
+    if (token == null || token.length != TOKEN_BYTES) {
+      throw new IllegalArgumentException("Device token must be 32 bytes");
+    }
+    final long[] key = new long[KEY_LONGS];
+    for (int i = 0; i < TOKEN_BYTES; i++) {
+      key[i >> 3] = key[i >> 3] << 8 | (token[i] & 0xFF);
+    }
+    return key;
+  }
+
+  /**
+   * Receives the tokens of a registry.
+   */
+  public interface Visitor {
+    /**
+     * Invoked for each token.
+     *
+     * @param token     a buffer holding the token's 32 bytes, reused for the next token
+     * @param timestamp the time at which the device registered, in milliseconds
+     */
+    void visit(byte[] token, long timestamp);
+  }
+
+  /**
+   * The arrays of a segment, replaced as a whole when the segment grows.
+   */
+  private static final class Table {
+    private final long[] keys;
+    private final int[] stamps;
+    private final int mask;
+
+    private Table(final int capacity) {
+      this.keys = new long[capacity * KEY_LONGS];
+      this.stamps = new int[capacity];
+      this.mask = capacity - 1;
+    }
+  }
+
+  private static final class Segment {
+    private final StampedLock lock = new StampedLock();
+    private volatile Table table;
+    private int size;
+    private int used;
+
+    private Segment(final int capacity) {
+      this.table = new Table(capacity);
+    }
+
+    private int get(final long[] key, final int offset) {
+      long stamp = lock.tryOptimisticRead();
+      int result = stamp != 0 ? find(table, key, offset) : EMPTY;
+      if (stamp == 0 || !lock.validate(stamp)) {
+        stamp = lock.readLock();
+        try {
+          result = find(table, key, offset);
+        } finally {
+          lock.unlockRead(stamp);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Find a token's stamp.  May return garbage (but never fail) if the table is modified meanwhile.
+     */
+    private static int find(final Table table, final long[] key, final int offset) {
+      final int slot = slot(table, key, offset);
+      return slot >= 0 ? table.stamps[slot] : EMPTY;
+    }
+
+    /**
+     * Find the slot holding a token.
+     *
+     * @return a slot, or -1 if the token is not in the table
+     */
+    private static int slot(final Table table, final long[] key, final int offset) {
+      final int[] stamps = table.stamps;
+      final long[] keys = table.keys;
+      final int mask = stamps.length - 1;
+      int slot = (int) hash(key, offset) & mask;
+      for (int probes = 0; probes <= mask; probes++) {
+        final int stamp = stamps[slot];
+        if (stamp == EMPTY) {
+          return -1;
+        }
+        if (stamp != REMOVED && matches(keys, slot, key, offset)) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return -1;
+    }
+
+    private static boolean matches(final long[] keys, final int slot, final long[] key, final int offset) {
+      final int base = slot * KEY_LONGS;
+      return keys[base] == key[offset] && keys[base + 1] == key[offset + 1] && keys[base + 2] == key[offset + 2] && keys[base + 3] == key[offset + 3];
+    }
+
+    private boolean put(final long[] key, final int offset, final int timestamp) {
+      final long stamp = lock.writeLock();
+      try {
+        return insert(key, offset, timestamp);
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    private int putAll(final List<long[]> keys, final int timestamp) {
+      final long stamp = lock.writeLock();
+      try {
+        int added = 0;
+        for (final long[] key : keys) {
+          if (insert(key, 0, timestamp)) {
+            added++;
+          }
+        }
+        return added;
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    /**
+     * Insert or update a token.  Must be invoked with the write lock held.
+     */
+    private boolean insert(final long[] key, final int offset, final int timestamp) {
+      Table current = table;
+      final int existing = slot(current, key, offset);
+      if (existing >= 0) {
+        current.stamps[existing] = timestamp;
+        return false;
+      }
+      if (used + 1 > current.stamps.length * LOAD_FACTOR) {
+        /* Grow if the table is mostly live tokens, otherwise only clean up removed tokens */
+        current = rehash(size + 1 > current.stamps.length * LOAD_FACTOR / 2 ? current.stamps.length * 2 : current.stamps.length);
+      }
+      int slot = (int) hash(key, offset) & current.mask;
+      while (current.stamps[slot] != EMPTY && current.stamps[slot] != REMOVED) {
+        slot = (slot + 1) & current.mask;
+      }
+      if (current.stamps[slot] == EMPTY) {
+        used++;
+      }
+      System.arraycopy(key, offset, current.keys, slot * KEY_LONGS, KEY_LONGS);
+      current.stamps[slot] = timestamp;
+      size++;
+      return true;
+    }
+
+    private Table rehash(final int capacity) {
+      final Table previous = table;
+      final Table resized = new Table(capacity);
+      for (int slot = 0; slot < previous.stamps.length; slot++) {
+        final int stamp = previous.stamps[slot];
+        if (stamp != EMPTY && stamp != REMOVED) {
+          int target = (int) hash(previous.keys, slot * KEY_LONGS) & resized.mask;
+          while (resized.stamps[target] != EMPTY) {
+            target = (target + 1) & resized.mask;
+          }
+          System.arraycopy(previous.keys, slot * KEY_LONGS, resized.keys, target * KEY_LONGS, KEY_LONGS);
+          resized.stamps[target] = stamp;
+        }
+      }
+      used = size;
+      table = resized;
+      return resized;
+    }
+
+    private boolean remove(final long[] key, final int offset) {
+      final long stamp = lock.writeLock();
+      try {
+        return delete(key, offset);
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    private int removeAll(final List<long[]> keys) {
+      final long stamp = lock.writeLock();
+      try {
+        int removed = 0;
+        for (final long[] key : keys) {
+          if (delete(key, 0)) {
+            removed++;
+          }
+        }
+        return removed;
+      } finally {
+        lock.unlockWrite(stamp);
+      }
+    }
+
+    private boolean delete(final long[] key, final int offset) {
+      final Table current = table;
+      final int slot = slot(current, key, offset);
+      if (slot < 0) {
+        return false;
+      }
+      current.stamps[slot] = REMOVED;
+      size--;
+      return true;
+    }
+
+    private int size() {
+      final long stamp = lock.readLock();
+      try {
+        return size;
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+
+    private Table snapshot() {
+      final long stamp = lock.readLock();
+      try {
+        final Table current = table;
+        final Table copy = new Table(current.stamps.length);
+        System.arraycopy(current.keys, 0, copy.keys, 0, current.keys.length);
+        System.arraycopy(current.stamps, 0, copy.stamps, 0, current.stamps.length);
+        return copy;
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+  }
+}
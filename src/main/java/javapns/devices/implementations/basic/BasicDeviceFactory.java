@@ -20,6 +20,8 @@ import java.util.Map;
  * - Add a method to find a device knowing his token
  * - Add a method to update a device (timestamp or token)
  * - method to compare two devices, and replace when the device token has changed
+ * <p>
+ * To keep track of a large number of device tokens in memory, use a {@link javapns.devices.TokenRegistry} instead.
  *
  * @author Maxime Peron
  */
@@ -63,4 +63,23 @@ public class AppleFeedbackServerBasicImpl extends AppleServerBasicImpl implement
   public int getFeedbackServerPort() {
     return port;
   }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!super.equals(o)) return false;
+
+    AppleFeedbackServerBasicImpl that = (AppleFeedbackServerBasicImpl) o;
+
+    return port == that.port && host.equals(that.host);
+
+  }
+
+  @Override
+  public int hashCode() {
+    int result = super.hashCode();
+    result = 31 * result + host.hashCode();
+    result = 31 * result + port;
+    return result;
+  }
 }
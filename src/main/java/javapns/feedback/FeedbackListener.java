@@ -0,0 +1,21 @@
+package javapns.feedback;
+
+/**
+ * <h1>A callback receiving inactive devices as the Feedback Service reports them</h1>
+ * <p>
+ * <p>Tuples are delivered while the feedback stream is being read, without building a device object for each one.
+ * The token bytes are held in a buffer reused for the next tuple: copy them if they must be kept
+ * (see {@link FeedbackStreamParser#toHex(byte[], int)}).</p>
+ *
+ * @see FeedbackServiceManager#processDevices(AppleFeedbackServer, FeedbackListener)
+ */
+public interface FeedbackListener {
+  /**
+   * Invoked for each device reported by the Feedback Service.
+   *
+   * @param timestamp   the time at which Apple determined that the app no longer exists on the device, in milliseconds
+   * @param token       a buffer holding the device token's bytes, valid only until this method returns
+   * @param tokenLength the number of bytes of the token in the buffer
+   */
+  void eventInactiveDevice(long timestamp, byte[] token, int tokenLength);
+}
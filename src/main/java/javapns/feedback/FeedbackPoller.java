@@ -0,0 +1,300 @@
+package javapns.feedback;
+
+import javapns.communication.exceptions.CommunicationException;
+import javapns.communication.exceptions.KeystoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>Polls the Feedback Service at regular intervals and reports only devices not reported before</h1>
+ * <p>
+ * <p>Polling the Feedback Service often keeps each batch of inactive devices small, so that they can be removed
+ * continuously rather than in large bursts.  This poller reuses the same SSL context for every poll,
+ * spreads polls with a random jitter, and passes each inactive device to a {@link FeedbackListener} as it is read.</p>
+ * <p>
+ * <p>Apple reports each inactive device until it has been read once, but may report late devices with an older timestamp
+ * than devices already reported, so every report is passed on, however old.  Only a report seen recently with the same
+ * device and timestamp, for example because a poll was interrupted, is not passed on again.  Recent reports are remembered,
+ * optionally in a small state file so that they survive restarts.  A report that the listener failed to process is forgotten,
+ * so that it is passed on again if Apple sends it again.</p>
+ * <pre>
+ * FeedbackPoller poller = new FeedbackPoller(server, (timestamp, token, length) -&gt; removeToken(FeedbackStreamParser.toHex(token, length)));
+ * poller.setStateFile(new File("feedback.state"));
+ * poller.start();
+ * ...
+ * poller.close();
+ * </pre>
+ */
+public class FeedbackPoller implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(FeedbackPoller.class);
+
+  /* Default time between polls, in milliseconds */
+  private static final long DEFAULT_INTERVAL = 10 * 60 * 1000;
+
+  private static final int STATE_MAGIC = 0x4A504E47;
+
+  /* Maximum number of reports remembered to skip duplicates */
+  private static final int MAX_RECENT = 10000;
+
+  private final AppleFeedbackServer server;
+  private final FeedbackListener listener;
+  private final FeedbackServiceManager manager = new FeedbackServiceManager();
+  private final FeedbackStreamParser parser = new FeedbackStreamParser();
+  private ConnectionToFeedbackServer connection;
+  private ScheduledExecutorService scheduler;
+  private File stateFile;
+  private long interval = DEFAULT_INTERVAL;
+  private long jitter = DEFAULT_INTERVAL / 10;
+
+  /* Time of the most recent report seen */
+  private long lastSeen;
+
+  /* Timestamp and token of the reports seen recently, oldest first */
+  private final Map<ByteBuffer, Boolean> recent = new LinkedHashMap<ByteBuffer, Boolean>() {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, Boolean> eldest) {
+      return size() > MAX_RECENT;
+    }
+  };
+
+  private long lastPoll;
+  private long reported;
+
+  /**
+   * Create a poller.
+   *
+   * @param server   the Feedback Service to poll
+   * @param listener the listener to notify for each device not reported before
+   */
+  public FeedbackPoller(final AppleFeedbackServer server, final FeedbackListener listener) {
+    this.server = server;
+    this.listener = listener;
+  }
+
+  /**
+   * Remember the reports seen recently in a file, and load them if the file exists.
+   * This method must be invoked before the first poll.
+   *
+   * @param stateFile a file
+   * @throws IOException thrown if the file exists but could not be read
+   */
+  public synchronized void setStateFile(final File stateFile) throws IOException {
+    this.stateFile = stateFile;
+    if (stateFile.length() > 0) {
+      loadState();
+    }
+  }
+
+  public synchronized File getStateFile() {
+    return stateFile;
+  }
+
+  public synchronized long getInterval() {
+    return interval;
+  }
+
+  /**
+   * Set the time between polls.
+   *
+   * @param interval a number of milliseconds (default is 10 minutes)
+   * @param jitter   the maximum number of milliseconds randomly added to or removed from each interval (default is 1 minute)
+   */
+  public synchronized void setInterval(final long interval, final long jitter) {
+    if (interval <= 0 || jitter < 0 || jitter >= interval) {
+      throw new IllegalArgumentException("Interval must be positive and greater than jitter");
+    }
+    this.interval = interval;
+    this.jitter = jitter;
+  }
+
+  public synchronized long getJitter() {
+    return jitter;
+  }
+
+  /**
+   * Start polling in the background.  The first poll occurs right away.
+   */
+  public synchronized void start() {
+    if (scheduler != null) {
+      throw new IllegalStateException("FeedbackPoller already started");
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "JavaPNS feedback poller");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.execute(this::scheduledPoll);
+  }
+
+  private void scheduledPoll() {
+    try {
+      poll();
+    } catch (final Exception e) {
+      logger.warn("Could not poll the Feedback Service: " + e.getMessage());
+    }
+    synchronized (this) {
+      if (scheduler != null && !scheduler.isShutdown()) {
+        final long delay = interval + (jitter > 0 ? ThreadLocalRandom.current().nextLong(-jitter, jitter + 1) : 0);
+        scheduler.schedule(this::scheduledPoll, delay, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Poll the Feedback Service now, passing each device not reported before to the listener.
+   *
+   * @return the number of devices passed to the listener
+   * @throws KeystoreException      thrown if an error occurs when loading the keystore
+   * @throws CommunicationException thrown if an error occurs while communicating with the Feedback Service
+   */
+  public synchronized int poll() throws KeystoreException, CommunicationException {
+    if (connection == null) {
+      /* Keeping the connection helper keeps its SSL context, so the keystore is only loaded once */
+      connection = new ConnectionToFeedbackServer(server);
+    }
+    final int[] count = new int[1];
+    try {
+      manager.processDevices(connection.getSSLSocket(), parser, (timestamp, token, tokenLength) -> {
+        if (deliver(timestamp, token, tokenLength)) {
+          count[0]++;
+        }
+      });
+    } finally {
+      lastPoll = System.currentTimeMillis();
+      reported += count[0];
+      if (count[0] > 0) {
+        saveState();
+      }
+    }
+    logger.debug("Feedback Service reported " + count[0] + " new inactive devices");
+    return count[0];
+  }
+
+  /**
+   * Pass a report to the listener, unless it was seen recently.
+   *
+   * @return true if the listener processed the report
+   */
+  boolean deliver(final long timestamp, final byte[] token, final int tokenLength) {
+    final ByteBuffer report = report(timestamp, token, tokenLength);
+    if (recent.put(report, Boolean.TRUE) != null) {
+      return false;
+    }
+    try {
+      listener.eventInactiveDevice(timestamp, token, tokenLength);
+    } catch (final RuntimeException e) {
+      /* Forget the report, so that it is passed on again if Apple sends it again */
+      recent.remove(report);
+      logger.warn("Feedback listener failed", e);
+      return false;
+    }
+    lastSeen = Math.max(lastSeen, timestamp);
+    return true;
+  }
+
+  /**
+   * Build the key identifying a report: its timestamp followed by the token's bytes.
+   */
+  private static ByteBuffer report(final long timestamp, final byte[] token, final int tokenLength) {
+    final ByteBuffer report = ByteBuffer.allocate(8 + tokenLength);
+    report.putLong(timestamp).put(token, 0, tokenLength).flip();
+    return report;
+  }
+
+  private void loadState() throws IOException {
+    try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+      if (in.readInt() != STATE_MAGIC) {
+        throw new IOException("Not a feedback state file: " + stateFile);
+      }
+      lastSeen = in.readLong();
+      recent.clear();
+      final int reports = in.readInt();
+      for (int i = 0; i < reports; i++) {
+        final byte[] report = new byte[in.readUnsignedShort()];
+        in.readFully(report);
+        recent.put(ByteBuffer.wrap(report), Boolean.TRUE);
+      }
+    }
+  }
+
+  void saveState() {
+    if (stateFile == null) {
+      return;
+    }
+    final File temporary = new File(stateFile.getPath() + ".tmp");
+    try {
+      try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+        out.writeInt(STATE_MAGIC);
+        out.writeLong(lastSeen);
+        out.writeInt(recent.size());
+        for (final ByteBuffer report : recent.keySet()) {
+          out.writeShort(report.remaining());
+          out.write(report.array(), report.arrayOffset() + report.position(), report.remaining());
+        }
+      }
+      /* Replace the state file at once, so that it is never left half-written */
+      Files.move(temporary.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (final IOException e) {
+      logger.error("Could not save feedback state to " + stateFile, e);
+    }
+  }
+
+  /**
+   * Get the time of the most recent report passed to the listener.
+   *
+   * @return a time in milliseconds, or 0 if no device was ever reported
+   */
+  public synchronized long getLastSeen() {
+    return lastSeen;
+  }
+
+  /**
+   * Get the time at which the Feedback Service was last polled.
+   *
+   * @return a time in milliseconds, or 0 if it was never polled
+   */
+  public synchronized long getLastPoll() {
+    return lastPoll;
+  }
+
+  /**
+   * Get the number of devices passed to the listener since this poller was created.
+   *
+   * @return a number of devices
+   */
+  public synchronized long getReported() {
+    return reported;
+  }
+
+  /**
+   * Stop polling.  A poll in progress is allowed to complete.
+   */
+  public void close() {
+    final ScheduledExecutorService executor;
+    synchronized (this) {
+      executor = scheduler;
+      scheduler = null;
+    }
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+}
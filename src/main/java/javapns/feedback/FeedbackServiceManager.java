@@ -10,12 +10,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLSocket;
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.sql.Timestamp;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -27,9 +25,6 @@ public class FeedbackServiceManager {
 
   private static final Logger logger = LoggerFactory.getLogger(FeedbackServiceManager.class);
 
-  /* Length of the tuple sent by Apple */
-  private static final int FEEDBACK_TUPLE_SIZE = 38;
-
   @Deprecated
   private DeviceFactory deviceFactory;
 
@@ -74,6 +69,23 @@ public class FeedbackServiceManager {
     return getDevices(socket);
   }
 
+  /**
+   * Retrieve all devices which have un-installed the application, passing each one to a listener as soon as it is read.
+   * Unlike {@link #getDevices(AppleFeedbackServer)}, this method does not build a list of devices,
+   * so its memory use does not depend on the number of devices reported.
+   *
+   * @param server   Connection information for the Apple server
+   * @param listener the listener to notify for each device
+   * @return the number of devices reported
+   * @throws KeystoreException      thrown if an error occurs when loading the keystore
+   * @throws CommunicationException thrown if an error occurs while communicating with the Feedback Service
+   */
+  public int processDevices(final AppleFeedbackServer server, final FeedbackListener listener) throws KeystoreException, CommunicationException {
+    final ConnectionToFeedbackServer connectionHelper = new ConnectionToFeedbackServer(server);
+    final SSLSocket socket = connectionHelper.getSSLSocket();
+    return processDevices(socket, listener);
+  }
+
   /**
    * Retrieves the list of devices from an established SSLSocket.
    *
@@ -81,66 +93,38 @@ public class FeedbackServiceManager {
    * @return Devices
    * @throws CommunicationException
    */
-  private LinkedList<Device> getDevices(final SSLSocket socket) throws CommunicationException {
-
-    // Compute
-    LinkedList<Device> listDev = null;
-    try {
-      final InputStream socketStream = socket.getInputStream();
+  private List<Device> getDevices(final SSLSocket socket) throws CommunicationException {
+    final List<Device> listDev = new ArrayList<>();
+    processDevices(socket, (timestamp, token, tokenLength) -> {
+      final String deviceToken = FeedbackStreamParser.toHex(token, tokenLength);
+      /* Create a basic device, as we do not want to go through the factory and create a device in the actual database... */
+      final Device device = new BasicDevice();
+      device.setToken(deviceToken);
+      device.setLastRegister(new Timestamp(timestamp));
+      listDev.add(device);
+      logger.debug("FeedbackManager retrieves one device :  " + device.getLastRegister() + ";" + tokenLength + ";" + deviceToken + ".");
+    });
+    return listDev;
+  }
 
-      // Read bytes
-      final byte[] b = new byte[1024];
-      final ByteArrayOutputStream message = new ByteArrayOutputStream();
-      int nbBytes;
-      // socketStream.available can return 0
-      // http://forums.sun.com/thread.jspa?threadID=5428561
-      while ((nbBytes = socketStream.read(b, 0, 1024)) != -1) {
-        message.write(b, 0, nbBytes);
-      }
+  private int processDevices(final SSLSocket socket, final FeedbackListener listener) throws CommunicationException {
+    return processDevices(socket, new FeedbackStreamParser(), listener);
+  }
 
-      listDev = new LinkedList<>();
-      final byte[] listOfDevices = message.toByteArray();
-      final int nbTuples = listOfDevices.length / FEEDBACK_TUPLE_SIZE;
+  /**
+   * Reads devices from an established SSLSocket as they arrive, and closes the socket.
+   *
+   * @param socket
+   * @param parser
+   * @param listener
+   * @return the number of devices read
+   * @throws CommunicationException
+   */
+  int processDevices(final SSLSocket socket, final FeedbackStreamParser parser, final FeedbackListener listener) throws CommunicationException {
+    try {
+      final int nbTuples = parser.parse(socket.getInputStream(), listener);
       logger.debug("Found: [" + nbTuples + "]");
-      for (int i = 0; i < nbTuples; i++) {
-        final int offset = i * FEEDBACK_TUPLE_SIZE;
-
-        // Build date
-        final int firstByte;
-        final int secondByte;
-        final int thirdByte;
-        final int fourthByte;
-        final long anUnsignedInt;
-
-        firstByte = 0x000000FF & ((int) listOfDevices[offset]);
-        secondByte = 0x000000FF & ((int) listOfDevices[offset + 1]);
-        thirdByte = 0x000000FF & ((int) listOfDevices[offset + 2]);
-        fourthByte = 0x000000FF & ((int) listOfDevices[offset + 3]);
-        anUnsignedInt = ((long) (firstByte << 24 | secondByte << 16 | thirdByte << 8 | fourthByte)) & 0xFFFFFFFFL;
-        final Timestamp timestamp = new Timestamp(anUnsignedInt * 1000);
-
-        // Build device token length
-        final int deviceTokenLength = listOfDevices[offset + 4] << 8 | listOfDevices[offset + 5];
-
-        // Build device token
-        String deviceToken = "";
-        int octet;
-        for (int j = 0; j < 32; j++) {
-          octet = 0x000000FF & ((int) listOfDevices[offset + 6 + j]);
-          deviceToken = deviceToken.concat(String.format("%02x", octet));
-        }
-
-        // Build device and add to list
-        /* Create a basic device, as we do not want to go through the factory and create a device in the actual database... */
-        final Device device = new BasicDevice();
-        device.setToken(deviceToken);
-        device.setLastRegister(timestamp);
-        listDev.add(device);
-        logger.info("FeedbackManager retrieves one device :  " + timestamp + ";" + deviceTokenLength + ";" + deviceToken + ".");
-      }
-
-      // Close the socket and return the list
-
+      return nbTuples;
     } catch (final Exception e) {
       logger.debug("Caught exception fetching devices from Feedback Service");
       throw new CommunicationException("Problem communicating with Feedback service", e);
@@ -151,7 +135,6 @@ public class FeedbackServiceManager {
         // empty
       }
     }
-    return listDev;
   }
 
   /**
@@ -0,0 +1,111 @@
+package javapns.feedback;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <h1>Decodes the Feedback Service's binary stream as it arrives</h1>
+ * <p>
+ * <p>Each tuple (a 4-byte timestamp, a 2-byte token length and the token itself, 38 bytes for regular tokens)
+ * is decoded from a fixed buffer as soon as it is complete and passed to a {@link FeedbackListener}.
+ * Memory use does not depend on the number of tuples, and no object is allocated per tuple.</p>
+ * <p>
+ * <p>Instances are not thread-safe, but can be reused to parse several streams.</p>
+ */
+public class FeedbackStreamParser {
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  /* Timestamp and token length */
+  private static final int HEADER_SIZE = 6;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private final byte[] token = new byte[0xFFFF];
+
+  /**
+   * Read a feedback stream until its end, passing each tuple to a listener.
+   * A tuple cut short at the end of the stream is ignored.
+   *
+   * @param in       the stream sent by the Feedback Service
+   * @param listener the listener to notify for each tuple
+   * @return the number of tuples read
+   * @throws IOException thrown if the stream could not be read
+   */
+  public int parse(final InputStream in, final FeedbackListener listener) throws IOException {
+    int tuples = 0;
+    int start = 0;
+    int end = 0;
+    int read;
+    while ((read = in.read(buffer, end, buffer.length - end)) != -1) {
+      end += read;
+      while (end - start >= HEADER_SIZE) {
+        final int tokenLength = (buffer[start + 4] & 0xFF) << 8 | buffer[start + 5] & 0xFF;
+        final int tupleSize = HEADER_SIZE + tokenLength;
+        if (tupleSize > buffer.length) {
+          /* Tokens longer than the buffer are not expected from Apple, but are not worth failing for */
+          if (readLongTuple(in, start, end, tokenLength, listener)) {
+            tuples++;
+          }
+          start = end = 0;
+          break;
+        }
+        if (end - start < tupleSize) {
+          break;
+        }
+        System.arraycopy(buffer, start + HEADER_SIZE, token, 0, tokenLength);
+        listener.eventInactiveDevice(readTimestamp(buffer, start), token, tokenLength);
+        start += tupleSize;
+        tuples++;
+      }
+      if (start > 0) {
+        /* Move the incomplete tuple to the beginning of the buffer */
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+      }
+    }
+    return tuples;
+  }
+
+  /**
+   * Read a tuple that does not fit in the buffer, directly into the token array.
+   *
+   * @return true if the tuple was complete
+   */
+  private boolean readLongTuple(final InputStream in, final int start, final int end, final int tokenLength, final FeedbackListener listener) throws IOException {
+    final long timestamp = readTimestamp(buffer, start);
+    int length = end - start - HEADER_SIZE;
+    System.arraycopy(buffer, start + HEADER_SIZE, token, 0, length);
+    while (length < tokenLength) {
+      final int read = in.read(token, length, tokenLength - length);
+      if (read == -1) {
+        return false;
+      }
+      length += read;
+    }
+    listener.eventInactiveDevice(timestamp, token, tokenLength);
+    return true;
+  }
+
+  private static long readTimestamp(final byte[] bytes, final int offset) {
+    final long seconds = ((bytes[offset] & 0xFFL) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    return seconds * 1000;
+  }
+
+  /**
+   * Convert token bytes to the hexadecimal form used by devices.
+   *
+   * @param token  a buffer holding the token's bytes
+   * @param length the number of bytes of the token
+   * @return a lowercase hexadecimal string
+   */
+  public static String toHex(final byte[] token, final int length) {
+    final char[] chars = new char[length * 2];
+    for (int i = 0; i < length; i++) {
+      chars[i * 2] = HEX[(token[i] >> 4) & 0x0F];
+      chars[i * 2 + 1] = HEX[token[i] & 0x0F];
+    }
+    return new String(chars);
+  }
+}
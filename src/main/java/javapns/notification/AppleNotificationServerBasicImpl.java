@@ -64,4 +64,22 @@ public class AppleNotificationServerBasicImpl extends AppleServerBasicImpl imple
     return port;
   }
 
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!super.equals(o)) return false;
+
+    AppleNotificationServerBasicImpl that = (AppleNotificationServerBasicImpl) o;
+
+    return port == that.port && host.equals(that.host);
+
+  }
+
+  @Override
+  public int hashCode() {
+    int result = super.hashCode();
+    result = 31 * result + host.hashCode();
+    result = 31 * result + port;
+    return result;
+  }
 }
@@ -0,0 +1,549 @@
+package javapns.notification;
+
+import javapns.devices.Device;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * <h1>A memory-efficient list of pushed notifications, for very large campaigns</h1>
+ * <p>
+ * <p>A regular list keeps a full {@link PushedNotification} object for every notification pushed, along with
+ * its device, payload, response packet and exception.  This list instead keeps the outcome of each notification
+ * in primitive arrays (identifier, position of the device in the campaign's list, status code, transmission attempts
+ * and transmission time), roughly 21 bytes per notification, and builds {@link PushedNotification} objects on demand
+ * when the list is read.  Devices and payloads are looked up in the campaign's own lists, which the caller keeps anyway.</p>
+ * <p>
+ * <p>Notifications are recorded as soon as they are pushed, but only folded into the compact arrays once they are
+ * settled, that is once any error-response Apple sent about them was processed (see {@link PushNotificationManager#getSettledBefore()}).
+ * Until then, they are kept as regular objects.  Exceptions attached to notifications that were not transmitted
+ * are retained, since they are expected to be rare.</p>
+ * <p>
+ * <p>Objects returned by {@code get(..)} and iterators are snapshots: modifying them does not affect this list.
+ * Filtered lists returned by {@code getSuccessfulNotifications()} and {@code getFailedNotifications()} are
+ * read-only views which only hold positions in this list.  Unlike regular lists, this list retains every notification:
+ * the maximum number of objects retained is ignored.  This class is thread-safe.</p>
+ *
+ * @see javapns.notification.transmission.NotificationThreads#setCompactResults(boolean)
+ */
+public class CompactPushedNotifications extends PushedNotifications {
+  private static final long serialVersionUID = 1L;
+
+  /* Status of a notification that was accepted by Apple */
+  public static final int STATUS_SUCCESSFUL = 0;
+
+  /* Status of a notification that could not be transmitted */
+  public static final int STATUS_NOT_TRANSMITTED = -1;
+
+  /* Source of notifications recorded without a campaign list, which are kept as regular objects */
+  private static final int NO_SOURCE = 0;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final List<Source> sources = new ArrayList<>();
+
+  /* Settled notifications */
+  private int[] identifiers;
+  private short[] sourceIds;
+  private int[] indexes;
+  private short[] statuses;
+  private byte[] attempts;
+  private long[] times;
+  private int settled;
+  private int failed;
+  private final Map<Integer, Exception> exceptions = new HashMap<>();
+  private final Map<Integer, PushedNotification> objects = new HashMap<>();
+
+  /* Number of notifications recorded but not settled yet, in all sources */
+  private int pending;
+
+  /**
+   * Create an empty list.
+   */
+  public CompactPushedNotifications() {
+    this(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Create an empty list, allocating room for the given number of notifications.
+   *
+   * @param capacity the expected number of notifications
+   */
+  public CompactPushedNotifications(final int capacity) {
+    super(false);
+    allocate(Math.max(capacity, 16));
+    sources.add(new Source(null, null, null));
+  }
+
+  /**
+   * Register a campaign list pushing a single payload to many devices.
+   *
+   * @param payload the payload pushed
+   * @param devices the devices pushed to
+   * @return a source number to use when recording notifications
+   */
+  public synchronized int addSource(final Payload payload, final List<Device> devices) {
+    return addSource(new Source(payload, devices, null));
+  }
+
+  /**
+   * Register a campaign list pushing individual payloads to many devices.
+   *
+   * @param messages the payload/device pairs pushed
+   * @return a source number to use when recording notifications
+   */
+  public synchronized int addSource(final List<PayloadPerDevice> messages) {
+    return addSource(new Source(null, null, messages));
+  }
+
+  private int addSource(final Source source) {
+    if (sources.size() >= Short.MAX_VALUE) {
+      throw new IllegalStateException("Too many sources");
+    }
+    sources.add(source);
+    return sources.size() - 1;
+  }
+
+  /**
+   * Record a notification pushed from a campaign list.
+   *
+   * @param source       a number returned by {@code addSource(..)}
+   * @param index        the position of the notification's device in that source
+   * @param notification the notification pushed
+   */
+  public synchronized void record(final int source, final int index, final PushedNotification notification) {
+    sources.get(source).pending.add(new Pending(index, notification));
+    pending++;
+  }
+
+  /**
+   * Record a notification that does not come from a campaign list.  It is kept as a regular object.
+   *
+   * @param notification the notification pushed
+   * @return true
+   */
+  @Override
+  public synchronized boolean add(final PushedNotification notification) {
+    record(NO_SOURCE, 0, notification);
+    settleObjects();
+    return true;
+  }
+
+  /**
+   * Record notifications that do not come from a campaign list.  They are kept as regular objects.
+   *
+   * @param notifications the notifications pushed
+   * @return true if any notification was recorded
+   */
+  @Override
+  public synchronized boolean addAll(final Collection<? extends PushedNotification> notifications) {
+    for (final PushedNotification notification : notifications) {
+      record(NO_SOURCE, 0, notification);
+    }
+    settleObjects();
+    return !notifications.isEmpty();
+  }
+
+  /**
+   * Fold the settled notifications of a source into the compact arrays.
+   *
+   * @param source a number returned by {@code addSource(..)}
+   * @param before the time before which the notifications of that source are final, as returned by {@link PushNotificationManager#getSettledBefore()}
+   */
+  public synchronized void settle(final int source, final long before) {
+    final Source from = sources.get(source);
+    while (from.start < from.pending.size()) {
+      final Pending next = from.pending.get(from.start);
+      if (next.notification.getTransmissionTime() >= before) {
+        break;
+      }
+      append(source, next);
+      from.pending.set(from.start++, null);
+      pending--;
+    }
+    if (from.start == from.pending.size()) {
+      from.pending.clear();
+      from.start = 0;
+    } else if (from.start > INITIAL_CAPACITY && from.start > from.pending.size() / 2) {
+      from.pending.subList(0, from.start).clear();
+      from.start = 0;
+    }
+  }
+
+  /**
+   * Fold every notification recorded without a campaign list into the compact arrays.
+   */
+  private void settleObjects() {
+    settle(NO_SOURCE, Long.MAX_VALUE);
+  }
+
+  private void append(final int source, final Pending entry) {
+    if (settled == identifiers.length) {
+      allocate(settled + (settled >> 1));
+    }
+    final PushedNotification notification = entry.notification;
+    final int status = statusOf(notification);
+    identifiers[settled] = notification.getIdentifier();
+    sourceIds[settled] = (short) source;
+    indexes[settled] = entry.index;
+    statuses[settled] = (short) status;
+    attempts[settled] = (byte) Math.min(notification.getTransmissionAttempts(), Byte.MAX_VALUE);
+    times[settled] = notification.getTransmissionTime();
+    if (source == NO_SOURCE) {
+      objects.put(settled, notification);
+    } else if (notification.getException() != null && status <= 0) {
+      /* Exceptions caused by error-responses are rebuilt from the status code */
+      exceptions.put(settled, notification.getException());
+    }
+    if (status != STATUS_SUCCESSFUL) {
+      failed++;
+    }
+    settled++;
+  }
+
+  private static int statusOf(final PushedNotification notification) {
+    if (notification.isSuccessful()) {
+      return STATUS_SUCCESSFUL;
+    }
+    final ResponsePacket response = notification.getResponse();
+    return response != null && response.isValidErrorMessage() ? response.getStatus() : STATUS_NOT_TRANSMITTED;
+  }
+
+  private void allocate(final int capacity) {
+    identifiers = identifiers == null ? new int[capacity] : Arrays.copyOf(identifiers, capacity);
+    sourceIds = sourceIds == null ? new short[capacity] : Arrays.copyOf(sourceIds, capacity);
+    indexes = indexes == null ? new int[capacity] : Arrays.copyOf(indexes, capacity);
+    statuses = statuses == null ? new short[capacity] : Arrays.copyOf(statuses, capacity);
+    attempts = attempts == null ? new byte[capacity] : Arrays.copyOf(attempts, capacity);
+    times = times == null ? new long[capacity] : Arrays.copyOf(times, capacity);
+  }
+
+  @Override
+  public synchronized int size() {
+    return settled + pending;
+  }
+
+  /**
+   * Build a snapshot of the notification at the given position.
+   *
+   * @param index a position in this list
+   * @return a pushed notification
+   */
+  @Override
+  public synchronized PushedNotification get(final int index) {
+    checkIndex(index);
+    if (index >= settled) {
+      return pendingAt(index).notification;
+    }
+    final PushedNotification object = objects.get(index);
+    if (object != null) {
+      return object;
+    }
+    final Source source = sources.get(sourceIds[index]);
+    final PushedNotification notification = new PushedNotification(source.getDevice(indexes[index]), source.getPayload(indexes[index]), identifiers[index]);
+    notification.setTransmissionAttempts(attempts[index]);
+    final int status = statuses[index];
+    if (status != STATUS_NOT_TRANSMITTED) {
+      notification.setTransmissionCompleted(true);
+    }
+    notification.setTransmissionTime(times[index]);
+    notification.setException(exceptions.get(index));
+    if (status > 0) {
+      notification.setResponse(new ResponsePacket(8, status, identifiers[index]));
+    }
+    return notification;
+  }
+
+  /**
+   * Find a notification not settled yet.  Those are listed after settled ones, source by source.
+   */
+  private Pending pendingAt(final int index) {
+    int offset = index - settled;
+    for (final Source source : sources) {
+      final int count = source.pending.size() - source.start;
+      if (offset < count) {
+        return source.pending.get(source.start + offset);
+      }
+      offset -= count;
+    }
+    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+  }
+
+  private void checkIndex(final int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    }
+  }
+
+  /**
+   * Get the identifier of the notification at the given position.
+   *
+   * @param index a position in this list
+   * @return a message identifier
+   */
+  public synchronized int getIdentifier(final int index) {
+    checkIndex(index);
+    return index < settled ? identifiers[index] : pendingAt(index).notification.getIdentifier();
+  }
+
+  /**
+   * Get the status of the notification at the given position.
+   *
+   * @param index a position in this list
+   * @return {@link #STATUS_SUCCESSFUL}, {@link #STATUS_NOT_TRANSMITTED}, or the status code of the error-response Apple sent
+   */
+  public synchronized int getStatus(final int index) {
+    checkIndex(index);
+    return index < settled ? statuses[index] : statusOf(pendingAt(index).notification);
+  }
+
+  /**
+   * Get the device of the notification at the given position.
+   *
+   * @param index a position in this list
+   * @return a device
+   */
+  public synchronized Device getDevice(final int index) {
+    checkIndex(index);
+    if (index >= settled || objects.containsKey(index)) {
+      return get(index).getDevice();
+    }
+    return sources.get(sourceIds[index]).getDevice(indexes[index]);
+  }
+
+  /**
+   * Get the number of notifications in this list that were not accepted by Apple.
+   * Notifications not settled yet are counted according to their current state.
+   *
+   * @return a number of notifications
+   */
+  public synchronized int getFailedCount() {
+    int count = failed;
+    for (final Source source : sources) {
+      for (int i = source.start; i < source.pending.size(); i++) {
+        if (!source.pending.get(i).notification.isSuccessful()) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Get a read-only view of the notifications that were successful.
+   *
+   * @return a filtered list containing only notifications that were succcessful
+   */
+  @Override
+  public PushedNotifications getSuccessfulNotifications() {
+    return select(true);
+  }
+
+  /**
+   * Get a read-only view of the notifications that failed.
+   *
+   * @return a filtered list containing only notifications that were <b>not</b> successful
+   */
+  @Override
+  public PushedNotifications getFailedNotifications() {
+    return select(false);
+  }
+
+  private synchronized PushedNotifications select(final boolean successful) {
+    final int size = size();
+    final int failedCount = getFailedCount();
+    final int[] selected = new int[successful ? size - failedCount : failedCount];
+    int count = 0;
+    for (int i = 0; i < settled && count < selected.length; i++) {
+      if ((statuses[i] == STATUS_SUCCESSFUL) == successful) {
+        selected[count++] = i;
+      }
+    }
+    for (int i = settled; i < size && count < selected.length; i++) {
+      if (pendingAt(i).notification.isSuccessful() == successful) {
+        selected[count++] = i;
+      }
+    }
+    return new Selection(this, selected, count);
+  }
+
+  @Override
+  public Iterator<PushedNotification> iterator() {
+    return iterator(this);
+  }
+
+  private static Iterator<PushedNotification> iterator(final List<PushedNotification> list) {
+    return new Iterator<PushedNotification>() {
+      private int next = 0;
+
+      public boolean hasNext() {
+        return next < list.size();
+      }
+
+      public PushedNotification next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return list.get(next++);
+      }
+    };
+  }
+
+  @Override
+  public PushedNotification set(final int index, final PushedNotification notification) {
+    throw new UnsupportedOperationException("CompactPushedNotifications does not support replacing notifications");
+  }
+
+  @Override
+  public PushedNotification remove(final int index) {
+    throw new UnsupportedOperationException("CompactPushedNotifications does not support removing notifications");
+  }
+
+  @Override
+  public boolean removeIf(final Predicate<? super PushedNotification> filter) {
+    throw new UnsupportedOperationException("CompactPushedNotifications does not support removing notifications");
+  }
+
+  /**
+   * Discard every notification recorded.  Sources remain registered, so that campaigns still running can keep recording notifications.
+   */
+  @Override
+  public synchronized void clear() {
+    for (final Source source : sources) {
+      source.pending.clear();
+      source.start = 0;
+    }
+    exceptions.clear();
+    objects.clear();
+    pending = 0;
+    settled = 0;
+    failed = 0;
+    identifiers = null;
+    sourceIds = null;
+    indexes = null;
+    statuses = null;
+    attempts = null;
+    times = null;
+    allocate(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Compact lists retain every notification, so this method has no effect.
+   */
+  @Override
+  public void setMaxRetained(final int maxRetained) {
+    // empty
+  }
+
+  private static final class Source {
+    private final Payload payload;
+    private final List<Device> devices;
+    private final List<PayloadPerDevice> messages;
+
+    /* Notifications recorded but not settled yet, in the order they were recorded */
+    private final List<Pending> pending = new ArrayList<>();
+    private int start;
+
+    private Source(final Payload payload, final List<Device> devices, final List<PayloadPerDevice> messages) {
+      this.payload = payload;
+      this.devices = devices;
+      this.messages = messages;
+    }
+
+    private Device getDevice(final int index) {
+      return devices != null ? devices.get(index) : messages.get(index).getDevice();
+    }
+
+    private Payload getPayload(final int index) {
+      return devices != null ? payload : messages.get(index).getPayload();
+    }
+  }
+
+  private static final class Pending {
+    private final int index;
+    private final PushedNotification notification;
+
+    private Pending(final int index, final PushedNotification notification) {
+      this.index = index;
+      this.notification = notification;
+    }
+  }
+
+  /**
+   * A read-only view of selected positions in a compact list.
+   */
+  private static final class Selection extends PushedNotifications {
+    private static final long serialVersionUID = 1L;
+
+    private final CompactPushedNotifications list;
+    private final int[] positions;
+    private final int size;
+
+    private Selection(final CompactPushedNotifications list, final int[] positions, final int size) {
+      super(false);
+      this.list = list;
+      this.positions = positions;
+      this.size = size;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public PushedNotification get(final int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+      }
+      return list.get(positions[index]);
+    }
+
+    @Override
+    public Iterator<PushedNotification> iterator() {
+      return CompactPushedNotifications.iterator(this);
+    }
+
+    @Override
+    public boolean add(final PushedNotification notification) {
+      throw new UnsupportedOperationException("Filtered compact lists are read-only");
+    }
+
+    @Override
+    public boolean addAll(final Collection<? extends PushedNotification> notifications) {
+      throw new UnsupportedOperationException("Filtered compact lists are read-only");
+    }
+
+    @Override
+    public PushedNotification set(final int index, final PushedNotification notification) {
+      throw new UnsupportedOperationException("Filtered compact lists are read-only");
+    }
+
+    @Override
+    public PushedNotification remove(final int index) {
+      throw new UnsupportedOperationException("Filtered compact lists are read-only");
+    }
+
+    @Override
+    public boolean removeIf(final Predicate<? super PushedNotification> filter) {
+      throw new UnsupportedOperationException("Filtered compact lists are read-only");
+    }
+
+    @Override
+    public void clear() {
+      throw new UnsupportedOperationException("Filtered compact lists are read-only");
+    }
+
+    @Override
+    public void setMaxRetained(final int maxRetained) {
+      // empty
+    }
+  }
+}
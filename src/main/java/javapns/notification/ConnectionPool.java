@@ -0,0 +1,361 @@
+package javapns.notification;
+
+import javapns.communication.exceptions.CommunicationException;
+import javapns.communication.exceptions.KeystoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLSocket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h1>A pool of authenticated connections to Apple notification servers</h1>
+ * <p>
+ * <p>Opening a connection to Apple costs a TCP connect and a full TLS handshake with client authentication.
+ * A pool keeps connections released by {@link PushNotificationManager} instances open, so that the next
+ * manager pushing to the same server can skip that cost entirely.  Apple recommends keeping connections
+ * open rather than repeatedly opening and closing them.</p>
+ * <p>
+ * <p>Connections are keyed by server and proxy.  The basic server implementations compare by value,
+ * so servers created separately with the same keystore, password and environment share connections.
+ * The proxy is read when a connection is borrowed, so changing a server's proxy never strands pooled
+ * connections: connections opened through the previous proxy simply stop being handed out.
+ * Before an idle connection is handed out, it goes through a cheap health check: connections that were
+ * closed or that received data from Apple (which only writes to report an error before closing) are
+ * discarded, and so are connections that stayed idle longer than the maximum idle time.</p>
+ * <p>
+ * <p>To use a pool, attach it to a manager before connecting:</p>
+ * <pre>
+ * ConnectionPool pool = new ConnectionPool();
+ * PushNotificationManager manager = new PushNotificationManager();
+ * manager.setConnectionPool(pool);
+ * manager.initializeConnection(server);  // borrows a connection
+ * ...
+ * manager.stopConnection();  // returns the connection to the pool
+ * </pre>
+ * <p>
+ * <p>or make it the default for all managers with {@link PushNotificationManager#setDefaultConnectionPool(ConnectionPool)},
+ * which also applies to the simple {@link javapns.Push} methods.  This class is thread-safe.</p>
+ */
+public class ConnectionPool implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+  /* Default maximum number of idle connections kept per server */
+  private static final int DEFAULT_MAX_IDLE_CONNECTIONS = 4;
+
+  /* Default maximum number of milliseconds a connection can stay idle before being discarded */
+  private static final long DEFAULT_MAX_IDLE_TIME = 10 * 60 * 1000;
+
+  private final ConcurrentMap<ServerKey, ServerConnections> servers = new ConcurrentHashMap<>();
+  private final AtomicLong connectionsOpened = new AtomicLong();
+  private final AtomicLong connectionsReused = new AtomicLong();
+  private final AtomicLong connectionsDiscarded = new AtomicLong();
+
+  private volatile int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+  private volatile long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+  private volatile boolean closed = false;
+
+  /**
+   * Create a pool using default settings.
+   */
+  public ConnectionPool() {
+  }
+
+  /**
+   * Create a pool.
+   *
+   * @param maxIdleConnections the maximum number of idle connections kept per server
+   * @param maxIdleTime        the maximum number of milliseconds a connection can stay idle before being discarded (0 for no limit)
+   */
+  public ConnectionPool(final int maxIdleConnections, final long maxIdleTime) {
+    setMaxIdleConnections(maxIdleConnections);
+    setMaxIdleTime(maxIdleTime);
+  }
+
+  /**
+   * Borrow a connection to the given server, reusing a healthy idle connection if one is available.
+   * The connection is handshaked and ready to push when this method returns.
+   *
+   * @param server the server to connect to
+   * @return a connection, which must be given back with {@link #release(PooledConnection)} or {@link #discard(PooledConnection)}
+   * @throws CommunicationException thrown if a communication error occurs
+   * @throws KeystoreException      thrown if there is a problem with your keystore
+   */
+  PooledConnection acquire(final AppleNotificationServer server) throws CommunicationException, KeystoreException {
+    if (closed) {
+      throw new IllegalStateException("Connection pool is closed");
+    }
+    final ServerKey key = new ServerKey(server);
+    final ServerConnections connections = getServerConnections(key);
+    PooledConnection pooled;
+    while ((pooled = connections.poll()) != null) {
+      if (!isExpired(pooled, System.currentTimeMillis()) && !pooled.isOutdated() && pooled.isHealthy()) {
+        connectionsReused.incrementAndGet();
+        logger.debug("Reusing pooled connection: " + pooled);
+        return pooled;
+      }
+      logger.debug("Discarding stale pooled connection: " + pooled);
+      discard(pooled);
+    }
+    return open(key, connections.connection);
+  }
+
+  private PooledConnection open(final ServerKey key, final ConnectionToNotificationServer connection) throws CommunicationException, KeystoreException {
+    final SSLSocket socket = connection.getSSLSocket();
+    try {
+      socket.startHandshake();
+    } catch (final Exception e) {
+      try {
+        socket.close();
+      } catch (final Exception e2) {
+        // empty
+      }
+      throw new CommunicationException("Error creating connection with Apple server", e);
+    }
+    connectionsOpened.incrementAndGet();
+    final PooledConnection pooled = new PooledConnection(this, key, key.server, connection, socket);
+    logger.debug("Opened pooled connection: " + pooled);
+    return pooled;
+  }
+
+  /**
+   * Give a healthy connection back to the pool so that it can be reused.
+   * The connection is closed instead if the pool is closed or already holds enough idle connections.
+   *
+   * @param pooled a connection obtained from {@link #acquire(AppleNotificationServer)}
+   */
+  void release(final PooledConnection pooled) {
+    final ServerConnections connections = servers.get(pooled.getKey());
+    pooled.touch();
+    if (closed || connections == null || pooled.getSocket().isClosed() || !connections.offer(pooled, maxIdleConnections)) {
+      discard(pooled);
+    } else {
+      logger.debug("Released pooled connection: " + pooled);
+    }
+    evictExpired();
+  }
+
+  /**
+   * Close a connection that must not be reused.
+   *
+   * @param pooled a connection obtained from {@link #acquire(AppleNotificationServer)}
+   */
+  void discard(final PooledConnection pooled) {
+    connectionsDiscarded.incrementAndGet();
+    pooled.close();
+  }
+
+  /**
+   * Close idle connections that exceeded the maximum idle time.
+   * This is done automatically whenever a connection is released, but can also be invoked periodically
+   * to free connections held by a pool that is not in use.
+   */
+  public void evictExpired() {
+    final long now = System.currentTimeMillis();
+    for (final ServerConnections connections : servers.values()) {
+      for (final PooledConnection pooled : connections.removeExpired(now)) {
+        logger.debug("Evicting idle pooled connection: " + pooled);
+        discard(pooled);
+      }
+    }
+  }
+
+  private boolean isExpired(final PooledConnection pooled, final long now) {
+    final long idleTime = maxIdleTime;
+    return idleTime > 0 && now - pooled.getLastUsed() > idleTime;
+  }
+
+  private ServerConnections getServerConnections(final ServerKey key) throws KeystoreException {
+    ServerConnections connections = servers.get(key);
+    if (connections == null) {
+      /* Loading the keystore once per server lets every connection share the same SSL context and TLS sessions */
+      final ServerConnections created = new ServerConnections(new ConnectionToNotificationServer(key.server));
+      connections = servers.putIfAbsent(key, created);
+      if (connections == null) {
+        connections = created;
+      }
+    }
+    return connections;
+  }
+
+  /**
+   * Close all idle connections and stop pooling.
+   * Connections currently borrowed are closed when they are released.
+   */
+  public void close() {
+    closed = true;
+    for (final ServerConnections connections : servers.values()) {
+      for (final PooledConnection pooled : connections.clear()) {
+        discard(pooled);
+      }
+    }
+    servers.clear();
+  }
+
+  /**
+   * Determine if this pool was closed.
+   *
+   * @return true if the pool no longer accepts connections
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Get the number of idle connections currently held by this pool.
+   *
+   * @return the number of idle connections for all servers
+   */
+  public int getIdleConnections() {
+    int idle = 0;
+    for (final ServerConnections connections : servers.values()) {
+      idle += connections.size();
+    }
+    return idle;
+  }
+
+  /**
+   * Get the number of connections opened by this pool since it was created.
+   *
+   * @return the number of connections opened
+   */
+  public long getConnectionsOpened() {
+    return connectionsOpened.get();
+  }
+
+  /**
+   * Get the number of times an idle connection was reused instead of opening a new one.
+   *
+   * @return the number of connections reused
+   */
+  public long getConnectionsReused() {
+    return connectionsReused.get();
+  }
+
+  /**
+   * Get the number of connections closed because they were unhealthy, expired, in excess or released after an error.
+   *
+   * @return the number of connections discarded
+   */
+  public long getConnectionsDiscarded() {
+    return connectionsDiscarded.get();
+  }
+
+  public int getMaxIdleConnections() {
+    return maxIdleConnections;
+  }
+
+  /**
+   * Set the maximum number of idle connections kept per server (default is 4).
+   *
+   * @param maxIdleConnections a number of connections
+   */
+  public void setMaxIdleConnections(final int maxIdleConnections) {
+    if (maxIdleConnections < 0) {
+      throw new IllegalArgumentException("maxIdleConnections must not be negative");
+    }
+    this.maxIdleConnections = maxIdleConnections;
+  }
+
+  public long getMaxIdleTime() {
+    return maxIdleTime;
+  }
+
+  /**
+   * Set the maximum number of milliseconds a connection can stay idle before being discarded (default is 10 minutes).
+   * Firewalls and NAT devices often silently drop idle connections, so it is wise to keep this value reasonable.
+   *
+   * @param maxIdleTime a number of milliseconds (0 for no limit)
+   */
+  public void setMaxIdleTime(final long maxIdleTime) {
+    if (maxIdleTime < 0) {
+      throw new IllegalArgumentException("maxIdleTime must not be negative");
+    }
+    this.maxIdleTime = maxIdleTime;
+  }
+
+  /**
+   * What connections are pooled by: a server, and the proxy it was set to use when the connection was borrowed.
+   * The proxy is copied so that the key never changes while it is in the map.
+   */
+  static final class ServerKey {
+    private final AppleNotificationServer server;
+    private final String proxyHost;
+    private final int proxyPort;
+    private final int hash;
+
+    private ServerKey(final AppleNotificationServer server) {
+      this.server = server;
+      this.proxyHost = server.getProxyHost();
+      this.proxyPort = server.getProxyPort();
+      this.hash = 31 * (31 * server.hashCode() + Objects.hashCode(proxyHost)) + proxyPort;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (!(o instanceof ServerKey)) return false;
+      final ServerKey that = (ServerKey) o;
+      return hash == that.hash && proxyPort == that.proxyPort && Objects.equals(proxyHost, that.proxyHost) && server.equals(that.server);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /**
+   * Idle connections to a single server, most recently used first.
+   */
+  private final class ServerConnections {
+    private final ConnectionToNotificationServer connection;
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+
+    private ServerConnections(final ConnectionToNotificationServer connection) {
+      this.connection = connection;
+    }
+
+    synchronized PooledConnection poll() {
+      return idle.pollFirst();
+    }
+
+    synchronized boolean offer(final PooledConnection pooled, final int max) {
+      if (idle.size() >= max) {
+        return false;
+      }
+      idle.addFirst(pooled);
+      return true;
+    }
+
+    synchronized List<PooledConnection> removeExpired(final long now) {
+      final List<PooledConnection> expired = new ArrayList<>();
+      for (final Iterator<PooledConnection> iterator = idle.iterator(); iterator.hasNext(); ) {
+        final PooledConnection pooled = iterator.next();
+        if (isExpired(pooled, now)) {
+          iterator.remove();
+          expired.add(pooled);
+        }
+      }
+      return expired;
+    }
+
+    synchronized List<PooledConnection> clear() {
+      final List<PooledConnection> all = new ArrayList<>(idle);
+      idle.clear();
+      return all;
+    }
+
+    synchronized int size() {
+      return idle.size();
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package javapns.notification;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>Decides when a healthy connection should be replaced by a fresh one</h1>
+ * <p>
+ * <p>Apple recommends keeping connections open for as long as possible, and every reconnection costs
+ * a TLS handshake and a wait for pending error-responses.  By default, a connection is therefore kept
+ * open indefinitely, and only recycled when writes become markedly slower than they used to be on the
+ * same connection (typically a sign of a congested route or an overloaded server).
+ * Connections are always replaced after an error-response, regardless of this policy, since Apple closes
+ * them after reporting an error.</p>
+ * <p>
+ * <p>Additional triggers can be enabled: a maximum connection age, a maximum number of bytes written,
+ * or a maximum number of notifications per connection (the behavior of older versions of this library).</p>
+ *
+ * @see PushNotificationManager#setRecyclingPolicy(ConnectionRecyclingPolicy)
+ */
+public class ConnectionRecyclingPolicy {
+  /* Default ratio between the current and the baseline write latency that triggers recycling */
+  private static final double DEFAULT_LATENCY_DEGRADATION = 8;
+
+  /* Default write latency below which a connection is never considered degraded, in milliseconds */
+  private static final long DEFAULT_MIN_DEGRADED_LATENCY = 50;
+
+  private volatile long maxAge = 0;
+  private volatile long maxBytes = 0;
+  private volatile int maxNotifications = 0;
+  private volatile double latencyDegradation = DEFAULT_LATENCY_DEGRADATION;
+  private volatile long minDegradedLatency = DEFAULT_MIN_DEGRADED_LATENCY;
+
+  /**
+   * Create a policy using default settings: connections are recycled only when write latency degrades.
+   */
+  public ConnectionRecyclingPolicy() {
+  }
+
+  /**
+   * Create a policy with the same settings as another one, so that it can be changed without affecting
+   * the managers sharing the original.
+   *
+   * @param policy a policy to copy
+   */
+  public ConnectionRecyclingPolicy(final ConnectionRecyclingPolicy policy) {
+    this.maxAge = policy.maxAge;
+    this.maxBytes = policy.maxBytes;
+    this.maxNotifications = policy.maxNotifications;
+    this.latencyDegradation = policy.latencyDegradation;
+    this.minDegradedLatency = policy.minDegradedLatency;
+  }
+
+  /**
+   * Create a policy recycling connections every given number of notifications, as older versions of this library did.
+   *
+   * @param maxNotifications a number of notifications
+   * @return a policy
+   */
+  public static ConnectionRecyclingPolicy everyNotifications(final int maxNotifications) {
+    final ConnectionRecyclingPolicy policy = new ConnectionRecyclingPolicy();
+    policy.setMaxNotifications(maxNotifications);
+    return policy;
+  }
+
+  /**
+   * Determine if the connection described by the given statistics should be recycled.
+   *
+   * @param statistics statistics of the current connection
+   * @return true if the connection should be replaced
+   */
+  boolean isRecyclingDue(final ConnectionStatistics statistics) {
+    if (maxNotifications > 0 && statistics.getNotifications() >= maxNotifications) {
+      return true;
+    }
+    if (maxBytes > 0 && statistics.getBytes() >= maxBytes) {
+      return true;
+    }
+    if (maxAge > 0 && statistics.getAge(System.currentTimeMillis()) >= maxAge) {
+      return true;
+    }
+    return isLatencyDegraded(statistics);
+  }
+
+  private boolean isLatencyDegraded(final ConnectionStatistics statistics) {
+    final double degradation = latencyDegradation;
+    final double baseline = statistics.getBaselineLatency();
+    if (degradation <= 0 || baseline <= 0) {
+      return false;
+    }
+    final double latency = statistics.getLatency();
+    return latency > baseline * degradation && latency > TimeUnit.MILLISECONDS.toNanos(minDegradedLatency);
+  }
+
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * Set the maximum age of a connection.
+   *
+   * @param maxAge a number of milliseconds (0 for no limit, the default)
+   */
+  public void setMaxAge(final long maxAge) {
+    this.maxAge = maxAge;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Set the maximum number of bytes written to a connection.
+   *
+   * @param maxBytes a number of bytes (0 for no limit, the default)
+   */
+  public void setMaxBytes(final long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  public int getMaxNotifications() {
+    return maxNotifications;
+  }
+
+  /**
+   * Set the maximum number of notifications written to a connection.
+   *
+   * @param maxNotifications a number of notifications (0 for no limit, the default)
+   */
+  public void setMaxNotifications(final int maxNotifications) {
+    this.maxNotifications = maxNotifications;
+  }
+
+  public double getLatencyDegradation() {
+    return latencyDegradation;
+  }
+
+  /**
+   * Set how many times slower than its best observed average the writes on a connection must become
+   * for the connection to be recycled.
+   *
+   * @param latencyDegradation a ratio (0 to disable this trigger, default is 8)
+   */
+  public void setLatencyDegradation(final double latencyDegradation) {
+    this.latencyDegradation = latencyDegradation;
+  }
+
+  public long getMinDegradedLatency() {
+    return minDegradedLatency;
+  }
+
+  /**
+   * Set a write latency below which a connection is never considered degraded,
+   * so that variations between very fast writes do not trigger recycling.
+   *
+   * @param minDegradedLatency a number of milliseconds (default is 50)
+   */
+  public void setMinDegradedLatency(final long minDegradedLatency) {
+    this.minDegradedLatency = minDegradedLatency;
+  }
+}
@@ -0,0 +1,320 @@
+package javapns.notification;
+
+import javapns.communication.ConnectionToAppleServer;
+import javapns.communication.ReloadableKeystore;
+import javapns.communication.exceptions.CommunicationException;
+import javapns.communication.exceptions.KeystoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLSocket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replaces the connection of a {@link PushNotificationManager} without interrupting the flow of notifications.
+ * <p>
+ * The replacement connection is opened and handshaked in the background while the current one keeps
+ * pushing.  Once swapped, the retired connection is read in the background for Apple's error-responses
+ * before being closed; the notifications that must be resent because of those responses are collected
+ * by the manager's own thread, which resends them over the new connection.  This class also decides when
+ * a connection opened with a reloadable keystore must migrate to the keystore's newer version.
+ * <p>
+ * Like the manager, instances of this class must only be used by a single thread.  The background threads
+ * only touch the connection being opened or drained, and the notifications pushed over a retired connection;
+ * both are handed back to the manager's thread through {@link #take()} and {@link #collectResends(boolean)}.
+ */
+final class ConnectionRotation {
+  private static final Logger logger = LoggerFactory.getLogger(ConnectionRotation.class);
+
+  private static final ExecutorService executor = Executors.newCachedThreadPool(new RotationThreadFactory());
+
+  private final NotificationSettlement settlement;
+  private final List<RetiredConnection> retiredConnections = new ArrayList<>();
+  private AppleNotificationServer replacementServer;
+  private Future<OpenConnection> replacement;
+
+  /* Generation of the reloadable keystore the current connection was opened with, and when it must migrate to a newer one */
+  private long keystoreGeneration;
+  private long migrationTime;
+
+  ConnectionRotation(final NotificationSettlement settlement) {
+    this.settlement = settlement;
+  }
+
+  /**
+   * Start opening a replacement connection in the background, unless one is already being opened to the same server.
+   *
+   * @param server the server to connect to
+   * @param opener the task opening and handshaking the connection
+   */
+  void prepare(final AppleNotificationServer server, final Callable<OpenConnection> opener) {
+    if (replacement != null) {
+      if (server.equals(replacementServer)) {
+        return;
+      }
+      cancel();
+    }
+    replacementServer = server;
+    replacement = executor.submit(opener);
+  }
+
+  /**
+   * Determine if a replacement connection is being opened (or is ready).
+   *
+   * @return true if a replacement was prepared
+   */
+  boolean isPreparing() {
+    return replacement != null;
+  }
+
+  /**
+   * Determine if a replacement connection is ready to be swapped in without waiting.
+   *
+   * @return true if the replacement is done opening (successfully or not)
+   */
+  boolean isPrepared() {
+    return replacement != null && replacement.isDone();
+  }
+
+  /**
+   * Take the replacement connection, waiting for its handshake to complete if needed.
+   *
+   * @return an open connection
+   * @throws CommunicationException thrown if the connection could not be opened
+   * @throws KeystoreException      thrown if there is a problem with your keystore
+   */
+  OpenConnection take() throws CommunicationException, KeystoreException {
+    final Future<OpenConnection> future = replacement;
+    replacement = null;
+    replacementServer = null;
+    try {
+      return future.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      close(future);
+      throw new CommunicationException("Interrupted while waiting for replacement connection", e);
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof CommunicationException) {
+        throw (CommunicationException) cause;
+      }
+      if (cause instanceof KeystoreException) {
+        throw (KeystoreException) cause;
+      }
+      throw new CommunicationException("Error creating connection with Apple server", cause instanceof Exception ? (Exception) cause : e);
+    }
+  }
+
+  /**
+   * Abandon the replacement connection, if any.  It will be closed as soon as it is open.
+   */
+  void cancel() {
+    if (replacement != null) {
+      close(replacement);
+      replacement = null;
+      replacementServer = null;
+    }
+  }
+
+  private static void close(final Future<OpenConnection> future) {
+    executor.execute(() -> {
+      try {
+        future.get().close();
+      } catch (final Exception e) {
+        // empty
+      }
+    });
+  }
+
+  /**
+   * Record that a connection was made current, so that its keystore migration can be scheduled.
+   *
+   * @param keystoreGeneration the generation of the reloadable keystore the connection was opened with (0 if not reloadable)
+   */
+  void installed(final long keystoreGeneration) {
+    this.keystoreGeneration = keystoreGeneration;
+    this.migrationTime = 0;
+  }
+
+  /**
+   * Determine if the current connection was opened with a keystore replaced since, and if its turn to migrate has come.
+   * Each connection migrates at a random time within the keystore's migration window, so that connections are not all replaced at once.
+   *
+   * @param reloadable the reloadable keystore of the current connection, if any
+   * @return true if the connection should be replaced
+   */
+  boolean isMigrationDue(final ReloadableKeystore reloadable) {
+    if (reloadable == null || reloadable.getGeneration() == keystoreGeneration) {
+      return false;
+    }
+    if (migrationTime == 0) {
+      final long window = reloadable.getMigrationWindow();
+      migrationTime = reloadable.getLoadTime() + (window > 0 ? ThreadLocalRandom.current().nextLong(window) : 0);
+    }
+    return System.currentTimeMillis() >= migrationTime;
+  }
+
+  /**
+   * Retire the current connection while a new connection takes over.
+   * Its pending error-responses are read in the background before it is closed, and the notifications
+   * they require to resend are collected later.  A retired connection is never given back to a pool,
+   * which would hand the same connection right back.
+   *
+   * @param connection    the connection to retire
+   * @param readResponses true if Apple may send error-responses on that connection
+   */
+  void retire(final OpenConnection connection, final boolean readResponses) {
+    if (readResponses && !settlement.isEmpty()) {
+      retire(connection, settlement.takePending());
+    } else {
+      connection.close();
+      settlement.settlePending();
+    }
+  }
+
+  /**
+   * Retire a connection: read its pending error-responses in the background, and then close it.
+   *
+   * @param connection    the connection to retire
+   * @param notifications the notifications pushed through that connection that may still be reported as failed
+   */
+  private void retire(final OpenConnection connection, final Map<Integer, PushedNotification> notifications) {
+    retiredConnections.add(new RetiredConnection(connection, notifications, executor.submit(() -> {
+      try {
+        return ResponsePacketReader.processResponses(connection.getSocket(), notifications, ResponsePacketReader.TIMEOUT);
+      } finally {
+        connection.close();
+      }
+    })));
+  }
+
+  /**
+   * Determine if retired connections may still report error-responses.
+   *
+   * @return true if some retired connections were not collected yet
+   */
+  boolean isRetiring() {
+    return !retiredConnections.isEmpty();
+  }
+
+  /**
+   * Collect the notifications that must be resent because retired connections received error-responses.
+   * If the thread is interrupted while waiting, the interrupt status is kept and the connections not drained yet
+   * are abandoned: their notifications that were not rejected may have been ignored by Apple, so they are resent.
+   *
+   * @param wait true to wait until all retired connections are drained, false to only consider those already drained
+   * @return notifications to resend over the current connection
+   */
+  List<PushedNotification> collectResends(final boolean wait) {
+    if (retiredConnections.isEmpty()) {
+      return new ArrayList<>(0);
+    }
+    final List<PushedNotification> resends = new ArrayList<>();
+    for (final Iterator<RetiredConnection> iterator = retiredConnections.iterator(); iterator.hasNext(); ) {
+      final RetiredConnection retired = iterator.next();
+      if (!wait && !retired.drain.isDone()) {
+        continue;
+      }
+      iterator.remove();
+      try {
+        retired.drain.get();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        retired.abandon();
+        resends.addAll(settlement.abandon(retired.notifications.values()));
+        continue;
+      } catch (final ExecutionException e) {
+        logger.debug("Could not read error-responses from retired connection", e);
+      }
+      resends.addAll(settlement.settle(retired.notifications.values()));
+    }
+    return resends;
+  }
+
+  /**
+   * An open and handshaked connection, possibly borrowed from a pool.
+   */
+  static final class OpenConnection {
+    private final ConnectionToAppleServer connection;
+    private final SSLSocket socket;
+    private final PooledConnection pooled;
+
+    OpenConnection(final ConnectionToAppleServer connection, final SSLSocket socket, final PooledConnection pooled) {
+      this.connection = connection;
+      this.socket = socket;
+      this.pooled = pooled;
+    }
+
+    ConnectionToAppleServer getConnection() {
+      return connection;
+    }
+
+    SSLSocket getSocket() {
+      return socket;
+    }
+
+    PooledConnection getPooled() {
+      return pooled;
+    }
+
+    /**
+     * Close the connection, without giving it back to its pool.
+     */
+    void close() {
+      if (pooled != null) {
+        pooled.getPool().discard(pooled);
+        return;
+      }
+      try {
+        socket.close();
+      } catch (final Exception e) {
+        /* Do not complain if connection is already closed... */
+      }
+    }
+  }
+
+  private static final class RetiredConnection {
+    private final OpenConnection connection;
+    private final Map<Integer, PushedNotification> notifications;
+    private final Future<Integer> drain;
+
+    private RetiredConnection(final OpenConnection connection, final Map<Integer, PushedNotification> notifications, final Future<Integer> drain) {
+      this.connection = connection;
+      this.notifications = notifications;
+      this.drain = drain;
+    }
+
+    /**
+     * Stop reading error-responses.  Closing the socket ends the read in progress, after which the drain closes the connection as usual.
+     */
+    private void abandon() {
+      drain.cancel(true);
+      try {
+        connection.getSocket().close();
+      } catch (final Exception e) {
+        /* Do not complain if connection is already closed... */
+      }
+    }
+  }
+
+  private static final class RotationThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(final Runnable runnable) {
+      final Thread thread = new Thread(runnable, "JavaPNS connection rotation #" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
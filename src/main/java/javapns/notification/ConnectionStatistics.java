@@ -0,0 +1,86 @@
+package javapns.notification;
+
+/**
+ * Usage statistics of the connection currently held by a {@link PushNotificationManager},
+ * used to decide when the connection should be recycled.
+ *
+ * @see ConnectionRecyclingPolicy
+ */
+final class ConnectionStatistics {
+  /* Weight of the latest write in the moving average of write latencies */
+  private static final double LATENCY_SMOOTHING = 0.1;
+
+  /* Number of writes needed before the moving average is trusted as a baseline */
+  static final int LATENCY_WARMUP = 32;
+
+  private long established;
+  private int notifications;
+  private long bytes;
+  private double latency;
+  private double baselineLatency;
+
+  /**
+   * Start collecting statistics for a new connection.
+   *
+   * @param established the time at which the connection was established, in milliseconds
+   */
+  void reset(final long established) {
+    this.established = established;
+    this.notifications = 0;
+    this.bytes = 0;
+    this.latency = 0;
+    this.baselineLatency = 0;
+  }
+
+  /**
+   * Record a notification written to the connection.
+   *
+   * @param length  the number of bytes written
+   * @param elapsed the number of nanoseconds it took to write and flush them
+   */
+  void recordWrite(final int length, final long elapsed) {
+    notifications++;
+    bytes += length;
+    latency = notifications == 1 ? elapsed : latency + LATENCY_SMOOTHING * (elapsed - latency);
+    /* The baseline is the best average observed once warmed up, so a degradation stands out against it */
+    if (notifications >= LATENCY_WARMUP && (baselineLatency == 0 || latency < baselineLatency)) {
+      baselineLatency = latency;
+    }
+  }
+
+  /**
+   * Get the age of the connection.
+   *
+   * @param now the current time in milliseconds
+   * @return a number of milliseconds
+   */
+  long getAge(final long now) {
+    return now - established;
+  }
+
+  int getNotifications() {
+    return notifications;
+  }
+
+  long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Get the moving average of write latencies.
+   *
+   * @return a number of nanoseconds
+   */
+  double getLatency() {
+    return latency;
+  }
+
+  /**
+   * Get the lowest moving average of write latencies observed after warm-up.
+   *
+   * @return a number of nanoseconds, or 0 if not enough writes were recorded yet
+   */
+  double getBaselineLatency() {
+    return baselineLatency;
+  }
+}
@@ -0,0 +1,368 @@
+package javapns.notification;
+
+import javapns.feedback.FeedbackListener;
+import javapns.feedback.FeedbackStreamParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <h1>Remembers device tokens known to be invalid, so that no notification is pushed to them again</h1>
+ * <p>
+ * <p>Pushing to an invalid token makes Apple report an error and close the connection, and every notification
+ * pushed after it must then be resent over a new connection.  Once assigned to a {@link PushNotificationManager},
+ * this filter learns every token that Apple rejects with status 8 (invalid token), and the manager skips
+ * notifications to known tokens before they are even encoded: such notifications fail with a
+ * {@link javapns.notification.exceptions.InvalidTokenSkippedException}.  The filter is also a {@link FeedbackListener},
+ * so it can learn the tokens reported by the Feedback Service, for example through a {@link javapns.feedback.FeedbackPoller}.</p>
+ * <p>
+ * <p>Lookups first consult a Bloom filter, so the common case of a valid token costs a few memory reads and no locking.
+ * Possible matches are confirmed against an exact set, so valid tokens are never skipped.
+ * When a file is provided, tokens are appended to it as they are learned, 33 bytes each, and loaded back when the filter is created;
+ * a record cut short by a crash is discarded at that point.</p>
+ * <p>
+ * <p>A device on which your app is reinstalled may register again with a token reported earlier:
+ * remove such tokens from the filter when devices register.  This class is thread-safe.</p>
+ *
+ * @see PushNotificationManager#setInvalidTokenFilter(InvalidTokenFilter)
+ */
+public class InvalidTokenFilter implements FeedbackListener, AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(InvalidTokenFilter.class);
+
+  private static final int MAGIC = 0x4A504E49;
+  private static final int VERSION = 1;
+
+  private static final byte ADDED = 1;
+  private static final byte REMOVED = 0;
+
+  private static final int TOKEN_BYTES = 32;
+
+  /* Magic number and version */
+  private static final int HEADER_BYTES = 8;
+
+  /* Operation and token */
+  private static final int RECORD_BYTES = 1 + TOKEN_BYTES;
+
+  /* Default number of tokens the Bloom filter is sized for */
+  private static final int DEFAULT_EXPECTED_TOKENS = 1000000;
+
+  /* Bits per token and hash functions, for a false positive rate of about 1% */
+  private static final int BITS_PER_TOKEN = 10;
+  private static final int HASHES = 7;
+
+  private final Set<String> tokens = ConcurrentHashMap.newKeySet();
+  private final AtomicLongArray bits;
+  private final long bitCount;
+  private final File file;
+  private DataOutputStream out;
+  private int records;
+
+  /**
+   * Create a filter kept in memory only.
+   */
+  public InvalidTokenFilter() {
+    this(DEFAULT_EXPECTED_TOKENS);
+  }
+
+  /**
+   * Create a filter kept in memory only.
+   *
+   * @param expectedTokens the number of invalid tokens expected, used to size the Bloom filter
+   */
+  public InvalidTokenFilter(final int expectedTokens) {
+    this.bits = allocateBits(expectedTokens);
+    this.bitCount = (long) bits.length() * 64;
+    this.file = null;
+  }
+
+  /**
+   * Create a filter persisted in a file.  Tokens already in the file are loaded.
+   *
+   * @param file the file to store tokens in, created if needed
+   * @throws IOException thrown if the file could not be read or written
+   */
+  public InvalidTokenFilter(final File file) throws IOException {
+    this(file, DEFAULT_EXPECTED_TOKENS);
+  }
+
+  /**
+   * Create a filter persisted in a file.  Tokens already in the file are loaded.
+   *
+   * @param file           the file to store tokens in, created if needed
+   * @param expectedTokens the number of invalid tokens expected, used to size the Bloom filter
+   * @throws IOException thrown if the file could not be read or written
+   */
+  public InvalidTokenFilter(final File file, final int expectedTokens) throws IOException {
+    this.bits = allocateBits(expectedTokens);
+    this.bitCount = (long) bits.length() * 64;
+    this.file = file;
+    /* A header cut short by a crash is written again */
+    final long length = file.length() >= HEADER_BYTES ? load() : 0;
+    if (length < file.length()) {
+      logger.warn("Discarding " + (file.length() - length) + " bytes of incomplete records at the end of " + file);
+      try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+        truncated.setLength(length);
+      }
+    }
+    if (records > 2 * tokens.size() + 1024) {
+      compact();
+    } else {
+      open(length == 0);
+    }
+  }
+
+  /**
+   * Determine if a token is known to be invalid.
+   *
+   * @param token a device token
+   * @return true if notifications to that token should not be pushed
+   */
+  public boolean contains(final String token) {
+    if (token == null || !mightContain(token)) {
+      return false;
+    }
+    return tokens.contains(normalize(token));
+  }
+
+  /**
+   * Remember that a token is invalid.
+   *
+   * @param token a device token (64 hexadecimal characters)
+   * @return true if the token was not known yet
+   */
+  public boolean add(final String token) {
+    if (!isValidFormat(token)) {
+      return false;
+    }
+    final String normalized = normalize(token);
+    if (!tokens.add(normalized)) {
+      return false;
+    }
+    setBits(normalized);
+    write(ADDED, normalized);
+    logger.debug("Device token " + normalized + " is now known to be invalid");
+    return true;
+  }
+
+  /**
+   * Forget a token, for example because a device registered again with it.
+   *
+   * @param token a device token
+   * @return true if the token was known
+   */
+  public boolean remove(final String token) {
+    if (token == null) {
+      return false;
+    }
+    final String normalized = normalize(token);
+    if (!tokens.remove(normalized)) {
+      return false;
+    }
+    /* The Bloom filter keeps the token's bits, but the exact set no longer confirms it */
+    write(REMOVED, normalized);
+    return true;
+  }
+
+  /**
+   * Remember a token reported by the Feedback Service.
+   */
+  public void eventInactiveDevice(final long timestamp, final byte[] token, final int tokenLength) {
+    add(FeedbackStreamParser.toHex(token, tokenLength));
+  }
+
+  /**
+   * Get the number of tokens known to be invalid.
+   *
+   * @return a number of tokens
+   */
+  public int size() {
+    return tokens.size();
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Rewrite the file so that it only holds the tokens currently known, dropping those removed since.
+   *
+   * @throws IOException thrown if the file could not be written
+   */
+  public synchronized void compact() throws IOException {
+    if (file == null) {
+      return;
+    }
+    if (out != null) {
+      out.close();
+    }
+    final File temporary = new File(file.getPath() + ".tmp");
+    try (final DataOutputStream rewrite = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+      rewrite.writeInt(MAGIC);
+      rewrite.writeInt(VERSION);
+      for (final String token : tokens) {
+        writeRecord(rewrite, ADDED, token);
+      }
+    }
+    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    records = tokens.size();
+    open(false);
+  }
+
+  /**
+   * Close the file.  The filter can still be consulted, but tokens learned afterwards are not persisted.
+   *
+   * @throws IOException thrown if the file could not be written
+   */
+  public synchronized void close() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+  }
+
+  private static AtomicLongArray allocateBits(final int expectedTokens) {
+    final long words = ((long) Math.max(expectedTokens, 1024) * BITS_PER_TOKEN + 63) / 64;
+    return new AtomicLongArray((int) Math.min(words, Integer.MAX_VALUE - 8));
+  }
+
+  private boolean mightContain(final String token) {
+    final long hash = hash(token);
+    final long h1 = hash;
+    final long h2 = (hash >>> 32) | 1;
+    for (int i = 0; i < HASHES; i++) {
+      final long bit = Math.floorMod(h1 + i * h2, bitCount);
+      if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void setBits(final String token) {
+    final long hash = hash(token);
+    final long h1 = hash;
+    final long h2 = (hash >>> 32) | 1;
+    for (int i = 0; i < HASHES; i++) {
+      final long bit = Math.floorMod(h1 + i * h2, bitCount);
+      final int word = (int) (bit >>> 6);
+      final long mask = 1L << bit;
+      long current;
+      while (((current = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+        // retry
+      }
+    }
+  }
+
+  /**
+   * Hash a token without allocating, ignoring the case of hexadecimal digits.
+   */
+  private static long hash(final String token) {
+    long hash = 0x9E3779B97F4A7C15L;
+    for (int i = 0; i < token.length(); i++) {
+      hash = (hash ^ Character.toLowerCase(token.charAt(i))) * 0x100000001B3L;
+    }
+    /* Final mix, so that all bits depend on all characters */
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static String normalize(final String token) {
+    return token.toLowerCase(Locale.ENGLISH);
+  }
+
+  private static boolean isValidFormat(final String token) {
+    if (token == null || token.length() != TOKEN_BYTES * 2) {
+      return false;
+    }
+    for (int i = 0; i < token.length(); i++) {
+      if (Character.digit(token.charAt(i), 16) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Load the tokens in the file.
+   *
+   * @return the length of the file up to the end of its last complete record
+   */
+  private long load() throws IOException {
+    try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not an invalid token file: " + file);
+      }
+      final byte[] token = new byte[TOKEN_BYTES];
+      while (true) {
+        final int operation = in.read();
+        if (operation < 0) {
+          break;
+        }
+        try {
+          in.readFully(token);
+        } catch (final EOFException e) {
+          /* Last record was cut short */
+          break;
+        }
+        final String hex = FeedbackStreamParser.toHex(token, TOKEN_BYTES);
+        if (operation == ADDED) {
+          tokens.add(hex);
+          setBits(hex);
+        } else {
+          tokens.remove(hex);
+        }
+        records++;
+      }
+    }
+    return HEADER_BYTES + (long) records * RECORD_BYTES;
+  }
+
+  private synchronized void open(final boolean create) throws IOException {
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, !create)));
+    if (create) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.flush();
+    }
+  }
+
+  private synchronized void write(final byte operation, final String token) {
+    if (out == null) {
+      return;
+    }
+    try {
+      writeRecord(out, operation, token);
+      out.flush();
+      records++;
+    } catch (final IOException e) {
+      logger.error("Could not write invalid token to " + file, e);
+    }
+  }
+
+  private static void writeRecord(final DataOutputStream out, final byte operation, final String token) throws IOException {
+    out.writeByte(operation);
+    for (int i = 0; i < TOKEN_BYTES; i++) {
+      out.writeByte(Character.digit(token.charAt(i * 2), 16) << 4 | Character.digit(token.charAt(i * 2 + 1), 16));
+    }
+  }
+}
@@ -0,0 +1,254 @@
+package javapns.notification;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <h1>Delivers the outcome of each notification to a listener, without ever blocking the threads pushing them</h1>
+ * <p>
+ * <p>Each {@link PushNotificationManager} attached to a dispatcher gets its own channel, a preallocated ring buffer
+ * written only by that manager's thread.  Publishing an event never locks, never allocates and never waits: if the
+ * listener falls so far behind that a channel is full, the event is dropped and counted (see {@link #getDropped()}).
+ * A single consumer thread drains all channels and invokes the listener, delivering the events of each manager in the
+ * order they were published.</p>
+ * <p>
+ * <p>Events carry the live notification objects, not snapshots, so that publishing does not copy anything.  By the time
+ * an event is delivered, its notification may have changed (for example, a retried notification may be transmitted
+ * again), and the manager's thread may still be updating it: listeners must not modify notifications, and should
+ * rely on the outcome of the event rather than on the current state of its notification.</p>
+ * <p>
+ * <p>A dispatcher can be shared by many managers, for example by all threads of a {@link javapns.notification.transmission.NotificationThreads}
+ * campaign.  Closing the dispatcher delivers the events already published and stops the consumer thread.</p>
+ * <pre>
+ * try (NotificationOutcomeDispatcher dispatcher = new NotificationOutcomeDispatcher(listener)) {
+ *   threads.setOutcomeDispatcher(dispatcher);
+ *   threads.start();
+ *   threads.waitForAllThreads();
+ * }
+ * </pre>
+ */
+public class NotificationOutcomeDispatcher implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(NotificationOutcomeDispatcher.class);
+
+  /* Default number of events each channel can hold before events are dropped */
+  private static final int DEFAULT_CAPACITY = 4096;
+
+  /* Maximum time the consumer thread sleeps when idle, in case a wake-up is missed */
+  private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private static final NotificationOutcomeListener.Outcome[] OUTCOMES = NotificationOutcomeListener.Outcome.values();
+
+  private final NotificationOutcomeListener listener;
+  private final int capacity;
+  private final List<Channel> channels = new CopyOnWriteArrayList<>();
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread consumer;
+  private volatile boolean waiting = false;
+  private volatile boolean closed = false;
+
+  /**
+   * Create a dispatcher delivering events to the given listener.
+   *
+   * @param listener the listener to notify
+   */
+  public NotificationOutcomeDispatcher(final NotificationOutcomeListener listener) {
+    this(listener, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Create a dispatcher delivering events to the given listener.
+   *
+   * @param listener the listener to notify
+   * @param capacity the number of events each channel can hold before events are dropped (rounded up to a power of two)
+   */
+  public NotificationOutcomeDispatcher(final NotificationOutcomeListener listener, final int capacity) {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+    }
+    int rounded = 1;
+    while (rounded < capacity) {
+      rounded <<= 1;
+    }
+    this.listener = listener;
+    this.capacity = rounded;
+    this.consumer = new Thread(this::consume, "JavaPNS outcome dispatcher");
+    this.consumer.setDaemon(true);
+    this.consumer.start();
+  }
+
+  /**
+   * Open a channel for a single producer thread.  The producer must {@link Channel#release() release} it when done.
+   *
+   * @return a new channel
+   */
+  Channel openChannel() {
+    final Channel channel = new Channel(capacity);
+    channels.add(channel);
+    return channel;
+  }
+
+  /**
+   * Get the number of channels not discarded yet.
+   *
+   * @return a number of channels
+   */
+  int getChannelCount() {
+    return channels.size();
+  }
+
+  /**
+   * Get the number of events dropped because the listener could not keep up.
+   *
+   * @return a number of events
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Deliver the events already published, and stop delivering events.
+   * Events published after this method is invoked are dropped.
+   */
+  public void close() {
+    closed = true;
+    LockSupport.unpark(consumer);
+    if (Thread.currentThread() == consumer) {
+      return;
+    }
+    try {
+      consumer.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void wakeUp() {
+    if (waiting) {
+      waiting = false;
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  private void consume() {
+    while (true) {
+      final boolean stopping = closed;
+      int delivered = 0;
+      for (final Channel channel : channels) {
+        /* Released channels receive no more events, so they can be dropped once drained */
+        final boolean released = channel.released;
+        delivered += channel.drain();
+        if (released && channel.isEmpty()) {
+          channels.remove(channel);
+        }
+      }
+      if (delivered > 0) {
+        continue;
+      }
+      if (stopping) {
+        return;
+      }
+      waiting = true;
+      /* Check again after announcing the wait, so that an event published in between is not left waiting */
+      for (final Channel channel : channels) {
+        if (!channel.isEmpty()) {
+          waiting = false;
+          break;
+        }
+      }
+      if (waiting) {
+        LockSupport.parkNanos(this, IDLE_PARK);
+        waiting = false;
+      }
+    }
+  }
+
+  /**
+   * A ring buffer written by a single producer thread and read by the dispatcher's consumer thread.
+   */
+  final class Channel {
+    private final int mask;
+    private final byte[] outcomes;
+    private final PushedNotification[] notifications;
+
+    /* Next sequence to write, only advanced by the producer */
+    private final AtomicLong tail = new AtomicLong();
+
+    /* Next sequence to read, only advanced by the consumer */
+    private final AtomicLong head = new AtomicLong();
+
+    /* Producer's last known value of head, to avoid reading it for every event */
+    private long headCache;
+
+    /* Set by the producer once it publishes no more events */
+    private volatile boolean released;
+
+    private Channel(final int capacity) {
+      this.mask = capacity - 1;
+      this.outcomes = new byte[capacity];
+      this.notifications = new PushedNotification[capacity];
+    }
+
+    /**
+     * Publish an event.  Never blocks: the event is dropped if the channel is full.
+     *
+     * @param outcome      what happened to the notification
+     * @param notification the notification
+     */
+    void publish(final NotificationOutcomeListener.Outcome outcome, final PushedNotification notification) {
+      if (closed) {
+        dropped.incrementAndGet();
+        return;
+      }
+      final long sequence = tail.get();
+      if (sequence - headCache > mask) {
+        headCache = head.get();
+        if (sequence - headCache > mask) {
+          dropped.incrementAndGet();
+          return;
+        }
+      }
+      final int slot = (int) sequence & mask;
+      outcomes[slot] = (byte) outcome.ordinal();
+      notifications[slot] = notification;
+      /* The ordered write publishes the slot to the consumer */
+      tail.lazySet(sequence + 1);
+      wakeUp();
+    }
+
+    /**
+     * Stop publishing through this channel.  Events already published are still delivered, after which the channel is discarded.
+     */
+    void release() {
+      released = true;
+      LockSupport.unpark(consumer);
+    }
+
+    private boolean isEmpty() {
+      return head.get() == tail.get();
+    }
+
+    private int drain() {
+      final long end = tail.get();
+      long sequence = head.get();
+      final int count = (int) (end - sequence);
+      for (; sequence < end; sequence++) {
+        final int slot = (int) sequence & mask;
+        final PushedNotification notification = notifications[slot];
+        notifications[slot] = null;
+        try {
+          listener.eventOutcome(OUTCOMES[outcomes[slot]], notification);
+        } catch (final RuntimeException e) {
+          logger.warn("Outcome listener failed", e);
+        }
+        head.lazySet(sequence + 1);
+      }
+      return count;
+    }
+  }
+}
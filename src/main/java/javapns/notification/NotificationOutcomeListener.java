@@ -0,0 +1,50 @@
+package javapns.notification;
+
+/**
+ * <h1>An event listener for monitoring the outcome of each notification pushed</h1>
+ * <p>
+ * <p>Events are delivered asynchronously by a {@link NotificationOutcomeDispatcher}, on its own thread,
+ * so listeners never slow down the threads pushing notifications.  For a given notification, events
+ * are delivered in the order they occurred.</p>
+ * <p>
+ * <p>The notification passed to the listener is the live object used by the manager, which may have
+ * moved on by the time the event is delivered (for example, a notification reported as retried may
+ * already be transmitted again).  The outcome itself reflects the state of the notification when the event occurred.</p>
+ *
+ * @see PushNotificationManager#setOutcomeDispatcher(NotificationOutcomeDispatcher)
+ */
+public interface NotificationOutcomeListener {
+  /**
+   * Invoked once for every event concerning a notification.
+   *
+   * @param outcome      what happened to the notification
+   * @param notification the notification, a live object that may have changed since the event occurred and must not be modified
+   */
+  void eventOutcome(Outcome outcome, PushedNotification notification);
+
+  /**
+   * The events that can occur to a notification.
+   */
+  enum Outcome {
+    /**
+     * The notification was written to the connection.
+     */
+    SENT,
+    /**
+     * Apple had the opportunity to report an error about the notification and did not: it was accepted.
+     */
+    CONFIRMED,
+    /**
+     * Apple reported an error about the notification (see {@link PushedNotification#getResponse()} for the status code).
+     */
+    REJECTED,
+    /**
+     * Apple ignored the notification because an earlier one was rejected; it is about to be sent again.
+     */
+    RETRIED,
+    /**
+     * The notification could not be transmitted (see {@link PushedNotification#getException()}).
+     */
+    FAILED
+  }
+}
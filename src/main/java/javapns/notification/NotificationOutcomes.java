@@ -0,0 +1,95 @@
+package javapns.notification;
+
+/**
+ * Reports what happened to the notifications pushed by a {@link PushNotificationManager}:
+ * outcomes are published to a channel of the manager's dispatcher, if any, and tokens that Apple
+ * rejects as invalid are added to the manager's invalid token filter, if any.
+ * <p>
+ * Like the manager, instances of this class must only be used by a single thread.
+ */
+final class NotificationOutcomes {
+  /* Status code of error-responses reporting an invalid token */
+  private static final int INVALID_TOKEN_STATUS = 8;
+
+  /* Tokens to skip, learned from error-responses */
+  private InvalidTokenFilter invalidTokenFilter;
+
+  /* Dispatcher to which the outcome of each notification is reported, if any */
+  private NotificationOutcomeDispatcher dispatcher;
+
+  /* Channel of that dispatcher, opened when the first outcome is reported */
+  private NotificationOutcomeDispatcher.Channel channel;
+
+  NotificationOutcomes(final InvalidTokenFilter invalidTokenFilter) {
+    this.invalidTokenFilter = invalidTokenFilter;
+  }
+
+  InvalidTokenFilter getInvalidTokenFilter() {
+    return invalidTokenFilter;
+  }
+
+  void setInvalidTokenFilter(final InvalidTokenFilter invalidTokenFilter) {
+    this.invalidTokenFilter = invalidTokenFilter;
+  }
+
+  /**
+   * Start reporting outcomes to a dispatcher, or stop reporting them.
+   *
+   * @param dispatcher a dispatcher, or null to stop reporting outcomes
+   */
+  void setDispatcher(final NotificationOutcomeDispatcher dispatcher) {
+    releaseChannel();
+    this.dispatcher = dispatcher;
+  }
+
+  /**
+   * Give the dispatcher's channel back once the outcomes reported so far are delivered, because the connection stopped.
+   * A new channel is opened if more outcomes are reported later.
+   */
+  void releaseChannel() {
+    if (channel != null) {
+      channel.release();
+      channel = null;
+    }
+  }
+
+  /**
+   * Determine if settling notifications has any effect, so that it can be skipped otherwise.
+   *
+   * @return true if outcomes are reported or invalid tokens are collected
+   */
+  boolean isReporting() {
+    return dispatcher != null || invalidTokenFilter != null;
+  }
+
+  /**
+   * Determine if notifications to a token should be skipped, because Apple already rejected it.
+   *
+   * @param token a device token
+   * @return true if the token is known to be invalid
+   */
+  boolean isInvalidToken(final String token) {
+    return invalidTokenFilter != null && invalidTokenFilter.contains(token);
+  }
+
+  /**
+   * Report a notification that Apple rejected with an error-response.
+   *
+   * @param notification a notification linked to its error-response
+   */
+  void rejected(final PushedNotification notification) {
+    if (invalidTokenFilter != null && notification.getResponse().getStatus() == INVALID_TOKEN_STATUS) {
+      invalidTokenFilter.add(notification.getDevice().getToken());
+    }
+    report(NotificationOutcomeListener.Outcome.REJECTED, notification);
+  }
+
+  void report(final NotificationOutcomeListener.Outcome outcome, final PushedNotification notification) {
+    if (dispatcher != null) {
+      if (channel == null) {
+        channel = dispatcher.openChannel();
+      }
+      channel.publish(outcome, notification);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package javapns.notification;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the notifications pushed by a {@link PushNotificationManager} over its current connection
+ * until they are final, that is until Apple had the opportunity to reject them with an error-response.
+ * <p>
+ * Settling notifications reports their outcome, and finds the ones that Apple ignored because they were
+ * pushed after a rejected one, so that the manager can resend them.
+ * <p>
+ * Like the manager, instances of this class must only be used by a single thread, except for
+ * {@link #getSettledBefore()} which can be read from any thread.
+ */
+final class NotificationSettlement {
+  private final NotificationOutcomes outcomes;
+
+  /* Notifications pushed over the current connection that may still be reported as failed, by identifier */
+  private final LinkedHashMap<Integer, PushedNotification> pending = new LinkedHashMap<>();
+
+  /* Notifications transmitted before this time are final: any error-response about them was processed */
+  private volatile long settledBefore = 0;
+
+  NotificationSettlement(final NotificationOutcomes outcomes) {
+    this.outcomes = outcomes;
+  }
+
+  /**
+   * Find the notifications that Apple ignored because they were pushed after one that it rejected.
+   * Notifications that were never transmitted, such as those with an invalid token or payload, do not
+   * affect the notifications that follow them, and are not resent.
+   *
+   * @param notifications notifications pushed over a single connection, in order
+   * @return the transmitted notifications following the first rejected one
+   */
+  static List<PushedNotification> findNotificationsToResend(final Collection<PushedNotification> notifications) {
+    final List<PushedNotification> notificationsToResend = new ArrayList<>();
+    boolean foundFirstFail = false;
+    for (final PushedNotification notification : notifications) {
+      if (foundFirstFail) {
+        if (notification.isTransmissionCompleted()) {
+          notificationsToResend.add(notification);
+        }
+      } else if (isRejected(notification)) {
+        foundFirstFail = true;
+      }
+    }
+    return notificationsToResend;
+  }
+
+  /**
+   * Determine if Apple rejected a notification with an error-response, after which it ignores the rest of the connection.
+   */
+  private static boolean isRejected(final PushedNotification notification) {
+    final ResponsePacket response = notification.getResponse();
+    return response != null && response.isValidErrorMessage();
+  }
+
+  /**
+   * Start tracking a notification about to be pushed over the current connection.
+   *
+   * @param notification a notification with an identifier
+   */
+  void record(final PushedNotification notification) {
+    if (!pending.containsKey(notification.getIdentifier())) {
+      pending.put(notification.getIdentifier(), notification);
+    }
+  }
+
+  /**
+   * Get the notifications pushed over the current connection that are not final yet, so that error-responses can be linked to them.
+   *
+   * @return notifications by identifier, in the order they were pushed
+   */
+  Map<Integer, PushedNotification> getPending() {
+    return pending;
+  }
+
+  boolean isEmpty() {
+    return pending.isEmpty();
+  }
+
+  /**
+   * Stop tracking the notifications pushed over the current connection, because that connection is being retired.
+   *
+   * @return the notifications that were pending, by identifier
+   */
+  Map<Integer, PushedNotification> takePending() {
+    final Map<Integer, PushedNotification> taken = new LinkedHashMap<>(pending);
+    pending.clear();
+    return taken;
+  }
+
+  /**
+   * Settle the notifications pushed over the current connection, whose error-responses were all processed.
+   *
+   * @return the notifications which must be resent
+   */
+  List<PushedNotification> settlePending() {
+    final List<PushedNotification> notificationsToResend = settle(pending.values());
+    pending.clear();
+    return notificationsToResend;
+  }
+
+  /**
+   * Settle every notification pushed so far: all error-responses were processed, on the current connection as well as on retired ones.
+   */
+  void settleAll() {
+    settlePending();
+    settledBefore = System.currentTimeMillis();
+  }
+
+  /**
+   * Settle the notifications transmitted before the given time, since Apple reports errors right away.
+   *
+   * @param settled       a time in milliseconds
+   * @param advanceSettled true if no retired connection may still report errors about notifications transmitted before that time
+   */
+  void settleTransmittedBefore(final long settled, final boolean advanceSettled) {
+    final Iterator<PushedNotification> iterator = pending.values().iterator();
+    while (iterator.hasNext()) {
+      final PushedNotification notification = iterator.next();
+      if (notification.getTransmissionTime() >= settled) {
+        break;
+      }
+      if (notification.isSuccessful()) {
+        outcomes.report(NotificationOutcomeListener.Outcome.CONFIRMED, notification);
+      }
+      iterator.remove();
+    }
+    if (advanceSettled) {
+      settledBefore = Math.max(settledBefore, settled);
+    }
+  }
+
+  /**
+   * Settle notifications pushed over a single connection whose error-responses were all processed:
+   * report the ones accepted or rejected by Apple, and find the ones that Apple ignored.
+   * Notifications that were never transmitted were already reported as failed, and are skipped.
+   *
+   * @param notifications notifications pushed over a single connection, in order
+   * @return the notifications following the first failed one, which must be resent
+   */
+  List<PushedNotification> settle(final Collection<PushedNotification> notifications) {
+    final List<PushedNotification> notificationsToResend = findNotificationsToResend(notifications);
+    if (outcomes.isReporting()) {
+      for (final PushedNotification notification : notifications) {
+        if (isRejected(notification)) {
+          outcomes.rejected(notification);
+          break;
+        }
+        if (notification.isSuccessful()) {
+          outcomes.report(NotificationOutcomeListener.Outcome.CONFIRMED, notification);
+        }
+      }
+    }
+    return notificationsToResend;
+  }
+
+  /**
+   * Give up on notifications pushed over a single connection whose error-responses could not all be read:
+   * report the ones rejected so far, and find every other transmitted one, which Apple may have ignored.
+   *
+   * @param notifications notifications pushed over a single connection, in order
+   * @return the transmitted notifications that were not rejected, which must be resent
+   */
+  List<PushedNotification> abandon(final Collection<PushedNotification> notifications) {
+    final List<PushedNotification> notificationsToResend = new ArrayList<>();
+    for (final PushedNotification notification : notifications) {
+      if (isRejected(notification)) {
+        outcomes.rejected(notification);
+      } else if (notification.isTransmissionCompleted()) {
+        notificationsToResend.add(notification);
+      }
+    }
+    return notificationsToResend;
+  }
+
+  /**
+   * Get a time before which every notification pushed is final.
+   *
+   * @return a time in milliseconds (0 if no notification is known to be final yet)
+   */
+  long getSettledBefore() {
+    return settledBefore;
+  }
+}
@@ -0,0 +1,246 @@
+package javapns.notification;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * <h1>Reads back, one at a time, the outcomes written by an {@link OutcomeFileWriter}</h1>
+ * <p>
+ * <p>Records are streamed from the file, so files far larger than the heap can be read.
+ * A record cut short at the end of the file (because the writer was interrupted) is ignored.</p>
+ * <pre>
+ * try (OutcomeFileReader reader = new OutcomeFileReader(new File("campaign.results"))) {
+ *   for (OutcomeFileReader.Record record : reader) {
+ *     if (record.getOutcome() == NotificationOutcomeListener.Outcome.REJECTED) {
+ *       ...
+ *     }
+ *   }
+ * }
+ * </pre>
+ */
+public class OutcomeFileReader implements Iterable<OutcomeFileReader.Record>, AutoCloseable {
+  private static final NotificationOutcomeListener.Outcome[] OUTCOMES = NotificationOutcomeListener.Outcome.values();
+
+  private final CountingInputStream counter;
+  private final DataInputStream in;
+  private Record next;
+  private boolean ended;
+
+  /* Number of bytes up to the end of the last complete record read */
+  private long position;
+
+  /**
+   * Open a file written by an {@link OutcomeFileWriter}.
+   *
+   * @param file the file to read
+   * @throws IOException thrown if the file could not be opened or was not written by an {@link OutcomeFileWriter}
+   */
+  public OutcomeFileReader(final File file) throws IOException {
+    this.counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+    this.in = new DataInputStream(counter);
+    try {
+      if (in.readInt() != OutcomeFileWriter.MAGIC || in.readInt() != OutcomeFileWriter.VERSION) {
+        throw new IOException("Not an outcome file: " + file);
+      }
+      position = counter.count;
+    } catch (final IOException e) {
+      in.close();
+      throw e instanceof EOFException ? new IOException("Not an outcome file: " + file, e) : e;
+    }
+  }
+
+  /**
+   * Read the next record.
+   *
+   * @return a record, or null if the end of the file was reached
+   * @throws IOException thrown if the file could not be read
+   */
+  public Record read() throws IOException {
+    if (next != null) {
+      final Record record = next;
+      next = null;
+      return record;
+    }
+    if (ended) {
+      return null;
+    }
+    try {
+      final int outcome = in.read();
+      if (outcome < 0) {
+        ended = true;
+        return null;
+      }
+      if (outcome >= OUTCOMES.length) {
+        throw new IOException("Corrupted outcome file");
+      }
+      final int identifier = in.readInt();
+      final String token = in.readUTF();
+      final int status = in.readShort();
+      final int attempts = in.readByte();
+      final long time = in.readLong();
+      final String error = in.readUTF();
+      position = counter.count;
+      return new Record(OUTCOMES[outcome], identifier, token, status, attempts, time, error.isEmpty() ? null : error);
+    } catch (final EOFException e) {
+      /* Last record was cut short */
+      ended = true;
+      return null;
+    }
+  }
+
+  /**
+   * Iterate over the remaining records.  Errors reading the file are thrown as {@link UncheckedIOException}.
+   */
+  public Iterator<Record> iterator() {
+    return new Iterator<Record>() {
+      public boolean hasNext() {
+        if (next == null) {
+          try {
+            next = read();
+          } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+        return next != null;
+      }
+
+      public Record next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final Record record = next;
+        next = null;
+        return record;
+      }
+    };
+  }
+
+  /**
+   * Get the length of the file up to the end of the last complete record read, which is where a writer can append new records.
+   *
+   * @return a number of bytes
+   */
+  long getPosition() {
+    return position;
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Counts the bytes read through it.
+   */
+  private static final class CountingInputStream extends FilterInputStream {
+    private long count;
+
+    private CountingInputStream(final InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int read = in.read();
+      if (read >= 0) {
+        count++;
+      }
+      return read;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+      final int read = in.read(bytes, offset, length);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      final long skipped = in.skip(n);
+      count += skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  /**
+   * The outcome of a single notification.
+   */
+  public static final class Record {
+    private final NotificationOutcomeListener.Outcome outcome;
+    private final int identifier;
+    private final String token;
+    private final int status;
+    private final int transmissionAttempts;
+    private final long transmissionTime;
+    private final String error;
+
+    private Record(final NotificationOutcomeListener.Outcome outcome, final int identifier, final String token, final int status, final int transmissionAttempts, final long transmissionTime, final String error) {
+      this.outcome = outcome;
+      this.identifier = identifier;
+      this.token = token;
+      this.status = status;
+      this.transmissionAttempts = transmissionAttempts;
+      this.transmissionTime = transmissionTime;
+      this.error = error;
+    }
+
+    public NotificationOutcomeListener.Outcome getOutcome() {
+      return outcome;
+    }
+
+    public int getIdentifier() {
+      return identifier;
+    }
+
+    public String getToken() {
+      return token;
+    }
+
+    /**
+     * Get the notification's status.
+     *
+     * @return {@link CompactPushedNotifications#STATUS_SUCCESSFUL}, {@link CompactPushedNotifications#STATUS_NOT_TRANSMITTED}, or the status code of the error-response Apple sent
+     */
+    public int getStatus() {
+      return status;
+    }
+
+    public int getTransmissionAttempts() {
+      return transmissionAttempts;
+    }
+
+    public long getTransmissionTime() {
+      return transmissionTime;
+    }
+
+    /**
+     * Get the message of the exception that prevented a failed notification from being transmitted.
+     *
+     * @return an error message, or null
+     */
+    public String getError() {
+      return error;
+    }
+
+    @Override
+    public String toString() {
+      return outcome + " " + identifier + " " + token + " status " + status + (error != null ? " (" + error + ")" : "");
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package javapns.notification;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>Appends the final outcome of each notification to a file, as notifications complete</h1>
+ * <p>
+ * <p>Instead of keeping the results of a large campaign on the heap, attach this writer to a {@link NotificationOutcomeDispatcher}:
+ * each notification confirmed, rejected or failed is appended to a compact binary file through a small buffer, and memory use
+ * stays constant however many notifications are pushed.  The file can be read back with an {@link OutcomeFileReader}.</p>
+ * <p>
+ * <p>Each record holds the outcome, message identifier, device token, status code (as in {@link CompactPushedNotifications}),
+ * number of transmission attempts, transmission time and, for failed notifications, the error message.
+ * The buffer is flushed at least every second, by a background thread if no outcome arrives, so that a crash loses
+ * at most the last second of results.  An existing file is appended to, so a resumed campaign can keep writing to the
+ * same file: a record cut short by a crash is discarded before appending.</p>
+ * <p>
+ * <p>The dispatcher drops events when its listener cannot keep up: give it enough capacity and check
+ * {@link NotificationOutcomeDispatcher#getDropped()} if every outcome must be recorded.</p>
+ * <pre>
+ * try (OutcomeFileWriter results = new OutcomeFileWriter(new File("campaign.results"));
+ *      NotificationOutcomeDispatcher dispatcher = new NotificationOutcomeDispatcher(results, 65536)) {
+ *   threads.setOutcomeDispatcher(dispatcher);
+ *   threads.start();
+ *   threads.waitForAllThreads();
+ * }
+ * </pre>
+ */
+public class OutcomeFileWriter implements NotificationOutcomeListener, AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(OutcomeFileWriter.class);
+
+  static final int MAGIC = 0x4A504E52;
+  static final int VERSION = 1;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /* Length of the magic number and version */
+  private static final int HEADER_SIZE = 8;
+
+  /* Maximum time results stay in the buffer, in milliseconds */
+  private static final long FLUSH_INTERVAL = 1000;
+
+  /* Flushes the buffers of writers receiving no outcomes */
+  private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    final Thread thread = new Thread(runnable, "JavaPNS outcome file flusher");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final File file;
+  private final DataOutputStream out;
+  private final ScheduledFuture<?> flushing;
+  private long lastFlush = System.currentTimeMillis();
+  private boolean buffered;
+  private long written;
+  private boolean failed;
+
+  /**
+   * Open a file to append outcomes to.  The file is created if needed.
+   *
+   * @param file the file to write to
+   * @throws IOException thrown if the file could not be opened, or exists but was not written by an {@link OutcomeFileWriter}
+   */
+  public OutcomeFileWriter(final File file) throws IOException {
+    this.file = file;
+    final long length = completeLength(file);
+    if (length < file.length()) {
+      logger.warn("Discarding " + (file.length() - length) + " bytes of incomplete outcomes at the end of " + file);
+      try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+        truncated.setLength(length);
+      }
+    }
+    this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+    if (length == 0) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      buffered = true;
+    }
+    this.flushing = flusher.scheduleWithFixedDelay(this::flushIfDue, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Find where the last complete record of a file ends.
+   *
+   * @return a number of bytes (0 if the file does not even hold a complete header)
+   */
+  private static long completeLength(final File file) throws IOException {
+    if (file.length() < HEADER_SIZE) {
+      return 0;
+    }
+    try (OutcomeFileReader reader = new OutcomeFileReader(file)) {
+      try {
+        while (reader.read() != null) {
+          // skip
+        }
+      } catch (final IOException e) {
+        logger.warn("Corrupted record in " + file + " after " + reader.getPosition() + " bytes", e);
+      }
+      return reader.getPosition();
+    }
+  }
+
+  /**
+   * Record notifications that reached a final outcome.  Other events are ignored.
+   */
+  public void eventOutcome(final Outcome outcome, final PushedNotification notification) {
+    if (outcome == Outcome.CONFIRMED || outcome == Outcome.REJECTED || outcome == Outcome.FAILED) {
+      write(outcome, notification);
+    }
+  }
+
+  /**
+   * Append a notification's outcome to the file.
+   * This can be used to record notifications pushed without a dispatcher, such as those in a {@link PushedNotifications} list.
+   *
+   * @param notification a notification whose outcome is final
+   */
+  public void write(final PushedNotification notification) {
+    final Outcome outcome;
+    if (notification.isSuccessful()) {
+      outcome = Outcome.CONFIRMED;
+    } else if (notification.getResponse() != null) {
+      outcome = Outcome.REJECTED;
+    } else {
+      outcome = Outcome.FAILED;
+    }
+    write(outcome, notification);
+  }
+
+  private synchronized void write(final Outcome outcome, final PushedNotification notification) {
+    if (failed) {
+      return;
+    }
+    try {
+      final ResponsePacket response = notification.getResponse();
+      final Exception exception = notification.getException();
+      out.writeByte(outcome.ordinal());
+      out.writeInt(notification.getIdentifier());
+      out.writeUTF(notification.getDevice() != null && notification.getDevice().getToken() != null ? notification.getDevice().getToken() : "");
+      out.writeShort(response != null && response.isValidErrorMessage() ? response.getStatus() : notification.isSuccessful() ? CompactPushedNotifications.STATUS_SUCCESSFUL : CompactPushedNotifications.STATUS_NOT_TRANSMITTED);
+      out.writeByte(Math.min(notification.getTransmissionAttempts(), Byte.MAX_VALUE));
+      out.writeLong(notification.getTransmissionTime());
+      out.writeUTF(outcome == Outcome.FAILED && exception != null ? truncate(String.valueOf(exception.getMessage())) : "");
+      written++;
+      buffered = true;
+      flushIfDue();
+    } catch (final IOException e) {
+      /* Do not fail the campaign because results could not be written */
+      failed = true;
+      logger.error("Could not write outcomes to " + file + ", further outcomes will not be recorded", e);
+    }
+  }
+
+  private synchronized void flushIfDue() {
+    final long now = System.currentTimeMillis();
+    if (!buffered || failed || now - lastFlush < FLUSH_INTERVAL) {
+      return;
+    }
+    try {
+      flush();
+    } catch (final IOException e) {
+      failed = true;
+      logger.error("Could not write outcomes to " + file + ", further outcomes will not be recorded", e);
+    }
+  }
+
+  private static String truncate(final String message) {
+    return message.length() > 1024 ? message.substring(0, 1024) : message;
+  }
+
+  /**
+   * Write buffered outcomes to the file.
+   *
+   * @throws IOException thrown if the file could not be written
+   */
+  public synchronized void flush() throws IOException {
+    out.flush();
+    buffered = false;
+    lastFlush = System.currentTimeMillis();
+  }
+
+  /**
+   * Get the number of outcomes written by this writer (not counting those already in the file when it was opened).
+   *
+   * @return a number of outcomes
+   */
+  public synchronized long getWritten() {
+    return written;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Write buffered outcomes and close the file.
+   *
+   * @throws IOException thrown if the file could not be written
+   */
+  public synchronized void close() throws IOException {
+    flushing.cancel(false);
+    buffered = false;
+    out.close();
+  }
+}
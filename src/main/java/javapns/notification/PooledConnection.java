@@ -0,0 +1,145 @@
+package javapns.notification;
+
+import javapns.communication.ReloadableKeystore;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * An authenticated connection managed by a {@link ConnectionPool}.
+ */
+final class PooledConnection {
+  /* Time given to the probe read when checking an idle connection before reuse */
+  private static final int PROBE_TIMEOUT = 1;
+
+  private final ConnectionPool pool;
+  private final ConnectionPool.ServerKey key;
+  private final AppleNotificationServer server;
+  private final ConnectionToNotificationServer connection;
+  private final SSLSocket socket;
+  private final long created = System.currentTimeMillis();
+  private final long keystoreGeneration;
+  private volatile long lastUsed = created;
+
+  PooledConnection(final ConnectionPool pool, final ConnectionPool.ServerKey key, final AppleNotificationServer server, final ConnectionToNotificationServer connection, final SSLSocket socket) {
+    this.pool = pool;
+    this.key = key;
+    this.server = server;
+    this.connection = connection;
+    this.socket = socket;
+    this.keystoreGeneration = connection.getKeystoreGeneration();
+  }
+
+  /**
+   * Get the pool this connection must be given back to.
+   *
+   * @return the pool that opened this connection
+   */
+  ConnectionPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Get the key under which this connection is pooled.
+   *
+   * @return the server and proxy this connection was opened for
+   */
+  ConnectionPool.ServerKey getKey() {
+    return key;
+  }
+
+  AppleNotificationServer getServer() {
+    return server;
+  }
+
+  ConnectionToNotificationServer getConnection() {
+    return connection;
+  }
+
+  SSLSocket getSocket() {
+    return socket;
+  }
+
+  /**
+   * Get the time at which this connection was established.
+   *
+   * @return a time in milliseconds
+   */
+  long getCreated() {
+    return created;
+  }
+
+  long getLastUsed() {
+    return lastUsed;
+  }
+
+  /**
+   * Get the generation of the reloadable keystore this connection was opened with.
+   *
+   * @return a generation number, or 0 if the server's keystore cannot be reloaded
+   */
+  long getKeystoreGeneration() {
+    return keystoreGeneration;
+  }
+
+  /**
+   * Determine if the server's keystore was replaced since this connection was opened.
+   *
+   * @return true if the connection uses outdated credentials
+   */
+  boolean isOutdated() {
+    final ReloadableKeystore reloadable = connection.getReloadableKeystore();
+    return reloadable != null && reloadable.getGeneration() != keystoreGeneration;
+  }
+
+  void touch() {
+    lastUsed = System.currentTimeMillis();
+  }
+
+  /**
+   * Check that the connection can still be written to.
+   * <p>
+   * Apple never writes to a healthy connection: it only sends an error-response packet right before
+   * closing it.  A very short read is therefore enough to detect a dead or half-closed socket:
+   * if it times out, nothing was received and the connection is healthy.
+   *
+   * @return true if the connection looks healthy, false if it should be discarded
+   */
+  boolean isHealthy() {
+    if (socket.isClosed() || !socket.isConnected() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+      return false;
+    }
+    int previousTimeout = 0;
+    try {
+      previousTimeout = socket.getSoTimeout();
+      socket.setSoTimeout(PROBE_TIMEOUT);
+      /* Either end of stream or an error-response packet: in both cases Apple is done with this connection */
+      socket.getInputStream().read();
+      return false;
+    } catch (final SocketTimeoutException e) {
+      return true;
+    } catch (final IOException e) {
+      return false;
+    } finally {
+      try {
+        socket.setSoTimeout(previousTimeout);
+      } catch (final Exception e) {
+        // empty
+      }
+    }
+  }
+
+  void close() {
+    try {
+      socket.close();
+    } catch (final Exception e) {
+      /* Do not complain if connection is already closed... */
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "PooledConnection to " + connection.getServerHost() + ":" + connection.getServerPort() + " (" + socket + ")";
+  }
+}
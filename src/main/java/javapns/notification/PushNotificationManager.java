@@ -9,6 +9,7 @@ import javapns.devices.DeviceFactory;
 import javapns.devices.exceptions.*;
 import javapns.devices.implementations.basic.BasicDevice;
 import javapns.devices.implementations.basic.BasicDeviceFactory;
+import javapns.notification.exceptions.InvalidTokenSkippedException;
 import javapns.notification.exceptions.PayloadIsEmptyException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,14 +22,29 @@ import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.security.cert.Certificate;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * The main class used to send notification and handle a connection to Apple SSLServerSocket.
- * This class is not multi-threaded.  One instance per thread must be created.
+ * <p>
+ * Instances are not thread-safe: all instance methods must be invoked by a single thread at a time, and
+ * one instance per pushing thread must be created.  The exceptions are {@link #getSettledBefore()},
+ * {@link #getRecyclingPolicy()} and {@link #setRecyclingPolicy(ConnectionRecyclingPolicy)}, which can be
+ * invoked from any thread, and the static configuration methods, which affect managers created afterwards.
+ * <p>
+ * Internally, a manager uses background threads to open replacement connections and to read error-responses
+ * from connections it retired (see {@link #maintainConnection()}).  Those threads never touch the manager itself:
+ * the collaborators below hand their results back to the manager's thread.
+ * <ul>
+ * <li>{@code ConnectionRotation} opens replacement connections and drains retired ones,</li>
+ * <li>{@code NotificationSettlement} tracks notifications until Apple had the opportunity to reject them,</li>
+ * <li>{@code NotificationOutcomes} reports outcomes to a dispatcher and collects invalid tokens.</li>
+ * </ul>
+ * <p>
+ * Error-responses read from a retired connection are linked to the {@link PushedNotification} objects already
+ * returned to the caller, from a background thread.  A notification's result is therefore final only once
+ * {@link #getSettledBefore()} is later than its transmission time.
  *
  * @author Maxime Pilon
  * @author Sylvain Pedneault
@@ -43,10 +59,20 @@ public class PushNotificationManager {
   /* Special identifier that tells the manager to generate a sequential identifier for each payload pushed */
   private static final int SEQUENTIAL_IDENTIFIER = -1;
 
+  /* Number of milliseconds to wait for error-responses when polling a connection that stays in use */
+  private static final int POLL_TIMEOUT = 1;
+
+  /* Number of notifications pushed between two maintenances of a long-lived connection */
+  private static final int MAINTENANCE_INTERVAL = 64;
+
   private static int testsSerialNumber = 1;
 
   private static boolean useEnhancedNotificationFormat = true;
   private static boolean heavyDebugMode = false;
+
+  private static volatile ConnectionPool defaultConnectionPool;
+
+  private static volatile InvalidTokenFilter defaultInvalidTokenFilter;
   /*
    * Number of milliseconds to use as socket timeout.
    * Set to -1 to leave the timeout to its default setting.
@@ -58,6 +84,35 @@ public class PushNotificationManager {
   /* The always connected SSLSocket */
   private SSLSocket socket;
 
+  /* Pool from which connections are borrowed, if any */
+  private ConnectionPool connectionPool = defaultConnectionPool;
+
+  /* The pooled connection currently borrowed, if any */
+  private PooledConnection pooledConnection;
+
+  /* Decides when the current connection should be replaced */
+  private volatile ConnectionRecyclingPolicy recyclingPolicy = new ConnectionRecyclingPolicy();
+
+  /* Usage of the current connection */
+  private final ConnectionStatistics statistics = new ConnectionStatistics();
+
+  private int notificationsSinceMaintenance = 0;
+
+  /* True once the end of the current connection's stream was read: the server will not read anything more from it */
+  private boolean activeConnectionEnded = false;
+
+  /* Reports the outcome of notifications, and collects the tokens Apple rejects as invalid */
+  private final NotificationOutcomes outcomes = new NotificationOutcomes(defaultInvalidTokenFilter);
+
+  /* Tracks notifications until Apple had the opportunity to reject them */
+  private final NotificationSettlement settlement = new NotificationSettlement(outcomes);
+
+  /* Opens replacement connections and drains retired ones in the background */
+  private final ConnectionRotation rotation = new ConnectionRotation(settlement);
+
+  /* Keep a handshaked replacement connection ready at all times */
+  private boolean standbyConnection = false;
+
   /* Default retry attempts */
   private int retryAttempts = DEFAULT_RETRIES;
 
@@ -74,8 +129,6 @@ public class PushNotificationManager {
   @Deprecated
   private DeviceFactory deviceFactory;
 
-  private final LinkedHashMap<Integer, PushedNotification> pushedNotifications = new LinkedHashMap<>();
-
   /**
    * Constructs a PushNotificationManager
    */
@@ -135,26 +188,156 @@ public class PushNotificationManager {
   }
 
   /**
-   * Initialize a connection and create a SSLSocket
+   * Get the connection pool assigned to new managers.
+   *
+   * @return a connection pool, or null if new managers open their own connections
+   */
+  public static ConnectionPool getDefaultConnectionPool() {
+    return defaultConnectionPool;
+  }
+
+  /**
+   * Set a connection pool to be used by all managers created after this call (none by default).
+   * Since the simple {@link javapns.Push} methods create their managers internally, this is
+   * the way to let them reuse connections instead of opening a new one on every call.
+   *
+   * @param connectionPool a connection pool, or null to let new managers open their own connections
+   */
+  public static void setDefaultConnectionPool(final ConnectionPool connectionPool) {
+    defaultConnectionPool = connectionPool;
+  }
+
+  /**
+   * Get the invalid token filter assigned to new managers.
+   *
+   * @return a filter, or null if new managers do not filter tokens
+   */
+  public static InvalidTokenFilter getDefaultInvalidTokenFilter() {
+    return defaultInvalidTokenFilter;
+  }
+
+  /**
+   * Set an invalid token filter to be used by all managers created after this call (none by default).
+   * This lets managers created internally, such as those of {@link javapns.Push} methods and
+   * {@link javapns.notification.transmission.NotificationThreads}, share what they learn about invalid tokens.
+   *
+   * @param invalidTokenFilter a filter, or null to let new managers push to every token
+   */
+  public static void setDefaultInvalidTokenFilter(final InvalidTokenFilter invalidTokenFilter) {
+    defaultInvalidTokenFilter = invalidTokenFilter;
+  }
+
+  /**
+   * Initialize a connection and create a SSLSocket.
+   * The TLS handshake is completed before this method returns, so the connection is immediately ready to push.
    *
    * @param server The Apple server to connect to.
    * @throws CommunicationException thrown if a communication error occurs
    * @throws KeystoreException      thrown if there is a problem with your keystore
    */
   public void initializeConnection(final AppleNotificationServer server) throws CommunicationException, KeystoreException {
-    try {
-      this.connectionToAppleServer = new ConnectionToNotificationServer(server);
-      this.socket = connectionToAppleServer.getSSLSocket();
+    install(openConnection(connectionPool, server, null));
+    logger.debug("Initialized Connection to Host: [" + server.getNotificationServerHost() + "] Port: [" + server.getNotificationServerPort() + "]: " + socket);
+  }
 
-      if (heavyDebugMode) {
-        dumpCertificateChainDescription();
-      }
-      logger.debug("Initialized Connection to Host: [" + server.getNotificationServerHost() + "] Port: [" + server.getNotificationServerPort() + "]: " + socket);
-    } catch (final KeystoreException | CommunicationException e) {
-      throw e;
+  /**
+   * Open and handshake a connection.  This may run in the background while another connection is in use.
+   *
+   * @param pool    the pool to borrow the connection from, if any
+   * @param server  the server to connect to
+   * @param current the current connection helper, whose SSL context can be reused if it targets the same server
+   * @return an open connection
+   * @throws CommunicationException thrown if a communication error occurs
+   * @throws KeystoreException      thrown if there is a problem with your keystore
+   */
+  private static ConnectionRotation.OpenConnection openConnection(final ConnectionPool pool, final AppleNotificationServer server, final ConnectionToAppleServer current) throws CommunicationException, KeystoreException {
+    if (pool != null) {
+      final PooledConnection pooled = pool.acquire(server);
+      return new ConnectionRotation.OpenConnection(pooled.getConnection(), pooled.getSocket(), pooled);
+    }
+    /* Avoid loading the keystore again when replacing a connection to the same server */
+    final ConnectionToAppleServer connection = current != null && server.equals(current.getServer()) ? current : new ConnectionToNotificationServer(server);
+    final SSLSocket newSocket = connection.getSSLSocket();
+    try {
+      newSocket.startHandshake();
     } catch (final Exception e) {
+      try {
+        newSocket.close();
+      } catch (final Exception e2) {
+        // empty
+      }
       throw new CommunicationException("Error creating connection with Apple server", e);
     }
+    return new ConnectionRotation.OpenConnection(connection, newSocket, null);
+  }
+
+  /**
+   * Make an open connection the current connection.
+   *
+   * @param connection an open connection
+   */
+  private void install(final ConnectionRotation.OpenConnection connection) {
+    this.connectionToAppleServer = connection.getConnection();
+    this.socket = connection.getSocket();
+    this.pooledConnection = connection.getPooled();
+    rotation.installed(pooledConnection != null ? pooledConnection.getKeystoreGeneration() : connectionToAppleServer.getKeystoreGeneration());
+    resetStatistics();
+
+    if (heavyDebugMode) {
+      dumpCertificateChainDescription();
+    }
+    if (standbyConnection) {
+      prepareReplacementConnection();
+    }
+  }
+
+  /**
+   * Start opening and handshaking a replacement for the current connection in the background.
+   * The next restart or recycling of the connection then swaps it in without waiting for a handshake.
+   */
+  public void prepareReplacementConnection() {
+    prepareReplacementConnection((AppleNotificationServer) connectionToAppleServer.getServer());
+  }
+
+  private void prepareReplacementConnection(final AppleNotificationServer server) {
+    final ConnectionPool pool = connectionPool;
+    final ConnectionToAppleServer current = connectionToAppleServer;
+    rotation.prepare(server, () -> openConnection(pool, server, current));
+  }
+
+  /**
+   * Retire the current connection: error-responses still pending on it are read in the background
+   * while a new connection takes over, and notifications they require to resend are resent later.
+   */
+  private void retireConnection() {
+    rotation.retire(new ConnectionRotation.OpenConnection(connectionToAppleServer, socket, pooledConnection), useEnhancedNotificationFormat);
+    pooledConnection = null;
+  }
+
+  /**
+   * Resend notifications that Apple ignored on retired connections already drained, because of an earlier error.
+   *
+   * @throws CommunicationException thrown if a communication error occurs
+   */
+  private void resendFromRetiredConnections() throws CommunicationException {
+    final List<PushedNotification> resends = rotation.collectResends(false);
+    if (!resends.isEmpty()) {
+      logger.debug("Resending " + resends.size() + " notifications ignored on a retired connection");
+      resendNotifications(resends);
+    }
+  }
+
+  /**
+   * Send again notifications that Apple ignored because an earlier notification was rejected.
+   *
+   * @param notifications the notifications to resend
+   * @throws CommunicationException thrown if a communication error occurs
+   */
+  private void resendNotifications(final List<PushedNotification> notifications) throws CommunicationException {
+    for (final PushedNotification notification : notifications) {
+      outcomes.report(NotificationOutcomeListener.Outcome.RETRIED, notification);
+      sendNotification(notification, false);
+    }
   }
 
   private void dumpCertificateChainDescription() {
@@ -201,15 +384,23 @@ public class PushNotificationManager {
   }
 
   /**
-   * Stop and restart the current connection to the Apple server
+   * Stop and restart the current connection to the Apple server.
+   * <p>
+   * The new connection is opened while error-responses pending on the current connection are read in the
+   * background, so pushing resumes as soon as the new connection is handshaked (immediately if it was
+   * prepared beforehand).  Notifications that must be resent because of those error-responses are resent
+   * over the new connection during subsequent calls.
    *
    * @param server the server to start
    * @throws CommunicationException thrown if a communication error occurs
    * @throws KeystoreException      thrown if there is a problem with your keystore
    */
   public void restartConnection(final AppleNotificationServer server) throws CommunicationException, KeystoreException {
-    stopConnection();
-    initializeConnection(server);
+    prepareReplacementConnection(server);
+    if (socket != null) {
+      retireConnection();
+    }
+    install(rotation.take());
   }
 
   /**
@@ -219,31 +410,229 @@ public class PushNotificationManager {
    * @throws KeystoreException      thrown if there is a problem with your keystore
    */
   private void restartPreviousConnection() throws CommunicationException, KeystoreException {
-    try {
-      logger.debug("Closing connection to restart previous one");
-      this.socket.close();
-    } catch (final Exception e) {
-      /* Do not complain if connection is already closed... */
+    logger.debug("Closing connection to restart previous one");
+    closeSocket(false);
+    if (rotation.isPreparing()) {
+      try {
+        install(rotation.take());
+        return;
+      } catch (final CommunicationException e) {
+        logger.debug("Replacement connection failed, opening a new one", e);
+      }
     }
     initializePreviousConnection();
   }
 
   /**
    * Read and process any pending error-responses, and then close the connection.
+   * If a connection pool is in use, a connection still healthy is given back to the pool instead of being closed.
    *
    * @throws CommunicationException thrown if a communication error occurs
    * @throws KeystoreException      thrown if there is a problem with your keystore
    */
   public void stopConnection() throws CommunicationException, KeystoreException {
-    processedFailedNotifications();
+    rotation.cancel();
     try {
+      final boolean reusable = processAllFailedNotifications() == 0;
+      settlement.settleAll();
       logger.debug("Closing connection");
+      closeSocket(reusable);
+      /* Restarts while processing error-responses may have prepared a standby connection */
+      rotation.cancel();
+    } finally {
+      outcomes.releaseChannel();
+    }
+  }
+
+  /**
+   * Close the current socket, or give it back to the connection pool if it came from one.
+   *
+   * @param reusable true if the connection is known to be healthy and can be reused
+   */
+  private void closeSocket(final boolean reusable) {
+    if (pooledConnection != null) {
+      if (reusable) {
+        pooledConnection.getPool().release(pooledConnection);
+      } else {
+        pooledConnection.getPool().discard(pooledConnection);
+      }
+      pooledConnection = null;
+      return;
+    }
+    try {
       this.socket.close();
     } catch (final Exception e) {
       /* Do not complain if connection is already closed... */
     }
   }
 
+  /**
+   * Replace the current socket with a new one to the same server, after a failed write.
+   *
+   * @throws CommunicationException thrown if a communication error occurs
+   * @throws KeystoreException      thrown if there is a problem with your keystore
+   */
+  private void reopenSocket() throws CommunicationException, KeystoreException {
+    final ConnectionPool pool = pooledConnection != null ? pooledConnection.getPool() : null;
+    closeSocket(false);
+    if (pool != null) {
+      this.pooledConnection = pool.acquire((AppleNotificationServer) connectionToAppleServer.getServer());
+      this.socket = pooledConnection.getSocket();
+    } else {
+      this.socket = connectionToAppleServer.getSSLSocket();
+    }
+    resetStatistics();
+  }
+
+  private void resetStatistics() {
+    activeConnectionEnded = false;
+    statistics.reset(pooledConnection != null ? pooledConnection.getCreated() : System.currentTimeMillis());
+    notificationsSinceMaintenance = 0;
+  }
+
+  /**
+   * Perform routine maintenance of a connection used to push a long stream of notifications.
+   * This method is cheap and meant to be invoked after every notification pushed.
+   * <p>
+   * Every few notifications, error-responses already sent by Apple are processed (see {@link #pollResponses()}),
+   * so that failures are detected early and settled notifications are not retained in memory.
+   * If the recycling policy determines that the connection should be replaced, a fresh connection is
+   * opened in the background and swapped in once handshaked, without interrupting the flow of notifications.
+   *
+   * @return true if the connection was recycled
+   * @throws CommunicationException thrown if a communication error occurs
+   * @throws KeystoreException      thrown if there is a problem with your keystore
+   * @see #setRecyclingPolicy(ConnectionRecyclingPolicy)
+   */
+  public boolean maintainConnection() throws CommunicationException, KeystoreException {
+    resendFromRetiredConnections();
+    if (recyclingPolicy.isRecyclingDue(statistics) || isMigrationDue()) {
+      if (!rotation.isPreparing()) {
+        logger.debug("Preparing replacement connection after " + statistics.getNotifications() + " notifications");
+        prepareReplacementConnection();
+      } else if (rotation.isPrepared()) {
+        final ConnectionRotation.OpenConnection replacement;
+        try {
+          replacement = rotation.take();
+        } catch (final CommunicationException e) {
+          /* Keep using the current connection, another replacement will be prepared next time */
+          logger.warn("Could not open replacement connection: " + e.getMessage());
+          return false;
+        }
+        logger.debug("Recycling connection after " + statistics.getNotifications() + " notifications");
+        retireConnection();
+        install(replacement);
+        return true;
+      }
+    }
+    if (++notificationsSinceMaintenance >= MAINTENANCE_INTERVAL) {
+      notificationsSinceMaintenance = 0;
+      pollResponses();
+    }
+    return false;
+  }
+
+  /**
+   * Determine if the current connection was opened with a keystore replaced since, and if its turn to migrate has come.
+   * Each connection migrates at a random time within the keystore's migration window, so that connections are not all replaced at once.
+   *
+   * @return true if the connection should be replaced
+   */
+  private boolean isMigrationDue() {
+    return connectionToAppleServer != null && rotation.isMigrationDue(connectionToAppleServer.getReloadableKeystore());
+  }
+
+  /**
+   * Read and process any pending error-responses, but keep the connection open so that it can be reused.
+   * <p>
+   * Once this method returns, all notifications pushed so far through this manager are final
+   * (either accepted by Apple or linked to an error-response packet).  If Apple closed the
+   * connection after reporting an error, a fresh connection is opened automatically.
+   *
+   * @throws CommunicationException thrown if a communication error occurs
+   * @throws KeystoreException      thrown if there is a problem with your keystore
+   */
+  public void drainResponses() throws CommunicationException, KeystoreException {
+    if (processAllFailedNotifications() > 0) {
+      logger.debug("Restarting connection closed by Apple after an error-response");
+      restartPreviousConnection();
+    }
+    settlement.settleAll();
+  }
+
+  /**
+   * Process error-responses that Apple already sent, without waiting for more, and keep the connection open.
+   * <p>
+   * This is a cheap alternative to {@link #drainResponses()} for connections that push notifications
+   * sporadically, such as a connection reused across requests in a web service.  Notifications pushed
+   * more than a few seconds ago without an error-response are considered delivered and forgotten,
+   * so that the manager does not retain every notification pushed through a long-lived connection.
+   * If Apple (or anything in between) closed the connection, with or without reporting an error,
+   * a fresh connection is opened automatically.
+   *
+   * @throws CommunicationException thrown if a communication error occurs
+   * @throws KeystoreException      thrown if there is a problem with your keystore
+   */
+  public void pollResponses() throws CommunicationException, KeystoreException {
+    resendFromRetiredConnections();
+    if (processedFailedNotifications(POLL_TIMEOUT) > 0) {
+      logger.debug("Restarting connection closed by Apple after an error-response");
+      restartPreviousConnection();
+    } else if (activeConnectionEnded) {
+      logger.debug("Restarting connection closed by the server");
+      restartPreviousConnection();
+    }
+    /* Apple reports errors right away, so older notifications are settled, but those pushed through
+       retired connections are final only once those connections are drained */
+    settlement.settleTransmittedBefore(System.currentTimeMillis() - ResponsePacketReader.TIMEOUT, !rotation.isRetiring());
+  }
+
+  /**
+   * Get a time before which every notification pushed through this manager is final: it was either
+   * accepted by Apple or linked to an error-response packet, and will not be resent.
+   * This time advances when error-responses are processed, for example by {@link #pollResponses()},
+   * {@link #drainResponses()} or {@link #stopConnection()}.
+   *
+   * @return a time in milliseconds (0 if no notification is known to be final yet)
+   */
+  public long getSettledBefore() {
+    return settlement.getSettledBefore();
+  }
+
+  /**
+   * Read and process any pending error-responses, on the current connection as well as on retired connections.
+   * Retired connections are drained in the background at the same time as the current one,
+   * so this usually takes no longer than draining the current connection alone.
+   *
+   * @return the number of error-response packets received on the current connection that were not followed by a restart (0 if the current connection is still usable)
+   * @throws CommunicationException thrown if a communication error occurs
+   * @throws KeystoreException      thrown if there is a problem with your keystore
+   */
+  private int processAllFailedNotifications() throws CommunicationException, KeystoreException {
+    int responsesReceived = processedFailedNotifications();
+    final List<PushedNotification> resends = rotation.collectResends(true);
+    if (!resends.isEmpty()) {
+      if (responsesReceived > 0) {
+        restartPreviousConnection();
+      }
+      logger.debug("Resending " + resends.size() + " notifications ignored on a retired connection");
+      resendNotifications(resends);
+      responsesReceived = processedFailedNotifications();
+    }
+    return responsesReceived;
+  }
+
+  /**
+   * Read and process any pending error-responses.
+   *
+   * @return the number of error-response packets received on the current connection that were not followed by a restart (0 if the current connection is still usable)
+   * @throws CommunicationException thrown if a communication error occurs
+   * @throws KeystoreException      thrown if there is a problem with your keystore
+   */
+  private int processedFailedNotifications() throws CommunicationException, KeystoreException {
+    return processedFailedNotifications(ResponsePacketReader.TIMEOUT);
+  }
+
   /**
    * Read and process any pending error-responses.
    * <p>
@@ -252,37 +641,27 @@ public class PushNotificationManager {
    * were completely ignored by Apple, and as such automatically retries to
    * send all messages after the problematic one.
    *
-   * @return the number of error-response packets received
+   * @param timeout the number of milliseconds to wait for each error-response
+   * @return the number of error-response packets received on the current connection that were not followed by a restart (0 if the current connection is still usable)
    * @throws CommunicationException thrown if a communication error occurs
    * @throws KeystoreException      thrown if there is a problem with your keystore
    */
-  private int processedFailedNotifications() throws CommunicationException, KeystoreException {
+  private int processedFailedNotifications(final int timeout) throws CommunicationException, KeystoreException {
     if (useEnhancedNotificationFormat) {
       logger.debug("Reading responses");
-      int responsesReceived = ResponsePacketReader.processResponses(this);
+      int responsesReceived = ResponsePacketReader.processResponses(this, timeout);
       while (responsesReceived > 0) {
-        final List<PushedNotification> notificationsToResend = new ArrayList<>();
-        boolean foundFirstFail = false;
-        for (final PushedNotification notification : pushedNotifications.values()) {
-          if (foundFirstFail || !notification.isSuccessful()) {
-            if (foundFirstFail) {
-              notificationsToResend.add(notification);
-            } else {
-              foundFirstFail = true;
-            }
-          }
-        }
-        pushedNotifications.clear();
+        final List<PushedNotification> notificationsToResend = settlement.settlePending();
         final int toResend = notificationsToResend.size();
         logger.debug("Found " + toResend + " notifications that must be re-sent");
-        if (toResend > 0) {
-          logger.debug("Restarting connection to resend notifications");
-          restartPreviousConnection();
-          for (final PushedNotification pushedNotification : notificationsToResend) {
-            sendNotification(pushedNotification, false);
-          }
+        if (toResend == 0) {
+          /* Apple closes the connection after an error-response, so there is nothing more to read */
+          return responsesReceived;
         }
-        final int remaining = responsesReceived = ResponsePacketReader.processResponses(this);
+        logger.debug("Restarting connection to resend notifications");
+        restartPreviousConnection();
+        resendNotifications(notificationsToResend);
+        final int remaining = responsesReceived = ResponsePacketReader.processResponses(this, timeout);
         if (remaining == 0) {
           logger.debug("No notifications remaining to be resent");
           return 0;
@@ -295,6 +674,30 @@ public class PushNotificationManager {
     }
   }
 
+  public InvalidTokenFilter getInvalidTokenFilter() {
+    return outcomes.getInvalidTokenFilter();
+  }
+
+  /**
+   * Skip notifications to tokens known to be invalid, and add to the filter every token that Apple rejects as invalid.
+   * Skipped notifications fail with an {@link InvalidTokenSkippedException} without being transmitted.
+   *
+   * @param invalidTokenFilter a filter, possibly shared with other managers, or null to push to every token
+   */
+  public void setInvalidTokenFilter(final InvalidTokenFilter invalidTokenFilter) {
+    outcomes.setInvalidTokenFilter(invalidTokenFilter);
+  }
+
+  /**
+   * Report the outcome of each notification pushed through this manager to a dispatcher's listener.
+   * Events are published without blocking; they are delivered on the dispatcher's own thread.
+   *
+   * @param dispatcher a dispatcher, possibly shared with other managers, or null to stop reporting outcomes
+   */
+  public void setOutcomeDispatcher(final NotificationOutcomeDispatcher dispatcher) {
+    outcomes.setDispatcher(dispatcher);
+  }
+
   /**
    * Send a notification to a single device and close the connection.
    *
@@ -380,6 +783,7 @@ public class PushNotificationManager {
    * @throws CommunicationException thrown if a communication error occurs
    */
   public PushedNotification sendNotification(final Device device, final Payload payload, final boolean closeAfter, final int identifier) throws CommunicationException {
+    resendFromRetiredConnections();
     final PushedNotification pushedNotification = new PushedNotification(device, payload, identifier);
     sendNotification(pushedNotification, closeAfter);
     return pushedNotification;
@@ -404,12 +808,15 @@ public class PushNotificationManager {
         // empty
       }
 
+      if (outcomes.isInvalidToken(device.getToken())) {
+        /* Pushing would only make Apple reject the token and close the connection */
+        throw new InvalidTokenSkippedException();
+      }
+
       if (notification.getIdentifier() <= 0) {
         notification.setIdentifier(newMessageIdentifier());
       }
-      if (!pushedNotifications.containsKey(notification.getIdentifier())) {
-        pushedNotifications.put(notification.getIdentifier(), notification);
-      }
+      settlement.record(notification);
       final int identifier = notification.getIdentifier();
 
       final String token = device.getToken();
@@ -434,6 +841,7 @@ public class PushNotificationManager {
           logger.debug("  to device: " + token + "");
           notification.addTransmissionAttempt();
           boolean streamConfirmed = false;
+          final long writeStarted = System.nanoTime();
           try {
             if (!simulationMode) {
               this.socket.getOutputStream().write(bytes);
@@ -450,12 +858,14 @@ public class PushNotificationManager {
           logger.debug("Flushing");
           this.socket.getOutputStream().flush();
           if (streamConfirmed) {
+            statistics.recordWrite(bytes.length, System.nanoTime() - writeStarted);
             logger.debug("At this point, the entire " + bytes.length + "-bytes message has been streamed out successfully through the SSL connection");
           }
 
           success = true;
           logger.debug("Notification sent on " + notification.getLatestTransmissionAttempt());
           notification.setTransmissionCompleted(true);
+          outcomes.report(NotificationOutcomeListener.Outcome.SENT, notification);
 
         } catch (final IOException e) {
           // throw exception if we surpassed the valid number of retry attempts
@@ -469,12 +879,7 @@ public class PushNotificationManager {
           } else {
             logger.info("Attempt failed (" + e.getMessage() + ")... trying again");
             //Try again
-            try {
-              this.socket.close();
-            } catch (final Exception e2) {
-              // do nothing
-            }
-            this.socket = connectionToAppleServer.getSSLSocket();
+            reopenSocket();
             if (socketTimeout > 0) {
               this.socket.setSoTimeout(socketTimeout);
             }
@@ -482,10 +887,16 @@ public class PushNotificationManager {
         }
       }
     } catch (final CommunicationException e) {
+      outcomes.report(NotificationOutcomeListener.Outcome.FAILED, notification);
       throw e;
+    } catch (final InvalidTokenSkippedException ex) {
+      notification.setException(ex);
+      outcomes.report(NotificationOutcomeListener.Outcome.FAILED, notification);
+      logger.debug("Skipping notification to invalid token " + notification.getDevice().getToken());
     } catch (final Exception ex) {
 
       notification.setException(ex);
+      outcomes.report(NotificationOutcomeListener.Outcome.FAILED, notification);
       logger.error("Delivery error: " + ex);
       try {
         if (closeAfter) {
@@ -682,6 +1093,60 @@ public class PushNotificationManager {
     this.deviceFactory = deviceFactory;
   }
 
+  /**
+   * Get the connection pool from which this manager borrows connections.
+   *
+   * @return a connection pool, or null if this manager opens its own connections
+   */
+  public ConnectionPool getConnectionPool() {
+    return connectionPool;
+  }
+
+  /**
+   * Set a connection pool from which this manager will borrow connections.
+   * This setting takes effect on the next call to {@link #initializeConnection(AppleNotificationServer)}.
+   *
+   * @param connectionPool a connection pool, or null to open dedicated connections
+   */
+  public void setConnectionPool(final ConnectionPool connectionPool) {
+    this.connectionPool = connectionPool;
+  }
+
+  public boolean isStandbyConnection() {
+    return standbyConnection;
+  }
+
+  /**
+   * Keep a handshaked replacement connection ready at all times (disabled by default), so that even
+   * restarting a connection closed by Apple after an error-response does not wait for a TLS handshake.
+   * This costs one additional idle connection per manager.
+   *
+   * @param standbyConnection true to keep a replacement connection ready
+   */
+  public void setStandbyConnection(final boolean standbyConnection) {
+    this.standbyConnection = standbyConnection;
+    if (standbyConnection && socket != null) {
+      prepareReplacementConnection();
+    } else if (!standbyConnection) {
+      rotation.cancel();
+    }
+  }
+
+  public ConnectionRecyclingPolicy getRecyclingPolicy() {
+    return recyclingPolicy;
+  }
+
+  /**
+   * Set the policy deciding when {@link #maintainConnection()} replaces the current connection.
+   * By default, healthy connections are kept open and only recycled if writes become much slower.
+   * A policy can be shared by several managers, in which case changing it affects all of them.
+   *
+   * @param recyclingPolicy a recycling policy
+   */
+  public void setRecyclingPolicy(final ConnectionRecyclingPolicy recyclingPolicy) {
+    this.recyclingPolicy = recyclingPolicy;
+  }
+
   /**
    * Get the SSL socket timeout currently in use.
    *
@@ -725,7 +1190,8 @@ public class PushNotificationManager {
    */
   private int newMessageIdentifier() {
     final int id = nextMessageIdentifier;
-    nextMessageIdentifier++;
+    /* Long-lived connections can outlive the positive int range, so wrap around instead of going negative */
+    nextMessageIdentifier = id == Integer.MAX_VALUE ? 1 : id + 1;
     return id;
   }
 
@@ -733,13 +1199,20 @@ public class PushNotificationManager {
     return socket;
   }
 
+  /**
+   * Record that the server closed the current connection, so that it is replaced before being written to again.
+   */
+  void activeConnectionEnded() {
+    activeConnectionEnded = true;
+  }
+
   /**
    * Get the internal list of pushed notifications.
    *
    * @return
    */
   Map<Integer, PushedNotification> getPushedNotifications() {
-    return pushedNotifications;
+    return settlement.getPending();
   }
 
   private void preconfigurePayload(final Payload payload, final int identifier, final String deviceToken) {
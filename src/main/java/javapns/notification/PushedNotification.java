@@ -26,6 +26,7 @@ public class PushedNotification {
   private long expiry;
   private int transmissionAttempts;
   private boolean transmissionCompleted;
+  private long transmissionTime;
 
   private Exception exception;
 
@@ -186,6 +187,24 @@ public class PushedNotification {
 
   void setTransmissionCompleted(final boolean completed) {
     this.transmissionCompleted = completed;
+    if (completed) {
+      this.transmissionTime = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Returns the time at which the notification was last streamed successfully to Apple's server.
+   *
+   * Compare it with {@link PushNotificationManager#getSettledBefore()} to determine if the notification's result is final.
+   *
+   * @return a time in milliseconds, or 0 if the transmission never completed
+   */
+  public long getTransmissionTime() {
+    return transmissionTime;
+  }
+
+  void setTransmissionTime(final long transmissionTime) {
+    this.transmissionTime = transmissionTime;
   }
 
   /**
@@ -1,36 +1,73 @@
 package javapns.notification;
 
-import java.util.ArrayList;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Vector;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
 
 /**
  * <p>A list of PushedNotification objects.</p>
  * <p>
  * <p>This list can be configured to retain a maximum number of objects.  When that maximum is reached, older objects are removed from the list before new ones are added.</p>
  * <p>
- * <p>Internally, this list extends Vector.</p>
+ * <p>Internally, this list is a circular buffer with a fixed capacity (the maximum number of objects retained),
+ * allocated in chunks as it fills up.  Adding an object and evicting the oldest one both take constant time,
+ * and concurrent threads add objects without locking.  A thread adding an object only waits, by yielding, when as many
+ * other threads are adding objects at once as the list retains, so that it would overwrite an object still being stored.
+ * Reads and iterations are weakly consistent: they never fail because of concurrent additions, but may or may not reflect them.
+ * Removing objects and changing the maximum number of objects retained are not safe while other threads add objects.</p>
+ * <p>
+ * <p>This class used to extend {@link java.util.ArrayList}; it now only implements {@link List}.  Objects can only be added
+ * at the end of the list, and removing objects (including through iterators, {@link #removeIf}, {@link #removeAll} and {@link #retainAll})
+ * shifts the objects that precede them.  Code casting this list to {@code ArrayList} or calling methods specific to it,
+ * such as {@code ensureCapacity}, {@code trimToSize} or {@code clone}, must copy it into an {@code ArrayList} instead.</p>
  *
  * @author Sylvain Pedneault
  */
-public class PushedNotifications extends ArrayList<PushedNotification> implements List<PushedNotification> {
+public class PushedNotifications extends AbstractList<PushedNotification> implements List<PushedNotification>, RandomAccess, Serializable {
   private static final long serialVersionUID = 1418782231076330494L;
+
+  /* Number of slots allocated at once when the buffer grows */
+  private static final int CHUNK_SIZE = 1024;
+
   private int maxRetained = 1000;
+  private volatile Ring ring;
 
   /**
    * Construct an empty list of PushedNotification objects.
    */
   public PushedNotifications() {
+    this(true);
   }
 
   /**
    * Construct an empty list of PushedNotification objects with a suggested initial capacity.
+   * Storage is allocated as the list fills up, so this value is only kept for compatibility.
    *
    * @param capacity
    */
   public PushedNotifications(final int capacity) {
-    super(capacity);
+    this(true);
+  }
+
+  /**
+   * Construct an empty list, without any buffer if a subclass stores its objects by itself.
+   * Such a subclass must override every method that reads or modifies the list.
+   *
+   * @param buffered false if objects are not stored in this class' buffer
+   */
+  PushedNotifications(final boolean buffered) {
+    this.ring = buffered ? new Ring(maxRetained) : null;
   }
 
   /**
@@ -39,7 +76,8 @@ public class PushedNotifications extends ArrayList<PushedNotification> implement
    * @param parent
    */
   private PushedNotifications(final PushedNotifications parent) {
-    this.maxRetained = parent.getMaxRetained();
+    this(true);
+    setMaxRetained(parent.getMaxRetained());
   }
 
   /**
@@ -73,24 +111,164 @@ public class PushedNotifications extends ArrayList<PushedNotification> implement
   }
 
   @Override
-  public synchronized boolean add(final PushedNotification notification) {
-    prepareAdd(1);
-    return super.add(notification);
+  public boolean add(final PushedNotification notification) {
+    final Ring current = ring;
+    current.append(current.claimed.getAndIncrement(), notification);
+    current.publish();
+    return true;
+  }
+
+  @Override
+  public boolean addAll(final Collection<? extends PushedNotification> notifications) {
+    final Object[] added = notifications.toArray();
+    if (added.length == 0) {
+      return false;
+    }
+    final Ring current = ring;
+    final long first = current.claimed.getAndAdd(added.length);
+    /* Only the most recent objects fit in the buffer */
+    final int skipped = Math.max(0, added.length - current.capacity);
+    for (int i = 0; i < added.length; i++) {
+      /* Skipped objects still stamp their slots, so that publication moves past them */
+      current.append(first + i, i < skipped ? null : (PushedNotification) added[i]);
+    }
+    current.publish();
+    return true;
+  }
+
+  @Override
+  public void add(final int index, final PushedNotification notification) {
+    if (index != size()) {
+      throw new UnsupportedOperationException("PushedNotifications only supports adding at the end of the list");
+    }
+    add(notification);
+  }
+
+  @Override
+  public PushedNotification get(final int index) {
+    final Ring current = ring;
+    return current.load(current.sequence(index));
+  }
+
+  @Override
+  public PushedNotification set(final int index, final PushedNotification notification) {
+    final Ring current = ring;
+    final long sequence = current.sequence(index);
+    final PushedNotification previous = current.load(sequence);
+    current.store(sequence, notification);
+    return previous;
   }
 
+  /**
+   * Remove an object by shifting the objects that precede it, so that the end of the list where objects are added is left untouched.
+   */
   @Override
-  public synchronized boolean addAll(final Collection<? extends PushedNotification> notifications) {
-    prepareAdd(notifications.size());
-    return super.addAll(notifications);
+  public PushedNotification remove(final int index) {
+    final Ring current = ring;
+    final long sequence = current.sequence(index);
+    final long head = sequence - index;
+    final PushedNotification removed = current.load(sequence);
+    for (long s = sequence; s > head; s--) {
+      current.store(s, current.load(s - 1));
+    }
+    current.store(head, null);
+    current.base = head + 1;
+    return removed;
   }
 
-  private void prepareAdd(final int n) {
-    final int size = size();
-    if (size + n > maxRetained) {
-      for (int i = 0; i < n; i++) {
-        remove(0);
+  /**
+   * Remove the objects matching a filter in a single pass, by shifting the objects that precede them.
+   */
+  @Override
+  public boolean removeIf(final Predicate<? super PushedNotification> filter) {
+    Objects.requireNonNull(filter);
+    final Ring current = ring;
+    final long published = current.published.get();
+    final long head = current.head(published);
+    final BitSet removed = new BitSet();
+    for (long sequence = head; sequence < published; sequence++) {
+      if (filter.test(current.load(sequence))) {
+        removed.set((int) (sequence - head));
       }
     }
+    if (removed.isEmpty()) {
+      return false;
+    }
+    long kept = published;
+    for (long sequence = published - 1; sequence >= head; sequence--) {
+      if (!removed.get((int) (sequence - head))) {
+        current.store(--kept, current.load(sequence));
+      }
+    }
+    for (long sequence = head; sequence < kept; sequence++) {
+      current.store(sequence, null);
+    }
+    current.base = kept;
+    return true;
+  }
+
+  @Override
+  public boolean removeAll(final Collection<?> notifications) {
+    Objects.requireNonNull(notifications);
+    return removeIf(notifications::contains);
+  }
+
+  @Override
+  public boolean retainAll(final Collection<?> notifications) {
+    Objects.requireNonNull(notifications);
+    return removeIf(notification -> !notifications.contains(notification));
+  }
+
+  @Override
+  public void clear() {
+    ring = new Ring(maxRetained);
+  }
+
+  @Override
+  public int size() {
+    final Ring current = ring;
+    final long published = current.published.get();
+    return (int) (published - current.head(published));
+  }
+
+  @Override
+  public Iterator<PushedNotification> iterator() {
+    final Ring current = ring;
+    final long end = current.published.get();
+    return new Iterator<PushedNotification>() {
+      private long next = current.head(end);
+      private long last = -1;
+
+      public boolean hasNext() {
+        /* Skip objects evicted since the iteration started */
+        next = Math.max(next, current.head(current.published.get()));
+        return next < end;
+      }
+
+      public PushedNotification next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        last = next;
+        return current.load(next++);
+      }
+
+      /* Removing shifts the preceding objects, so the objects left to iterate keep their sequence numbers */
+      public void remove() {
+        if (last < 0) {
+          throw new IllegalStateException();
+        }
+        if (ring != current) {
+          throw new ConcurrentModificationException();
+        }
+        final long head = current.head(current.published.get());
+        if (last < head) {
+          throw new ConcurrentModificationException();
+        }
+        PushedNotifications.this.remove((int) (last - head));
+        last = -1;
+      }
+    };
   }
 
   /**
@@ -105,11 +283,25 @@ public class PushedNotifications extends ArrayList<PushedNotification> implement
   /**
    * Set the maximum number of objects that this list retains.
    * When this maximum is reached, older objects are removed from the list before new ones are added.
+   * The most recent objects already in the list are kept, up to the new maximum.
    *
    * @param maxRetained the maxRetained value currently configured (default is 1000)
    */
   public void setMaxRetained(final int maxRetained) {
+    if (maxRetained < 0) {
+      throw new IllegalArgumentException("maxRetained must not be negative");
+    }
+    final Ring previous = ring;
+    final Ring resized = new Ring(maxRetained);
+    final long published = previous.published.get();
+    final long first = Math.max(previous.head(published), published - maxRetained);
+    resized.claimed.set(published - first);
+    for (long sequence = first; sequence < published; sequence++) {
+      resized.append(sequence - first, previous.load(sequence));
+    }
+    resized.publish();
     this.maxRetained = maxRetained;
+    this.ring = resized;
   }
 
   @Override
@@ -130,4 +322,122 @@ public class PushedNotifications extends ArrayList<PushedNotification> implement
     result = 31 * result + maxRetained;
     return result;
   }
+
+  /**
+   * A fixed-capacity circular buffer addressed by sequence numbers.
+   * Writers claim consecutive sequence numbers, store their objects and stamp their slots with the sequence number.
+   * Whichever writer finishes advances the published sequence over all stamped slots, so that readers only see
+   * objects that were completely stored.  A writer only waits for another one when it laps it, that is when its slot
+   * still awaits the object claimed one capacity earlier.
+   */
+  private static final class Ring implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+    private final AtomicReferenceArray<Chunk> chunks;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+
+    /* First sequence number still part of the list, raised by remove(int) */
+    private volatile long base;
+
+    private Ring(final int capacity) {
+      this.capacity = capacity;
+      this.chunks = new AtomicReferenceArray<>((capacity + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    private long head(final long published) {
+      return Math.max(base, published - capacity);
+    }
+
+    private long sequence(final int index) {
+      final long end = published.get();
+      final long head = head(end);
+      if (index < 0 || index >= end - head) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (end - head));
+      }
+      return head + index;
+    }
+
+    /**
+     * Store a newly claimed object and stamp its slot.
+     */
+    private void append(final long sequence, final PushedNotification notification) {
+      if (capacity == 0) {
+        return;
+      }
+      final int slot = (int) (sequence % capacity);
+      final Chunk chunk = chunk(slot / CHUNK_SIZE);
+      final int offset = slot % CHUNK_SIZE;
+      /* Stamps are sequence numbers plus one, so that an unused slot (0) never matches */
+      final long previousLap = sequence + 1 - capacity;
+      while (chunk.stamps.get(offset) < previousLap) {
+        Thread.yield();
+      }
+      chunk.objects.set(offset, notification);
+      chunk.stamps.set(offset, sequence + 1);
+    }
+
+    /**
+     * Replace an object already published.
+     */
+    private void store(final long sequence, final PushedNotification notification) {
+      final int slot = (int) (sequence % capacity);
+      chunk(slot / CHUNK_SIZE).objects.set(slot % CHUNK_SIZE, notification);
+    }
+
+    private PushedNotification load(final long sequence) {
+      final int slot = (int) (sequence % capacity);
+      final Chunk chunk = chunks.get(slot / CHUNK_SIZE);
+      return chunk == null ? null : chunk.objects.get(slot % CHUNK_SIZE);
+    }
+
+    /**
+     * Determine if the object claimed with a sequence number was stored.  A writer lapping the slot only overwrites it
+     * once it was stamped, so a later stamp also means that the object was stored, even if it was not published yet.
+     */
+    private boolean isStamped(final long sequence) {
+      if (capacity == 0) {
+        return true;
+      }
+      final int slot = (int) (sequence % capacity);
+      final Chunk chunk = chunks.get(slot / CHUNK_SIZE);
+      return chunk != null && chunk.stamps.get(slot % CHUNK_SIZE) >= sequence + 1;
+    }
+
+    private Chunk chunk(final int index) {
+      Chunk chunk = chunks.get(index);
+      if (chunk == null) {
+        chunks.compareAndSet(index, null, new Chunk(Math.min(CHUNK_SIZE, capacity - index * CHUNK_SIZE)));
+        chunk = chunks.get(index);
+      }
+      return chunk;
+    }
+
+    /**
+     * Make stored objects visible to readers, along with any object stored by other writers right after them.
+     */
+    private void publish() {
+      long sequence = published.get();
+      while (sequence < claimed.get() && isStamped(sequence)) {
+        if (published.compareAndSet(sequence, sequence + 1)) {
+          sequence++;
+        } else {
+          sequence = published.get();
+        }
+      }
+    }
+  }
+
+  private static final class Chunk implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final AtomicReferenceArray<PushedNotification> objects;
+    private final AtomicLongArray stamps;
+
+    private Chunk(final int length) {
+      this.objects = new AtomicReferenceArray<>(length);
+      this.stamps = new AtomicLongArray(length);
+    }
+  }
 }
@@ -1,5 +1,7 @@
 package javapns.notification;
 
+import java.util.Map;
+
 /**
  * A response packet, as described in Apple's enhanced notification format.
  *
@@ -21,9 +23,13 @@ public class ResponsePacket {
   }
 
   void linkToPushedNotification(final PushNotificationManager notificationManager) {
+    linkToPushedNotification(notificationManager.getPushedNotifications());
+  }
+
+  void linkToPushedNotification(final Map<Integer, PushedNotification> pushedNotifications) {
     final PushedNotification notification;
     try {
-      notification = notificationManager.getPushedNotifications().get(identifier);
+      notification = pushedNotifications.get(identifier);
       if (notification != null) {
         notification.setResponse(this);
       }
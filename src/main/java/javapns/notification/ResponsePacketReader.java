@@ -15,8 +15,8 @@ import java.util.Vector;
  * @author Sylvain Pedneault
  */
 class ResponsePacketReader {
-  /* The number of seconds to wait for a response */
-  private static final int TIMEOUT = 5 * 1000;
+  /* The number of milliseconds to wait for a response */
+  static final int TIMEOUT = 5 * 1000;
 
   private ResponsePacketReader() {}
 
@@ -27,28 +27,63 @@ class ResponsePacketReader {
    * @return the number of response packets received and processed
    */
   public static int processResponses(final PushNotificationManager notificationManager) {
-    final List<ResponsePacket> responses = readResponses(notificationManager.getActiveSocket());
+    return processResponses(notificationManager, TIMEOUT);
+  }
+
+  /**
+   * Read response packets from the current APNS connection and process them,
+   * waiting no longer than the given timeout for each packet.
+   *
+   * @param notificationManager
+   * @param timeout             the number of milliseconds to wait for a response
+   * @return the number of response packets received and processed
+   */
+  static int processResponses(final PushNotificationManager notificationManager, final int timeout) {
+    final List<ResponsePacket> responses = new ArrayList<>();
+    if (readResponses(notificationManager.getActiveSocket(), timeout, responses)) {
+      notificationManager.activeConnectionEnded();
+    }
     handleResponses(responses, notificationManager);
     return responses.size();
   }
 
+  /**
+   * Read response packets from a connection that is no longer the manager's active connection,
+   * and link them to the notifications that were pushed through it.
+   *
+   * @param socket        the connection to read from
+   * @param notifications the notifications pushed through that connection, by identifier
+   * @param timeout       the number of milliseconds to wait for a response
+   * @return the number of response packets received and processed
+   */
+  static int processResponses(final Socket socket, final Map<Integer, PushedNotification> notifications, final int timeout) {
+    final List<ResponsePacket> responses = new ArrayList<>();
+    readResponses(socket, timeout, responses);
+    for (final ResponsePacket response : responses) {
+      response.linkToPushedNotification(notifications);
+    }
+    return responses.size();
+  }
+
   /**
    * Read raw response packets from the provided socket.
    * <p>
    * Note: this method automatically sets the socket's timeout
-   * to TIMEOUT, so not to block the socket's input stream.
+   * to the given timeout, so not to block the socket's input stream.
    *
    * @param socket
-   * @return
+   * @param timeout
+   * @param responses the list to add response packets to
+   * @return true if the end of the stream was reached, meaning that the server closed the connection
    */
-  private static List<ResponsePacket> readResponses(final Socket socket) {
-    final List<ResponsePacket> responses = new ArrayList<>();
+  private static boolean readResponses(final Socket socket, final int timeout, final List<ResponsePacket> responses) {
+    boolean ended = false;
     int previousTimeout = 0;
     try {
       /* Set socket timeout to avoid getting stuck on read() */
       try {
         previousTimeout = socket.getSoTimeout();
-        socket.setSoTimeout(TIMEOUT);
+        socket.setSoTimeout(timeout);
       } catch (final Exception e) {
         // empty
       }
@@ -58,6 +93,7 @@ class ResponsePacketReader {
         if (packet != null) {
           responses.add(packet);
         } else {
+          ended = true;
           break;
         }
       }
@@ -71,7 +107,7 @@ class ResponsePacketReader {
     } catch (final Exception e) {
       // empty
     }
-    return responses;
+    return ended;
   }
 
   private static void handleResponses(final List<ResponsePacket> responses, final PushNotificationManager notificationManager) {
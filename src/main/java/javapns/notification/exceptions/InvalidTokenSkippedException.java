@@ -0,0 +1,25 @@
+package javapns.notification.exceptions;
+
+/**
+ * Thrown when a notification is not pushed because its device token is known to be invalid.
+ *
+ * @see javapns.notification.InvalidTokenFilter
+ */
+public class InvalidTokenSkippedException extends Exception {
+
+  private static final long serialVersionUID = -2913455785321447126L;
+
+  public InvalidTokenSkippedException() {
+    super("Device token is known to be invalid, notification was not pushed");
+  }
+
+  /**
+   * Constructor with custom message
+   *
+   * @param message
+   */
+  public InvalidTokenSkippedException(final String message) {
+    super(message);
+  }
+
+}
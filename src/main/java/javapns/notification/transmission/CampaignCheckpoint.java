@@ -0,0 +1,286 @@
+package javapns.notification.transmission;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.CRC32;
+
+/**
+ * <h1>Records the progress of a multi-threaded campaign so that it can be resumed</h1>
+ * <p>
+ * <p>When a campaign pushed with {@link NotificationThreads} dies halfway (JVM crash, server restart, etc.),
+ * there is normally no way to tell which devices were reached.  A checkpoint records, for each partition of
+ * the campaign (i.e. each thread's share of the devices), the number of notifications confirmed so far and
+ * the last message identifier used, in a small local file.  When the same campaign is started again with the
+ * same checkpoint file, each thread skips the notifications already confirmed and resumes from there.</p>
+ * <p>
+ * <p>A notification is considered confirmed once its thread processed every error-response Apple could send
+ * about it, that is once the thread's {@link javapns.notification.PushNotificationManager#getSettledBefore() settled time}
+ * passes the time it was pushed, or once its connection was closed cleanly.  Error-responses are only read
+ * periodically, so a resumed campaign may push again the notifications sent during the last few seconds
+ * before the interruption, but never skips a notification that might not have been delivered.</p>
+ * <p>
+ * <p>The checkpoint file is bound to the campaign's layout (number of notifications and of threads):
+ * resuming with a different layout is refused.  Once a campaign completes, its checkpoint records every
+ * notification as confirmed; delete the file (or use a new one) to push a new campaign.</p>
+ * <pre>
+ * NotificationThreads threads = new NotificationThreads(server, payload, devices, 8);
+ * try (CampaignCheckpoint checkpoint = new CampaignCheckpoint(new File("campaign.checkpoint"))) {
+ *   threads.setCheckpoint(checkpoint);
+ *   threads.start();
+ *   threads.waitForAllThreads();
+ * }
+ * </pre>
+ *
+ * @see NotificationThreads#setCheckpoint(CampaignCheckpoint)
+ */
+public class CampaignCheckpoint implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(CampaignCheckpoint.class);
+
+  /* Minimum time between two progress samples kept while waiting for confirmation, in milliseconds */
+  private static final long SAMPLE_INTERVAL = 100;
+
+  private static final int MAGIC = 0x4A504E43;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+
+  /* Sequence, confirmed count, last identifier and checksum */
+  private static final int SLOT_SIZE = 16;
+
+  /* Two slots per partition, written alternately so that an interrupted write never loses the previous progress */
+  private static final int PARTITION_SIZE = 2 * SLOT_SIZE;
+
+  private final File file;
+  private MappedByteBuffer buffer;
+  private Partition[] partitions;
+
+  /**
+   * Create a checkpoint stored in the given file.  The file is created if needed, and
+   * read when the checkpoint is attached to a campaign.
+   *
+   * @param file the checkpoint file
+   */
+  public CampaignCheckpoint(final File file) {
+    this.file = file;
+  }
+
+  /**
+   * Bind this checkpoint to a campaign layout, recovering the progress previously recorded for the same layout.
+   *
+   * @param sizes the number of notifications in each partition
+   * @throws IOException thrown if the checkpoint file could not be read or written
+   * @throws IllegalStateException thrown if the file records a campaign with a different layout
+   */
+  synchronized void attach(final int[] sizes) throws IOException {
+    if (partitions != null) {
+      throw new IllegalStateException("Checkpoint already attached to a campaign");
+    }
+    int total = 0;
+    for (final int size : sizes) {
+      total += size;
+    }
+    final int length = HEADER_SIZE + sizes.length * PARTITION_SIZE;
+    final boolean existing = file.length() > 0;
+    try (final RandomAccessFile raf = new RandomAccessFile(file, "rw"); final FileChannel channel = raf.getChannel()) {
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+    if (existing && buffer.getInt(0) == MAGIC) {
+      if (buffer.getInt(4) != VERSION || buffer.getInt(8) != total || buffer.getInt(12) != sizes.length) {
+        throw new IllegalStateException("Checkpoint file " + file + " was recorded for a campaign of " + buffer.getInt(8) + " notifications in " + buffer.getInt(12) + " partitions, not " + total + " in " + sizes.length);
+      }
+    } else {
+      for (int i = 0; i < length; i++) {
+        buffer.put(i, (byte) 0);
+      }
+      buffer.putInt(4, VERSION);
+      buffer.putInt(8, total);
+      buffer.putInt(12, sizes.length);
+      /* The magic number goes last, so that a file interrupted while being initialized is initialized again */
+      buffer.putInt(0, MAGIC);
+    }
+    partitions = new Partition[sizes.length];
+    int confirmed = 0;
+    for (int i = 0; i < sizes.length; i++) {
+      partitions[i] = new Partition(i, sizes[i]);
+      confirmed += partitions[i].getResumeIndex();
+    }
+    if (confirmed > 0) {
+      logger.info("Resuming campaign from checkpoint " + file + ": " + confirmed + " of " + total + " notifications already confirmed");
+    }
+  }
+
+  /**
+   * Get the progress of a partition.
+   *
+   * @param index the partition's index (the thread's position in its group)
+   * @return a partition
+   */
+  synchronized Partition getPartition(final int index) {
+    if (partitions == null) {
+      throw new IllegalStateException("Checkpoint not attached to a campaign");
+    }
+    return partitions[index];
+  }
+
+  /**
+   * Get the number of notifications confirmed in all partitions.
+   *
+   * @return a number of notifications
+   */
+  public synchronized int getConfirmed() {
+    int confirmed = 0;
+    if (partitions != null) {
+      for (final Partition partition : partitions) {
+        confirmed += partition.confirmed;
+      }
+    }
+    return confirmed;
+  }
+
+  /**
+   * Determine if every notification of the campaign was confirmed.
+   *
+   * @return true if the campaign completed
+   */
+  public synchronized boolean isComplete() {
+    if (partitions == null) {
+      return false;
+    }
+    for (final Partition partition : partitions) {
+      if (partition.confirmed < partition.size) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Flush the recorded progress to disk.
+   */
+  public synchronized void close() {
+    if (buffer != null) {
+      buffer.force();
+    }
+  }
+
+  private static int checksum(final int partition, final int sequence, final int confirmed, final int identifier) {
+    final CRC32 crc = new CRC32();
+    for (final int value : new int[]{partition, sequence, confirmed, identifier}) {
+      crc.update(value >>> 24);
+      crc.update(value >>> 16);
+      crc.update(value >>> 8);
+      crc.update(value);
+    }
+    return (int) crc.getValue();
+  }
+
+  /**
+   * The progress of a single partition, updated by the thread pushing it.
+   */
+  final class Partition {
+    private final int index;
+    private final int size;
+    private final int offset;
+    private final Deque<long[]> samples = new ArrayDeque<>();
+    private int sequence;
+    private volatile int confirmed;
+    private int lastIdentifier;
+    private long lastSample;
+
+    private Partition(final int index, final int size) {
+      this.index = index;
+      this.size = size;
+      this.offset = HEADER_SIZE + index * PARTITION_SIZE;
+      for (int slot = 0; slot < 2; slot++) {
+        final int position = offset + slot * SLOT_SIZE;
+        final int slotSequence = buffer.getInt(position);
+        final int slotConfirmed = buffer.getInt(position + 4);
+        final int slotIdentifier = buffer.getInt(position + 8);
+        if (slotSequence > sequence && buffer.getInt(position + 12) == checksum(index, slotSequence, slotConfirmed, slotIdentifier)) {
+          sequence = slotSequence;
+          confirmed = Math.min(slotConfirmed, size);
+          lastIdentifier = slotIdentifier;
+        }
+      }
+    }
+
+    /**
+     * Get the number of notifications to skip when this partition is pushed.
+     *
+     * @return the index of the first notification not yet confirmed
+     */
+    int getResumeIndex() {
+      return confirmed;
+    }
+
+    /**
+     * Get the identifier of the last notification confirmed.
+     *
+     * @return a message identifier, or 0 if none was confirmed
+     */
+    int getLastIdentifier() {
+      return lastIdentifier;
+    }
+
+    /**
+     * Record that a notification was pushed.  It becomes confirmed once every notification pushed
+     * before it is final, according to the settled time of the thread's manager.
+     *
+     * @param count         the number of notifications of the partition pushed so far
+     * @param identifier    the identifier of the notification just pushed
+     * @param settledBefore the time before which every notification pushed by the thread is final
+     * @see javapns.notification.PushNotificationManager#getSettledBefore()
+     */
+    void pushed(final int count, final int identifier, final long settledBefore) {
+      final long now = System.currentTimeMillis();
+      if (now - lastSample >= SAMPLE_INTERVAL) {
+        /* Every notification counted in this sample was pushed before the sample was taken */
+        samples.addLast(new long[]{now, count, identifier});
+        lastSample = now;
+      }
+      long[] sample = null;
+      while (!samples.isEmpty() && samples.peekFirst()[0] <= settledBefore) {
+        sample = samples.pollFirst();
+      }
+      if (sample != null) {
+        write((int) sample[1], (int) sample[2]);
+      }
+    }
+
+    /**
+     * Record that the partition's connection was closed cleanly, confirming every notification pushed.
+     *
+     * @param count      the number of notifications of the partition pushed
+     * @param identifier the identifier of the last notification pushed
+     */
+    void completed(final int count, final int identifier) {
+      samples.clear();
+      write(count, identifier);
+    }
+
+    private void write(final int count, final int identifier) {
+      if (count <= confirmed) {
+        return;
+      }
+      sequence++;
+      final int position = offset + (sequence & 1) * SLOT_SIZE;
+      buffer.putInt(position + 4, count);
+      buffer.putInt(position + 8, identifier);
+      buffer.putInt(position + 12, checksum(index, sequence, count, identifier));
+      buffer.putInt(position, sequence);
+      confirmed = count;
+      lastIdentifier = identifier;
+    }
+  }
+}
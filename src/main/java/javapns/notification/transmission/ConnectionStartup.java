@@ -0,0 +1,135 @@
+package javapns.notification.transmission;
+
+import javapns.communication.exceptions.CommunicationException;
+import javapns.communication.exceptions.KeystoreException;
+import javapns.notification.AppleNotificationServer;
+import javapns.notification.PushNotificationManager;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinates the parallel establishment of a group of connections.
+ * <p>
+ * All connections are opened at once, optionally limited to a maximum number of
+ * simultaneous TLS handshakes and spread over a random jitter to avoid hitting
+ * Apple with a burst of handshakes.  Callers can wait until all connections,
+ * or a quorum of them, are ready.
+ */
+final class ConnectionStartup {
+  private final int connections;
+  private final Semaphore handshakes;
+  private final long jitter;
+
+  private int established = 0;
+  private int failed = 0;
+
+  /**
+   * @param connections            the number of connections in the group
+   * @param maxConcurrentHandshakes the maximum number of handshakes in progress at once (0 for no limit)
+   * @param jitter                 the maximum random delay in milliseconds before each connection attempt (0 for none)
+   */
+  ConnectionStartup(final int connections, final int maxConcurrentHandshakes, final long jitter) {
+    this.connections = connections;
+    this.handshakes = maxConcurrentHandshakes > 0 ? new Semaphore(maxConcurrentHandshakes, true) : null;
+    this.jitter = jitter;
+  }
+
+  /**
+   * Open a connection and perform its TLS handshake, honoring the concurrency cap and jitter.
+   * An interrupt received while waiting does not abort the connection: the wait goes on, and the
+   * thread's interrupt status is restored once the connection attempt is over.
+   *
+   * @param notificationManager the manager that will own the connection
+   * @param server              the server to connect to
+   * @throws CommunicationException thrown if a communication error occurs
+   * @throws KeystoreException      thrown if there is a problem with your keystore
+   */
+  void connect(final PushNotificationManager notificationManager, final AppleNotificationServer server) throws CommunicationException, KeystoreException {
+    boolean success = false;
+    boolean interrupted = false;
+    try {
+      if (jitter > 0) {
+        interrupted = sleepUninterruptibly(ThreadLocalRandom.current().nextLong(jitter + 1));
+      }
+      if (handshakes != null) {
+        handshakes.acquireUninterruptibly();
+      }
+      try {
+        notificationManager.initializeConnection(server);
+        success = true;
+      } finally {
+        if (handshakes != null) {
+          handshakes.release();
+        }
+      }
+    } finally {
+      connectionFinished(success);
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Sleep for the given delay, going back to sleep if interrupted.
+   *
+   * @param delay the delay in milliseconds
+   * @return true if the thread was interrupted while sleeping
+   */
+  private static boolean sleepUninterruptibly(final long delay) {
+    boolean interrupted = false;
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+    long remaining = delay;
+    while (remaining > 0) {
+      try {
+        Thread.sleep(remaining);
+      } catch (final InterruptedException e) {
+        interrupted = true;
+      }
+      remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+    return interrupted;
+  }
+
+  private synchronized void connectionFinished(final boolean success) {
+    if (success) {
+      established++;
+    } else {
+      failed++;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Wait until a quorum of connections is established, or until all attempts are over.
+   *
+   * @param quorum  the number of established connections to wait for (capped to the size of the group)
+   * @param timeout the maximum time to wait
+   * @param unit    the unit of the timeout argument
+   * @return true if the quorum was reached, false if too many connections failed or the timeout elapsed
+   * @throws InterruptedException if the current thread was interrupted while waiting
+   */
+  synchronized boolean await(final int quorum, final long timeout, final TimeUnit unit) throws InterruptedException {
+    final int target = Math.min(quorum, connections);
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (established < target && established + failed < connections) {
+      final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining <= 0) {
+        break;
+      }
+      wait(remaining);
+    }
+    return established >= target;
+  }
+
+  /**
+   * Get the number of connections established so far.
+   *
+   * @return the number of connections ready to push
+   */
+  synchronized int getEstablished() {
+    return established;
+  }
+}
@@ -0,0 +1,890 @@
+package javapns.notification.transmission;
+
+import javapns.devices.Device;
+import javapns.devices.exceptions.InvalidDeviceTokenFormatException;
+import javapns.notification.AppleNotificationServer;
+import javapns.notification.Payload;
+import javapns.notification.PayloadPerDevice;
+import javapns.notification.PushedNotifications;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <h1>A queue sharing its connections fairly between tenants, campaigns or any other flows of notifications</h1>
+ * <p>
+ * <p>A plain {@link PushQueue} pushes messages in the order they were added, so that everything added after a very
+ * large campaign waits until that campaign is complete.  A FairScheduler keeps a separate queue for each flow
+ * (typically a tenant or a campaign) and its connections take messages from all flows with non-empty queues in turn,
+ * following a deficit round-robin: each turn, a flow pushes as many messages as its weight.  A flow added behind
+ * millions of queued messages therefore starts pushing after at most one turn of each other active flow, however
+ * many messages those flows have queued.</p>
+ * <pre>
+ * FairScheduler scheduler = new FairScheduler(server, 8).start();
+ * scheduler.setWeight("transactional", 4);
+ * scheduler.add("marketing", payload, token);
+ * scheduler.add("transactional", otherPayload, otherToken);
+ * </pre>
+ * <p>
+ * <p>Messages are also queued in a lane according to their {@link NotificationPriority}, each lane sharing its turns
+ * between its own flows.  By default, lanes are drained strictly: a message is only taken from a lane when all higher
+ * lanes are empty, so a time-sensitive message waits for no more than the messages being pushed at that moment.
+ * Lanes can instead be drained by weight, so that lower lanes keep a share of the connections under sustained
+ * high-priority traffic.  Some connections can also be reserved for the {@link NotificationPriority#HIGH high} lane,
+ * so that urgent messages never wait for a connection busy with other messages.</p>
+ * <p>
+ * <p>Messages added without a flow go to the {@link #DEFAULT_FLOW default flow}, and messages added without a priority
+ * to the {@link NotificationPriority#NORMAL normal} lane.  Flows are created when messages are added to them and
+ * discarded once their queue is empty, so campaigns can be used as flows freely.  Weights are remembered for flows
+ * even when their queue is empty.  Queued messages are kept in memory.  This class is thread-safe.</p>
+ * <p>
+ * <p>By default, every message is kept until it is pushed.  A {@link SheddingPolicy} can bound the queue and drop
+ * messages that no longer matter when it backs up: expired messages, the lowest priority messages, or messages
+ * superseded by a newer one to the same device.  Dropped messages are counted, and reported to a {@link SheddingListener}.</p>
+ *
+ * @see NotificationThreads
+ */
+public class FairScheduler implements PushQueue {
+  /**
+   * The flow to which messages added without a flow are queued.
+   */
+  public static final String DEFAULT_FLOW = "default";
+
+  /* Minimum time between two scans of the whole queue for expired messages, in milliseconds */
+  private static final long SWEEP_INTERVAL = 1000;
+
+  /* Dropped messages a flow can hold before it is compacted, as long as they are fewer than its queued messages */
+  private static final int MIN_TOMBSTONES = 64;
+
+  /* Default number of messages each lane pushes per turn when lanes are drained by weight */
+  private static final int[] DEFAULT_PRIORITY_WEIGHTS = {16, 4, 1};
+
+  private static final NotificationPriority[] PRIORITIES = NotificationPriority.values();
+
+  private final NotificationThreads threads;
+
+  /* Guards the queues, and wakes threads up when messages are queued.
+     A lock rather than a monitor, so that waiting does not pin a virtual thread to its carrier */
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition queueChanged = lock.newCondition();
+
+  /* Lanes, from the highest priority to the lowest */
+  private final Lane[] lanes = new Lane[PRIORITIES.length];
+
+  private final Map<String, Integer> weights = new HashMap<>();
+  private int defaultWeight = 1;
+  private int size;
+
+  /* Number of messages ever queued, to order messages of different flows */
+  private long sequence;
+
+  private boolean strictPriority = true;
+  private int currentLane;
+  private int laneDeficit;
+  private Set<NotificationThread> reservedThreads = new HashSet<>();
+
+  private volatile SheddingPolicy sheddingPolicy = new SheddingPolicy();
+  private volatile SheddingListener sheddingListener;
+  private final long[] shedCounts = new long[SheddingListener.Reason.values().length];
+
+  /* Messages dropped while the scheduler is locked, to be reported once it is unlocked */
+  private final List<Shed> shed = new ArrayList<>();
+
+  /* Latest message queued for each device, when coalescing messages by device */
+  private final Map<String, Queued> latest = new HashMap<>();
+  private long lastSweep;
+
+  /**
+   * Create a scheduler with its own pool of connections.
+   *
+   * @param server              the server to push to
+   * @param numberOfConnections the number of connections (and threads) sharing the work
+   */
+  public FairScheduler(final AppleNotificationServer server, final int numberOfConnections) {
+    this(new NotificationThreads(server, numberOfConnections));
+  }
+
+  /**
+   * Create a scheduler feeding a pool of threads in QUEUE mode.
+   * From then on, messages added to the pool are queued to the default flow of this scheduler.
+   * <p>
+   * The threads must not be started yet, and must not use journals.
+   *
+   * @param threads a pool of threads in QUEUE mode
+   */
+  public FairScheduler(final NotificationThreads threads) {
+    for (final NotificationPriority priority : PRIORITIES) {
+      lanes[priority.ordinal()] = new Lane(priority, DEFAULT_PRIORITY_WEIGHTS[priority.ordinal()]);
+    }
+    this.threads = threads;
+    threads.setScheduler(this);
+  }
+
+  /**
+   * Queue a message for delivery as part of a flow.
+   *
+   * @param flow    the name of a flow, such as a tenant or a campaign
+   * @param payload a payload
+   * @param token   a device token
+   * @return this scheduler
+   * @throws InvalidDeviceTokenFormatException
+   */
+  public PushQueue add(final String flow, final Payload payload, final String token) throws InvalidDeviceTokenFormatException {
+    return add(flow, new PayloadPerDevice(payload, token));
+  }
+
+  /**
+   * Queue a message for delivery as part of a flow.
+   *
+   * @param flow    the name of a flow, such as a tenant or a campaign
+   * @param payload a payload
+   * @param device  a device
+   * @return this scheduler
+   */
+  public PushQueue add(final String flow, final Payload payload, final Device device) {
+    return add(flow, new PayloadPerDevice(payload, device));
+  }
+
+  /**
+   * Queue a message for delivery as part of a flow.
+   *
+   * @param flow    the name of a flow, such as a tenant or a campaign
+   * @param message a payload/device pair
+   * @return this scheduler
+   */
+  public PushQueue add(final String flow, final PayloadPerDevice message) {
+    return add(flow, message, NotificationPriority.NORMAL);
+  }
+
+  /**
+   * Queue a message for delivery as part of a flow, in a priority lane.
+   *
+   * @param flow     the name of a flow, such as a tenant or a campaign
+   * @param payload  a payload
+   * @param device   a device
+   * @param priority the lane in which the message waits
+   * @return this scheduler
+   */
+  public PushQueue add(final String flow, final Payload payload, final Device device, final NotificationPriority priority) {
+    return add(flow, new PayloadPerDevice(payload, device), priority);
+  }
+
+  /**
+   * Queue a message for delivery as part of a flow, in a priority lane.
+   *
+   * @param flow     the name of a flow, such as a tenant or a campaign
+   * @param message  a payload/device pair
+   * @param priority the lane in which the message waits
+   * @return this scheduler
+   */
+  public PushQueue add(final String flow, final PayloadPerDevice message, final NotificationPriority priority) {
+    threads.start(); // just in case start() was not invoked before
+    final List<Shed> dropped;
+    lock.lock();
+    try {
+      enqueue(flow, message, priority);
+      dropped = drainShed();
+    } finally {
+      lock.unlock();
+    }
+    report(dropped);
+    return this;
+  }
+
+  public PushQueue add(final Payload payload, final String token) throws InvalidDeviceTokenFormatException {
+    return add(DEFAULT_FLOW, payload, token);
+  }
+
+  public PushQueue add(final Payload payload, final Device device) {
+    return add(DEFAULT_FLOW, payload, device);
+  }
+
+  public PushQueue add(final PayloadPerDevice message) {
+    return add(DEFAULT_FLOW, message);
+  }
+
+  public PushQueue add(final PayloadPerDevice message, final NotificationPriority priority) {
+    return add(DEFAULT_FLOW, message, priority);
+  }
+
+  private void enqueue(final String name, final PayloadPerDevice message, final NotificationPriority priority) {
+    final SheddingPolicy policy = sheddingPolicy;
+    final long now = System.currentTimeMillis();
+    final String token = message.getDevice().getToken();
+    if (policy.isCoalesceByDevice()) {
+      final Queued previous = latest.get(token);
+      if (previous != null) {
+        drop(previous, SheddingListener.Reason.COALESCED);
+      }
+    }
+    final int maxQueuedMessages = policy.getMaxQueuedMessages();
+    if (maxQueuedMessages > 0 && size >= maxQueuedMessages && !makeRoom(policy, priority, now)) {
+      shed(SheddingListener.Reason.OVERFLOW, message, priority);
+      return;
+    }
+    final Lane lane = lanes[priority.ordinal()];
+    Flow flow = lane.flows.get(name);
+    if (flow == null) {
+      flow = new Flow(name, lane, getWeight(name));
+      lane.flows.put(name, flow);
+      lane.active.addLast(flow);
+    }
+    final int expiry = message.getPayload().getExpiry();
+    final Queued queued = new Queued(message, flow, sequence++, expiry > 0 ? now + expiry * 1000L : Long.MAX_VALUE);
+    flow.messages.addLast(queued);
+    flow.size++;
+    lane.size++;
+    size++;
+    if (policy.isCoalesceByDevice()) {
+      latest.put(token, queued);
+    }
+    /* Reserved threads only wait for high-priority messages, so wake all waiting threads */
+    queueChanged.signalAll();
+  }
+
+  /**
+   * Drop queued messages to make room for a new one when the queue is full.
+   *
+   * @return true if there is room for the new message
+   */
+  private boolean makeRoom(final SheddingPolicy policy, final NotificationPriority priority, final long now) {
+    if (policy.isDropExpired() && now - lastSweep >= SWEEP_INTERVAL) {
+      lastSweep = now;
+      dropExpired(now);
+      if (size < policy.getMaxQueuedMessages()) {
+        return true;
+      }
+    }
+    if (!policy.isDropLowestPriority()) {
+      return false;
+    }
+    for (int i = lanes.length - 1; i >= priority.ordinal(); i--) {
+      final Lane lane = lanes[i];
+      if (lane.size > 0) {
+        drop(oldest(lane), SheddingListener.Reason.OVERFLOW);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Find the message queued first in a non-empty lane.  Each flow queues its messages in order,
+   * so that message is at the head of one of the lane's flows.
+   */
+  private static Queued oldest(final Lane lane) {
+    Queued oldest = null;
+    for (final Flow flow : lane.active) {
+      Queued head;
+      while ((head = flow.messages.peekFirst()).dropped) {
+        flow.messages.pollFirst();
+      }
+      if (oldest == null || head.sequence < oldest.sequence) {
+        oldest = head;
+      }
+    }
+    return oldest;
+  }
+
+  /**
+   * Drop all queued messages whose payload expired.
+   */
+  private void dropExpired(final long now) {
+    for (final Lane lane : lanes) {
+      for (final Flow flow : new ArrayList<>(lane.active)) {
+        final List<Queued> expired = new ArrayList<>();
+        for (final Queued queued : flow.messages) {
+          if (!queued.dropped && queued.deadline < now) {
+            expired.add(queued);
+          }
+        }
+        for (final Queued queued : expired) {
+          drop(queued, SheddingListener.Reason.EXPIRED);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop a queued message.  It is left in its flow's queue, and skipped when its turn comes,
+   * unless dropped messages come to outnumber the messages still queued in that flow.
+   */
+  private void drop(final Queued queued, final SheddingListener.Reason reason) {
+    queued.dropped = true;
+    remove(queued);
+    shed(reason, queued.message, queued.flow.lane.priority);
+    final Flow flow = queued.flow;
+    final int tombstones = flow.messages.size() - flow.size;
+    if (flow.size > 0 && tombstones >= MIN_TOMBSTONES && tombstones > flow.size) {
+      flow.messages.removeIf(message -> message.dropped);
+    }
+  }
+
+  /**
+   * Account for a message leaving its flow, either to be pushed or because it was dropped.
+   */
+  private void remove(final Queued queued) {
+    final Flow flow = queued.flow;
+    flow.size--;
+    flow.lane.size--;
+    size--;
+    if (flow.size == 0) {
+      flow.lane.active.remove(flow);
+      flow.lane.flows.remove(flow.name);
+    }
+    if (!latest.isEmpty()) {
+      latest.remove(queued.message.getDevice().getToken(), queued);
+    }
+  }
+
+  private void shed(final SheddingListener.Reason reason, final PayloadPerDevice message, final NotificationPriority priority) {
+    shedCounts[reason.ordinal()]++;
+    if (sheddingListener != null) {
+      shed.add(new Shed(reason, message, priority));
+    }
+  }
+
+  private List<Shed> drainShed() {
+    if (shed.isEmpty()) {
+      return null;
+    }
+    final List<Shed> dropped = new ArrayList<>(shed);
+    shed.clear();
+    return dropped;
+  }
+
+  /**
+   * Report dropped messages to the listener, once the scheduler is unlocked.
+   */
+  private void report(final List<Shed> dropped) {
+    final SheddingListener listener = sheddingListener;
+    if (dropped == null || listener == null) {
+      return;
+    }
+    for (final Shed event : dropped) {
+      listener.eventShed(event.reason, event.message, event.priority);
+    }
+  }
+
+  /**
+   * Take the next message for a thread to push, if any.
+   *
+   * @param thread the thread asking for a message
+   * @return a message, or null if no message is queued for that thread
+   */
+  PayloadPerDevice poll(final NotificationThread thread) {
+    final PayloadPerDevice message;
+    final List<Shed> dropped;
+    lock.lock();
+    try {
+      message = next(thread, sheddingPolicy.isDropExpired() ? System.currentTimeMillis() : 0);
+      dropped = drainShed();
+    } finally {
+      lock.unlock();
+    }
+    report(dropped);
+    return message;
+  }
+
+  private PayloadPerDevice next(final NotificationThread thread, final long now) {
+    if (reservedThreads.contains(thread)) {
+      return take(lanes[0], now);
+    }
+    if (strictPriority) {
+      for (final Lane lane : lanes) {
+        final PayloadPerDevice message = take(lane, now);
+        if (message != null) {
+          return message;
+        }
+      }
+      return null;
+    }
+    /* Lanes take turns as well, each pushing as many messages as its weight */
+    for (int attempts = 0; attempts < lanes.length; attempts++) {
+      final Lane lane = lanes[currentLane];
+      final PayloadPerDevice message = take(lane, now);
+      if (message != null) {
+        if (laneDeficit <= 0) {
+          laneDeficit = lane.weight;
+        }
+        laneDeficit--;
+        if (laneDeficit <= 0 || lane.size == 0) {
+          nextLane();
+        }
+        return message;
+      }
+      nextLane();
+    }
+    return null;
+  }
+
+  private void nextLane() {
+    currentLane = (currentLane + 1) % lanes.length;
+    laneDeficit = 0;
+  }
+
+  /**
+   * Take the next message of a lane, dropping expired messages on the way if the policy says so.
+   *
+   * @param now the current time, or 0 not to drop expired messages
+   */
+  private PayloadPerDevice take(final Lane lane, final long now) {
+    Flow flow;
+    while ((flow = lane.active.peekFirst()) != null) {
+      final Queued queued = flow.messages.pollFirst();
+      if (queued.dropped) {
+        continue;
+      }
+      if (queued.deadline < now) {
+        drop(queued, SheddingListener.Reason.EXPIRED);
+        continue;
+      }
+      if (flow.deficit <= 0) {
+        /* The flow starts its turn */
+        flow.deficit += flow.weight;
+      }
+      flow.deficit--;
+      remove(queued);
+      if (flow.size > 0 && flow.deficit <= 0) {
+        /* The flow used up its turn */
+        lane.active.addLast(lane.active.pollFirst());
+      }
+      return queued.message;
+    }
+    return null;
+  }
+
+  /**
+   * Wait until a message is queued for a thread.
+   *
+   * @param thread  the thread waiting for a message
+   * @param timeout the maximum time to wait, in milliseconds
+   */
+  void awaitMessages(final NotificationThread thread, final long timeout) {
+    lock.lock();
+    try {
+      final int available = reservedThreads.contains(thread) ? lanes[0].size : size;
+      if (available == 0) {
+        queueChanged.await(timeout, TimeUnit.MILLISECONDS);
+      }
+    } catch (final InterruptedException e) {
+      // empty
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Set the weight of a flow: the number of messages it pushes each turn, relative to other flows in the same lane.
+   * The new weight applies from the flow's next turn.
+   *
+   * @param flow   the name of a flow
+   * @param weight a weight, at least 1 (default is 1)
+   */
+  public void setWeight(final String flow, final int weight) {
+    lock.lock();
+    try {
+      if (weight <= 0) {
+        throw new IllegalArgumentException("Weights must be positive");
+      }
+      weights.put(flow, weight);
+      for (final Lane lane : lanes) {
+        final Flow queued = lane.flows.get(flow);
+        if (queued != null) {
+          queued.weight = weight;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the weight of a flow.
+   *
+   * @param flow the name of a flow
+   * @return the weight set for the flow, or the default weight
+   */
+  public int getWeight(final String flow) {
+    lock.lock();
+    try {
+      final Integer weight = weights.get(flow);
+      return weight != null ? weight : defaultWeight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getDefaultWeight() {
+    lock.lock();
+    try {
+      return defaultWeight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Set the weight of flows for which no weight was set.
+   *
+   * @param defaultWeight a weight, at least 1 (default is 1)
+   */
+  public void setDefaultWeight(final int defaultWeight) {
+    lock.lock();
+    try {
+      if (defaultWeight <= 0) {
+        throw new IllegalArgumentException("Weights must be positive");
+      }
+      this.defaultWeight = defaultWeight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean isStrictPriority() {
+    lock.lock();
+    try {
+      return strictPriority;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Choose how lanes are drained.
+   *
+   * @param strictPriority true to take messages from a lane only when all higher lanes are empty (default),
+   *                       false to let lanes take turns according to their {@link #setPriorityWeight(NotificationPriority, int) weight}
+   */
+  public void setStrictPriority(final boolean strictPriority) {
+    lock.lock();
+    try {
+      this.strictPriority = strictPriority;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of messages a lane pushes per turn when lanes are drained by weight.
+   *
+   * @param priority a lane
+   * @return a weight
+   */
+  public int getPriorityWeight(final NotificationPriority priority) {
+    lock.lock();
+    try {
+      return lanes[priority.ordinal()].weight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Set the number of messages a lane pushes per turn when lanes are drained by weight.
+   *
+   * @param priority a lane
+   * @param weight   a weight, at least 1 (default is 16 for high, 4 for normal and 1 for low priority)
+   */
+  public void setPriorityWeight(final NotificationPriority priority, final int weight) {
+    lock.lock();
+    try {
+      if (weight <= 0) {
+        throw new IllegalArgumentException("Weights must be positive");
+      }
+      lanes[priority.ordinal()].weight = weight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of connections reserved for high-priority messages.
+   *
+   * @return a number of connections
+   */
+  public int getReservedConnections() {
+    lock.lock();
+    try {
+      return reservedThreads.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reserve connections for {@link NotificationPriority#HIGH high-priority} messages: these connections
+   * push no other messages, and stay available for urgent messages whatever the load of other lanes.
+   *
+   * @param connections a number of connections, lower than the number of connections of this scheduler (default is 0)
+   */
+  public void setReservedConnections(final int connections) {
+    lock.lock();
+    try {
+      final List<NotificationThread> all = threads.getThreads();
+      if (connections < 0 || connections >= all.size()) {
+        throw new IllegalArgumentException("Between 0 and " + (all.size() - 1) + " connections can be reserved");
+      }
+      reservedThreads = new HashSet<>(all.subList(0, connections));
+      queueChanged.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public SheddingPolicy getSheddingPolicy() {
+    return sheddingPolicy;
+  }
+
+  /**
+   * Set the policy deciding which messages are dropped when the queue backs up.
+   *
+   * @param sheddingPolicy a policy (default is a policy dropping nothing)
+   */
+  public void setSheddingPolicy(final SheddingPolicy sheddingPolicy) {
+    this.sheddingPolicy = sheddingPolicy != null ? sheddingPolicy : new SheddingPolicy();
+  }
+
+  public SheddingListener getSheddingListener() {
+    return sheddingListener;
+  }
+
+  /**
+   * Set a listener to be notified of every message dropped according to the shedding policy.
+   *
+   * @param sheddingListener a listener, or null
+   */
+  public void setSheddingListener(final SheddingListener sheddingListener) {
+    this.sheddingListener = sheddingListener;
+  }
+
+  /**
+   * Get the number of messages dropped for a given reason since this scheduler was created.
+   *
+   * @param reason a reason
+   * @return a number of messages
+   */
+  public long getShedCount(final SheddingListener.Reason reason) {
+    lock.lock();
+    try {
+      return shedCounts[reason.ordinal()];
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of messages dropped since this scheduler was created.
+   *
+   * @return a number of messages
+   */
+  public long getShedCount() {
+    lock.lock();
+    try {
+      long total = 0;
+      for (final long count : shedCounts) {
+        total += count;
+      }
+      return total;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of messages queued in a flow, in all lanes.
+   *
+   * @param flow the name of a flow
+   * @return a number of messages
+   */
+  public int getDepth(final String flow) {
+    lock.lock();
+    try {
+      int depth = 0;
+      for (final Lane lane : lanes) {
+        final Flow queued = lane.flows.get(flow);
+        if (queued != null) {
+          depth += queued.size;
+        }
+      }
+      return depth;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of entries a flow holds in memory, in all lanes, including dropped messages not discarded yet.
+   *
+   * @param flow the name of a flow
+   * @return a number of entries
+   */
+  int getRetained(final String flow) {
+    lock.lock();
+    try {
+      int retained = 0;
+      for (final Lane lane : lanes) {
+        final Flow queued = lane.flows.get(flow);
+        if (queued != null) {
+          retained += queued.messages.size();
+        }
+      }
+      return retained;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of messages queued in a lane.
+   *
+   * @param priority a lane
+   * @return a number of messages
+   */
+  public int getDepth(final NotificationPriority priority) {
+    lock.lock();
+    try {
+      return lanes[priority.ordinal()].size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of messages queued in each flow, in all lanes.
+   * Flows are listed in the order they will take their next turn, starting with the highest lane.
+   *
+   * @return a map of flow names to numbers of messages, holding only flows with queued messages
+   */
+  public Map<String, Integer> getDepths() {
+    lock.lock();
+    try {
+      final Map<String, Integer> depths = new LinkedHashMap<>();
+      for (final Lane lane : lanes) {
+        for (final Flow flow : lane.active) {
+          depths.merge(flow.name, flow.size, Integer::sum);
+        }
+      }
+      return depths;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of messages queued in all flows and lanes.
+   *
+   * @return a number of messages
+   */
+  public int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the threads pushing the messages of this scheduler, for example to configure them or to wait for their connections.
+   *
+   * @return a pool of threads in QUEUE mode
+   */
+  public NotificationThreads getThreads() {
+    return threads;
+  }
+
+  public FairScheduler start() {
+    threads.start();
+    return this;
+  }
+
+  public List<Exception> getCriticalExceptions() {
+    return threads.getCriticalExceptions();
+  }
+
+  public PushedNotifications getPushedNotifications() {
+    return threads.getPushedNotifications();
+  }
+
+  public void clearPushedNotifications() {
+    threads.clearPushedNotifications();
+  }
+
+  /**
+   * The flows queued with a given priority, in the order they take their turn.
+   */
+  private static final class Lane {
+    private final NotificationPriority priority;
+    private final Map<String, Flow> flows = new HashMap<>();
+    private final ArrayDeque<Flow> active = new ArrayDeque<>();
+    private int weight;
+    private int size;
+
+    private Lane(final NotificationPriority priority, final int weight) {
+      this.priority = priority;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * The messages queued for a flow, along with its share of the current turn.
+   * Dropped messages stay in the queue until their turn comes or the queue is compacted, but are not counted in its size.
+   */
+  private static final class Flow {
+    private final String name;
+    private final Lane lane;
+    private final ArrayDeque<Queued> messages = new ArrayDeque<>();
+    private int weight;
+    private int deficit;
+    private int size;
+
+    private Flow(final String name, final Lane lane, final int weight) {
+      this.name = name;
+      this.lane = lane;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * A message waiting in a flow.
+   */
+  private static final class Queued {
+    private final PayloadPerDevice message;
+    private final Flow flow;
+    private final long sequence;
+    private final long deadline;
+    private boolean dropped;
+
+    private Queued(final PayloadPerDevice message, final Flow flow, final long sequence, final long deadline) {
+      this.message = message;
+      this.flow = flow;
+      this.sequence = sequence;
+      this.deadline = deadline;
+    }
+  }
+
+  /**
+   * A message dropped, waiting to be reported.
+   */
+  private static final class Shed {
+    private final SheddingListener.Reason reason;
+    private final PayloadPerDevice message;
+    private final NotificationPriority priority;
+
+    private Shed(final SheddingListener.Reason reason, final PayloadPerDevice message, final NotificationPriority priority) {
+      this.reason = reason;
+      this.message = message;
+      this.priority = priority;
+    }
+  }
+}
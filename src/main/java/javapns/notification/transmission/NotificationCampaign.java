@@ -0,0 +1,235 @@
+package javapns.notification.transmission;
+
+import javapns.devices.Device;
+import javapns.notification.Payload;
+import javapns.notification.PayloadPerDevice;
+import javapns.notification.PushedNotification;
+import javapns.notification.PushedNotifications;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <h1>A batch of notifications submitted to a {@link NotificationSenderPool}</h1>
+ * <p>
+ * <p>Every sender in the pool takes part in the campaign by claiming small chunks of notifications
+ * until none are left, so faster connections naturally take a larger share of the work.
+ * The campaign is done once every sender has pushed its share and processed Apple's error-responses.</p>
+ * <p>
+ * <p>A campaign is a {@link Future}: use {@code get()} to wait for the pushed notifications,
+ * or {@code isDone()} to poll for completion.  Campaigns cannot be cancelled.</p>
+ *
+ * @see NotificationSenderPool
+ */
+public class NotificationCampaign implements Future<PushedNotifications> {
+  /* Number of notifications claimed at once by a sender */
+  private static final int CHUNK_SIZE = 64;
+
+  private final Payload payload;
+  private final List<Device> devices;
+  private final List<PayloadPerDevice> messages;
+  private final int total;
+
+  private final AtomicInteger nextIndex = new AtomicInteger();
+  private final AtomicInteger sendersRunning;
+  private final CountDownLatch finished = new CountDownLatch(1);
+  private final List<PushedNotifications> results = new CopyOnWriteArrayList<>();
+  private final List<Exception> criticalExceptions = new CopyOnWriteArrayList<>();
+
+  private volatile PushedNotifications pushedNotifications;
+
+  /**
+   * Create a campaign pushing a single payload to a list of devices.
+   *
+   * @param payload the payload to push
+   * @param devices the devices to push to
+   * @param senders the number of senders that will take part in the campaign
+   */
+  NotificationCampaign(final Payload payload, final List<Device> devices, final int senders) {
+    this.payload = payload;
+    this.devices = devices;
+    this.messages = null;
+    this.total = devices.size();
+    this.sendersRunning = new AtomicInteger(senders);
+  }
+
+  /**
+   * Create a campaign pushing individual payloads to a list of devices.
+   *
+   * @param messages the payload/device pairs to push
+   * @param senders  the number of senders that will take part in the campaign
+   */
+  NotificationCampaign(final List<PayloadPerDevice> messages, final int senders) {
+    this.payload = null;
+    this.devices = null;
+    this.messages = messages;
+    this.total = messages.size();
+    this.sendersRunning = new AtomicInteger(senders);
+  }
+
+  /**
+   * Claim the next chunk of notifications to push.
+   *
+   * @return the index of the first notification in the chunk, or -1 if all notifications were claimed
+   */
+  int claimChunk() {
+    if (nextIndex.get() >= total) {
+      return -1;
+    }
+    final int first = nextIndex.getAndAdd(CHUNK_SIZE);
+    return first < total ? first : -1;
+  }
+
+  /**
+   * Get the index following the last notification of a chunk.
+   *
+   * @param first the index of the first notification in the chunk
+   * @return the exclusive end of the chunk
+   */
+  int chunkEnd(final int first) {
+    return Math.min(first + CHUNK_SIZE, total);
+  }
+
+  Device getDevice(final int index) {
+    return devices != null ? devices.get(index) : messages.get(index).getDevice();
+  }
+
+  Payload getPayload(final int index) {
+    return devices != null ? payload : messages.get(index).getPayload();
+  }
+
+  /**
+   * Get the number of notifications in this campaign.
+   *
+   * @return the number of notifications to push
+   */
+  public int size() {
+    return total;
+  }
+
+  /**
+   * Senders invoke this method once they have pushed their share of the campaign.
+   * When the last sender reports, the campaign is marked as done and waiting callers are released.
+   *
+   * @param notifications the notifications pushed by the sender
+   * @param exception     a critical exception that prevented the sender from doing its share, if any
+   */
+  void senderFinished(final PushedNotifications notifications, final Exception exception) {
+    if (notifications != null && !notifications.isEmpty()) {
+      results.add(notifications);
+    }
+    if (exception != null) {
+      criticalExceptions.add(exception);
+    }
+    if (sendersRunning.decrementAndGet() == 0) {
+      complete();
+    }
+  }
+
+  private void complete() {
+    final PushedNotifications all = new PushedNotifications(total);
+    all.setMaxRetained(Math.max(total, 1));
+    for (final PushedNotifications notifications : results) {
+      all.addAll(notifications);
+    }
+    /* Notifications no sender could claim (all connections failed) are reported as failed */
+    final Exception cause = criticalExceptions.isEmpty() ? null : criticalExceptions.get(0);
+    for (int index = Math.min(nextIndex.get(), total); index < total; index++) {
+      all.add(new PushedNotification(getDevice(index), getPayload(index), cause));
+    }
+    results.clear();
+    pushedNotifications = all;
+    finished.countDown();
+  }
+
+  /**
+   * Get a list of critical exceptions that prevented senders from pushing their share of the campaign.
+   *
+   * @return a list of critical exceptions
+   */
+  public List<Exception> getCriticalExceptions() {
+    return new ArrayList<>(criticalExceptions);
+  }
+
+  /**
+   * Wait for the campaign to complete.
+   *
+   * @throws InterruptedException if the current thread was interrupted while waiting
+   */
+  public void await() throws InterruptedException {
+    finished.await();
+  }
+
+  /**
+   * Wait for the campaign to complete, up to the given amount of time.
+   *
+   * @param timeout the maximum time to wait
+   * @param unit    the unit of the timeout argument
+   * @return true if the campaign completed, false if the timeout elapsed first
+   * @throws InterruptedException if the current thread was interrupted while waiting
+   */
+  public boolean await(final long timeout, final TimeUnit unit) throws InterruptedException {
+    return finished.await(timeout, unit);
+  }
+
+  /**
+   * Campaigns cannot be cancelled once submitted.
+   *
+   * @return always false
+   */
+  public boolean cancel(final boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  public boolean isCancelled() {
+    return false;
+  }
+
+  public boolean isDone() {
+    return finished.getCount() == 0;
+  }
+
+  /**
+   * Wait for the campaign to complete and get all notifications pushed (successful or not).
+   *
+   * @return a list of pushed notifications
+   * @throws InterruptedException if the current thread was interrupted while waiting
+   */
+  public PushedNotifications get() throws InterruptedException {
+    finished.await();
+    return pushedNotifications;
+  }
+
+  public PushedNotifications get(final long timeout, final TimeUnit unit) throws InterruptedException, TimeoutException {
+    if (!finished.await(timeout, unit)) {
+      throw new TimeoutException("Campaign of " + total + " notifications did not complete in time");
+    }
+    return pushedNotifications;
+  }
+
+  /**
+   * Wait for the campaign to complete and get the notifications that failed.
+   *
+   * @return a list of failed notifications
+   * @throws InterruptedException if the current thread was interrupted while waiting
+   */
+  public PushedNotifications getFailedNotifications() throws InterruptedException {
+    return get().getFailedNotifications();
+  }
+
+  /**
+   * Wait for the campaign to complete and get the notifications that succeeded.
+   *
+   * @return a list of successful notifications
+   * @throws InterruptedException if the current thread was interrupted while waiting
+   */
+  public PushedNotifications getSuccessfulNotifications() throws InterruptedException {
+    return get().getSuccessfulNotifications();
+  }
+}
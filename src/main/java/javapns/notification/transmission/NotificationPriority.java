@@ -0,0 +1,26 @@
+package javapns.notification.transmission;
+
+/**
+ * The lane in which a message waits in a {@link PushQueue} before being pushed.
+ * <p>
+ * Messages of a higher priority are taken before those of lower priorities, as configured on a {@link FairScheduler}.
+ * This priority only affects queuing within this library; it is not sent to Apple.
+ *
+ * @see FairScheduler#setStrictPriority(boolean)
+ */
+public enum NotificationPriority {
+  /**
+   * Time-sensitive messages, such as authentication codes, pushed ahead of everything else
+   */
+  HIGH,
+
+  /**
+   * Regular messages (default)
+   */
+  NORMAL,
+
+  /**
+   * Bulk messages, such as marketing campaigns, pushed when capacity is left
+   */
+  LOW
+}
@@ -0,0 +1,405 @@
+package javapns.notification.transmission;
+
+import javapns.communication.exceptions.CommunicationException;
+import javapns.communication.exceptions.KeystoreException;
+import javapns.devices.Device;
+import javapns.devices.Devices;
+import javapns.notification.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <h1>A reusable pool of senders, each owning a long-lived connection to Apple</h1>
+ * <p>
+ * <p>Unlike {@link NotificationThreads}, which creates new threads and connections for every batch,
+ * a NotificationSenderPool opens its connections once and keeps them open across successive campaigns.
+ * Each new campaign therefore starts pushing immediately, without creating threads or performing TLS handshakes.</p>
+ * <p>
+ * <p>Senders run on an {@link ExecutorService}.  The pool can create its own executor (optionally from a
+ * {@link ThreadFactory} of your choice), or use one you provide.  Each sender occupies one executor thread
+ * for as long as the pool is open, so a provided executor must be able to run all senders at once.</p>
+ * <p>
+ * <p>All senders open their connection in parallel when the pool starts, optionally limited to a maximum number
+ * of simultaneous handshakes and spread over a random jitter.  Use {@code awaitConnections(..)} to wait until
+ * all connections, or a quorum of them, are ready.</p>
+ * <p>
+ * <p>Usage: create a pool, invoke {@code push(..)} as many times as needed and wait on the returned
+ * {@link NotificationCampaign}s, then {@code close()} the pool to close all connections.</p>
+ *
+ * @see NotificationCampaign
+ */
+public class NotificationSenderPool implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(NotificationSenderPool.class);
+
+  /* Special campaign telling senders to close their connection and stop */
+  private static final NotificationCampaign SHUTDOWN = new NotificationCampaign(new ArrayList<>(), 0);
+
+  private final AppleNotificationServer server;
+  private final ExecutorService executor;
+  private final boolean ownExecutor;
+  private final List<Sender> senders = new ArrayList<>();
+  private final CountDownLatch stopped;
+
+  private boolean started = false;
+  private boolean closed = false;
+  private int maxConcurrentHandshakes = 0;
+  private long startupJitter = 0;
+  private volatile ConnectionStartup startup;
+
+  /**
+   * Create a pool of senders running on daemon threads created by the pool.
+   *
+   * @param server              the server to push to
+   * @param numberOfConnections the number of connections (and senders) to maintain
+   */
+  public NotificationSenderPool(final AppleNotificationServer server, final int numberOfConnections) {
+    this(server, numberOfConnections, new SenderThreadFactory());
+  }
+
+  /**
+   * Create a pool of senders running on threads created by the provided factory.
+   * On Java 21 and later, a factory from {@link VirtualThreads#newThreadFactory(String)} runs each sender
+   * on a virtual thread, so pools of hundreds of connections no longer need hundreds of platform threads.
+   *
+   * @param server              the server to push to
+   * @param numberOfConnections the number of connections (and senders) to maintain
+   * @param threadFactory       the factory to create sender threads with
+   */
+  public NotificationSenderPool(final AppleNotificationServer server, final int numberOfConnections, final ThreadFactory threadFactory) {
+    this(server, numberOfConnections, Executors.newFixedThreadPool(numberOfConnections, threadFactory), true);
+  }
+
+  /**
+   * Create a pool of senders running on the provided executor.
+   * The executor is not shut down when the pool is closed.
+   *
+   * @param server              the server to push to
+   * @param numberOfConnections the number of connections (and senders) to maintain
+   * @param executor            an executor able to run all senders simultaneously
+   */
+  public NotificationSenderPool(final AppleNotificationServer server, final int numberOfConnections, final ExecutorService executor) {
+    this(server, numberOfConnections, executor, false);
+  }
+
+  private NotificationSenderPool(final AppleNotificationServer server, final int numberOfConnections, final ExecutorService executor, final boolean ownExecutor) {
+    if (numberOfConnections <= 0) {
+      throw new IllegalArgumentException("A sender pool needs at least one connection");
+    }
+    this.server = server;
+    this.executor = executor;
+    this.ownExecutor = ownExecutor;
+    this.stopped = new CountDownLatch(numberOfConnections);
+    for (int i = 1; i <= numberOfConnections; i++) {
+      senders.add(new Sender(i));
+    }
+  }
+
+  /**
+   * Start all senders.  Each sender opens its connection to Apple in the background.
+   * <p>
+   * This method returns immediately.  Campaigns pushed before connections are established simply wait for them.
+   *
+   * @return this pool
+   */
+  public synchronized NotificationSenderPool start() {
+    if (closed) {
+      throw new IllegalStateException("Sender pool is closed");
+    }
+    if (started) {
+      return this;
+    }
+    started = true;
+    startup = new ConnectionStartup(senders.size(), maxConcurrentHandshakes, startupJitter);
+    for (final Sender sender : senders) {
+      executor.execute(sender);
+    }
+    return this;
+  }
+
+  /**
+   * Wait until the connections of all senders are established.
+   *
+   * @return true if all connections are ready, false if at least one failed
+   * @throws InterruptedException if the current thread was interrupted while waiting
+   * @throws IllegalStateException if the pool was not started yet
+   */
+  public boolean awaitConnections() throws InterruptedException {
+    return awaitConnections(senders.size(), Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Wait until a quorum of connections is established.
+   *
+   * @param quorum  the number of established connections to wait for
+   * @param timeout the maximum time to wait
+   * @param unit    the unit of the timeout argument
+   * @return true if the quorum was reached, false if too many connections failed or the timeout elapsed
+   * @throws InterruptedException if the current thread was interrupted while waiting
+   * @throws IllegalStateException if the pool was not started yet
+   */
+  public boolean awaitConnections(final int quorum, final long timeout, final TimeUnit unit) throws InterruptedException {
+    final ConnectionStartup connectionStartup = startup;
+    if (connectionStartup == null) {
+      throw new IllegalStateException("Sender pool not started");
+    }
+    return connectionStartup.await(quorum, timeout, unit);
+  }
+
+  /**
+   * Limit the number of TLS handshakes in progress at once while the pool starts.
+   * Must be configured before the pool is started.
+   *
+   * @param maxConcurrentHandshakes the maximum number of concurrent handshakes (default is 0, meaning no limit)
+   */
+  public void setMaxConcurrentHandshakes(final int maxConcurrentHandshakes) {
+    this.maxConcurrentHandshakes = maxConcurrentHandshakes;
+  }
+
+  /**
+   * Spread connection attempts over a random delay when the pool starts.
+   * Must be configured before the pool is started.
+   *
+   * @param startupJitter the maximum random delay in milliseconds before each connection attempt (default is 0)
+   */
+  public void setStartupJitter(final long startupJitter) {
+    this.startupJitter = startupJitter;
+  }
+
+  /**
+   * Set the policy deciding when senders replace their connection.
+   * Must be configured before the pool is started.
+   *
+   * @param recyclingPolicy a recycling policy, shared by all senders
+   */
+  public void setRecyclingPolicy(final ConnectionRecyclingPolicy recyclingPolicy) {
+    for (final Sender sender : senders) {
+      sender.notificationManager.setRecyclingPolicy(recyclingPolicy);
+    }
+  }
+
+  /**
+   * Push a single payload to a list of devices, sharing the work between all connections.
+   *
+   * @param payload the payload to push
+   * @param devices a list or an array of tokens or devices: {@link java.lang.String String[]}, {@link java.util.List}<{@link java.lang.String}>, {@link javapns.devices.Device Device[]}, {@link java.util.List}<{@link javapns.devices.Device}>, {@link java.lang.String} or {@link javapns.devices.Device}
+   * @return a campaign which completes once all notifications were pushed
+   */
+  public NotificationCampaign push(final Payload payload, final Object devices) {
+    final List<Device> deviceList = Devices.asDevices(devices);
+    return submit(new NotificationCampaign(payload, deviceList, senders.size()));
+  }
+
+  /**
+   * Push individual payloads to a list of devices, sharing the work between all connections.
+   *
+   * @param payloadDevicePairs a list or an array of PayloadPerDevice: {@link java.util.List}<{@link javapns.notification.PayloadPerDevice}>, {@link javapns.notification.PayloadPerDevice PayloadPerDevice[]} or {@link javapns.notification.PayloadPerDevice}
+   * @return a campaign which completes once all notifications were pushed
+   */
+  public NotificationCampaign pushPayloads(final Object payloadDevicePairs) {
+    final List<PayloadPerDevice> messages = Devices.asPayloadsPerDevices(payloadDevicePairs);
+    return submit(new NotificationCampaign(messages, senders.size()));
+  }
+
+  private synchronized NotificationCampaign submit(final NotificationCampaign campaign) {
+    start();
+    for (final Sender sender : senders) {
+      sender.campaigns.add(campaign);
+    }
+    return campaign;
+  }
+
+  /**
+   * Get the server this pool pushes to.
+   *
+   * @return the server
+   */
+  public AppleNotificationServer getServer() {
+    return server;
+  }
+
+  /**
+   * Get the number of connections maintained by this pool.
+   *
+   * @return the number of senders
+   */
+  public int size() {
+    return senders.size();
+  }
+
+  /**
+   * Get a list of critical exceptions (communication errors, keystore issues, etc.) that senders
+   * experienced while opening their connection.  A sender that failed to connect tries again
+   * when the next campaign is submitted.
+   *
+   * @return a list of critical exceptions
+   */
+  public List<Exception> getCriticalExceptions() {
+    final List<Exception> exceptions = new ArrayList<>();
+    for (final Sender sender : senders) {
+      final Exception exception = sender.exception;
+      if (exception != null) {
+        exceptions.add(exception);
+      }
+    }
+    return exceptions;
+  }
+
+  /**
+   * Close all connections once campaigns already submitted are complete.
+   * This method blocks until all senders have stopped.
+   */
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (!started) {
+        if (ownExecutor) {
+          executor.shutdown();
+        }
+        return;
+      }
+      for (final Sender sender : senders) {
+        sender.campaigns.add(SHUTDOWN);
+      }
+    }
+    try {
+      stopped.await();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (ownExecutor) {
+        executor.shutdown();
+      }
+    }
+  }
+
+  /**
+   * A sender owns a connection and pushes its share of each campaign through it.
+   */
+  private final class Sender implements Runnable {
+    private final int number;
+    private final PushNotificationManager notificationManager = new PushNotificationManager();
+    private final BlockingQueue<NotificationCampaign> campaigns = new LinkedBlockingQueue<>();
+
+    private boolean connected = false;
+    private boolean attempted = false;
+    private volatile Exception exception;
+
+    private Sender(final int number) {
+      this.number = number;
+    }
+
+    public void run() {
+      try {
+        connect();
+        while (true) {
+          final NotificationCampaign campaign = campaigns.take();
+          if (campaign == SHUTDOWN) {
+            break;
+          }
+          push(campaign);
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        disconnect();
+        stopped.countDown();
+      }
+    }
+
+    private void connect() {
+      if (connected) {
+        return;
+      }
+      try {
+        if (attempted) {
+          notificationManager.initializeConnection(server);
+        } else {
+          /* The first attempt takes part in the parallel startup of the pool */
+          attempted = true;
+          startup.connect(notificationManager, server);
+        }
+        connected = true;
+        exception = null;
+      } catch (final KeystoreException | CommunicationException e) {
+        logger.error("Sender #" + number + " could not connect", e);
+        exception = e;
+      }
+    }
+
+    private void push(final NotificationCampaign campaign) {
+      connect();
+      if (!connected) {
+        campaign.senderFinished(null, exception);
+        return;
+      }
+      final PushedNotifications notifications = new PushedNotifications();
+      notifications.setMaxRetained(Math.max(campaign.size(), 1));
+      Exception failure = null;
+      int first;
+      while (failure == null && (first = campaign.claimChunk()) >= 0) {
+        final int end = campaign.chunkEnd(first);
+        for (int index = first; index < end; index++) {
+          final Device device = campaign.getDevice(index);
+          final Payload payload = campaign.getPayload(index);
+          if (failure != null) {
+            notifications.add(new PushedNotification(device, payload, failure));
+            continue;
+          }
+          try {
+            notifications.add(notificationManager.sendNotification(device, payload, false));
+            notificationManager.maintainConnection();
+          } catch (final KeystoreException | CommunicationException e) {
+            failure = e;
+            notifications.add(new PushedNotification(device, payload, e));
+          }
+        }
+      }
+      if (failure == null) {
+        try {
+          notificationManager.drainResponses();
+        } catch (final KeystoreException | CommunicationException e) {
+          failure = e;
+        }
+      }
+      if (failure != null) {
+        logger.error("Sender #" + number + " lost its connection", failure);
+        disconnect();
+        exception = failure;
+      }
+      campaign.senderFinished(notifications, failure);
+    }
+
+    private void disconnect() {
+      if (!connected) {
+        return;
+      }
+      try {
+        notificationManager.stopConnection();
+      } catch (final Exception e) {
+        logger.debug("Error closing connection of sender #" + number, e);
+      }
+      connected = false;
+    }
+  }
+
+  /**
+   * Creates daemon threads with meaningful names for senders.
+   */
+  private static final class SenderThreadFactory implements ThreadFactory {
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    public Thread newThread(final Runnable runnable) {
+      final Thread thread = new Thread(runnable, "JavaPNS notification sender #" + threadNumber.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
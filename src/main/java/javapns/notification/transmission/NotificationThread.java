@@ -7,9 +7,16 @@ import javapns.devices.Devices;
 import javapns.devices.exceptions.InvalidDeviceTokenFormatException;
 import javapns.notification.*;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * <h1>Pushes payloads asynchroneously using a dedicated thread.</h1>
@@ -18,32 +25,34 @@ import java.util.Vector;
  * In LIST mode, the thread is given a predefined list of devices and pushes all notifications as soon as it is started.  Its work is complete and the thread ends as soon as all notifications have been sent.
  * In QUEUE mode, the thread is started with no notification to send.  It opens a connection and waits for messages to be added to its queue using the addMessageToQueue(..) method.  This lifecyle is useful for creating connection pools.</p>
  * <p>
- * <p>No more than {@code maxNotificationsPerConnection} are pushed over a single connection.
- * When that maximum is reached, the connection is restarted automatically and push continues.
- * This is intended to avoid an undocumented notification-per-connection limit observed
- * occasionnally with Apple servers.</p>
+ * <p>Connections are kept open for as long as they remain healthy, and replaced automatically
+ * according to the notification manager's {@link ConnectionRecyclingPolicy} (for example when writes
+ * become much slower).  A maximum number of notifications per connection can still be set to avoid
+ * an undocumented notification-per-connection limit observed occasionnally with Apple servers.</p>
  * <p>
  * <p>Usage (LIST): once a NotificationThread is created using any LIST-mode constructor, invoke {@code start()} to push the payload to all devices in a separate thread.</p>
  * <p>
  * <p>Usage (QUEUE): once a NotificationThread is created using any QUEUE-mode constructor, invoke {@code start()} to open a connection and wait for notifications to be queued.</p>
+ * <p>
+ * <p>Queued messages are kept in memory, unless a {@link QueueJournal} is attached with {@code setJournal(..)}
+ * to make them survive a crash of the JVM.</p>
  *
  * @author Sylvain Pedneault
  * @see NotificationThread.MODE
  * @see NotificationThreads
  */
 public class NotificationThread implements Runnable, PushQueue {
-  private static final int DEFAULT_MAXNOTIFICATIONSPERCONNECTION = 200;
   private static final String JAVA_PNS = "JavaPNS";
   private static final String STANDALONE = " standalone";
   private static final String GROUPED = " grouped";
 
-  private final Thread thread;
+  private volatile Thread thread;
+  private final NotificationThreads group;
   private final AppleNotificationServer server;
   private final PushNotificationManager notificationManager;
   private final PushedNotifications notifications = new PushedNotifications();
 
   private boolean started = false;
-  private int maxNotificationsPerConnection = DEFAULT_MAXNOTIFICATIONSPERCONNECTION;
   private long sleepBetweenNotifications = 0;
   private NotificationProgressListener listener;
   private int threadNumber = 1;
@@ -60,6 +69,23 @@ public class NotificationThread implements Runnable, PushQueue {
 
   private List<PayloadPerDevice> messages = new ArrayList<>();
 
+  /* Guards this thread's own queue, and wakes the thread up when a message is added to it.
+     A lock rather than a monitor, so that waiting does not pin a virtual thread to its carrier */
+  private final ReentrantLock queueLock = new ReentrantLock();
+  private final Condition queueChanged = queueLock.newCondition();
+  private boolean queueSignalled = false;
+
+  private QueueJournal journal;
+
+  /* Notifications taken from the journal but not committed yet, because Apple could still reject them */
+  private final Deque<PushedNotification> uncommitted = new ArrayDeque<>();
+
+  private FairScheduler scheduler;
+
+  private CampaignCheckpoint.Partition checkpoint;
+
+  private CompactPushedNotifications compactResults;
+
   private Exception exception;
 
   /**
@@ -74,6 +100,7 @@ public class NotificationThread implements Runnable, PushQueue {
    */
   public NotificationThread(final NotificationThreads threads, final PushNotificationManager notificationManager, final AppleNotificationServer server, final Payload payload, final Object devices) {
     this.thread = new Thread(threads, this, JAVA_PNS + (threads != null ? GROUPED : STANDALONE) + " notification thread in LIST mode");
+    this.group = threads;
     this.notificationManager = notificationManager == null ? new PushNotificationManager() : notificationManager;
     this.server = server;
     this.payload = payload;
@@ -92,6 +119,7 @@ public class NotificationThread implements Runnable, PushQueue {
    */
   public NotificationThread(final NotificationThreads threads, final PushNotificationManager notificationManager, final AppleNotificationServer server, final Object messages) {
     this.thread = new Thread(threads, this, JAVA_PNS + (threads != null ? GROUPED : STANDALONE) + " notification thread in LIST mode");
+    this.group = threads;
     this.notificationManager = notificationManager == null ? new PushNotificationManager() : notificationManager;
     this.server = server;
     this.messages = Devices.asPayloadsPerDevices(messages);
@@ -130,6 +158,7 @@ public class NotificationThread implements Runnable, PushQueue {
    */
   public NotificationThread(final NotificationThreads threads, final PushNotificationManager notificationManager, final AppleNotificationServer server) {
     this.thread = new Thread(threads, this, JAVA_PNS + (threads != null ? GROUPED : STANDALONE) + " notification thread in QUEUE mode");
+    this.group = threads;
     this.notificationManager = notificationManager == null ? new PushNotificationManager() : notificationManager;
     this.server = server;
     this.mode = MODE.QUEUE;
@@ -173,6 +202,117 @@ public class NotificationThread implements Runnable, PushQueue {
     return this;
   }
 
+  /**
+   * Run this thread's work on a thread created by the provided factory, instead of a dedicated platform thread.
+   * For example, a factory from {@link VirtualThreads#newThreadFactory(String)} runs it on a virtual thread.
+   * <p>
+   * This method must be invoked before {@code start()}.
+   *
+   * @param threadFactory the factory to create the underlying thread with
+   */
+  public synchronized void setThreadFactory(final ThreadFactory threadFactory) {
+    if (started) {
+      throw new IllegalStateException("NotificationThread already started");
+    }
+    final Thread replacement = threadFactory.newThread(this);
+    replacement.setName(thread.getName());
+    if (mode == MODE.QUEUE && !replacement.isDaemon()) {
+      replacement.setDaemon(true);
+    }
+    this.thread = replacement;
+  }
+
+  /**
+   * Make this thread's queue durable: queued messages are appended to the given journal instead of being kept in memory,
+   * and messages left in the journal by a previous run are pushed as soon as the thread starts.
+   * <p>
+   * This method must be invoked before {@code start()}, on a thread in QUEUE mode.
+   *
+   * @param journal an open journal, which must not be shared with other threads
+   */
+  public synchronized void setJournal(final QueueJournal journal) {
+    if (started) {
+      throw new IllegalStateException("NotificationThread already started");
+    }
+    if (mode != MODE.QUEUE) {
+      throw new IllegalStateException("Journals are only supported in QUEUE mode");
+    }
+    if (scheduler != null) {
+      throw new IllegalStateException("Journals are not supported on threads fed by a scheduler");
+    }
+    this.journal = journal;
+  }
+
+  public QueueJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * Take queued messages from a scheduler shared with other threads, instead of from this thread's own queue.
+   *
+   * @param scheduler a scheduler
+   */
+  synchronized void setScheduler(final FairScheduler scheduler) {
+    if (started) {
+      throw new IllegalStateException("NotificationThread already started");
+    }
+    if (mode != MODE.QUEUE || journal != null) {
+      throw new IllegalStateException("Schedulers are only supported in QUEUE mode, without journal");
+    }
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Record this thread's progress in a partition of a campaign checkpoint, and skip the notifications it already confirmed.
+   *
+   * @param checkpoint the partition pushed by this thread
+   */
+  void setCheckpoint(final CampaignCheckpoint.Partition checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  /**
+   * Keep the results of this thread in a compact list, which uses a fraction of the memory of a regular list
+   * and retains every notification pushed.  Recommended for very large campaigns.
+   * <p>
+   * This method must be invoked before {@code start()}, and is not supported in QUEUE mode.
+   *
+   * @param compact true to keep results in a compact list
+   * @see CompactPushedNotifications
+   */
+  public void setCompactResults(final boolean compact) {
+    setCompactResults(compact ? new CompactPushedNotifications(size()) : null);
+  }
+
+  /**
+   * Keep the results of this thread in a compact list, possibly shared with other threads.
+   *
+   * @param results a compact list, or null to keep results in a regular list
+   */
+  void setCompactResults(final CompactPushedNotifications results) {
+    if (started) {
+      throw new IllegalStateException("Thread already started");
+    }
+    if (results != null && mode != MODE.LIST) {
+      throw new IllegalStateException("Compact results are only supported in LIST mode");
+    }
+    this.compactResults = results;
+  }
+
+  /**
+   * Report the outcome of each notification pushed by this thread to a dispatcher's listener.
+   *
+   * @param dispatcher a dispatcher, possibly shared with other threads, or null to stop reporting outcomes
+   * @see PushNotificationManager#setOutcomeDispatcher(NotificationOutcomeDispatcher)
+   */
+  public void setOutcomeDispatcher(final NotificationOutcomeDispatcher dispatcher) {
+    notificationManager.setOutcomeDispatcher(dispatcher);
+  }
+
+  MODE getMode() {
+    return mode;
+  }
+
   /**
    * Run method for the thread; do not call this method directly.
    */
@@ -190,42 +330,28 @@ public class NotificationThread implements Runnable, PushQueue {
   }
 
   private void runList() {
+    try {
+      pushList();
+    } finally {
+      notifyGroup();
+    }
+  }
+
+  private void pushList() {
     if (listener != null) {
       listener.eventThreadStarted(this);
     }
     busy = true;
     try {
       final int total = size();
-      notificationManager.initializeConnection(server);
-      for (int i = 0; i < total; i++) {
-        final Device device;
-        final Payload payloadLocal;
-        if (devices != null) {
-          device = devices.get(i);
-          payloadLocal = this.payload;
-        } else {
-          final PayloadPerDevice message = messages.get(i);
-          device = message.getDevice();
-          payloadLocal = message.getPayload();
-        }
-        final int message = newMessageIdentifier();
-        final PushedNotification notification = notificationManager.sendNotification(device, payloadLocal, false, message);
-        notifications.add(notification);
-        try {
-          if (sleepBetweenNotifications > 0) {
-            Thread.sleep(sleepBetweenNotifications);
-          }
-        } catch (final InterruptedException e) {
-          // empty
-        }
-        if (i != 0 && i % maxNotificationsPerConnection == 0) {
-          if (listener != null) {
-            listener.eventConnectionRestarted(this);
-          }
-          notificationManager.restartConnection(server);
-        }
+      final int resume = checkpoint != null ? checkpoint.getResumeIndex() : 0;
+      if (resume > 0) {
+        /* Keep identifiers unique across the interrupted run and this one */
+        nextMessageIdentifier = (checkpoint.getLastIdentifier() & 0xFFFFFF) + 1;
+      }
+      if (resume < total) {
+        pushList(resume, total);
       }
-      notificationManager.stopConnection();
     } catch (final KeystoreException | CommunicationException e) {
       this.exception = e;
       if (listener != null) {
@@ -236,25 +362,75 @@ public class NotificationThread implements Runnable, PushQueue {
     if (listener != null) {
       listener.eventThreadFinished(this);
     }
-    /* Also notify the parent NotificationThreads, so that it can determine when all threads have finished working */
-    if (this.thread.getThreadGroup() instanceof NotificationThreads) {
-      ((NotificationThreads) this.thread.getThreadGroup()).threadFinished(this);
+  }
+
+  private void pushList(final int first, final int total) throws CommunicationException, KeystoreException {
+    initializeConnection();
+    final CompactPushedNotifications results = compactResults;
+    final int source = results == null ? 0 : devices != null ? results.addSource(payload, devices) : results.addSource(messages);
+    int lastIdentifier = 0;
+    for (int i = first; i < total; i++) {
+      final Device device;
+      final Payload payloadLocal;
+      if (devices != null) {
+        device = devices.get(i);
+        payloadLocal = this.payload;
+      } else {
+        final PayloadPerDevice message = messages.get(i);
+        device = message.getDevice();
+        payloadLocal = message.getPayload();
+      }
+      final int message = newMessageIdentifier();
+      final PushedNotification notification = notificationManager.sendNotification(device, payloadLocal, false, message);
+      if (results != null) {
+        results.record(source, i, notification);
+      } else {
+        notifications.add(notification);
+      }
+      try {
+        if (sleepBetweenNotifications > 0) {
+          Thread.sleep(sleepBetweenNotifications);
+        }
+      } catch (final InterruptedException e) {
+        // empty
+      }
+      maintainConnection();
+      if (results != null) {
+        results.settle(source, notificationManager.getSettledBefore());
+      }
+      lastIdentifier = message;
+      if (checkpoint != null) {
+        checkpoint.pushed(i + 1, message, notificationManager.getSettledBefore());
+      }
+    }
+    notificationManager.stopConnection();
+    if (results != null) {
+      results.settle(source, notificationManager.getSettledBefore());
+    }
+    if (checkpoint != null) {
+      /* All error-responses were processed when the connection was stopped */
+      checkpoint.completed(total, lastIdentifier);
     }
   }
 
   private void runQueue() {
+    try {
+      pushQueue();
+    } finally {
+      notifyGroup();
+    }
+  }
+
+  private void pushQueue() {
     if (listener != null) {
       listener.eventThreadStarted(this);
     }
     try {
-      notificationManager.initializeConnection(server);
-      int notificationsPushed = 0;
+      initializeConnection();
       while (mode == MODE.QUEUE) {
-        while (!messages.isEmpty()) {
+        PayloadPerDevice message;
+        while ((message = nextQueuedMessage()) != null) {
           busy = true;
-          final PayloadPerDevice message = messages.get(0);
-          messages.remove(message);
-          notificationsPushed++;
           final int messageId = newMessageIdentifier();
           final PushedNotification notification = notificationManager.sendNotification(message.getDevice(), message.getPayload(), false, messageId);
           notifications.add(notification);
@@ -265,21 +441,30 @@ public class NotificationThread implements Runnable, PushQueue {
           } catch (final InterruptedException e) {
             // empty
           }
-          if (notificationsPushed != 0 && notificationsPushed % maxNotificationsPerConnection == 0) {
-            if (listener != null) {
-              listener.eventConnectionRestarted(this);
-            }
-            notificationManager.restartConnection(server);
+          maintainConnection();
+          if (journal != null) {
+            uncommitted.add(notification);
+            commitSettled();
           }
           busy = false;
         }
-        try {
-          Thread.sleep(10 * 1000);
-        } catch (final Exception e) {
-          // empty
+        if (scheduler != null) {
+          scheduler.awaitMessages(this, 10 * 1000);
+          continue;
+        }
+        if (uncommitted.isEmpty()) {
+          awaitQueuedMessages(10 * 1000);
+        } else {
+          /* Come back soon to commit the notifications still waiting for Apple's error-responses */
+          awaitQueuedMessages(1000);
+          notificationManager.pollResponses();
+          commitSettled();
         }
       }
       notificationManager.stopConnection();
+      if (journal != null) {
+        commitSettled();
+      }
     } catch (final KeystoreException | CommunicationException e) {
       this.exception = e;
       if (listener != null) {
@@ -289,9 +474,95 @@ public class NotificationThread implements Runnable, PushQueue {
     if (listener != null) {
       listener.eventThreadFinished(this);
     }
-    /* Also notify the parent NotificationThreads, so that it can determine when all threads have finished working */
-    if (this.thread.getThreadGroup() instanceof NotificationThreads) {
-      ((NotificationThreads) this.thread.getThreadGroup()).threadFinished(this);
+  }
+
+  /**
+   * Commit to the journal the notifications that are final: those pushed before the manager's settled time,
+   * and those that failed without being transmitted.  Notifications pushed later stay in the journal, so
+   * that they are pushed again if the JVM dies before Apple had the opportunity to reject an earlier one.
+   */
+  private void commitSettled() {
+    final long settledBefore = notificationManager.getSettledBefore();
+    int settled = 0;
+    PushedNotification notification;
+    while ((notification = uncommitted.peek()) != null && notification.getTransmissionTime() < settledBefore) {
+      uncommitted.poll();
+      settled++;
+    }
+    if (settled > 0) {
+      journal.commit(settled);
+    }
+  }
+
+  private PayloadPerDevice nextQueuedMessage() {
+    if (scheduler != null) {
+      return scheduler.poll(this);
+    }
+    queueLock.lock();
+    try {
+      if (journal != null) {
+        return journal.poll();
+      }
+      return messages.isEmpty() ? null : messages.remove(0);
+    } finally {
+      queueLock.unlock();
+    }
+  }
+
+  /**
+   * Wait until a message is added to this thread's own queue, or until the timeout elapses.
+   * Returns immediately if a message was added since the last wait.
+   *
+   * @param timeout the maximum time to wait, in milliseconds
+   */
+  private void awaitQueuedMessages(final long timeout) {
+    queueLock.lock();
+    try {
+      if (!queueSignalled) {
+        queueChanged.await(timeout, TimeUnit.MILLISECONDS);
+      }
+    } catch (final InterruptedException e) {
+      // empty
+    } finally {
+      queueSignalled = false;
+      queueLock.unlock();
+    }
+  }
+
+  /**
+   * Open this thread's connection, in parallel with other threads of the parent NotificationThreads (if any).
+   *
+   * @throws CommunicationException thrown if a communication error occurs
+   * @throws KeystoreException      thrown if there is a problem with your keystore
+   */
+  private void initializeConnection() throws CommunicationException, KeystoreException {
+    final ConnectionStartup startup = group != null ? group.getStartup() : null;
+    if (startup != null) {
+      startup.connect(notificationManager, server);
+    } else {
+      notificationManager.initializeConnection(server);
+    }
+  }
+
+  /**
+   * Check for error-responses and recycle the connection if its recycling policy says so.
+   *
+   * @throws CommunicationException thrown if a communication error occurs
+   * @throws KeystoreException      thrown if there is a problem with your keystore
+   */
+  private void maintainConnection() throws CommunicationException, KeystoreException {
+    if (notificationManager.maintainConnection() && listener != null) {
+      listener.eventConnectionRestarted(this);
+    }
+  }
+
+  /**
+   * Notify the parent NotificationThreads (if any), so that it can determine when all threads have finished working.
+   * This is invoked even if the thread ended abruptly, so that waiting callers are never left hanging.
+   */
+  private void notifyGroup() {
+    if (group != null) {
+      group.threadFinished(this);
     }
   }
 
@@ -307,17 +578,47 @@ public class NotificationThread implements Runnable, PushQueue {
     if (mode != MODE.QUEUE) {
       return this;
     }
+    if (scheduler != null) {
+      return scheduler.add(message);
+    }
+    /* Wake the thread up with a condition rather than an interrupt, which would abort a connection being opened */
+    queueLock.lock();
     try {
-      messages.add(message);
-      this.thread.interrupt();
-    } catch (final Exception e) {
-      // empty
+      if (journal != null) {
+        try {
+          journal.append(message);
+        } catch (final IOException e) {
+          throw new IllegalStateException("Could not append message to journal " + journal.getDirectory(), e);
+        }
+      } else {
+        messages.add(message);
+      }
+      queueSignalled = true;
+      queueChanged.signalAll();
+    } finally {
+      queueLock.unlock();
     }
     return this;
   }
 
+  /**
+   * Queue a message for delivery in a priority lane.
+   * The priority is only honoured by threads fed by a {@link FairScheduler}: when no scheduler is set,
+   * the priority is ignored and the message is queued like any other.
+   *
+   * @param message  a payload/device pair
+   * @param priority the lane in which the message waits, ignored when no scheduler is set
+   * @return the scheduler when one is set, otherwise this thread
+   */
+  public PushQueue add(final PayloadPerDevice message, final NotificationPriority priority) {
+    if (scheduler != null && mode == MODE.QUEUE) {
+      return scheduler.add(message, priority);
+    }
+    return add(message);
+  }
+
   public int getMaxNotificationsPerConnection() {
-    return maxNotificationsPerConnection;
+    return notificationManager.getRecyclingPolicy().getMaxNotifications();
   }
 
   /**
@@ -325,12 +626,38 @@ public class NotificationThread implements Runnable, PushQueue {
    * to an Apple server.  When that maximum is reached, the thread automatically closes and
    * reopens a fresh new connection to the server and continues streaming notifications.
    * <p>
-   * Default is 200 (recommended).
+   * Default is 0 (no limit): healthy connections are kept open.
+   * <p>
+   * The thread's recycling policy may be shared with other threads, so it is not modified:
+   * this thread is given a copy of it with the new maximum instead.
    *
-   * @param maxNotificationsPerConnection
+   * @param maxNotificationsPerConnection a number of notifications, or 0 for no limit
    */
   public void setMaxNotificationsPerConnection(final int maxNotificationsPerConnection) {
-    this.maxNotificationsPerConnection = maxNotificationsPerConnection;
+    final ConnectionRecyclingPolicy policy = new ConnectionRecyclingPolicy(notificationManager.getRecyclingPolicy());
+    policy.setMaxNotifications(maxNotificationsPerConnection);
+    notificationManager.setRecyclingPolicy(policy);
+  }
+
+  /**
+   * Set the policy deciding when this thread's connection should be replaced.
+   *
+   * @param recyclingPolicy a recycling policy
+   * @see PushNotificationManager#setRecyclingPolicy(ConnectionRecyclingPolicy)
+   */
+  public void setRecyclingPolicy(final ConnectionRecyclingPolicy recyclingPolicy) {
+    notificationManager.setRecyclingPolicy(recyclingPolicy);
+  }
+
+  /**
+   * Set the pool from which this thread's connection is borrowed.
+   * This setting takes effect when the thread opens its connection.
+   *
+   * @param connectionPool a connection pool, or null to open a dedicated connection
+   * @see PushNotificationManager#setConnectionPool(ConnectionPool)
+   */
+  public void setConnectionPool(final ConnectionPool connectionPool) {
+    notificationManager.setConnectionPool(connectionPool);
   }
 
   public long getSleepBetweenNotifications() {
@@ -368,7 +695,7 @@ public class NotificationThread implements Runnable, PushQueue {
    *
    * @return the number of devices registered with this thread
    */
-  private int size() {
+  int size() {
     return devices != null ? devices.size() : messages.size();
   }
 
@@ -433,11 +760,12 @@ public class NotificationThread implements Runnable, PushQueue {
 
   /**
    * Returns list of all notifications pushed by this thread (successful or not).
+   * If compact results are shared with other threads, the list includes their notifications as well.
    *
    * @return a list of pushed notifications
    */
   public PushedNotifications getPushedNotifications() {
-    return notifications;
+    return compactResults != null ? compactResults : notifications;
   }
 
   /**
@@ -445,7 +773,7 @@ public class NotificationThread implements Runnable, PushQueue {
    * You should invoke this method once you no longer need the list of PushedNotification objects so that memory can be reclaimed.
    */
   public void clearPushedNotifications() {
-    notifications.clear();
+    getPushedNotifications().clear();
   }
 
   /**
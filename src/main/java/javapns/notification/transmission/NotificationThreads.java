@@ -5,9 +5,14 @@ import javapns.devices.Devices;
 import javapns.devices.exceptions.InvalidDeviceTokenFormatException;
 import javapns.notification.*;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
@@ -16,26 +21,34 @@ import java.util.stream.Collectors;
  * <p>The list of devices is spread evenly into multiple {@link javapns.notification.transmission.NotificationThread}s.</p>
  * <p>
  * <p>Usage: once a NotificationThreads is created, invoke {@code start()} to start all {@link javapns.notification.transmission.NotificationThread} threads.</p>
+ * <p>All threads open their connection in parallel, so the group reaches full speed after a single TLS handshake.
+ * Use {@code awaitConnections(..)} to wait until all connections, or a quorum of them, are ready.</p>
  * <p>You can provide a {@link javapns.notification.transmission.NotificationProgressListener} to receive events about the work being done.</p>
+ * <p>Large campaigns can be made resumable with a {@link CampaignCheckpoint}.</p>
  *
  * @author Sylvain Pedneault
  * @see NotificationThread.MODE
  * @see NotificationThread
  */
 public class NotificationThreads extends ThreadGroup implements PushQueue {
-  private static final long DEFAULT_DELAY_BETWEEN_THREADS = 500; // the number of milliseconds to wait between each thread startup
+  private static final long DEFAULT_DELAY_BETWEEN_THREADS = 0; // the number of milliseconds to wait between each thread startup
   private static final String JAVAPNS_NOTIFICATION_THREADS = "javapns notification threads (";
   private static final String THREADS = " threads)";
 
-  private final Object finishPoint = new Object();
+  private final AtomicInteger threadsRunning = new AtomicInteger();
 
   private List<NotificationThread> threads = new ArrayList<>();
   private NotificationProgressListener listener;
 
   private boolean started = false;
-  private int threadsRunning = 0;
+  private volatile CountDownLatch finishPoint;
+  private volatile ConnectionStartup startup;
   private int nextThread = 0;
   private long delayBetweenThreads = DEFAULT_DELAY_BETWEEN_THREADS;
+  private int maxConcurrentHandshakes = 0;
+  private long startupJitter = 0;
+  private CompactPushedNotifications compactResults;
+  private FairScheduler scheduler;
 
   /**
    * Create the specified number of notification threads and spread the devices evenly between the threads.
@@ -193,12 +206,31 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
   }
 
   public PushQueue add(final PayloadPerDevice message) {
+    if (scheduler != null) {
+      return scheduler.add(message);
+    }
     start(); // just in case start() was not invoked before
     final NotificationThread targetThread = getNextAvailableThread();
     targetThread.add(message);
     return targetThread;
   }
 
+  /**
+   * Queue a message for delivery in a priority lane.
+   * The priority is only honoured by threads fed by a {@link FairScheduler}: when no scheduler is set,
+   * the priority is ignored and the message is queued like any other.
+   *
+   * @param message  a payload/device pair
+   * @param priority the lane in which the message waits, ignored when no scheduler is set
+   * @return the scheduler when one is set, otherwise the thread to which the message was added
+   */
+  public PushQueue add(final PayloadPerDevice message, final NotificationPriority priority) {
+    if (scheduler != null) {
+      return scheduler.add(message, priority);
+    }
+    return add(message);
+  }
+
   /**
    * Get the next available thread.
    *
@@ -230,7 +262,8 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
   /**
    * Start all notification threads.
    * <p>
-   * This method returns immediately, as all threads start working on their own.
+   * This method returns immediately, as all threads start working on their own and open their connections in parallel.
+   * To wait until connections are ready, use the awaitConnections() method.
    * To wait until all threads are finished, use the waitForAllThreads() method.
    */
   public synchronized NotificationThreads start() {
@@ -238,18 +271,23 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
       return this;
     }
     started = true;
-    if (threadsRunning > 0) {
+    if (threadsRunning.get() > 0) {
       throw new IllegalStateException("NotificationThreads already started (" + threadsRunning + " still running)");
     }
     assignThreadsNumbers();
+    /* Count all threads before starting any of them, so that an early finisher cannot signal completion prematurely */
+    threadsRunning.set(threads.size());
+    finishPoint = new CountDownLatch(threads.isEmpty() ? 0 : 1);
+    startup = new ConnectionStartup(threads.size(), maxConcurrentHandshakes, startupJitter);
     for (final NotificationThread thread : threads) {
-      threadsRunning++;
       thread.start();
-      try {
-        /* Wait for a specific number of milliseconds to elapse so that not all threads start simultaenously. */
-        Thread.sleep(delayBetweenThreads);
-      } catch (final InterruptedException e) {
-        // empty
+      if (delayBetweenThreads > 0) {
+        try {
+          /* Legacy staggering: wait for a specific number of milliseconds to elapse so that not all threads start simultaenously. */
+          Thread.sleep(delayBetweenThreads);
+        } catch (final InterruptedException e) {
+          // empty
+        }
       }
     }
     if (listener != null) {
@@ -258,13 +296,55 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
     return this;
   }
 
+  /**
+   * Wait until the connections of all threads are established.
+   * <p>
+   * This method returns as soon as every thread has either completed its TLS handshake or failed to connect.
+   *
+   * @return true if all connections are ready, false if at least one failed
+   * @throws InterruptedException
+   * @throws IllegalStateException if the threads were not started yet
+   */
+  public boolean awaitConnections() throws InterruptedException {
+    return awaitConnections(threads.size(), Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Wait until a quorum of connections is established.
+   * <p>
+   * Useful to start feeding a queue as soon as enough capacity is available, without waiting for the slowest handshake.
+   *
+   * @param quorum  the number of established connections to wait for
+   * @param timeout the maximum time to wait
+   * @param unit    the unit of the timeout argument
+   * @return true if the quorum was reached, false if too many connections failed or the timeout elapsed
+   * @throws InterruptedException
+   * @throws IllegalStateException if the threads were not started yet
+   */
+  public boolean awaitConnections(final int quorum, final long timeout, final TimeUnit unit) throws InterruptedException {
+    final ConnectionStartup connectionStartup = startup;
+    if (connectionStartup == null) {
+      throw new IllegalStateException("NotificationThreads not started");
+    }
+    return connectionStartup.await(quorum, timeout, unit);
+  }
+
+  /**
+   * Get the coordinator of connection startup, if threads were started.
+   *
+   * @return the connection startup coordinator, or null
+   */
+  ConnectionStartup getStartup() {
+    return startup;
+  }
+
   /**
    * Configure in all threads the maximum number of notifications per connection.
    * <p>
    * As soon as a thread reaches that maximum, it will automatically close the connection,
    * initialize a new connection and continue pushing more notifications.
    *
-   * @param notifications the maximum number of notifications that threads will push in a single connection (default is 200)
+   * @param notifications the maximum number of notifications that threads will push in a single connection (default is 0, for no limit)
    */
   public void setMaxNotificationsPerConnection(final int notifications) {
     for (final NotificationThread thread : threads) {
@@ -272,6 +352,29 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
     }
   }
 
+  /**
+   * Configure in all threads the policy deciding when connections should be replaced.
+   *
+   * @param recyclingPolicy a recycling policy, which can safely be shared by all threads
+   */
+  public void setRecyclingPolicy(final ConnectionRecyclingPolicy recyclingPolicy) {
+    for (final NotificationThread thread : threads) {
+      thread.setRecyclingPolicy(recyclingPolicy);
+    }
+  }
+
+  /**
+   * Configure in all threads the pool from which connections are borrowed.
+   * This setting takes effect when threads open their connections.
+   *
+   * @param connectionPool a connection pool, or null to open dedicated connections
+   */
+  public void setConnectionPool(final ConnectionPool connectionPool) {
+    for (final NotificationThread thread : threads) {
+      thread.setConnectionPool(connectionPool);
+    }
+  }
+
   /**
    * Configure in all threads the number of milliseconds that threads should wait between each notification.
    * <p>
@@ -286,6 +389,106 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
     }
   }
 
+  /**
+   * Run all threads on threads created by the provided factory, instead of dedicated platform threads.
+   * For example, a factory from {@link VirtualThreads#newThreadFactory(String)} runs each connection on a virtual thread.
+   * <p>
+   * This method must be invoked before {@code start()}.
+   *
+   * @param threadFactory the factory to create underlying threads with
+   */
+  public synchronized void setThreadFactory(final ThreadFactory threadFactory) {
+    if (started) {
+      throw new IllegalStateException("NotificationThreads already started");
+    }
+    for (final NotificationThread thread : threads) {
+      thread.setThreadFactory(threadFactory);
+    }
+  }
+
+  /**
+   * Make all threads take queued messages from a scheduler, instead of dispatching messages between threads as they are added.
+   *
+   * @param scheduler a scheduler
+   */
+  synchronized void setScheduler(final FairScheduler scheduler) {
+    if (started) {
+      throw new IllegalStateException("NotificationThreads already started");
+    }
+    for (final NotificationThread thread : threads) {
+      thread.setScheduler(scheduler);
+    }
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Record the progress of this campaign in a checkpoint, so that it can be resumed if it is interrupted.
+   * If the checkpoint's file holds the progress of a previous run of the same campaign, each thread
+   * skips the notifications already confirmed.
+   * <p>
+   * This method must be invoked before {@code start()}, and is not supported in QUEUE mode.
+   *
+   * @param checkpoint a checkpoint not attached to any other campaign
+   * @throws IOException thrown if the checkpoint file could not be read or written
+   * @throws IllegalStateException thrown if the checkpoint file records a campaign with a different number of notifications or threads
+   */
+  public synchronized void setCheckpoint(final CampaignCheckpoint checkpoint) throws IOException {
+    if (started) {
+      throw new IllegalStateException("NotificationThreads already started");
+    }
+    final int[] sizes = new int[threads.size()];
+    for (int i = 0; i < sizes.length; i++) {
+      if (threads.get(i).getMode() != NotificationThread.MODE.LIST) {
+        throw new IllegalStateException("Checkpoints are only supported in LIST mode");
+      }
+      sizes[i] = threads.get(i).size();
+    }
+    checkpoint.attach(sizes);
+    for (int i = 0; i < sizes.length; i++) {
+      threads.get(i).setCheckpoint(checkpoint.getPartition(i));
+    }
+  }
+
+  /**
+   * Keep the results of all threads in a single compact list, which uses a fraction of the memory of regular lists
+   * and retains every notification pushed.  Recommended for very large campaigns: {@code getPushedNotifications()}
+   * then returns that list directly instead of copying the results of each thread.
+   * <p>
+   * This method must be invoked before {@code start()}, and is not supported in QUEUE mode.
+   *
+   * @param compact true to keep results in a compact list
+   * @see CompactPushedNotifications
+   */
+  public synchronized void setCompactResults(final boolean compact) {
+    if (started) {
+      throw new IllegalStateException("NotificationThreads already started");
+    }
+    int capacity = 0;
+    for (final NotificationThread thread : threads) {
+      if (compact && thread.getMode() != NotificationThread.MODE.LIST) {
+        throw new IllegalStateException("Compact results are only supported in LIST mode");
+      }
+      capacity += thread.size();
+    }
+    compactResults = compact ? new CompactPushedNotifications(capacity) : null;
+    for (final NotificationThread thread : threads) {
+      thread.setCompactResults(compactResults);
+    }
+  }
+
+  /**
+   * Report the outcome of each notification pushed by all threads to a dispatcher's listener.
+   * Each thread publishes to its own channel, so threads never wait for each other or for the listener.
+   *
+   * @param dispatcher a dispatcher, or null to stop reporting outcomes
+   * @see NotificationOutcomeDispatcher
+   */
+  public void setOutcomeDispatcher(final NotificationOutcomeDispatcher dispatcher) {
+    for (final NotificationThread thread : threads) {
+      thread.setOutcomeDispatcher(dispatcher);
+    }
+  }
+
   /**
    * Get a list of threads created to push notifications.
    *
@@ -327,18 +530,14 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
    *
    * @param notificationThread
    */
-  synchronized void threadFinished(final NotificationThread notificationThread) {
-    threadsRunning--;
-    if (threadsRunning == 0) {
-      if (listener != null) {
-        listener.eventAllThreadsFinished(this);
-      }
+  void threadFinished(final NotificationThread notificationThread) {
+    if (threadsRunning.decrementAndGet() == 0) {
       try {
-        synchronized (finishPoint) {
-          finishPoint.notifyAll();
+        if (listener != null) {
+          listener.eventAllThreadsFinished(this);
         }
-      } catch (final Exception e) {
-        // empty
+      } finally {
+        finishPoint.countDown();
       }
     }
   }
@@ -350,12 +549,14 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
    * When using this method, you need to check critical exceptions manually to make sure that all threads were able to do their work.
    * <p>
    * This method should not be used in QUEUE mode, as threads stay idle and never end.
+   * If all threads already finished, or if the threads were never started, this method returns immediately.
    *
    * @throws InterruptedException
    */
   public void waitForAllThreads() throws InterruptedException {
-    synchronized (finishPoint) {
-      finishPoint.wait();
+    final CountDownLatch latch = finishPoint;
+    if (latch != null) {
+      latch.await();
     }
   }
 
@@ -397,6 +598,9 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
    * @return a list of pushed notifications
    */
   public PushedNotifications getPushedNotifications() {
+    if (compactResults != null) {
+      return compactResults;
+    }
     int capacity = 0;
     for (final NotificationThread thread : threads) {
       capacity += thread.getPushedNotifications().size();
@@ -414,6 +618,10 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
    * You should invoke this method once you no longer need the list of PushedNotification objects so that memory can be reclaimed.
    */
   public void clearPushedNotifications() {
+    if (compactResults != null) {
+      compactResults.clear();
+      return;
+    }
     for (final NotificationThread thread : threads) {
       thread.clearPushedNotifications();
     }
@@ -460,20 +668,62 @@ public class NotificationThreads extends ThreadGroup implements PushQueue {
    * Get the amount of time that the library will wait after starting a thread and before starting the next one.
    *
    * @return the number of milliseconds currently configured
+   * @deprecated threads now connect in parallel; see {@link #setMaxConcurrentHandshakes(int)} and {@link #setStartupJitter(long)}
    */
+  @Deprecated
   public long getDelayBetweenThreads() {
     return delayBetweenThreads;
   }
 
   /**
    * Set the amount of time that the library will wait after starting a thread and before starting the next one.
-   * The default delay is 200 milliseconds.  This means that starting 10 threads will take 2 seconds to fully start.
-   * As discussed in issue report #102, adding a delay improves reliability.
+   * The default delay is 0 milliseconds.  A delay of 500 milliseconds means that starting 10 threads will take 5 seconds to fully start.
    *
    * @param delayBetweenThreads a number of milliseconds
+   * @deprecated threads now connect in parallel; to avoid a burst of handshakes (issue report #102), use
+   * {@link #setMaxConcurrentHandshakes(int)} and {@link #setStartupJitter(long)} instead
    */
+  @Deprecated
   public void setDelayBetweenThreads(final long delayBetweenThreads) {
     this.delayBetweenThreads = delayBetweenThreads;
   }
 
+  /**
+   * Get the maximum number of TLS handshakes allowed in progress at once while threads start.
+   *
+   * @return the maximum number of concurrent handshakes (0 means no limit)
+   */
+  public int getMaxConcurrentHandshakes() {
+    return maxConcurrentHandshakes;
+  }
+
+  /**
+   * Limit the number of TLS handshakes in progress at once while threads start.
+   * Must be configured before invoking {@code start()}.
+   *
+   * @param maxConcurrentHandshakes the maximum number of concurrent handshakes (default is 0, meaning no limit)
+   */
+  public void setMaxConcurrentHandshakes(final int maxConcurrentHandshakes) {
+    this.maxConcurrentHandshakes = maxConcurrentHandshakes;
+  }
+
+  /**
+   * Get the maximum random delay applied before each thread opens its connection.
+   *
+   * @return a number of milliseconds
+   */
+  public long getStartupJitter() {
+    return startupJitter;
+  }
+
+  /**
+   * Spread connection attempts over a random delay, to avoid a thundering herd of handshakes
+   * when many threads start at once.  Must be configured before invoking {@code start()}.
+   *
+   * @param startupJitter the maximum random delay in milliseconds before each connection attempt (default is 0)
+   */
+  public void setStartupJitter(final long startupJitter) {
+    this.startupJitter = startupJitter;
+  }
+
 }
@@ -44,6 +44,31 @@ public interface PushQueue {
    */
   PushQueue add(PayloadPerDevice message);
 
+  /**
+   * Queue a message for delivery in a priority lane.
+   * Queues without priority lanes ignore the priority and queue the message like any other.
+   *
+   * @param payload  a payload
+   * @param device   a device
+   * @param priority the lane in which the message waits
+   * @return the actual queue to which the message was added, which could be a different one if the request was delegated to a sub-queue
+   */
+  default PushQueue add(final Payload payload, final Device device, final NotificationPriority priority) {
+    return add(new PayloadPerDevice(payload, device), priority);
+  }
+
+  /**
+   * Queue a message for delivery in a priority lane.
+   * Queues without priority lanes ignore the priority and queue the message like any other.
+   *
+   * @param message  a payload/device pair
+   * @param priority the lane in which the message waits
+   * @return the actual queue to which the message was added, which could be a different one if the request was delegated to a sub-queue
+   */
+  default PushQueue add(final PayloadPerDevice message, final NotificationPriority priority) {
+    return add(message);
+  }
+
   /**
    * Start the transmission thread(s) working for the queue.
    *
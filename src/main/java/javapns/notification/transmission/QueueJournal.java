@@ -0,0 +1,525 @@
+package javapns.notification.transmission;
+
+import javapns.devices.implementations.basic.BasicDevice;
+import javapns.notification.Payload;
+import javapns.notification.PayloadPerDevice;
+import javapns.notification.PushNotificationBigPayload;
+import org.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.zip.CRC32;
+
+/**
+ * <h1>A durable, append-only journal of queued notifications</h1>
+ * <p>
+ * <p>Messages added to a {@link NotificationThread} in QUEUE mode are normally kept in memory only,
+ * and are lost if the JVM dies before they are pushed.  When a journal is attached to the thread
+ * (see {@link NotificationThread#setJournal(QueueJournal)}), queued messages are instead appended to
+ * memory-mapped segment files, and the thread consumes them from the journal.  Adding a message only
+ * costs a write to mapped memory, which the operating system persists even if the JVM crashes.
+ * Enable {@link #setSyncOnAppend(boolean)} to also survive an operating system crash or power loss,
+ * at the cost of a disk flush per message.</p>
+ * <p>
+ * <p>Each record holds the device token, the serialized payload and its expiry.  The position of the last
+ * message known to be delivered is stored in a small checkpoint file; when the journal is opened again, every
+ * message after that position is queued again.  Messages taken from the journal are only committed once they
+ * are final (see {@link #commit(int)}), so messages that Apple could still reject are pushed again after a crash.  Segments entirely consumed are recycled for future messages.
+ * A message whose expiry elapsed while it was waiting in the journal is dropped instead of being pushed.
+ * Payloads are restored from their JSON form, so they are pushed with the default UTF-8 encoding.</p>
+ * <p>
+ * <p>A journal directory must only be used by a single journal at a time.  This class is thread-safe.</p>
+ */
+public class QueueJournal implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(QueueJournal.class);
+
+  /* Default size of segment files, in bytes */
+  public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  /* Smallest segment size accepted, in bytes */
+  private static final int MIN_SEGMENT_SIZE = 8 * 1024;
+
+  private static final String SEGMENT_SUFFIX = ".journal";
+  private static final String CHECKPOINT_FILE = "checkpoint";
+  private static final int CHECKPOINT_SIZE = 16;
+
+  /* Length and checksum preceding each record */
+  private static final int RECORD_HEADER = 8;
+
+  /* Enqueue time, expiry and token length preceding the token and payload of each record */
+  private static final int RECORD_FIXED = 8 + 4 + 2;
+
+  /* Length written in place of a record when the rest of a segment is left unused */
+  private static final int END_OF_SEGMENT = -1;
+
+  /* Maximum number of consumed segment files kept for reuse */
+  private static final int MAX_RECYCLED_SEGMENTS = 2;
+
+  /* Expiry denoting a simulation-only payload, see Payload.asSimulationOnly() */
+  private static final int SIMULATION_EXPIRY = 919191;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File directory;
+  private final int segmentSize;
+  private final MappedByteBuffer checkpoint;
+  private final Deque<File> recycled = new ArrayDeque<>();
+  private final CRC32 crc = new CRC32();
+
+  /* Where each message taken but not yet committed ends, in the order they were taken */
+  private final Deque<Mark> uncommitted = new ArrayDeque<>();
+
+  /* Oldest segment still needed, the segment being read, and the segment being written */
+  private Segment first;
+  private Segment head;
+  private Segment tail;
+  private int readPosition;
+  private int writePosition;
+  private int pending;
+  private boolean syncOnAppend = false;
+  private boolean closed = false;
+
+  /**
+   * Open a journal using segments of the default size, creating the directory if needed.
+   *
+   * @param directory the directory holding the journal's files
+   * @throws IOException thrown if the journal could not be opened
+   */
+  public QueueJournal(final File directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Open a journal, creating the directory if needed.  Messages left unconsumed by a previous journal
+   * in the same directory are recovered and will be pushed first.
+   *
+   * @param directory   the directory holding the journal's files
+   * @param segmentSize the size of each segment file in bytes, which must exceed the size of the largest record
+   * @throws IOException thrown if the journal could not be opened
+   */
+  public QueueJournal(final File directory, final int segmentSize) throws IOException {
+    if (segmentSize < MIN_SEGMENT_SIZE) {
+      throw new IllegalArgumentException("segmentSize must be at least " + MIN_SEGMENT_SIZE);
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create journal directory " + directory);
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.checkpoint = map(new File(directory, CHECKPOINT_FILE), CHECKPOINT_SIZE);
+    recover();
+  }
+
+  private void recover() throws IOException {
+    final long[] numbers = listSegments();
+    long committedSegment = checkpoint.getLong(0);
+    int committedPosition = checkpoint.getInt(8);
+    if (committedSegment <= 0 || checkpoint.getInt(12) != checksum(committedSegment, committedPosition)) {
+      /* No valid checkpoint: replaying everything is better than losing anything */
+      committedSegment = numbers.length > 0 ? numbers[0] : 1;
+      committedPosition = 0;
+    }
+    Segment last = null;
+    for (final long number : numbers) {
+      if (number < committedSegment) {
+        recycle(segmentFile(number));
+        continue;
+      }
+      final Segment segment = new Segment(number, segmentFile(number));
+      if (last == null) {
+        first = segment;
+      } else {
+        last.next = segment;
+      }
+      last = segment;
+    }
+    if (first == null || first.number != committedSegment) {
+      final Segment segment = new Segment(committedSegment, segmentFile(committedSegment));
+      segment.next = first;
+      first = segment;
+      committedPosition = 0;
+      if (last == null) {
+        last = segment;
+      }
+    }
+    head = first;
+    tail = last;
+    readPosition = committedPosition;
+    /* Until the end of the last segment is found, records are only delimited by their checksums */
+    writePosition = Integer.MAX_VALUE;
+    int position = committedPosition;
+    for (Segment segment = first; segment != null; segment = segment.next) {
+      while ((position = nextRecord(segment, position)) >= 0) {
+        pending++;
+      }
+      if (segment != tail) {
+        position = 0;
+      }
+    }
+    writePosition = -position - 1;
+    if (pending > 0) {
+      logger.info("Recovered " + pending + " queued notifications from journal " + directory);
+    }
+  }
+
+  private long[] listSegments() {
+    final File[] files = directory.listFiles();
+    if (files == null) {
+      return new long[0];
+    }
+    long[] numbers = new long[files.length];
+    int count = 0;
+    for (final File file : files) {
+      final String name = file.getName();
+      if (name.endsWith(SEGMENT_SUFFIX)) {
+        try {
+          final long number = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+          numbers[count++] = number;
+        } catch (final NumberFormatException e) {
+          // empty
+        }
+      }
+    }
+    numbers = Arrays.copyOf(numbers, count);
+    Arrays.sort(numbers);
+    return numbers;
+  }
+
+  /**
+   * Append a message to the journal.
+   *
+   * @param message a payload/device pair
+   * @throws IOException thrown if a new segment file could not be created
+   */
+  public synchronized void append(final PayloadPerDevice message) throws IOException {
+    if (closed) {
+      throw new IllegalStateException("Journal is closed");
+    }
+    final byte[] token = message.getDevice().getToken().getBytes(ASCII);
+    final byte[] payload = message.getPayload().toString().getBytes(UTF8);
+    final int length = RECORD_FIXED + token.length + payload.length;
+    if (RECORD_HEADER + length > segmentSize) {
+      throw new IllegalArgumentException("Message too large for journal segments: " + length + " bytes");
+    }
+    if (writePosition + RECORD_HEADER + length > segmentSize) {
+      roll();
+    }
+    final MappedByteBuffer buffer = tail.buffer;
+    final int start = writePosition;
+    buffer.position(start + RECORD_HEADER);
+    buffer.putLong(System.currentTimeMillis());
+    buffer.putInt(message.getPayload().getExpiry());
+    buffer.putShort((short) token.length);
+    buffer.put(token);
+    buffer.put(payload);
+    buffer.putInt(start + 4, checksum(tail.number, buffer, start + RECORD_HEADER, length));
+    /* The length goes last, so that a record interrupted halfway is never mistaken for a complete one */
+    buffer.putInt(start, length);
+    writePosition = start + RECORD_HEADER + length;
+    pending++;
+    if (syncOnAppend) {
+      buffer.force();
+    }
+  }
+
+  private void roll() throws IOException {
+    if (writePosition + 4 <= segmentSize) {
+      tail.buffer.putInt(writePosition, END_OF_SEGMENT);
+    }
+    if (syncOnAppend) {
+      tail.buffer.force();
+    }
+    final long number = tail.number + 1;
+    final File file = segmentFile(number);
+    final File spare = recycled.poll();
+    if (spare != null && !spare.renameTo(file)) {
+      delete(spare);
+    }
+    final Segment segment = new Segment(number, file);
+    tail.next = segment;
+    tail = segment;
+    writePosition = 0;
+  }
+
+  /**
+   * Take the next message from the journal.  The message is not considered consumed until {@link #commit()} is invoked,
+   * so it will be recovered if the journal is reopened before that.
+   *
+   * @return the next message, or null if the journal holds no more messages
+   */
+  public synchronized PayloadPerDevice poll() {
+    while (pending > 0) {
+      final int next = nextRecord(head, readPosition);
+      if (next < 0) {
+        if (head == tail) {
+          return null;
+        }
+        head = head.next;
+        readPosition = 0;
+        continue;
+      }
+      final int start = readPosition;
+      readPosition = next;
+      pending--;
+      final PayloadPerDevice message = decode(head.buffer, start + RECORD_HEADER, next - start - RECORD_HEADER);
+      if (message != null) {
+        /* Committing this message also commits the messages dropped before it */
+        uncommitted.add(new Mark(head, next));
+        return message;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Mark all messages returned by {@link #poll()} so far as consumed, so that they are not recovered if the journal is reopened.
+   * Segments that no longer hold unconsumed messages are recycled.
+   */
+  public synchronized void commit() {
+    uncommitted.clear();
+    commit(head, readPosition);
+  }
+
+  /**
+   * Mark the oldest messages returned by {@link #poll()} and not yet committed as consumed, so that they are not recovered
+   * if the journal is reopened.  The messages taken after them remain in the journal until they are committed too.
+   * <p>
+   * This allows committing a message only once it is final: Apple reports a rejected notification a little after it
+   * was pushed, and ignores the notifications pushed after it, which must then be pushed again.
+   *
+   * @param messages the number of messages to commit, in the order they were taken
+   */
+  public synchronized void commit(final int messages) {
+    if (messages > uncommitted.size()) {
+      throw new IllegalArgumentException("Only " + uncommitted.size() + " messages can be committed");
+    }
+    Mark last = null;
+    for (int i = 0; i < messages; i++) {
+      last = uncommitted.poll();
+    }
+    if (last != null) {
+      commit(last.segment, last.position);
+    }
+  }
+
+  private void commit(final Segment segment, final int position) {
+    if (closed) {
+      return;
+    }
+    checkpoint.putLong(0, segment.number);
+    checkpoint.putInt(8, position);
+    checkpoint.putInt(12, checksum(segment.number, position));
+    if (syncOnAppend) {
+      checkpoint.force();
+    }
+    while (first != segment) {
+      recycle(first.file);
+      first = first.next;
+    }
+  }
+
+  /**
+   * Get the number of messages returned by {@link #poll()} and not yet committed.
+   *
+   * @return a number of messages
+   */
+  public synchronized int getUncommitted() {
+    return uncommitted.size();
+  }
+
+  /**
+   * Find the end of the record starting at the given position in a segment.
+   *
+   * @return the position following the record, or a negative number (-position - 1) if no valid record starts at that position
+   */
+  private int nextRecord(final Segment segment, final int position) {
+    if (segment == tail && position >= writePosition) {
+      return -position - 1;
+    }
+    if (position + RECORD_HEADER > segmentSize) {
+      return -position - 1;
+    }
+    final MappedByteBuffer buffer = segment.buffer;
+    final int length = buffer.getInt(position);
+    if (length < RECORD_FIXED || position + RECORD_HEADER + length > segmentSize) {
+      return -position - 1;
+    }
+    /* Records left over in a recycled segment were checksummed with a different segment number */
+    if (buffer.getInt(position + 4) != checksum(segment.number, buffer, position + RECORD_HEADER, length)) {
+      return -position - 1;
+    }
+    return position + RECORD_HEADER + length;
+  }
+
+  private PayloadPerDevice decode(final MappedByteBuffer buffer, final int position, final int length) {
+    final ByteBuffer record = buffer.duplicate();
+    record.position(position);
+    final long enqueued = record.getLong();
+    final int expiry = record.getInt();
+    final byte[] token = new byte[record.getShort()];
+    record.get(token);
+    final byte[] json = new byte[length - RECORD_FIXED - token.length];
+    record.get(json);
+    final Payload payload;
+    try {
+      payload = PushNotificationBigPayload.fromJSON(new String(json, UTF8));
+    } catch (final JSONException e) {
+      logger.warn("Dropping unreadable notification from journal " + directory, e);
+      return null;
+    }
+    if (expiry > 0 && expiry != SIMULATION_EXPIRY) {
+      final long remaining = expiry - (System.currentTimeMillis() - enqueued) / 1000;
+      if (remaining <= 0) {
+        logger.debug("Dropping expired notification from journal " + directory);
+        return null;
+      }
+      payload.setExpiry((int) remaining);
+    } else {
+      payload.setExpiry(expiry);
+    }
+    final BasicDevice device = new BasicDevice();
+    device.setToken(new String(token, ASCII));
+    device.setDeviceId(device.getToken());
+    return new PayloadPerDevice(payload, device);
+  }
+
+  private int checksum(final long segment, final MappedByteBuffer buffer, final int position, final int length) {
+    final ByteBuffer range = buffer.duplicate();
+    range.position(position);
+    range.limit(position + length);
+    crc.reset();
+    updateChecksum(segment);
+    crc.update(range);
+    return (int) crc.getValue();
+  }
+
+  private int checksum(final long segment, final int position) {
+    crc.reset();
+    updateChecksum(segment);
+    updateChecksum(position);
+    return (int) crc.getValue();
+  }
+
+  private void updateChecksum(final long value) {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      crc.update((int) (value >>> shift));
+    }
+  }
+
+  private void recycle(final File file) {
+    if (recycled.size() < MAX_RECYCLED_SEGMENTS) {
+      recycled.add(file);
+    } else {
+      delete(file);
+    }
+  }
+
+  private static void delete(final File file) {
+    if (!file.delete()) {
+      logger.warn("Could not delete journal segment " + file);
+    }
+  }
+
+  private File segmentFile(final long number) {
+    return new File(directory, String.format("%016d", number) + SEGMENT_SUFFIX);
+  }
+
+  private static MappedByteBuffer map(final File file, final int size) throws IOException {
+    try (final RandomAccessFile raf = new RandomAccessFile(file, "rw"); final FileChannel channel = raf.getChannel()) {
+      /* The mapping remains valid after the channel is closed */
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  /**
+   * Get the number of messages appended but not yet taken from the journal.
+   *
+   * @return a number of messages
+   */
+  public synchronized int size() {
+    return pending;
+  }
+
+  public synchronized boolean isEmpty() {
+    return pending == 0;
+  }
+
+  /**
+   * Flush all appended messages and the checkpoint to disk.
+   */
+  public synchronized void sync() {
+    if (closed) {
+      return;
+    }
+    for (Segment segment = head; segment != null; segment = segment.next) {
+      segment.buffer.force();
+    }
+    checkpoint.force();
+  }
+
+  public synchronized boolean isSyncOnAppend() {
+    return syncOnAppend;
+  }
+
+  /**
+   * Flush every appended message and checkpoint to disk, so that messages survive an operating system crash or power loss.
+   * By default, messages only survive a crash of the JVM.
+   *
+   * @param syncOnAppend true to flush after every append and commit
+   */
+  public synchronized void setSyncOnAppend(final boolean syncOnAppend) {
+    this.syncOnAppend = syncOnAppend;
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Flush the journal to disk and stop accepting messages.  Unconsumed messages remain in the journal's directory.
+   */
+  public synchronized void close() {
+    sync();
+    closed = true;
+  }
+
+  /**
+   * The position following a message taken from the journal.
+   */
+  private static final class Mark {
+    private final Segment segment;
+    private final int position;
+
+    private Mark(final Segment segment, final int position) {
+      this.segment = segment;
+      this.position = position;
+    }
+  }
+
+  /**
+   * A segment file, mapped in memory for its whole size.
+   */
+  private final class Segment {
+    private final long number;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private Segment next;
+
+    private Segment(final long number, final File file) throws IOException {
+      this.number = number;
+      this.file = file;
+      this.buffer = map(file, segmentSize);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package javapns.notification.transmission;
+
+import javapns.notification.PayloadPerDevice;
+
+/**
+ * <h1>An event listener for monitoring the messages dropped by a queue</h1>
+ * <p>
+ * <p>Events are delivered on the thread that caused the message to be dropped (either a thread adding messages
+ * or a thread pushing them), after the queue was unlocked.  Listeners should return quickly.</p>
+ *
+ * @see FairScheduler#setSheddingListener(SheddingListener)
+ * @see SheddingPolicy
+ */
+public interface SheddingListener {
+  /**
+   * Invoked once for every message dropped.
+   *
+   * @param reason   why the message was dropped
+   * @param message  the message that will not be pushed
+   * @param priority the lane in which the message was queued
+   */
+  void eventShed(Reason reason, PayloadPerDevice message, NotificationPriority priority);
+
+  /**
+   * The reasons for which a message can be dropped.
+   */
+  enum Reason {
+    /**
+     * The payload expired while the message was queued.
+     */
+    EXPIRED,
+    /**
+     * The queue was full, and the message had the lowest priority or was the newest of its lane.
+     */
+    OVERFLOW,
+    /**
+     * A newer message was queued for the same device.
+     */
+    COALESCED
+  }
+}
@@ -0,0 +1,103 @@
+package javapns.notification.transmission;
+
+/**
+ * <h1>Decides which queued messages are dropped when a queue backs up</h1>
+ * <p>
+ * <p>By default, a {@link FairScheduler} keeps every message it is given and pushes it eventually, however late.
+ * When capacity runs short, for example during an incident at Apple or on the network, messages that no longer
+ * matter can instead be dropped so that connections are spent on those that still do:</p>
+ * <ul>
+ * <li>messages whose payload {@link javapns.notification.Payload#getExpiry() expiry} elapsed while they were queued,</li>
+ * <li>the oldest messages of the lowest priority lane, when the queue holds its maximum number of messages,</li>
+ * <li>older messages to a device for which a new message is queued, so that only the latest one is pushed.</li>
+ * </ul>
+ * <p>
+ * <p>When the queue is full and no queued message can be dropped in favor of a new one, the new message itself is dropped.
+ * Dropped messages are reported to the scheduler's {@link SheddingListener}.</p>
+ *
+ * @see FairScheduler#setSheddingPolicy(SheddingPolicy)
+ */
+public class SheddingPolicy {
+  private volatile int maxQueuedMessages = 0;
+  private volatile boolean dropExpired = false;
+  private volatile boolean dropLowestPriority = false;
+  private volatile boolean coalesceByDevice = false;
+
+  /**
+   * Create a policy dropping nothing, until configured otherwise.
+   */
+  public SheddingPolicy() {
+  }
+
+  /**
+   * Create a policy bounding the queue and dropping expired messages, then the lowest priority messages, to make room.
+   *
+   * @param maxQueuedMessages the maximum number of messages queued
+   * @return a policy
+   */
+  public static SheddingPolicy bounded(final int maxQueuedMessages) {
+    final SheddingPolicy policy = new SheddingPolicy();
+    policy.setMaxQueuedMessages(maxQueuedMessages);
+    policy.setDropExpired(true);
+    policy.setDropLowestPriority(true);
+    return policy;
+  }
+
+  public int getMaxQueuedMessages() {
+    return maxQueuedMessages;
+  }
+
+  /**
+   * Set the maximum number of messages queued.
+   *
+   * @param maxQueuedMessages a number of messages (0 for no limit, the default)
+   */
+  public void setMaxQueuedMessages(final int maxQueuedMessages) {
+    if (maxQueuedMessages < 0) {
+      throw new IllegalArgumentException("maxQueuedMessages must not be negative");
+    }
+    this.maxQueuedMessages = maxQueuedMessages;
+  }
+
+  public boolean isDropExpired() {
+    return dropExpired;
+  }
+
+  /**
+   * Drop messages whose payload expiry elapsed since they were queued, instead of pushing them.
+   * Payloads with no expiry (0 or less) never expire in the queue.
+   *
+   * @param dropExpired true to drop expired messages (default is false)
+   */
+  public void setDropExpired(final boolean dropExpired) {
+    this.dropExpired = dropExpired;
+  }
+
+  public boolean isDropLowestPriority() {
+    return dropLowestPriority;
+  }
+
+  /**
+   * When the queue is full, drop the oldest message of the lowest non-empty lane to make room for a new message
+   * of the same or a higher priority.
+   *
+   * @param dropLowestPriority true to drop low-priority messages when the queue is full (default is false, dropping new messages)
+   */
+  public void setDropLowestPriority(final boolean dropLowestPriority) {
+    this.dropLowestPriority = dropLowestPriority;
+  }
+
+  public boolean isCoalesceByDevice() {
+    return coalesceByDevice;
+  }
+
+  /**
+   * Keep only the latest message queued for each device: a message queued for a device replaces the message
+   * already queued for that device, if any.  Useful when each message supersedes the previous ones, such as badge updates.
+   *
+   * @param coalesceByDevice true to coalesce messages by device (default is false)
+   */
+  public void setCoalesceByDevice(final boolean coalesceByDevice) {
+    this.coalesceByDevice = coalesceByDevice;
+  }
+}
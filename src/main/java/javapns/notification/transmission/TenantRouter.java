@@ -0,0 +1,449 @@
+package javapns.notification.transmission;
+
+import javapns.notification.AppleNotificationServer;
+import javapns.notification.ConnectionRecyclingPolicy;
+import javapns.notification.Payload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <h1>Routes notifications for many apps, each with its own certificate, over a shared budget of connections</h1>
+ * <p>
+ * <p>Each tenant (typically an app) is registered with the server it pushes to.  No connection is opened until
+ * notifications are pushed for a tenant: its {@link NotificationSenderPool} is then created and kept open for the
+ * following campaigns.  A tenant whose campaigns are all complete and which stays unused longer than the
+ * maximum idle time has its pool closed, and a new one is created the next time it pushes.</p>
+ * <p>
+ * <p>The total number of connections opened by all tenants is bounded by a budget.  When a tenant needs a pool and
+ * the budget is exhausted, the least recently used idle tenants are closed first to make room.  If every open tenant
+ * is busy, the new pool is given the connections that remain, and at least one: a tenant is never refused.</p>
+ * <pre>
+ * TenantRouter router = new TenantRouter(4, 200, 5 * 60 * 1000);
+ * router.register("app1", new AppleNotificationServerBasicImpl("app1.p12", "password", true));
+ * router.register("app2", new AppleNotificationServerBasicImpl("app2.p12", "password", true));
+ * router.scheduleEviction(30000);
+ * NotificationCampaign campaign = router.push("app1", payload, devices);
+ * </pre>
+ * <p>
+ * <p>Idle tenants are evicted whenever notifications are pushed, by {@link #evictIdle()}, or periodically
+ * if {@link #scheduleEviction(long)} was invoked.  This class is thread-safe.</p>
+ *
+ * @see NotificationSenderPool
+ */
+public class TenantRouter implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(TenantRouter.class);
+
+  /* Default number of connections opened for each tenant */
+  private static final int DEFAULT_CONNECTIONS_PER_TENANT = 2;
+
+  /* Default maximum number of connections opened by all tenants */
+  private static final int DEFAULT_CONNECTION_BUDGET = 100;
+
+  /* Default maximum number of milliseconds a tenant can stay idle before its connections are closed */
+  private static final long DEFAULT_MAX_IDLE_TIME = 5 * 60 * 1000;
+
+  private final Map<String, Tenant> tenants = new LinkedHashMap<>();
+  private final int connectionsPerTenant;
+  private final int connectionBudget;
+  private final long maxIdleTime;
+
+  private ThreadFactory threadFactory;
+  private ConnectionRecyclingPolicy recyclingPolicy;
+  private ScheduledExecutorService evictor;
+  private int openConnections;
+  private long evictions;
+  private boolean closed = false;
+
+  /**
+   * Create a router using default settings.
+   */
+  public TenantRouter() {
+    this(DEFAULT_CONNECTIONS_PER_TENANT, DEFAULT_CONNECTION_BUDGET, DEFAULT_MAX_IDLE_TIME);
+  }
+
+  /**
+   * Create a router.
+   *
+   * @param connectionsPerTenant the default number of connections opened for a tenant
+   * @param connectionBudget     the maximum number of connections opened by all tenants
+   * @param maxIdleTime          the maximum number of milliseconds a tenant can stay idle before its connections are closed (0 for no limit)
+   */
+  public TenantRouter(final int connectionsPerTenant, final int connectionBudget, final long maxIdleTime) {
+    if (connectionsPerTenant <= 0 || connectionBudget <= 0) {
+      throw new IllegalArgumentException("A router needs at least one connection per tenant and in its budget");
+    }
+    if (maxIdleTime < 0) {
+      throw new IllegalArgumentException("maxIdleTime must not be negative");
+    }
+    this.connectionsPerTenant = connectionsPerTenant;
+    this.connectionBudget = connectionBudget;
+    this.maxIdleTime = maxIdleTime;
+  }
+
+  /**
+   * Register a tenant using the default number of connections.
+   *
+   * @param tenant a name identifying the tenant
+   * @param server the server to push the tenant's notifications to
+   */
+  public void register(final String tenant, final AppleNotificationServer server) {
+    register(tenant, server, connectionsPerTenant);
+  }
+
+  /**
+   * Register a tenant, or replace the server of a tenant already registered.
+   * No connection is opened until notifications are pushed for the tenant.
+   *
+   * @param tenant      a name identifying the tenant
+   * @param server      the server to push the tenant's notifications to
+   * @param connections the maximum number of connections opened for the tenant
+   */
+  public void register(final String tenant, final AppleNotificationServer server, final int connections) {
+    if (connections <= 0) {
+      throw new IllegalArgumentException("A tenant needs at least one connection");
+    }
+    final NotificationSenderPool replaced;
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("Tenant router is closed");
+      }
+      /* Removing the tenant first moves it to the end of the access order, along with its fresh use time */
+      final Tenant previous = tenants.remove(tenant);
+      tenants.put(tenant, new Tenant(tenant, server, connections));
+      replaced = previous != null ? release(previous) : null;
+    }
+    if (replaced != null) {
+      replaced.close();
+    }
+  }
+
+  /**
+   * Remove a tenant.  Its connections are closed once its campaigns already submitted are complete.
+   *
+   * @param tenant a name identifying the tenant
+   * @return true if the tenant was registered
+   */
+  public boolean unregister(final String tenant) {
+    final NotificationSenderPool removed;
+    synchronized (this) {
+      final Tenant previous = tenants.remove(tenant);
+      if (previous == null) {
+        return false;
+      }
+      removed = release(previous);
+    }
+    if (removed != null) {
+      removed.close();
+    }
+    return true;
+  }
+
+  /**
+   * Push a single payload to a list of devices on behalf of a tenant.
+   *
+   * @param tenant  a registered tenant
+   * @param payload the payload to push
+   * @param devices a list or an array of tokens or devices: {@link java.lang.String String[]}, {@link java.util.List}<{@link java.lang.String}>, {@link javapns.devices.Device Device[]}, {@link java.util.List}<{@link javapns.devices.Device}>, {@link java.lang.String} or {@link javapns.devices.Device}
+   * @return a campaign which completes once all notifications were pushed
+   * @throws IllegalArgumentException if the tenant is not registered
+   */
+  public NotificationCampaign push(final String tenant, final Payload payload, final Object devices) {
+    final List<NotificationSenderPool> evicted = new ArrayList<>();
+    final NotificationCampaign campaign;
+    synchronized (this) {
+      final Tenant entry = acquire(tenant, evicted);
+      campaign = entry.pool.push(payload, devices);
+      entry.submitted(campaign);
+    }
+    closeAll(evicted);
+    return campaign;
+  }
+
+  /**
+   * Push individual payloads to a list of devices on behalf of a tenant.
+   *
+   * @param tenant             a registered tenant
+   * @param payloadDevicePairs a list or an array of PayloadPerDevice: {@link java.util.List}<{@link javapns.notification.PayloadPerDevice}>, {@link javapns.notification.PayloadPerDevice PayloadPerDevice[]} or {@link javapns.notification.PayloadPerDevice}
+   * @return a campaign which completes once all notifications were pushed
+   * @throws IllegalArgumentException if the tenant is not registered
+   */
+  public NotificationCampaign pushPayloads(final String tenant, final Object payloadDevicePairs) {
+    final List<NotificationSenderPool> evicted = new ArrayList<>();
+    final NotificationCampaign campaign;
+    synchronized (this) {
+      final Tenant entry = acquire(tenant, evicted);
+      campaign = entry.pool.pushPayloads(payloadDevicePairs);
+      entry.submitted(campaign);
+    }
+    closeAll(evicted);
+    return campaign;
+  }
+
+  /**
+   * Find a tenant and make sure it has a pool, evicting other tenants as needed.
+   * Pools to close are added to the given list, to be closed once the lock is released.
+   */
+  private Tenant acquire(final String name, final List<NotificationSenderPool> evicted) {
+    if (closed) {
+      throw new IllegalStateException("Tenant router is closed");
+    }
+    /* Looking the tenant up moves it to the end of the access order */
+    final Tenant tenant = tenants.remove(name);
+    if (tenant == null) {
+      throw new IllegalArgumentException("Unknown tenant: " + name);
+    }
+    tenants.put(name, tenant);
+    final long now = System.currentTimeMillis();
+    evictExpired(now, evicted);
+    if (tenant.pool == null) {
+      evictForBudget(tenant.connections, evicted);
+      final int available = connectionBudget - openConnections;
+      final int size = Math.max(1, Math.min(tenant.connections, available));
+      if (size > available) {
+        logger.warn("Connection budget of " + connectionBudget + " exceeded: all open tenants are busy, opening one connection for tenant " + name);
+      }
+      tenant.pool = createPool(tenant.server, size);
+      openConnections += size;
+      logger.debug("Opened " + size + " connections for tenant " + name + " (" + openConnections + " open)");
+    }
+    tenant.lastUsed = now;
+    return tenant;
+  }
+
+  private NotificationSenderPool createPool(final AppleNotificationServer server, final int size) {
+    final NotificationSenderPool pool = threadFactory != null ? new NotificationSenderPool(server, size, threadFactory) : new NotificationSenderPool(server, size);
+    if (recyclingPolicy != null) {
+      pool.setRecyclingPolicy(recyclingPolicy);
+    }
+    return pool;
+  }
+
+  /**
+   * Evict the least recently used idle tenants until the given number of connections fits in the budget.
+   */
+  private void evictForBudget(final int needed, final List<NotificationSenderPool> evicted) {
+    final Iterator<Tenant> iterator = tenants.values().iterator();
+    while (openConnections + needed > connectionBudget && iterator.hasNext()) {
+      final Tenant tenant = iterator.next();
+      if (tenant.pool != null && tenant.isIdle()) {
+        logger.debug("Closing connections of least recently used tenant " + tenant.name + " to stay within budget");
+        evicted.add(release(tenant));
+        evictions++;
+      }
+    }
+  }
+
+  /**
+   * Evict idle tenants unused for longer than the maximum idle time.
+   */
+  private void evictExpired(final long now, final List<NotificationSenderPool> evicted) {
+    if (maxIdleTime == 0) {
+      return;
+    }
+    /* Tenants are in access order, so the scan stops at the first one used recently */
+    for (final Tenant tenant : tenants.values()) {
+      if (now - tenant.lastUsed <= maxIdleTime) {
+        break;
+      }
+      if (tenant.pool != null && tenant.isIdle()) {
+        logger.debug("Closing connections of idle tenant " + tenant.name);
+        evicted.add(release(tenant));
+        evictions++;
+      }
+    }
+  }
+
+  /**
+   * Detach a tenant's pool, if any, and return it so that it can be closed outside the lock.
+   */
+  private NotificationSenderPool release(final Tenant tenant) {
+    final NotificationSenderPool pool = tenant.pool;
+    if (pool != null) {
+      openConnections -= pool.size();
+      tenant.pool = null;
+      tenant.campaigns.clear();
+    }
+    return pool;
+  }
+
+  private static void closeAll(final List<NotificationSenderPool> pools) {
+    for (final NotificationSenderPool pool : pools) {
+      pool.close();
+    }
+  }
+
+  /**
+   * Close the connections of tenants whose campaigns are complete and which stayed unused longer than the maximum idle time.
+   * This is done automatically whenever notifications are pushed, but can also be invoked periodically
+   * to free connections held by tenants when no notifications are pushed at all.
+   *
+   * @return the number of tenants whose connections were closed
+   */
+  public int evictIdle() {
+    final List<NotificationSenderPool> evicted = new ArrayList<>();
+    synchronized (this) {
+      evictExpired(System.currentTimeMillis(), evicted);
+    }
+    closeAll(evicted);
+    return evicted.size();
+  }
+
+  /**
+   * Evict idle tenants periodically on a background thread.
+   *
+   * @param interval the time between two evictions, in milliseconds
+   */
+  public synchronized void scheduleEviction(final long interval) {
+    if (evictor != null) {
+      throw new IllegalStateException("Eviction already scheduled");
+    }
+    evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "JavaPNS tenant eviction");
+      thread.setDaemon(true);
+      return thread;
+    });
+    evictor.scheduleWithFixedDelay(this::evictIdle, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Set the factory creating sender threads for the pools created from now on.
+   * On Java 21 and later, a factory from {@link VirtualThreads#newThreadFactory(String)} runs each sender
+   * on a virtual thread, so that a large budget of connections does not need as many platform threads.
+   *
+   * @param threadFactory a thread factory, or null to let each pool create daemon threads
+   */
+  public synchronized void setThreadFactory(final ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
+  /**
+   * Set the policy deciding when senders replace their connection, for the pools created from now on.
+   *
+   * @param recyclingPolicy a recycling policy, shared by all senders
+   */
+  public synchronized void setRecyclingPolicy(final ConnectionRecyclingPolicy recyclingPolicy) {
+    this.recyclingPolicy = recyclingPolicy;
+  }
+
+  /**
+   * Get the number of registered tenants.
+   *
+   * @return a number of tenants
+   */
+  public synchronized int getTenantCount() {
+    return tenants.size();
+  }
+
+  /**
+   * Get the number of tenants which currently have connections open.
+   *
+   * @return a number of tenants
+   */
+  public synchronized int getOpenTenantCount() {
+    int count = 0;
+    for (final Tenant tenant : tenants.values()) {
+      if (tenant.pool != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Get the number of connections currently opened by all tenants.
+   *
+   * @return a number of connections
+   */
+  public synchronized int getOpenConnections() {
+    return openConnections;
+  }
+
+  /**
+   * Get the number of times a tenant's connections were closed because it was idle or to stay within budget.
+   *
+   * @return a number of evictions
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  public int getConnectionsPerTenant() {
+    return connectionsPerTenant;
+  }
+
+  public int getConnectionBudget() {
+    return connectionBudget;
+  }
+
+  public long getMaxIdleTime() {
+    return maxIdleTime;
+  }
+
+  /**
+   * Close the connections of all tenants once campaigns already submitted are complete.
+   * This method blocks until all senders have stopped.
+   */
+  public void close() {
+    final List<NotificationSenderPool> pools = new ArrayList<>();
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (evictor != null) {
+        evictor.shutdownNow();
+        evictor = null;
+      }
+      for (final Tenant tenant : tenants.values()) {
+        final NotificationSenderPool pool = release(tenant);
+        if (pool != null) {
+          pools.add(pool);
+        }
+      }
+      tenants.clear();
+    }
+    closeAll(pools);
+  }
+
+  /**
+   * A registered tenant, along with its pool while it has connections open.
+   */
+  private static final class Tenant {
+    private final String name;
+    private final AppleNotificationServer server;
+    private final int connections;
+    private final List<NotificationCampaign> campaigns = new ArrayList<>();
+    private NotificationSenderPool pool;
+    private long lastUsed;
+
+    private Tenant(final String name, final AppleNotificationServer server, final int connections) {
+      this.name = name;
+      this.server = server;
+      this.connections = connections;
+      this.lastUsed = System.currentTimeMillis();
+    }
+
+    private void submitted(final NotificationCampaign campaign) {
+      campaigns.removeIf(NotificationCampaign::isDone);
+      campaigns.add(campaign);
+    }
+
+    /**
+     * Determine if all campaigns submitted for this tenant are complete.
+     */
+    private boolean isIdle() {
+      campaigns.removeIf(NotificationCampaign::isDone);
+      return campaigns.isEmpty();
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package javapns.notification.transmission;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <h1>Optional support for running senders on virtual threads</h1>
+ * <p>
+ * <p>Senders spend nearly all their time blocked on socket I/O, which makes them a perfect fit
+ * for the virtual threads introduced in Java 21: hundreds of concurrent connections no longer
+ * cost hundreds of megabytes of platform thread stacks.</p>
+ * <p>
+ * <p>The library itself targets Java 8, so virtual threads are looked up at runtime.
+ * Check {@link #isSupported()} before requesting a factory, for example:</p>
+ * <pre>
+ * ThreadFactory factory = VirtualThreads.isSupported() ? VirtualThreads.newThreadFactory("apns-sender-") : Executors.defaultThreadFactory();
+ * NotificationSenderPool pool = new NotificationSenderPool(server, 500, factory);
+ * </pre>
+ *
+ * @see NotificationSenderPool#NotificationSenderPool(javapns.notification.AppleNotificationServer, int, ThreadFactory)
+ * @see NotificationThreads#setThreadFactory(ThreadFactory)
+ */
+public final class VirtualThreads {
+  private static final Method OF_VIRTUAL = findOfVirtual();
+
+  private VirtualThreads() {}
+
+  private static Method findOfVirtual() {
+    try {
+      final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+      /* On Java 19 and 20, virtual threads are a preview feature and this call fails unless previews are enabled */
+      ofVirtual.invoke(null);
+      return ofVirtual;
+    } catch (final Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Determine if the running JVM supports virtual threads.
+   *
+   * @return true if virtual threads are available
+   */
+  public static boolean isSupported() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * Create a factory of virtual threads.
+   *
+   * @param prefix a prefix for thread names, followed by a sequential number
+   * @return a factory creating virtual threads
+   * @throws UnsupportedOperationException if the running JVM does not support virtual threads
+   */
+  public static ThreadFactory newThreadFactory(final String prefix) {
+    if (OF_VIRTUAL == null) {
+      throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+    }
+    try {
+      final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = OF_VIRTUAL.invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (final Exception e) {
+      throw new UnsupportedOperationException("Unable to create virtual threads: " + e, e);
+    }
+  }
+}
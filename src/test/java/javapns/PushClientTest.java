@@ -0,0 +1,104 @@
+package javapns;
+
+import javapns.communication.ReloadableKeystore;
+import javapns.feedback.AppleFeedbackServerBasicImpl;
+import javapns.notification.ConnectionPool;
+import javapns.notification.PushNotificationPayload;
+import javapns.notification.PushedNotifications;
+import javapns.notification.transmission.PushQueue;
+import javapns.test.FakeApnsServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class PushClientTest {
+  private FakeApnsServer apns;
+  private ConnectionPool pool;
+  private PushClient client;
+
+  @Before
+  public void start() throws Exception {
+    apns = new FakeApnsServer();
+    pool = new ConnectionPool();
+    client = new PushClient(apns.server(), null, pool);
+  }
+
+  @After
+  public void stop() throws Exception {
+    client.close();
+    apns.close();
+  }
+
+  @Test(timeout = 30000)
+  public void connectionClosedByServerIsReplaced() throws Exception {
+    client.alert("a", FakeApnsServer.token(1));
+    awaitFrames(1);
+    apns.dropConnections();
+    Thread.sleep(200);
+    final PushedNotifications notifications = client.alert("b", FakeApnsServer.token(2));
+    assertTrue(notifications.get(0).isTransmissionCompleted());
+    awaitFrames(2);
+    assertEquals(2, apns.getConnections());
+  }
+
+  @Test(timeout = 30000)
+  public void connectionIdleTooLongIsReplaced() throws Exception {
+    pool.setMaxIdleTime(200);
+    client.alert("a", FakeApnsServer.token(1));
+    Thread.sleep(400);
+    client.alert("b", FakeApnsServer.token(2));
+    awaitFrames(2);
+    assertEquals(2, apns.getConnections());
+  }
+
+  @Test(timeout = 30000)
+  public void connectionIsReusedWhileFresh() throws Exception {
+    client.alert("a", FakeApnsServer.token(1));
+    client.alert("b", FakeApnsServer.token(2));
+    awaitFrames(2);
+    assertEquals(1, apns.getConnections());
+  }
+
+  @Test(timeout = 30000)
+  public void queueThreadsBorrowFromClientPool() throws Exception {
+    final PushQueue queue = client.queue(2).start();
+    for (int i = 0; i < 4; i++) {
+      queue.add(PushNotificationPayload.alert("x"), FakeApnsServer.token(i));
+    }
+    awaitFrames(4);
+    assertEquals(2, pool.getConnectionsOpened());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void feedbackWithoutFeedbackServerIsRefused() throws Exception {
+    client.feedback();
+  }
+
+  @Test
+  public void feedbackServerSharesTheClientKeystore() throws Exception {
+    try (ReloadableKeystore keystore = new ReloadableKeystore(FakeApnsServer.keystore(), FakeApnsServer.PASSWORD)) {
+      final PushClient reloading = new PushClient(keystore, FakeApnsServer.PASSWORD, false);
+      assertEquals(new AppleFeedbackServerBasicImpl(keystore, FakeApnsServer.PASSWORD, false), reloading.getFeedbackServer());
+      reloading.close();
+    }
+    /* A stream is read once, by the notification server, and the feedback server gets its copy */
+    try (InputStream stream = new FileInputStream(FakeApnsServer.keystore())) {
+      final PushClient streamed = new PushClient(stream, FakeApnsServer.PASSWORD, false);
+      assertNotNull(streamed.getFeedbackServer().getKeystoreStream());
+      streamed.close();
+    }
+  }
+
+  private void awaitFrames(final int frames) throws InterruptedException {
+    while (apns.getFrames() < frames) {
+      Thread.sleep(20);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package javapns.communication;
+
+import javapns.communication.exceptions.KeystoreException;
+import javapns.test.FakeApnsServer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeystoreManagerTest {
+  private KeyStore original;
+
+  @Before
+  public void load() throws Exception {
+    KeystoreManager.clearKeystoreCache();
+    original = KeyStore.getInstance("PKCS12");
+    try (InputStream in = new FileInputStream(FakeApnsServer.keystore())) {
+      original.load(in, FakeApnsServer.PASSWORD.toCharArray());
+    }
+  }
+
+  @Test
+  public void identicalKeystoresAreParsedOnce() throws Exception {
+    final byte[] bytes = rotated();
+    final KeyStore first = KeystoreManager.loadKeystore(server(bytes.clone(), FakeApnsServer.PASSWORD));
+    assertSame(first, KeystoreManager.loadKeystore(server(bytes.clone(), FakeApnsServer.PASSWORD)));
+    assertNotSame(first, KeystoreManager.loadKeystore(server(rotated(), FakeApnsServer.PASSWORD)));
+    assertEquals(2, KeystoreManager.getCachedKeystores());
+  }
+
+  @Test
+  public void rotatedKeystoresDoNotAccumulate() throws Exception {
+    for (int i = 0; i < 40; i++) {
+      KeystoreManager.loadKeystore(server(rotated(), FakeApnsServer.PASSWORD));
+    }
+    assertTrue(KeystoreManager.getCachedKeystores() <= 32);
+  }
+
+  @Test(expected = KeystoreException.class)
+  public void wrongPasswordIsNotServedFromTheCache() throws Exception {
+    final byte[] bytes = rotated();
+    KeystoreManager.loadKeystore(server(bytes, FakeApnsServer.PASSWORD));
+    KeystoreManager.loadKeystore(server(bytes, "wrong"));
+  }
+
+  @Test
+  public void everyHitChecksThePassword() throws Exception {
+    final File file = FakeApnsServer.keystore();
+    final KeyStore first = KeystoreManager.loadKeystore(server(file, FakeApnsServer.PASSWORD));
+    assertSame(first, KeystoreManager.loadKeystore(server(file, FakeApnsServer.PASSWORD)));
+    try {
+      KeystoreManager.loadKeystore(server(file, "wrong"));
+      fail("A keystore unlocked with another password must not be served");
+    } catch (final KeystoreException e) {
+      // expected
+    }
+    assertNotSame(first, KeystoreManager.loadKeystore(server(file, FakeApnsServer.PASSWORD)));
+    assertEquals(1, KeystoreManager.getCachedKeystores());
+  }
+
+  /**
+   * Store the test keystore again: each copy is encrypted with a new salt, as a renewed certificate would be.
+   */
+  private byte[] rotated() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    original.store(out, FakeApnsServer.PASSWORD.toCharArray());
+    return out.toByteArray();
+  }
+
+  private static AppleServer server(final Object keystore, final String password) throws KeystoreException {
+    return new AppleServerBasicImpl(keystore, password, "PKCS12") {
+    };
+  }
+}
@@ -0,0 +1,97 @@
+package javapns.communication;
+
+import javapns.communication.exceptions.KeystoreException;
+import javapns.notification.ConnectionToNotificationServer;
+import javapns.test.FakeApnsServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.net.ssl.SSLSocket;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class ReloadableKeystoreTest {
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private FakeApnsServer apns;
+
+  @Before
+  public void startServer() throws Exception {
+    apns = new FakeApnsServer();
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    apns.close();
+  }
+
+  @Test
+  public void reloadsAndUpdatesReplaceTheKeystore() throws Exception {
+    final File file = folder.newFile("apns.p12");
+    Files.copy(FakeApnsServer.keystore().toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    try (ReloadableKeystore keystore = new ReloadableKeystore(file, FakeApnsServer.PASSWORD)) {
+      assertEquals(1, keystore.getGeneration());
+      assertEquals(60 * 1000, keystore.getMigrationWindow());
+      final ReloadableKeystore.Snapshot first = keystore.getSnapshot();
+
+      keystore.reload();
+      assertEquals(2, keystore.getGeneration());
+      assertNotSame(first.getKeystore(), keystore.getSnapshot().getKeystore());
+
+      keystore.update(FakeApnsServer.rotatedKeystore(), FakeApnsServer.ROTATED_PASSWORD);
+      assertEquals(3, keystore.getGeneration());
+      assertEquals(FakeApnsServer.rotatedKeystore(), keystore.getFile());
+      assertEquals("CN=rotated", subject(keystore));
+
+      /* A keystore that cannot be opened leaves the current one in place */
+      final ReloadableKeystore.Snapshot current = keystore.getSnapshot();
+      try {
+        keystore.update(file, "wrong");
+        fail("A wrong password must be refused");
+      } catch (final KeystoreException e) {
+        assertSame(current, keystore.getSnapshot());
+      }
+      assertEquals(FakeApnsServer.rotatedKeystore(), keystore.getFile());
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void newConnectionsPresentTheNewCertificate() throws Exception {
+    try (ReloadableKeystore keystore = new ReloadableKeystore(FakeApnsServer.keystore(), FakeApnsServer.PASSWORD)) {
+      final ConnectionToNotificationServer connection = new ConnectionToNotificationServer(apns.server(keystore, FakeApnsServer.PASSWORD));
+      assertEquals("CN=localhost", presented(connection));
+      assertEquals(1, connection.getKeystoreGeneration());
+
+      /* The same connection object builds its socket factory again once the generation changes */
+      keystore.update(FakeApnsServer.rotatedKeystore(), FakeApnsServer.ROTATED_PASSWORD);
+      assertEquals("CN=rotated", presented(connection));
+      assertEquals(2, connection.getKeystoreGeneration());
+      assertEquals("CN=rotated", presented(connection));
+      assertEquals(2, connection.getKeystoreGeneration());
+    }
+  }
+
+  private static String presented(final ConnectionToAppleServer connection) throws Exception {
+    try (SSLSocket socket = connection.getSSLSocket()) {
+      socket.startHandshake();
+      return ((X509Certificate) socket.getSession().getLocalCertificates()[0]).getSubjectX500Principal().getName();
+    }
+  }
+
+  private static String subject(final ReloadableKeystore keystore) throws Exception {
+    final KeyStore loaded = keystore.getSnapshot().getKeystore();
+    return ((X509Certificate) loaded.getCertificate(loaded.aliases().nextElement())).getSubjectX500Principal().getName();
+  }
+}
@@ -0,0 +1,136 @@
+package javapns.devices;
+
+import javapns.devices.implementations.basic.BasicDevice;
+import javapns.test.FakeApnsServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TokenDeduplicatorTest {
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void listsKeepTheFirstOccurrenceOfEachToken() throws Exception {
+    final List<Device> devices = new ArrayList<>();
+    for (int i = 0; i < 3000; i++) {
+      /* Every other token is written in upper case, which must not hide duplicates */
+      final String token = FakeApnsServer.token(i % 1000);
+      devices.add(new BasicDevice(i % 2 == 0 ? token : token.toUpperCase(Locale.ENGLISH)));
+    }
+    /* Tokens which are not hexadecimal are compared regardless of case too */
+    devices.add(new BasicDevice(repeat('z')));
+    devices.add(new BasicDevice(repeat('Z')));
+
+    final TokenDeduplicator deduplicator = new TokenDeduplicator();
+    final List<Device> unique = deduplicator.removeDuplicates(devices);
+    assertEquals(1001, unique.size());
+    for (int i = 0; i < 1000; i++) {
+      assertSame(devices.get(i), unique.get(i));
+    }
+    assertSame(devices.get(3000), unique.get(1000));
+    assertEquals(2001, deduplicator.getRemoved());
+    assertEquals(1001, deduplicator.size());
+
+    /* Tokens are remembered across lists */
+    assertEquals(0, deduplicator.removeDuplicates(devices.subList(0, 10)).size());
+  }
+
+  @Test
+  public void filesWithinTheMemoryLimitKeepTheirOrder() throws Exception {
+    final File input = folder.newFile("tokens.txt");
+    try (BufferedWriter out = new BufferedWriter(new FileWriter(input))) {
+      for (int i = 0; i < 2000; i++) {
+        out.write(FakeApnsServer.token(1999 - i % 500));
+        out.write('\n');
+      }
+    }
+    final File output = folder.newFile("unique.txt");
+    final TokenDeduplicator deduplicator = new TokenDeduplicator();
+    assertEquals(500, deduplicator.removeDuplicates(input, output, TokenFileLoader.Format.HEX));
+    assertEquals(1500, deduplicator.getRemoved());
+
+    final List<String> lines = Files.readAllLines(output.toPath());
+    assertEquals(500, lines.size());
+    for (int i = 0; i < 500; i++) {
+      assertEquals(FakeApnsServer.token(1999 - i), lines.get(i));
+    }
+  }
+
+  @Test
+  public void filesBeyondTheMemoryLimitAreSortedAndMergedFromSeveralRuns() throws Exception {
+    final File input = folder.newFile("tokens.bin");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(input))) {
+      for (int i = 0; i < 1000; i++) {
+        out.writeLong(0);
+        out.writeLong(0);
+        out.writeLong(i / 300 % 2 == 0 ? 0 : -1);
+        /* Each token appears in several runs, in decreasing order */
+        out.writeLong(299 - i % 300);
+      }
+    }
+    final File work = folder.newFolder("work");
+    final File output = folder.newFile("unique.bin");
+    final TokenDeduplicator deduplicator = new TokenDeduplicator();
+    deduplicator.setMemoryLimit(64);
+    deduplicator.setWorkDirectory(work);
+    assertEquals(600, deduplicator.removeDuplicates(input, output, TokenFileLoader.Format.BINARY));
+    assertEquals(400, deduplicator.getRemoved());
+    assertEquals(0, deduplicator.size());
+    assertEquals(0, work.list().length);
+
+    final byte[] unique = Files.readAllBytes(output.toPath());
+    assertEquals(600 * 32, unique.length);
+    for (int t = 1; t < 600; t++) {
+      final byte[] previous = Arrays.copyOfRange(unique, (t - 1) * 32, t * 32);
+      final byte[] token = Arrays.copyOfRange(unique, t * 32, (t + 1) * 32);
+      assertTrue(compareUnsigned(previous, token) < 0);
+    }
+    /* Tokens with the high bit set sort last */
+    assertArrayEquals(Arrays.copyOfRange(unique, 0, 32), new byte[32]);
+    assertEquals((byte) 0xFF, unique[300 * 32 + 16]);
+  }
+
+  @Test
+  public void devicesWithoutDuplicatesAcceptsRawLists() {
+    final String[] tokens = {FakeApnsServer.token(1), FakeApnsServer.token(2), FakeApnsServer.token(1).toUpperCase(Locale.ENGLISH), FakeApnsServer.token(3), FakeApnsServer.token(2)};
+    final List<Device> unique = Devices.withoutDuplicates(tokens);
+    assertEquals(3, unique.size());
+    assertEquals(FakeApnsServer.token(1), unique.get(0).getToken());
+    assertEquals(FakeApnsServer.token(2), unique.get(1).getToken());
+    assertEquals(FakeApnsServer.token(3), unique.get(2).getToken());
+    assertEquals(0, Devices.withoutDuplicates(new ArrayList<Device>()).size());
+  }
+
+  private static String repeat(final char character) {
+    final char[] token = new char[64];
+    Arrays.fill(token, character);
+    return new String(token);
+  }
+
+  private static int compareUnsigned(final byte[] a, final byte[] b) {
+    for (int i = 0; i < a.length; i++) {
+      final int result = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,65 @@
+package javapns.devices;
+
+import javapns.test.FakeApnsServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenFileLoaderTest {
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void hexFilesSplitIntoRangesAreLoadedCompletely() throws Exception {
+    final File file = folder.newFile("tokens.txt");
+    try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+      for (int i = 0; i < 60000; i++) {
+        out.write(FakeApnsServer.token(i));
+        /* Mix line endings, blank lines and invalid lines */
+        out.write(i % 3 == 0 ? "\r\n" : "\n");
+        if (i % 1000 == 0) {
+          out.write("\n  not a token\n");
+        }
+      }
+    }
+    final TokenFileLoader loader = new TokenFileLoader(file, TokenFileLoader.Format.HEX);
+    loader.setParallelism(4);
+    final TokenRegistry registry = new TokenRegistry(60000);
+    assertEquals(60000, loader.load(registry));
+    assertEquals(60, loader.getInvalid());
+    assertEquals(60000, registry.size());
+    assertTrue(registry.contains(FakeApnsServer.token(59999)));
+  }
+
+  @Test
+  public void binaryFilesSkipAnIncompleteLastRecord() throws Exception {
+    final File file = folder.newFile("tokens.bin");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+      for (long i = 0; i < 100000; i++) {
+        out.writeLong(0);
+        out.writeLong(0);
+        out.writeLong(0);
+        out.writeLong(i);
+      }
+      out.write(new byte[5]);
+    }
+    final TokenFileLoader loader = new TokenFileLoader(file, TokenFileLoader.Format.BINARY);
+    loader.setParallelism(3);
+    final Set<String> tokens = ConcurrentHashMap.newKeySet();
+    assertEquals(100000, loader.forEach(token -> tokens.add(TokenRegistry.toHex(token))));
+    assertEquals(1, loader.getInvalid());
+    assertEquals(100000, tokens.size());
+    assertTrue(tokens.contains(FakeApnsServer.token(99999)));
+  }
+}
@@ -0,0 +1,66 @@
+package javapns.devices;
+
+import javapns.test.FakeApnsServer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenRegistryTest {
+  @Test
+  public void tokensAreAddedLookedUpAndRemoved() {
+    final TokenRegistry registry = new TokenRegistry();
+    final String token = FakeApnsServer.token(42);
+    assertTrue(registry.add(token));
+    assertFalse(registry.add(token.toUpperCase()));
+    assertTrue(registry.contains(token));
+    assertTrue(registry.contains(bytes(token)));
+    assertTrue(registry.add(bytes(FakeApnsServer.token(43)), 1500000000123L));
+    assertEquals(1500000000000L, registry.getTimestamp(FakeApnsServer.token(43)));
+    assertEquals(-1, registry.getTimestamp(FakeApnsServer.token(44)));
+    assertEquals(2, registry.size());
+    assertTrue(registry.remove(token));
+    assertFalse(registry.remove(token));
+    assertFalse(registry.contains(token));
+    assertEquals(1, registry.size());
+  }
+
+  @Test
+  public void batchesGrowSegmentsAndReuseRemovedSlots() {
+    final TokenRegistry registry = new TokenRegistry();
+    final List<String> tokens = new ArrayList<>();
+    for (int i = 0; i < 100000; i++) {
+      tokens.add(FakeApnsServer.token(i * 7919L));
+    }
+    assertEquals(100000, registry.addAll(tokens));
+    assertEquals(0, registry.addAll(tokens.subList(0, 1000)));
+    assertEquals(50000, registry.removeAll(tokens.subList(0, 50000)));
+    assertEquals(50000, registry.size());
+    assertEquals(50000, registry.addAll(tokens));
+    assertEquals(100000, registry.size());
+
+    final Set<String> visited = new HashSet<>();
+    registry.forEach((token, timestamp) -> visited.add(TokenRegistry.toHex(token)));
+    assertEquals(new HashSet<>(tokens), visited);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void malformedTokensAreRejected() {
+    new TokenRegistry().addAll(Arrays.asList(FakeApnsServer.token(1), "not a token"));
+  }
+
+  private static byte[] bytes(final String token) {
+    final byte[] bytes = new byte[token.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(token.substring(i * 2, i * 2 + 2), 16);
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,69 @@
+package javapns.feedback;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FeedbackPollerTest {
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void lateReportsArePassedOnButRecentDuplicatesAreNot() throws Exception {
+    final List<Long> timestamps = new ArrayList<>();
+    final FeedbackPoller poller = new FeedbackPoller(null, (timestamp, token, length) -> timestamps.add(timestamp));
+    assertTrue(poller.deliver(2000, token(1), 32));
+    assertTrue(poller.deliver(1000, token(2), 32));
+    assertFalse(poller.deliver(2000, token(1), 32));
+    assertTrue(poller.deliver(3000, token(1), 32));
+    assertEquals(3, timestamps.size());
+    assertEquals(3000, poller.getLastSeen());
+  }
+
+  @Test
+  public void reportsTheListenerFailedToProcessAreNotCounted() throws Exception {
+    final AtomicBoolean failing = new AtomicBoolean(true);
+    final FeedbackPoller poller = new FeedbackPoller(null, (timestamp, token, length) -> {
+      if (failing.get()) {
+        throw new IllegalStateException("database unavailable");
+      }
+    });
+    assertFalse(poller.deliver(1000, token(1), 32));
+    assertEquals(0, poller.getLastSeen());
+    failing.set(false);
+    assertTrue(poller.deliver(1000, token(1), 32));
+  }
+
+  @Test
+  public void recentReportsSurviveRestarts() throws Exception {
+    final File state = new File(folder.getRoot(), "feedback.state");
+    final FeedbackPoller first = new FeedbackPoller(null, (timestamp, token, length) -> {
+    });
+    first.setStateFile(state);
+    first.deliver(1000, token(1), 32);
+    first.deliver(2000, token(2), 32);
+    first.saveState();
+
+    final FeedbackPoller second = new FeedbackPoller(null, (timestamp, token, length) -> {
+    });
+    second.setStateFile(state);
+    assertEquals(2000, second.getLastSeen());
+    assertFalse(second.deliver(1000, token(1), 32));
+    assertTrue(second.deliver(1000, token(3), 32));
+  }
+
+  private static byte[] token(final int seed) {
+    final byte[] token = new byte[32];
+    token[0] = (byte) seed;
+    return token;
+  }
+}
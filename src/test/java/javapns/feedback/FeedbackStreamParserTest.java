@@ -0,0 +1,81 @@
+package javapns.feedback;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FeedbackStreamParserTest {
+  @Test
+  public void tuplesSplitAcrossReadsAreDecoded() throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    for (int i = 0; i < 1000; i++) {
+      tuple(out, 1400000000 + i, 32, i);
+    }
+    /* A tuple cut short at the end of the stream */
+    out.writeInt(1500000000);
+    out.writeShort(32);
+    out.write(new byte[10]);
+
+    final List<String> reports = new ArrayList<>();
+    final int tuples = new FeedbackStreamParser().parse(trickle(bytes.toByteArray()), (timestamp, token, length) -> reports.add(timestamp + " " + FeedbackStreamParser.toHex(token, length)));
+    assertEquals(1000, tuples);
+    assertEquals(1000, reports.size());
+    assertEquals(1400000000L * 1000 + " " + hex(32, 0), reports.get(0));
+    assertEquals(1400000999L * 1000 + " " + hex(32, 999), reports.get(999));
+  }
+
+  @Test
+  public void tokensLongerThanTheBufferAreDecoded() throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    tuple(out, 1400000000, 32, 1);
+    tuple(out, 1400000001, 10000, 2);
+    tuple(out, 1400000002, 32, 3);
+
+    final List<Integer> lengths = new ArrayList<>();
+    final int tuples = new FeedbackStreamParser().parse(new ByteArrayInputStream(bytes.toByteArray()), (timestamp, token, length) -> lengths.add(length));
+    assertEquals(3, tuples);
+    assertEquals(Arrays.asList(32, 10000, 32), lengths);
+  }
+
+  private static void tuple(final DataOutputStream out, final int seconds, final int length, final int seed) throws IOException {
+    out.writeInt(seconds);
+    out.writeShort(length);
+    out.write(token(length, seed));
+  }
+
+  private static byte[] token(final int length, final int seed) {
+    final byte[] token = new byte[length];
+    for (int i = 0; i < length; i++) {
+      token[i] = (byte) (seed + i);
+    }
+    return token;
+  }
+
+  private static String hex(final int length, final int seed) {
+    return FeedbackStreamParser.toHex(token(length, seed), length);
+  }
+
+  /**
+   * A stream returning few bytes at a time, as a network connection may.
+   */
+  private static InputStream trickle(final byte[] bytes) {
+    return new FilterInputStream(new ByteArrayInputStream(bytes)) {
+      @Override
+      public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        return super.read(buffer, offset, Math.min(length, 7));
+      }
+    };
+  }
+}
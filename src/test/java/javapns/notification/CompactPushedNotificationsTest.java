@@ -0,0 +1,63 @@
+package javapns.notification;
+
+import javapns.devices.Device;
+import javapns.devices.implementations.basic.BasicDevice;
+import javapns.test.FakeApnsServer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class CompactPushedNotificationsTest {
+  @Test
+  public void addedListsAreRecordedBeyondTheDefaultMaxRetained() throws Exception {
+    final List<PushedNotification> notifications = new ArrayList<>();
+    for (int i = 0; i < 1500; i++) {
+      notifications.add(notification(i, i % 3 != 0));
+    }
+    final CompactPushedNotifications list = new CompactPushedNotifications();
+    list.addAll(notifications.subList(0, 1000));
+    list.addAll(notifications.subList(1000, 1500));
+    assertEquals(1500, list.size());
+    assertSame(notifications.get(1499), list.get(1499));
+    assertEquals(500, list.getFailedCount());
+    assertEquals(1000, list.getSuccessfulNotifications().size());
+    assertEquals(500, list.getFailedNotifications().size());
+
+    final PushedNotifications all = new PushedNotifications();
+    all.setMaxRetained(list.size());
+    all.addAll(list);
+    assertEquals(notifications, new ArrayList<>(all));
+  }
+
+  @Test
+  public void campaignNotificationsAreRebuiltOnceSettled() throws Exception {
+    final List<Device> devices = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      devices.add(new BasicDevice(FakeApnsServer.token(i)));
+    }
+    final Payload payload = PushNotificationPayload.alert("x");
+    final CompactPushedNotifications list = new CompactPushedNotifications();
+    final int source = list.addSource(payload, devices);
+    for (int i = 0; i < 3; i++) {
+      final PushedNotification notification = new PushedNotification(devices.get(i), payload, i);
+      notification.setTransmissionCompleted(true);
+      list.record(source, i, notification);
+    }
+    list.settle(source, Long.MAX_VALUE);
+    assertEquals(3, list.size());
+    assertSame(devices.get(2), list.getDevice(2));
+    assertEquals(2, list.getIdentifier(2));
+    assertEquals(CompactPushedNotifications.STATUS_SUCCESSFUL, list.getStatus(2));
+    assertEquals(3, list.getSuccessfulNotifications().size());
+  }
+
+  private static PushedNotification notification(final int identifier, final boolean successful) throws Exception {
+    final PushedNotification notification = new PushedNotification(new BasicDevice(FakeApnsServer.token(identifier)), PushNotificationPayload.alert("x"), identifier);
+    notification.setTransmissionCompleted(successful);
+    return notification;
+  }
+}
@@ -0,0 +1,62 @@
+package javapns.notification;
+
+import javapns.test.FakeApnsServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConnectionPoolTest {
+  private FakeApnsServer apns;
+  private ConnectionPool pool;
+
+  @Before
+  public void start() throws Exception {
+    apns = new FakeApnsServer();
+    pool = new ConnectionPool();
+  }
+
+  @After
+  public void stop() throws Exception {
+    pool.close();
+    apns.close();
+  }
+
+  @Test
+  public void serverIdentityIgnoresProxy() throws Exception {
+    final AppleNotificationServer server = apns.server();
+    final AppleNotificationServer other = apns.server();
+    final int hash = server.hashCode();
+    server.setProxy("proxy.invalid", 3128);
+    assertEquals(hash, server.hashCode());
+    assertEquals(other, server);
+  }
+
+  @Test(timeout = 30000)
+  public void connectionIsPooledAfterProxyChange() throws Exception {
+    final AppleNotificationServer server = apns.server();
+    final PushNotificationManager manager = new PushNotificationManager();
+    manager.setConnectionPool(pool);
+    manager.initializeConnection(server);
+    server.setProxy("proxy.invalid", 3128);
+    manager.stopConnection();
+    assertEquals(1, pool.getIdleConnections());
+    assertEquals(0, pool.getConnectionsDiscarded());
+  }
+
+  @Test(timeout = 30000)
+  public void equalServersShareConnections() throws Exception {
+    final byte[] keystore = Files.readAllBytes(FakeApnsServer.keystore().toPath());
+    for (int i = 0; i < 2; i++) {
+      final PushNotificationManager manager = new PushNotificationManager();
+      manager.setConnectionPool(pool);
+      manager.initializeConnection(apns.server(keystore.clone(), FakeApnsServer.PASSWORD));
+      manager.stopConnection();
+    }
+    assertEquals(1, pool.getConnectionsOpened());
+    assertEquals(1, pool.getConnectionsReused());
+  }
+}
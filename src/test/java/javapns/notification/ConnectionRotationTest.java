@@ -0,0 +1,100 @@
+package javapns.notification;
+
+import javapns.communication.ReloadableKeystore;
+import javapns.devices.implementations.basic.BasicDevice;
+import javapns.test.FakeApnsServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionRotationTest {
+  private FakeApnsServer apns;
+
+  @Before
+  public void startServer() throws Exception {
+    apns = new FakeApnsServer();
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    apns.close();
+  }
+
+  @Test(timeout = 30000)
+  public void interruptedCollectionResendsNotificationsOfRetiredConnections() throws Exception {
+    final NotificationSettlement settlement = new NotificationSettlement(new NotificationOutcomes(null));
+    final ConnectionRotation rotation = new ConnectionRotation(settlement);
+    final ConnectionToNotificationServer connection = new ConnectionToNotificationServer(apns.server());
+    final SSLSocket socket = connection.getSSLSocket();
+    socket.startHandshake();
+    final List<PushedNotification> notifications = Arrays.asList(transmitted(settlement, 1), transmitted(settlement, 2), transmitted(settlement, 3));
+    rotation.retire(new ConnectionRotation.OpenConnection(connection, socket, null), true);
+    assertTrue(rotation.isRetiring());
+
+    /* The fake server never answers, so the retired connection would only be drained after the response timeout */
+    final long start = System.currentTimeMillis();
+    Thread.currentThread().interrupt();
+    final List<PushedNotification> resends = rotation.collectResends(true);
+    assertTrue(Thread.interrupted());
+    assertTrue(System.currentTimeMillis() - start < ResponsePacketReader.TIMEOUT);
+    assertEquals(notifications, resends);
+    assertFalse(rotation.isRetiring());
+    assertTrue(socket.isClosed());
+  }
+
+  @Test
+  public void connectionsMigrateWithinTheMigrationWindow() throws Exception {
+    try (ReloadableKeystore keystore = new ReloadableKeystore(FakeApnsServer.keystore(), FakeApnsServer.PASSWORD)) {
+      List<ConnectionRotation> rotations = installed(keystore, 20);
+      for (final ConnectionRotation rotation : rotations) {
+        assertFalse(rotation.isMigrationDue(keystore));
+      }
+
+      /* With the default window of a minute, connections are spread over it rather than all replaced at once */
+      keystore.update(FakeApnsServer.rotatedKeystore(), FakeApnsServer.ROTATED_PASSWORD);
+      int due = 0;
+      for (final ConnectionRotation rotation : rotations) {
+        if (rotation.isMigrationDue(keystore)) {
+          due++;
+        }
+      }
+      assertTrue(due < rotations.size());
+
+      /* Without a window, every connection migrates right away, and once migrated it is not due anymore */
+      keystore.setMigrationWindow(0);
+      rotations = installed(keystore, 20);
+      keystore.reload();
+      for (final ConnectionRotation rotation : rotations) {
+        assertTrue(rotation.isMigrationDue(keystore));
+        rotation.installed(keystore.getGeneration());
+        assertFalse(rotation.isMigrationDue(keystore));
+      }
+    }
+  }
+
+  private static List<ConnectionRotation> installed(final ReloadableKeystore keystore, final int count) {
+    final List<ConnectionRotation> rotations = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      final ConnectionRotation rotation = new ConnectionRotation(new NotificationSettlement(new NotificationOutcomes(null)));
+      rotation.installed(keystore.getGeneration());
+      rotations.add(rotation);
+    }
+    return rotations;
+  }
+
+  private static PushedNotification transmitted(final NotificationSettlement settlement, final int identifier) throws Exception {
+    final PushedNotification notification = new PushedNotification(new BasicDevice(FakeApnsServer.token(identifier)), PushNotificationPayload.alert("x"), identifier);
+    settlement.record(notification);
+    notification.setTransmissionCompleted(true);
+    return notification;
+  }
+}
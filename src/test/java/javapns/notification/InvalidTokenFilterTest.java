@@ -0,0 +1,95 @@
+package javapns.notification;
+
+import javapns.test.FakeApnsServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InvalidTokenFilterTest {
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void tokensAreReloadedAfterRestart() throws Exception {
+    final File file = new File(folder.getRoot(), "invalid.tokens");
+    try (InvalidTokenFilter filter = new InvalidTokenFilter(file)) {
+      assertTrue(filter.add(FakeApnsServer.token(1)));
+      assertTrue(filter.add(FakeApnsServer.token(2).toUpperCase()));
+      assertFalse(filter.add(FakeApnsServer.token(1)));
+      assertFalse(filter.add("not a token"));
+    }
+    try (InvalidTokenFilter filter = new InvalidTokenFilter(file)) {
+      assertEquals(2, filter.size());
+      assertTrue(filter.contains(FakeApnsServer.token(1)));
+      assertTrue(filter.contains(FakeApnsServer.token(2)));
+      assertFalse(filter.contains(FakeApnsServer.token(3)));
+    }
+  }
+
+  @Test
+  public void recordCutShortIsDiscardedBeforeAppending() throws Exception {
+    final File file = new File(folder.getRoot(), "invalid.tokens");
+    try (InvalidTokenFilter filter = new InvalidTokenFilter(file)) {
+      filter.add(FakeApnsServer.token(1));
+    }
+    /* A crash in the middle of a record leaves its first bytes only */
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      out.write(new byte[]{1, 0x12, 0x34});
+    }
+    try (InvalidTokenFilter filter = new InvalidTokenFilter(file)) {
+      assertEquals(1, filter.size());
+      filter.add(FakeApnsServer.token(2));
+    }
+    assertEquals(8 + 2 * 33, file.length());
+    try (InvalidTokenFilter filter = new InvalidTokenFilter(file)) {
+      assertEquals(2, filter.size());
+      assertTrue(filter.contains(FakeApnsServer.token(2)));
+    }
+  }
+
+  @Test
+  public void removedTokensStayRemovedAfterRestart() throws Exception {
+    final File file = new File(folder.getRoot(), "invalid.tokens");
+    try (InvalidTokenFilter filter = new InvalidTokenFilter(file)) {
+      filter.add(FakeApnsServer.token(1));
+      filter.add(FakeApnsServer.token(2));
+      assertTrue(filter.remove(FakeApnsServer.token(1)));
+      assertFalse(filter.remove(FakeApnsServer.token(1)));
+      assertFalse(filter.contains(FakeApnsServer.token(1)));
+    }
+    try (InvalidTokenFilter filter = new InvalidTokenFilter(file)) {
+      assertEquals(1, filter.size());
+      assertFalse(filter.contains(FakeApnsServer.token(1)));
+      assertTrue(filter.contains(FakeApnsServer.token(2)));
+    }
+  }
+
+  @Test
+  public void compactionKeepsOnlyCurrentTokens() throws Exception {
+    final File file = new File(folder.getRoot(), "invalid.tokens");
+    try (InvalidTokenFilter filter = new InvalidTokenFilter(file)) {
+      for (int i = 0; i < 100; i++) {
+        filter.add(FakeApnsServer.token(i));
+      }
+      for (int i = 0; i < 90; i++) {
+        filter.remove(FakeApnsServer.token(i));
+      }
+      filter.compact();
+      assertEquals(8 + 10 * 33, file.length());
+      filter.add(FakeApnsServer.token(1000));
+    }
+    try (InvalidTokenFilter filter = new InvalidTokenFilter(file)) {
+      assertEquals(11, filter.size());
+      assertTrue(filter.contains(FakeApnsServer.token(95)));
+      assertTrue(filter.contains(FakeApnsServer.token(1000)));
+      assertFalse(filter.contains(FakeApnsServer.token(5)));
+    }
+  }
+}
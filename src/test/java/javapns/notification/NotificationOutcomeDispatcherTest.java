@@ -0,0 +1,116 @@
+package javapns.notification;
+
+import javapns.devices.implementations.basic.BasicDevice;
+import javapns.test.FakeApnsServer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationOutcomeDispatcherTest {
+  @Test(timeout = 30000)
+  public void eventsOfEachManagerAreDeliveredInOrder() throws Exception {
+    final int producers = 4;
+    final int events = 20000;
+    final List<List<Integer>> received = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      received.add(new ArrayList<>());
+    }
+    final List<PushedNotification> notifications = notifications(producers);
+    final NotificationOutcomeDispatcher dispatcher = new NotificationOutcomeDispatcher((outcome, notification) -> {
+      /* Only the consumer thread invokes the listener, so the lists need no locking */
+      received.get(notification.getIdentifier()).add(outcome.ordinal());
+    }, events);
+    final List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      final PushedNotification notification = notifications.get(p);
+      final Thread thread = new Thread(() -> {
+        /* Each thread publishes through its own channel, as each manager does */
+        final NotificationOutcomeDispatcher.Channel channel = dispatcher.openChannel();
+        for (int i = 0; i < events; i++) {
+          channel.publish(NotificationOutcomeListener.Outcome.values()[i % 5], notification);
+        }
+        channel.release();
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    dispatcher.close();
+
+    assertEquals(0, dispatcher.getDropped());
+    for (final List<Integer> outcomes : received) {
+      assertEquals(events, outcomes.size());
+      for (int i = 0; i < events; i++) {
+        assertEquals(i % 5, (int) outcomes.get(i));
+      }
+    }
+    assertEquals(0, dispatcher.getChannelCount());
+  }
+
+  @Test(timeout = 30000)
+  public void eventsAreDroppedWhenTheListenerFallsBehind() throws Exception {
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch resume = new CountDownLatch(1);
+    final List<Integer> delivered = new CopyOnWriteArrayList<>();
+    final NotificationOutcomeDispatcher dispatcher = new NotificationOutcomeDispatcher((outcome, notification) -> {
+      entered.countDown();
+      try {
+        resume.await();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      delivered.add(notification.getIdentifier());
+    }, 4);
+    final List<PushedNotification> notifications = notifications(10);
+    final NotificationOutcomeDispatcher.Channel channel = dispatcher.openChannel();
+    channel.publish(NotificationOutcomeListener.Outcome.SENT, notifications.get(0));
+    entered.await();
+
+    /* The event being delivered still holds its slot, so three more fit */
+    for (int i = 1; i < 10; i++) {
+      channel.publish(NotificationOutcomeListener.Outcome.SENT, notifications.get(i));
+    }
+    assertEquals(6, dispatcher.getDropped());
+    resume.countDown();
+    dispatcher.close();
+    assertEquals(Arrays.asList(0, 1, 2, 3), delivered);
+
+    channel.publish(NotificationOutcomeListener.Outcome.SENT, notifications.get(0));
+    assertEquals(7, dispatcher.getDropped());
+  }
+
+  @Test(timeout = 30000)
+  public void failingListenerDoesNotStopDelivery() throws Exception {
+    final List<Integer> delivered = new CopyOnWriteArrayList<>();
+    final NotificationOutcomeDispatcher dispatcher = new NotificationOutcomeDispatcher((outcome, notification) -> {
+      delivered.add(notification.getIdentifier());
+      if (notification.getIdentifier() == 1) {
+        throw new IllegalStateException("listener failure");
+      }
+    });
+    final NotificationOutcomeDispatcher.Channel channel = dispatcher.openChannel();
+    for (final PushedNotification notification : notifications(3)) {
+      channel.publish(NotificationOutcomeListener.Outcome.CONFIRMED, notification);
+    }
+    dispatcher.close();
+    assertEquals(3, delivered.size());
+    assertTrue(delivered.contains(2));
+  }
+
+  private static List<PushedNotification> notifications(final int count) throws Exception {
+    final List<PushedNotification> notifications = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      notifications.add(new PushedNotification(new BasicDevice(FakeApnsServer.token(i)), PushNotificationPayload.alert("x"), i));
+    }
+    return notifications;
+  }
+}
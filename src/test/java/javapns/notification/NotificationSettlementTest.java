@@ -0,0 +1,101 @@
+package javapns.notification;
+
+import javapns.devices.implementations.basic.BasicDevice;
+import javapns.test.FakeApnsServer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationSettlementTest {
+  private InvalidTokenFilter filter;
+  private NotificationSettlement settlement;
+
+  @Before
+  public void create() {
+    filter = new InvalidTokenFilter();
+    settlement = new NotificationSettlement(new NotificationOutcomes(filter));
+  }
+
+  @Test
+  public void rejectedNotificationIsNotResentButFollowingOnesAre() throws Exception {
+    final PushedNotification first = transmitted(1);
+    final PushedNotification rejected = transmitted(2);
+    final PushedNotification ignored = transmitted(3);
+    new ResponsePacket(8, 8, 2).linkToPushedNotification(settlement.getPending());
+    final List<PushedNotification> resends = settlement.settlePending();
+    assertEquals(1, resends.size());
+    assertSame(ignored, resends.get(0));
+    assertTrue(first.isSuccessful());
+    assertTrue(filter.contains(rejected.getDevice().getToken()));
+    assertTrue(settlement.isEmpty());
+  }
+
+  @Test
+  public void abandonedNotificationsAreResentUnlessRejected() throws Exception {
+    final PushedNotification first = transmitted(1);
+    final PushedNotification rejected = transmitted(2);
+    final PushedNotification ignored = transmitted(3);
+    final PushedNotification invalid = new PushedNotification(new BasicDevice(FakeApnsServer.token(4)), PushNotificationPayload.alert("x"), 4);
+    settlement.record(invalid);
+    new ResponsePacket(8, 8, 2).linkToPushedNotification(settlement.getPending());
+    final List<PushedNotification> resends = settlement.abandon(settlement.takePending().values());
+    assertEquals(Arrays.asList(first, ignored), resends);
+    assertTrue(filter.contains(rejected.getDevice().getToken()));
+  }
+
+  @Test
+  public void settledTimeOnlyAdvancesWhenAllowed() throws Exception {
+    transmitted(1);
+    final long now = System.currentTimeMillis() + 1;
+    settlement.settleTransmittedBefore(now, false);
+    assertTrue(settlement.isEmpty());
+    assertEquals(0, settlement.getSettledBefore());
+    settlement.settleTransmittedBefore(now, true);
+    assertEquals(now, settlement.getSettledBefore());
+  }
+
+  @Test
+  public void notificationsNeverTransmittedDoNotStopSettlement() throws Exception {
+    final List<NotificationOutcomeListener.Outcome> reported = new CopyOnWriteArrayList<>();
+    try (NotificationOutcomeDispatcher dispatcher = new NotificationOutcomeDispatcher((outcome, notification) -> reported.add(outcome))) {
+      final NotificationOutcomes outcomes = new NotificationOutcomes(filter);
+      outcomes.setDispatcher(dispatcher);
+      settlement = new NotificationSettlement(outcomes);
+      transmitted(1);
+      final PushedNotification invalid = new PushedNotification(new BasicDevice(FakeApnsServer.token(2)), PushNotificationPayload.alert("x"), 2);
+      settlement.record(invalid);
+      invalid.setException(new IllegalArgumentException());
+      transmitted(3);
+      final PushedNotification rejected = transmitted(4);
+      transmitted(5);
+      new ResponsePacket(8, 8, 4).linkToPushedNotification(settlement.getPending());
+
+      final List<PushedNotification> resends = settlement.settlePending();
+      assertEquals(1, resends.size());
+      assertEquals(5, resends.get(0).getIdentifier());
+      assertTrue(filter.contains(rejected.getDevice().getToken()));
+
+      outcomes.releaseChannel();
+      final long deadline = System.currentTimeMillis() + 5000;
+      while (dispatcher.getChannelCount() > 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(0, dispatcher.getChannelCount());
+      assertEquals(Arrays.asList(NotificationOutcomeListener.Outcome.CONFIRMED, NotificationOutcomeListener.Outcome.CONFIRMED, NotificationOutcomeListener.Outcome.REJECTED), reported);
+    }
+  }
+
+  private PushedNotification transmitted(final int identifier) throws Exception {
+    final PushedNotification notification = new PushedNotification(new BasicDevice(FakeApnsServer.token(identifier)), PushNotificationPayload.alert("x"), identifier);
+    settlement.record(notification);
+    notification.setTransmissionCompleted(true);
+    return notification;
+  }
+}
@@ -0,0 +1,81 @@
+package javapns.notification;
+
+import javapns.devices.implementations.basic.BasicDevice;
+import javapns.test.FakeApnsServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutcomeFileWriterTest {
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void recordCutShortIsDiscardedBeforeAppending() throws Exception {
+    final File file = folder.newFile("campaign.results");
+    try (OutcomeFileWriter writer = new OutcomeFileWriter(file)) {
+      writer.write(notification(1));
+      writer.write(notification(2));
+    }
+    /* A crash in the middle of a record leaves its first bytes only */
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      out.write(new byte[]{(byte) NotificationOutcomeListener.Outcome.CONFIRMED.ordinal(), 0, 0, 0});
+    }
+    try (OutcomeFileWriter writer = new OutcomeFileWriter(file)) {
+      writer.write(notification(3));
+    }
+    assertEquals(3, identifiers(file).size());
+    assertEquals(3, (int) identifiers(file).get(2));
+  }
+
+  @Test
+  public void incompleteHeaderIsRewritten() throws Exception {
+    final File file = folder.newFile("empty.results");
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(new byte[]{0x4A, 0x50});
+    }
+    try (OutcomeFileWriter writer = new OutcomeFileWriter(file)) {
+      writer.write(notification(1));
+    }
+    assertEquals(1, identifiers(file).size());
+  }
+
+  @Test(timeout = 30000)
+  public void bufferIsFlushedWhenNoOutcomeArrives() throws Exception {
+    final File file = folder.newFile("idle.results");
+    try (OutcomeFileWriter writer = new OutcomeFileWriter(file)) {
+      writer.write(notification(1));
+      while (identifiers(file).isEmpty()) {
+        Thread.sleep(100);
+      }
+      assertTrue(file.length() > 8);
+    }
+  }
+
+  private static List<Integer> identifiers(final File file) throws Exception {
+    final List<Integer> identifiers = new ArrayList<>();
+    if (file.length() == 0) {
+      return identifiers;
+    }
+    try (OutcomeFileReader reader = new OutcomeFileReader(file)) {
+      for (final OutcomeFileReader.Record record : reader) {
+        identifiers.add(record.getIdentifier());
+      }
+    }
+    return identifiers;
+  }
+
+  private static PushedNotification notification(final int identifier) throws Exception {
+    final PushedNotification notification = new PushedNotification(new BasicDevice(FakeApnsServer.token(identifier)), PushNotificationPayload.alert("x"), identifier);
+    notification.setTransmissionCompleted(true);
+    return notification;
+  }
+}
@@ -0,0 +1,114 @@
+package javapns.notification;
+
+import javapns.devices.implementations.basic.BasicDevice;
+import javapns.test.FakeApnsServer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PushedNotificationsTest {
+  @Test
+  public void oldestNotificationsAreEvictedBeyondMaxRetained() throws Exception {
+    final PushedNotifications list = new PushedNotifications();
+    list.setMaxRetained(3);
+    final List<PushedNotification> notifications = notifications(5);
+    list.addAll(notifications.subList(0, 2));
+    list.add(notifications.get(2));
+    list.add(notifications.get(3));
+    list.add(notifications.get(4));
+    assertEquals(notifications.subList(2, 5), new ArrayList<>(list));
+  }
+
+  @Test
+  public void notificationsCanBeRemovedThroughIterators() throws Exception {
+    final PushedNotifications list = new PushedNotifications();
+    final List<PushedNotification> notifications = notifications(6);
+    list.addAll(notifications);
+
+    final Iterator<PushedNotification> iterator = list.iterator();
+    iterator.next();
+    iterator.next();
+    iterator.remove();
+    assertSame(notifications.get(2), iterator.next());
+    assertEquals(Arrays.asList(notifications.get(0), notifications.get(2), notifications.get(3), notifications.get(4), notifications.get(5)), new ArrayList<>(list));
+
+    assertTrue(list.removeIf(notification -> notification.getIdentifier() % 2 == 0));
+    assertEquals(Arrays.asList(notifications.get(3), notifications.get(5)), new ArrayList<>(list));
+    assertFalse(list.removeAll(Arrays.asList(notifications.get(0))));
+    assertTrue(list.retainAll(Arrays.asList(notifications.get(5))));
+    assertEquals(Arrays.asList(notifications.get(5)), new ArrayList<>(list));
+
+    final PushedNotification added = notifications(1).get(0);
+    list.add(added);
+    assertEquals(Arrays.asList(notifications.get(5), added), new ArrayList<>(list));
+  }
+
+  @Test(timeout = 30000)
+  public void concurrentAdditionsAreAllRetained() throws Exception {
+    final PushedNotifications list = new PushedNotifications();
+    list.setMaxRetained(8000);
+    final PushedNotification notification = notifications(1).get(0);
+    addConcurrently(list, notification, 8, 1000);
+    assertEquals(8000, list.size());
+    for (final PushedNotification added : list) {
+      assertSame(notification, added);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void concurrentAdditionsLappingSmallListsAreAllPublished() throws Exception {
+    final PushedNotification notification = notifications(1).get(0);
+    final PushedNotification marker = notifications(2).get(1);
+    for (final int maxRetained : new int[]{1, 3}) {
+      for (int round = 0; round < 300; round++) {
+        final PushedNotifications list = new PushedNotifications();
+        list.setMaxRetained(maxRetained);
+        addConcurrently(list, notification, 4, 500);
+        /* Every addition was published, so a last one is visible right away */
+        list.add(marker);
+        assertEquals(maxRetained, list.size());
+        assertSame(marker, list.get(maxRetained - 1));
+      }
+    }
+  }
+
+  private static void addConcurrently(final PushedNotifications list, final PushedNotification notification, final int threads, final int additions) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> started = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (final InterruptedException e) {
+          return;
+        }
+        for (int i = 0; i < additions; i++) {
+          list.add(notification);
+        }
+      });
+      thread.start();
+      started.add(thread);
+    }
+    start.countDown();
+    for (final Thread thread : started) {
+      thread.join();
+    }
+  }
+
+  private static List<PushedNotification> notifications(final int count) throws Exception {
+    final List<PushedNotification> notifications = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      notifications.add(new PushedNotification(new BasicDevice(FakeApnsServer.token(i)), PushNotificationPayload.alert("x"), i));
+    }
+    return notifications;
+  }
+}
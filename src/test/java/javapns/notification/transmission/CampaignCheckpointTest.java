@@ -0,0 +1,63 @@
+package javapns.notification.transmission;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CampaignCheckpointTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void notificationsAreConfirmedOnlyOnceSettled() throws Exception {
+    final File file = folder.newFile();
+    final CampaignCheckpoint checkpoint = new CampaignCheckpoint(file);
+    checkpoint.attach(new int[]{10, 10});
+    final CampaignCheckpoint.Partition partition = checkpoint.getPartition(0);
+
+    partition.pushed(1, 1, 0);
+    Thread.sleep(150);
+    partition.pushed(5, 5, 0);
+    /* However long ago, nothing is confirmed until error-responses were processed */
+    Thread.sleep(150);
+    assertEquals(0, checkpoint.getConfirmed());
+
+    final long settled = System.currentTimeMillis() - 1;
+    Thread.sleep(150);
+    partition.pushed(6, 6, settled);
+    assertEquals(5, checkpoint.getConfirmed());
+    checkpoint.close();
+
+    final CampaignCheckpoint resumed = new CampaignCheckpoint(file);
+    resumed.attach(new int[]{10, 10});
+    assertEquals(5, resumed.getPartition(0).getResumeIndex());
+    assertEquals(5, resumed.getPartition(0).getLastIdentifier());
+    assertEquals(0, resumed.getPartition(1).getResumeIndex());
+  }
+
+  @Test
+  public void completedPartitionsConfirmEverything() throws Exception {
+    final CampaignCheckpoint checkpoint = new CampaignCheckpoint(folder.newFile());
+    checkpoint.attach(new int[]{3, 2});
+    checkpoint.getPartition(0).completed(3, 3);
+    assertFalse(checkpoint.isComplete());
+    checkpoint.getPartition(1).completed(2, 5);
+    assertTrue(checkpoint.isComplete());
+    assertEquals(5, checkpoint.getConfirmed());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void resumingWithAnotherLayoutIsRefused() throws Exception {
+    final File file = folder.newFile();
+    final CampaignCheckpoint checkpoint = new CampaignCheckpoint(file);
+    checkpoint.attach(new int[]{10, 10});
+    checkpoint.close();
+    new CampaignCheckpoint(file).attach(new int[]{5, 5, 10});
+  }
+}
@@ -0,0 +1,96 @@
+package javapns.notification.transmission;
+
+import javapns.notification.AppleNotificationServer;
+import javapns.notification.PayloadPerDevice;
+import javapns.notification.PushNotificationPayload;
+import javapns.test.FakeApnsServer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FairSchedulerTest {
+  private FairScheduler scheduler;
+
+  /**
+   * Point the scheduler's connection at a closed port, so that messages stay queued until the test polls them.
+   */
+  @Before
+  public void createScheduler() throws Exception {
+    final AppleNotificationServer server;
+    try (FakeApnsServer apns = new FakeApnsServer()) {
+      server = apns.server();
+    }
+    scheduler = new FairScheduler(server, 1);
+  }
+
+  @Test
+  public void flowsTakeTurnsByWeight() throws Exception {
+    scheduler.setWeight("a", 2);
+    for (int i = 0; i < 6; i++) {
+      scheduler.add("a", message(i));
+    }
+    for (int i = 10; i < 13; i++) {
+      scheduler.add("b", message(i));
+    }
+    assertEquals(Arrays.asList(0, 1, 10, 2, 3, 11, 4, 5, 12), drain());
+  }
+
+  @Test
+  public void overflowDropsTheOldestMessageOfTheLowestLane() throws Exception {
+    final List<Integer> shed = new ArrayList<>();
+    scheduler.setSheddingListener((reason, message, priority) -> shed.add(number(message)));
+    scheduler.setSheddingPolicy(SheddingPolicy.bounded(4));
+    scheduler.setWeight("y", 2);
+    scheduler.add("y", message(1), NotificationPriority.LOW);
+    scheduler.add("x", message(2), NotificationPriority.LOW);
+    scheduler.add("y", message(3), NotificationPriority.LOW);
+    scheduler.add("y", message(4), NotificationPriority.LOW);
+    /* Flow y keeps its turn after this, but message 2 of flow x is older than its next message */
+    assertEquals(1, number(scheduler.poll(null)));
+    scheduler.add("y", message(6), NotificationPriority.LOW);
+    scheduler.add("x", message(5), NotificationPriority.NORMAL);
+    assertEquals(Arrays.asList(2), shed);
+    assertEquals(1, scheduler.getShedCount(SheddingListener.Reason.OVERFLOW));
+    assertEquals(Arrays.asList(5, 3, 4, 6), drain());
+  }
+
+  @Test
+  public void droppedMessagesDoNotAccumulate() throws Exception {
+    final SheddingPolicy policy = new SheddingPolicy();
+    policy.setCoalesceByDevice(true);
+    scheduler.setSheddingPolicy(policy);
+    scheduler.add("badges", message(1));
+    for (int i = 0; i < 10000; i++) {
+      scheduler.add("badges", message(2));
+    }
+    assertEquals(2, scheduler.size());
+    assertTrue(scheduler.getRetained("badges") < 200);
+    assertEquals(9999, scheduler.getShedCount(SheddingListener.Reason.COALESCED));
+    assertEquals(Arrays.asList(1, 2), drain());
+  }
+
+  private List<Integer> drain() {
+    final List<Integer> numbers = new ArrayList<>();
+    PayloadPerDevice message;
+    while ((message = scheduler.poll(null)) != null) {
+      numbers.add(number(message));
+    }
+    assertNull(scheduler.poll(null));
+    return numbers;
+  }
+
+  private static PayloadPerDevice message(final int number) throws Exception {
+    return new PayloadPerDevice(PushNotificationPayload.alert("x"), FakeApnsServer.token(number));
+  }
+
+  private static int number(final PayloadPerDevice message) {
+    return Integer.parseInt(message.getDevice().getToken(), 16);
+  }
+}
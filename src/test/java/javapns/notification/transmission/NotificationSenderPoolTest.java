@@ -0,0 +1,55 @@
+package javapns.notification.transmission;
+
+import javapns.notification.PushNotificationPayload;
+import javapns.test.FakeApnsServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationSenderPoolTest {
+  private FakeApnsServer apns;
+
+  @Before
+  public void startServer() throws Exception {
+    apns = new FakeApnsServer();
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    apns.close();
+  }
+
+  @Test(timeout = 30000)
+  public void campaignsReuseConnections() throws Exception {
+    final List<String> tokens = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      tokens.add(FakeApnsServer.token(i));
+    }
+    try (NotificationSenderPool pool = new NotificationSenderPool(apns.server(), 2)) {
+      pool.start();
+      assertTrue(pool.awaitConnections());
+      final NotificationCampaign first = pool.push(PushNotificationPayload.alert("first"), tokens);
+      final NotificationCampaign second = pool.push(PushNotificationPayload.alert("second"), tokens);
+      assertEquals(20, first.get().getSuccessfulNotifications().size());
+      assertEquals(20, second.get().getSuccessfulNotifications().size());
+      assertTrue(first.isDone() && second.isDone());
+    }
+    assertEquals(2, apns.getConnections());
+    assertEquals(40, apns.getFrames());
+    assertEquals(20, new HashSet<>(apns.getTokens()).size());
+  }
+
+  @Test(timeout = 10000)
+  public void closingAnUnstartedPoolReturnsImmediately() throws Exception {
+    final NotificationSenderPool pool = new NotificationSenderPool(apns.server(), 3);
+    pool.close();
+    assertEquals(0, apns.getConnections());
+  }
+}
@@ -0,0 +1,100 @@
+package javapns.notification.transmission;
+
+import javapns.devices.Device;
+import javapns.notification.ConnectionRecyclingPolicy;
+import javapns.notification.PushNotificationPayload;
+import javapns.test.FakeApnsServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationThreadsTest {
+  private FakeApnsServer apns;
+
+  @Before
+  public void startServer() throws Exception {
+    apns = new FakeApnsServer();
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    apns.close();
+  }
+
+  @Test(timeout = 10000)
+  public void waitForAllThreadsReturnsImmediatelyWhenNotStarted() throws Exception {
+    final NotificationThreads threads = new NotificationThreads(apns.server(), PushNotificationPayload.alert("x"), new ArrayList<Device>(), 2);
+    threads.waitForAllThreads();
+    threads.waitForAllThreads(true);
+  }
+
+  @Test(timeout = 30000)
+  public void allThreadsFinishedIsSignalledOnce() throws Exception {
+    final List<String> tokens = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      tokens.add(FakeApnsServer.token(i));
+    }
+    final NotificationThreads threads = new NotificationThreads(apns.server(), PushNotificationPayload.alert("x"), javapns.devices.Devices.asDevices(tokens), 3);
+    final AtomicInteger finished = new AtomicInteger();
+    threads.setListener(new NotificationProgressListener() {
+      public void eventAllThreadsStarted(final NotificationThreads notificationThreads) {
+      }
+
+      public void eventThreadStarted(final NotificationThread notificationThread) {
+      }
+
+      public void eventThreadFinished(final NotificationThread notificationThread) {
+      }
+
+      public void eventConnectionRestarted(final NotificationThread notificationThread) {
+      }
+
+      public void eventAllThreadsFinished(final NotificationThreads notificationThreads) {
+        finished.incrementAndGet();
+      }
+
+      public void eventCriticalException(final NotificationThread notificationThread, final Exception exception) {
+      }
+    });
+    threads.start();
+    threads.waitForAllThreads(true);
+    assertEquals(1, finished.get());
+    assertEquals(6, threads.getSuccessfulNotifications().size());
+    assertEquals(6, apns.getFrames());
+  }
+
+  @Test(timeout = 30000)
+  public void queueThreadsSurviveMessagesAddedWhileConnecting() throws Exception {
+    final NotificationThreads threads = new NotificationThreads(apns.server(), 2);
+    threads.setMaxConcurrentHandshakes(1);
+    threads.setStartupJitter(500);
+    threads.start();
+    for (int i = 0; i < 4; i++) {
+      threads.add(PushNotificationPayload.alert("x"), FakeApnsServer.token(i));
+    }
+    while (apns.getFrames() < 4) {
+      Thread.sleep(50);
+    }
+    assertTrue(threads.getCriticalExceptions().isEmpty());
+    assertTrue(threads.awaitConnections(2, 5, java.util.concurrent.TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void maxNotificationsPerConnectionLeavesSharedPolicyUnchanged() throws Exception {
+    final ConnectionRecyclingPolicy shared = new ConnectionRecyclingPolicy();
+    final NotificationThreads threads = new NotificationThreads(apns.server(), 2);
+    threads.setRecyclingPolicy(shared);
+    final NotificationThread first = threads.getThreads().get(0);
+    first.setMaxNotificationsPerConnection(100);
+    assertEquals(100, first.getMaxNotificationsPerConnection());
+    assertEquals(0, threads.getThreads().get(1).getMaxNotificationsPerConnection());
+    assertEquals(0, shared.getMaxNotifications());
+  }
+}
@@ -0,0 +1,109 @@
+package javapns.notification.transmission;
+
+import javapns.notification.PayloadPerDevice;
+import javapns.notification.PushNotificationManager;
+import javapns.notification.PushNotificationPayload;
+import javapns.test.FakeApnsServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class QueueJournalTest {
+  private static final int SEGMENT_SIZE = 8 * 1024;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void uncommittedMessagesAreRecovered() throws Exception {
+    final File directory = folder.newFolder();
+    final QueueJournal journal = new QueueJournal(directory, SEGMENT_SIZE);
+    append(journal, 0, 3);
+    for (int i = 0; i < 3; i++) {
+      journal.poll();
+    }
+    journal.commit(1);
+    assertEquals(2, journal.getUncommitted());
+    journal.close();
+
+    final QueueJournal reopened = new QueueJournal(directory, SEGMENT_SIZE);
+    assertEquals(2, reopened.size());
+    assertEquals(FakeApnsServer.token(1), reopened.poll().getDevice().getToken());
+    assertEquals(FakeApnsServer.token(2), reopened.poll().getDevice().getToken());
+    assertNull(reopened.poll());
+    reopened.close();
+  }
+
+  @Test
+  public void commitAllLeavesNothingToRecover() throws Exception {
+    final File directory = folder.newFolder();
+    final QueueJournal journal = new QueueJournal(directory, SEGMENT_SIZE);
+    append(journal, 0, 3);
+    while (journal.poll() != null) {
+      // consume
+    }
+    journal.commit();
+    journal.close();
+
+    final QueueJournal reopened = new QueueJournal(directory, SEGMENT_SIZE);
+    assertEquals(0, reopened.size());
+    reopened.close();
+  }
+
+  @Test
+  public void partialCommitAcrossSegments() throws Exception {
+    final File directory = folder.newFolder();
+    final QueueJournal journal = new QueueJournal(directory, SEGMENT_SIZE);
+    append(journal, 0, 200);
+    for (int i = 0; i < 200; i++) {
+      assertEquals(FakeApnsServer.token(i), journal.poll().getDevice().getToken());
+    }
+    journal.commit(150);
+    journal.close();
+
+    final QueueJournal reopened = new QueueJournal(directory, SEGMENT_SIZE);
+    assertEquals(50, reopened.size());
+    assertEquals(FakeApnsServer.token(150), reopened.poll().getDevice().getToken());
+    reopened.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void cannotCommitMessagesNotTaken() throws Exception {
+    final QueueJournal journal = new QueueJournal(folder.newFolder(), SEGMENT_SIZE);
+    append(journal, 0, 1);
+    journal.commit(1);
+  }
+
+  @Test(timeout = 30000)
+  public void queueThreadCommitsOnlySettledMessages() throws Exception {
+    try (FakeApnsServer apns = new FakeApnsServer()) {
+      final QueueJournal journal = new QueueJournal(folder.newFolder(), SEGMENT_SIZE);
+      final NotificationThread thread = new NotificationThread(new PushNotificationManager(), apns.server());
+      thread.setJournal(journal);
+      thread.start();
+      for (int i = 0; i < 3; i++) {
+        thread.add(PushNotificationPayload.alert("x"), FakeApnsServer.token(i));
+      }
+      while (apns.getFrames() < 3) {
+        Thread.sleep(20);
+      }
+      /* Apple could still reject them */
+      Thread.sleep(200);
+      assertEquals(3, journal.getUncommitted());
+      while (journal.getUncommitted() > 0) {
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  private static void append(final QueueJournal journal, final int first, final int count) throws Exception {
+    for (int i = first; i < first + count; i++) {
+      journal.append(new PayloadPerDevice(PushNotificationPayload.alert("message " + i), FakeApnsServer.token(i)));
+    }
+  }
+}
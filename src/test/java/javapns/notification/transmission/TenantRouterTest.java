@@ -0,0 +1,73 @@
+package javapns.notification.transmission;
+
+import javapns.notification.PushNotificationPayload;
+import javapns.test.FakeApnsServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TenantRouterTest {
+  private FakeApnsServer apns;
+
+  @Before
+  public void startServer() throws Exception {
+    apns = new FakeApnsServer();
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    apns.close();
+  }
+
+  @Test(timeout = 60000)
+  public void idleTenantsAreEvictedToStayWithinBudget() throws Exception {
+    try (TenantRouter router = new TenantRouter(2, 3, 0)) {
+      router.register("app1", apns.server());
+      router.register("app2", apns.server());
+      assertEquals(10, router.push("app1", PushNotificationPayload.alert("first"), tokens(10)).get().getSuccessfulNotifications().size());
+      assertEquals(2, router.getOpenConnections());
+
+      /* Two more connections do not fit in the budget, so the idle first tenant is closed */
+      assertEquals(10, router.push("app2", PushNotificationPayload.alert("second"), tokens(10)).get().getSuccessfulNotifications().size());
+      assertEquals(2, router.getOpenConnections());
+      assertEquals(1, router.getOpenTenantCount());
+      assertEquals(1, router.getEvictions());
+    }
+    assertEquals(20, apns.getFrames());
+  }
+
+  @Test(timeout = 60000)
+  public void tenantsUnusedLongerThanMaxIdleTimeAreEvicted() throws Exception {
+    try (TenantRouter router = new TenantRouter(1, 10, 200)) {
+      router.register("app1", apns.server());
+      router.register("app2", apns.server());
+      router.register("app3", apns.server());
+      final NotificationCampaign second = router.push("app2", PushNotificationPayload.alert("x"), tokens(2));
+      final NotificationCampaign third = router.push("app3", PushNotificationPayload.alert("x"), tokens(2));
+      second.get();
+      third.get();
+      assertEquals(2, router.getOpenTenantCount());
+
+      Thread.sleep(400);
+      /* A tenant registered again was just used, which must not shield tenants idle for longer */
+      router.register("app1", apns.server());
+      assertEquals(2, router.evictIdle());
+      assertEquals(0, router.getOpenConnections());
+      assertEquals(2, router.getEvictions());
+      assertEquals(3, router.getTenantCount());
+    }
+  }
+
+  private static List<String> tokens(final int count) {
+    final List<String> tokens = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      tokens.add(FakeApnsServer.token(i));
+    }
+    return tokens;
+  }
+}
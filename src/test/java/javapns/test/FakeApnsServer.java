@@ -0,0 +1,256 @@
+package javapns.test;
+
+import javapns.communication.AppleServerBasicImpl;
+import javapns.communication.exceptions.KeystoreException;
+import javapns.notification.AppleNotificationServer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local TLS server speaking the binary notification protocol, for tests that need a real connection.
+ * <p>
+ * Every frame received is recorded.  Frames whose identifier was registered with {@link #rejectIdentifier(int)}
+ * get an error-response with status 8 (invalid token), after which the connection is closed, as Apple does.
+ */
+public class FakeApnsServer implements Runnable, AutoCloseable {
+  public static final String PASSWORD = "secret";
+  public static final String ROTATED_PASSWORD = "secret2";
+
+  private final SSLServerSocket serverSocket;
+  private final AtomicInteger connections = new AtomicInteger();
+  private final AtomicInteger frames = new AtomicInteger();
+  private final Set<Integer> rejected = ConcurrentHashMap.newKeySet();
+  private final List<Integer> identifiers = Collections.synchronizedList(new ArrayList<Integer>());
+  private final List<String> tokens = Collections.synchronizedList(new ArrayList<String>());
+  private final Set<SSLSocket> open = ConcurrentHashMap.newKeySet();
+
+  public FakeApnsServer() throws Exception {
+    final KeyStore keystore = KeyStore.getInstance("PKCS12");
+    try (InputStream in = FakeApnsServer.class.getResourceAsStream("keystore.p12")) {
+      keystore.load(in, PASSWORD.toCharArray());
+    }
+    final KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    factory.init(keystore, PASSWORD.toCharArray());
+    final SSLContext context = SSLContext.getInstance("TLS");
+    /* Ask clients for their certificate, as Apple does, so that tests can check which one a connection presents */
+    context.init(factory.getKeyManagers(), new TrustManager[]{new TrustingTrustManager()}, null);
+    serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0);
+    serverSocket.setWantClientAuth(true);
+    final Thread acceptor = new Thread(this, "fake APNs server");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * Get the keystore file used by tests as client certificate.
+   *
+   * @return a PKCS12 keystore protected by {@link #PASSWORD}
+   */
+  public static File keystore() {
+    return resource("keystore.p12");
+  }
+
+  /**
+   * Get a second keystore file, for tests replacing certificates.
+   *
+   * @return a PKCS12 keystore protected by {@link #ROTATED_PASSWORD}
+   */
+  public static File rotatedKeystore() {
+    return resource("keystore2.p12");
+  }
+
+  private static File resource(final String name) {
+    try {
+      return new File(FakeApnsServer.class.getResource(name).toURI());
+    } catch (final URISyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Build a device token from a number.
+   *
+   * @param number any number
+   * @return a token of 64 hexadecimal digits
+   */
+  public static String token(final long number) {
+    return String.format(Locale.ENGLISH, "%064x", number);
+  }
+
+  /**
+   * Get a server pointing to this fake server.
+   *
+   * @param keystore a keystore reference
+   * @param password the keystore's password
+   * @return a notification server
+   * @throws KeystoreException thrown if the keystore is invalid
+   */
+  public AppleNotificationServer server(final Object keystore, final String password) throws KeystoreException {
+    return new LocalServer(keystore, password, getPort());
+  }
+
+  public AppleNotificationServer server() throws KeystoreException {
+    return server(keystore(), PASSWORD);
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  public int getConnections() {
+    return connections.get();
+  }
+
+  public int getFrames() {
+    return frames.get();
+  }
+
+  public List<Integer> getIdentifiers() {
+    synchronized (identifiers) {
+      return new ArrayList<>(identifiers);
+    }
+  }
+
+  public List<String> getTokens() {
+    synchronized (tokens) {
+      return new ArrayList<>(tokens);
+    }
+  }
+
+  public void rejectIdentifier(final int identifier) {
+    rejected.add(identifier);
+  }
+
+  /**
+   * Close all open connections without sending anything, as a firewall dropping idle connections would.
+   */
+  public void dropConnections() {
+    for (final SSLSocket socket : open) {
+      try {
+        socket.close();
+      } catch (final IOException e) {
+        // empty
+      }
+    }
+  }
+
+  public void run() {
+    while (true) {
+      try {
+        final SSLSocket socket = (SSLSocket) serverSocket.accept();
+        connections.incrementAndGet();
+        open.add(socket);
+        final Thread handler = new Thread(() -> handle(socket), "fake APNs connection");
+        handler.setDaemon(true);
+        handler.start();
+      } catch (final IOException e) {
+        return;
+      }
+    }
+  }
+
+  private void handle(final SSLSocket socket) {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream())); OutputStream out = socket.getOutputStream()) {
+      while (true) {
+        final int command = in.read();
+        if (command < 0) {
+          return;
+        }
+        final int identifier = in.readInt();
+        in.readInt(); // expiry
+        final byte[] token = new byte[in.readUnsignedShort()];
+        in.readFully(token);
+        in.readFully(new byte[in.readUnsignedShort()]);
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : token) {
+          hex.append(String.format(Locale.ENGLISH, "%02x", b & 0xFF));
+        }
+        tokens.add(hex.toString());
+        identifiers.add(identifier);
+        frames.incrementAndGet();
+        if (rejected.remove(identifier)) {
+          out.write(new byte[]{8, 8, (byte) (identifier >>> 24), (byte) (identifier >>> 16), (byte) (identifier >>> 8), (byte) identifier});
+          out.flush();
+          socket.close();
+          return;
+        }
+      }
+    } catch (final IOException e) {
+      // connection closed
+    } finally {
+      open.remove(socket);
+    }
+  }
+
+  public void close() throws IOException {
+    serverSocket.close();
+  }
+
+  /**
+   * Accepts any client certificate.
+   */
+  private static final class TrustingTrustManager implements X509TrustManager {
+    public void checkClientTrusted(final X509Certificate[] chain, final String authType) {
+      // empty
+    }
+
+    public void checkServerTrusted(final X509Certificate[] chain, final String authType) {
+      // empty
+    }
+
+    public X509Certificate[] getAcceptedIssuers() {
+      return new X509Certificate[0];
+    }
+  }
+
+  /**
+   * A notification server running on localhost.
+   */
+  private static final class LocalServer extends AppleServerBasicImpl implements AppleNotificationServer {
+    private final int port;
+
+    private LocalServer(final Object keystore, final String password, final int port) throws KeystoreException {
+      super(keystore, password, "PKCS12");
+      this.port = port;
+    }
+
+    public String getNotificationServerHost() {
+      return "localhost";
+    }
+
+    public int getNotificationServerPort() {
+      return port;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      return super.equals(o) && port == ((LocalServer) o).port;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * super.hashCode() + port;
+    }
+  }
+}
@@ -44,7 +44,7 @@ class NotificationTest extends TestFoundation {
     }
 
     public void eventConnectionRestarted(final NotificationThread thread) {
-      System.out.println("   [EVENT]: connection restarted in thread #" + thread.getThreadNumber() + " because it reached " + thread.getMaxNotificationsPerConnection() + " notifications per connection");
+      System.out.println("   [EVENT]: connection recycled in thread #" + thread.getThreadNumber());
     }
 
     public void eventAllThreadsStarted(final NotificationThreads notificationThreads) {